@@ -17,8 +17,8 @@ import org.xml.sax.SAXException;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Entity;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.ID;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Relation;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.ResourceWrapper;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.ResourceWrapperExtended;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.ResourceDataAccessObject;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.ResourceDataAccessObjectExtended;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.xml.XMLNode;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.xml.XMLTree;
 import edu.cmu.lti.oaqa.bio.species_mapper.Species;
@@ -31,10 +31,10 @@ import edu.cmu.lti.oaqa.bio.species_mapper.Species;
  * 
  * @author Collin McCormack (cmccorma)
  * @version 0.3
- * @see ResourceWrapper
- * @see ResourceWrapperExtended
+ * @see ResourceDataAccessObject
+ * @see ResourceDataAccessObjectExtended
  */
-public class EntrezGeneDAO implements ResourceWrapperExtended {
+public class EntrezGeneDAO implements ResourceDataAccessObjectExtended {
 	
 	private static final String baseURL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/";
 	private static final String esearch = baseURL + "esearch.fcgi?db=gene&term=";
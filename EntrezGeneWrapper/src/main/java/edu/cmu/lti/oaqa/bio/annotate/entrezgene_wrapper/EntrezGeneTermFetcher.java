@@ -0,0 +1,40 @@
+package edu.cmu.lti.oaqa.bio.annotate.entrezgene_wrapper;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.bio.annotate.entrezgene_dao.EntrezGeneDAO;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Entity;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.TermFetcher;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.EntityTermConverter;
+
+/**
+ * Re-fetches cached Entrez Gene records for the CacheRefresher.
+ * Usage: refresher.addFetcher(new EntrezGeneTermFetcher());
+ */
+public class EntrezGeneTermFetcher implements TermFetcher {
+	private EntrezGeneDAO dao;
+	
+	public EntrezGeneTermFetcher() {
+		this.dao = new EntrezGeneDAO();
+	}
+	
+	public String getSource() {
+		return "EntrezGene";
+	}
+	
+	public String getIDPrefix() {
+		return "EntrezGene:";
+	}
+	
+	/**
+	 * @param id Entrez Gene ID, without the "EntrezGene:" prefix
+	 * @return Term built the same way the wrapper builds it, null if Entrez Gene returned nothing usable
+	 */
+	public Term fetch(String id) throws IOException {
+		Entity ent = this.dao.fetch(id);
+		if (ent == null || ent.getName() == null)
+			return null;
+		return EntityTermConverter.EntityToTerm(ent);
+	}
+}
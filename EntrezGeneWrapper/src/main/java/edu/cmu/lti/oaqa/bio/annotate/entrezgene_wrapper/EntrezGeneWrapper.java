@@ -8,11 +8,12 @@ import java.util.List;
 import edu.cmu.lti.oaqa.bio.annotate.entrezgene_dao.EntrezGeneDAO;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.db_cache.DBCache;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.BulkLookup;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.EntityTermConverter;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.ResourceDataAccessObject;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.ResourceWrapper;
 
-public class EntrezGeneWrapper implements ResourceDataAccessObject {
+public class EntrezGeneWrapper implements ResourceWrapper {
 	EntrezGeneDAO egw;
 	private DBCache dbc;
 	
@@ -24,9 +25,18 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 		this.dbc = new DBCache();
 	}
 	
+	/**
+	 * Constructor using a given web service client and cache.
+	 */
+	EntrezGeneWrapper(EntrezGeneDAO egw, DBCache dbc) {
+		this.egw = egw;
+		this.dbc = dbc;
+	}
+	
 	/**
 	 * Get a complete Term object from Entrez Gene. 
-	 * If the database already contains the top match, then it will be the source for
+	 * If the database already has a term named termQuery, or one listing it as a synonym, that term is returned
+	 * without asking Entrez Gene.  If the database already contains the top match, then it will be the source for
 	 * the Term.  In the case that multiple entities have the same name, all of their relationships
 	 * will be put into the same 'composite' Term object.
 	 * Caution: may not return exact match to query.  Search is based on
@@ -39,15 +49,28 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 		ArrayList<String> searchResults = null;
 		String id = null;
 		
+		// Resolve the name locally first: a cached term of that name, or one listing it as a synonym
+		outputTerm = this.dbc.resolveTerm(termQuery, "EntrezGene");
+		if (outputTerm != null)
+			return outputTerm;
+		
+		// Skip queries Entrez Gene recently found nothing for
+		if (this.dbc.isKnownMiss("EntrezGene", termQuery, DBCache.MATCH_SEARCH))
+			return null;
+		
 		// Search EG
 		try {
 			searchResults = this.egw.search(termQuery);
-			if (searchResults == null || searchResults.size() == 0)
+			if (searchResults == null || searchResults.size() == 0) {
+				if (searchResults != null)
+					this.dbc.recordMiss("EntrezGene", termQuery, DBCache.MATCH_SEARCH);
 				return null;
+			}
 			id = searchResults.get(0);
 		} catch (IOException e) {
 			System.out.println("getterm(Str): Entrez Gene web service issue [search]");
 			e.printStackTrace();
+			return null;
 		}
 		
 		// Check database for first entry; if present, retrieve it
@@ -62,7 +85,7 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 				e.printStackTrace();
 			}
 			// Add to cache
-			this.dbc.addWholeTerm(outputTerm);
+			this.dbc.queueWholeTerm(outputTerm);
 		}
 		
 		return outputTerm;
@@ -84,6 +107,9 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 				System.out.println("Retrieving "+termQuery+" from cache...");
 				outputTerm = this.dbc.getTerm(termQuery, "EntrezGene");
 			}
+			// Skip queries with no exact match in Entrez Gene last time
+			else if (this.dbc.isKnownMiss("EntrezGene", termQuery, DBCache.MATCH_EXACT))
+				return null;
 			// Else, use the original resource to get it
 			else {
 				System.out.println("Retrieving "+termQuery+" from web service...");
@@ -106,6 +132,8 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 							}
 						}
 					}
+					if (outputTerm == null)
+						this.dbc.recordMiss("EntrezGene", termQuery, DBCache.MATCH_EXACT);
 				} catch (IOException ioe) {
 					System.out.println("Search or fetch to Entrez Gene web service failed due to IO.");
 					ioe.printStackTrace();
@@ -113,7 +141,7 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 			}
 			// 	Add it to the cache
 			if (outputTerm != null)
-				this.dbc.addWholeTerm(outputTerm);
+				this.dbc.queueWholeTerm(outputTerm);
 		}
 		// Inexact matching
 		else 
@@ -137,8 +165,8 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 	 * Will never return a list larger than amountRequested, but may return a smaller list.
 	 * Order of the list is the relevance ranking from Entrez Gene search.
 	 * 
-	 * Database cache is used to retrieve terms whenever possible; when the database does NOT contain
-	 * the required information, the Entrez Gene web service is queried instead.
+	 * Database cache is used to retrieve terms whenever possible (all search hits are looked up with one bulk query);
+	 * when the database does NOT contain the required information, the Entrez Gene web service is queried instead.
 	 * 
 	 * @param termQuery String to query for
 	 * @param amountRequested Maximum number of results to attempt to find
@@ -147,34 +175,42 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 	public Collection<Term> getTerms(String termQuery, int amountRequested) {
 		List<String> idResults = null;
 		ArrayList<Term> termResults = null;
+		if (this.dbc.isKnownMiss("EntrezGene", termQuery, DBCache.MATCH_SEARCH))
+			return new ArrayList<Term>(0);
 		try {
 			// Search EG for termQuery
 			idResults = this.egw.search(termQuery);
+			if (idResults.isEmpty())
+				this.dbc.recordMiss("EntrezGene", termQuery, DBCache.MATCH_SEARCH);
 			// Trim results down to amountRequested
 			if (idResults.size() > amountRequested)
 				idResults = idResults.subList(0, amountRequested);
 			termResults = new ArrayList<Term>(idResults.size());
-			// Check database for names
+			// Check database for all the ID's at once
+			ArrayList<String> qualifiedIds = new ArrayList<String>(idResults.size());
+			for (String id : idResults)
+				qualifiedIds.add("EntrezGene:"+id);
+			BulkLookup cached = this.dbc.getTermsByIDs(qualifiedIds, "EntrezGene");
+			ArrayList<Term> fetched = new ArrayList<Term>(cached.getMisses().size());
 			for (String id : idResults) {
-				// If present, retrieve from database
-				if (this.dbc.IDinCache(id))
-					termResults.add(this.dbc.getTermByID(id, "EntrezGene"));
+				// If present, take it from the database results
+				Term cachedTerm = cached.get("EntrezGene:"+id);
+				if (cachedTerm != null)
+					termResults.add(cachedTerm);
 				// Else, retrieve from EG and add to cache
 				else {
 					try {
-						termResults.add(EntityTermConverter.EntityToTerm(this.egw.fetch(id)));
+						Term tempTerm = EntityTermConverter.EntityToTerm(this.egw.fetch(id));
+						termResults.add(tempTerm);
+						fetched.add(tempTerm);
 					} catch (IOException e) {
 						System.out.println("Wasn't able to fetch ID "+id+" from Entrez Gene.  See stack trace below:");
 						e.printStackTrace();
 					}
 				}
 			}
-			// Add termResults to cache AFTER retrieving all of them
-			// If done before, it will test positive for being in the database if named the same
-			// This short-circuits the retrieval of results for other identically named items
-			// And any different results are lost.
-			for (Term t : termResults)
-				this.dbc.addWholeTerm(t);
+			// Add fetched terms to cache AFTER retrieving all of them, in one transaction
+			this.dbc.queueWholeTerms(fetched);
 		} catch (IOException ioe) {
 			System.out.println("getTerms(Str): Entrez Gene web service issue [search, summary, fetch]");
 			ioe.printStackTrace();
@@ -196,7 +232,7 @@ public class EntrezGeneWrapper implements ResourceDataAccessObject {
 			ArrayList<TermRelationship> results = resultTerm.getTermRelationshipsByRelation("synonym");
 			ArrayList<String> synonyms = new ArrayList<String>(results.size());
 			for (TermRelationship tr : results)
-				synonyms.add(tr.getValueTerm());
+				synonyms.add(tr.getToTerm());
 			return synonyms;
 		}
 	}
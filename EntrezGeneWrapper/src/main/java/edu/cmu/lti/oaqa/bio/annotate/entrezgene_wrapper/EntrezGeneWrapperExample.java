@@ -4,12 +4,12 @@ import java.util.Collection;
 
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.ResourceDataAccessObject;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.ResourceWrapper;
 
 public class EntrezGeneWrapperExample {
 
 	public static void main(String[] args) {
-		ResourceDataAccessObject egdao = new EntrezGeneWrapper();
+		ResourceWrapper egdao = new EntrezGeneWrapper();
 		
 		// getTerm
 		System.out.println("getTerm(BRCA1):");
@@ -0,0 +1,94 @@
+package edu.cmu.lti.oaqa.bio.annotate.entrezgene_wrapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import edu.cmu.lti.oaqa.bio.annotate.entrezgene_dao.EntrezGeneDAO;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.SchemaManager;
+
+/**
+ * Tests EntrezGeneWrapper's use of the lookup-miss records on an embedded H2 database, with a stand-in for the web
+ * service: an empty answer is recorded and not asked again, a failed request (IOException) is never recorded, and
+ * a name cached by another resource doesn't stand in for an answer.
+ */
+public class KnownMissTest extends TestCase {
+
+	/**
+	 * Finds nothing, or fails for queries starting with "fail".
+	 */
+	private static class StubDAO extends EntrezGeneDAO {
+		private int searches = 0;
+
+		public ArrayList<String> search(String queryTerms) throws IOException {
+			this.searches++;
+			if (queryTerms.startsWith("fail"))
+				throw new IOException("Service unavailable");
+			return new ArrayList<String>();
+		}
+	}
+
+	private int accessSampleRate;
+	private long bloomExpectedEntries;
+	private long lookupMissTTL;
+	private ConnectionPool pool;
+	private DBCache cache;
+	private StubDAO service;
+	private EntrezGeneWrapper wrapper;
+
+	protected void setUp() throws Exception {
+		this.accessSampleRate = DBInfo.accessSampleRate;
+		this.bloomExpectedEntries = DBInfo.bloomExpectedEntries;
+		this.lookupMissTTL = DBInfo.lookupMissTTL;
+		DBInfo.accessSampleRate = 0;
+		DBInfo.bloomExpectedEntries = 0;
+		DBInfo.lookupMissTTL = 60000;
+		this.pool = new ConnectionPool("org.h2.Driver", "jdbc:h2:mem:egknownmisstest-" + getName() + ";DB_CLOSE_DELAY=-1", "sa", "",
+										1, 2, 30000, 0, 5);
+		new SchemaManager(this.pool).migrate();
+		this.cache = new DBCache(this.pool);
+		this.service = new StubDAO();
+		this.wrapper = new EntrezGeneWrapper(this.service, this.cache);
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		this.pool.close();
+		DBInfo.accessSampleRate = this.accessSampleRate;
+		DBInfo.bloomExpectedEntries = this.bloomExpectedEntries;
+		DBInfo.lookupMissTTL = this.lookupMissTTL;
+	}
+
+	public void testEmptyAnswerRecorded() throws Exception {
+		assertTrue("empty search answered", this.wrapper.getTerm("no such gene") == null && this.service.searches == 1);
+		assertTrue("empty search recorded", this.cache.isKnownMiss("EntrezGene", "no such gene", DBCache.MATCH_SEARCH));
+		assertTrue("known miss not asked again", this.wrapper.getTerm("No  such gene") == null
+													&& this.wrapper.getTerms("no such gene").isEmpty() && this.service.searches == 1);
+		assertTrue("no exact match recorded", this.wrapper.getTerm("no exact gene", true) == null
+												&& this.cache.isKnownMiss("EntrezGene", "no exact gene", DBCache.MATCH_EXACT));
+	}
+
+	public void testOtherSourceSearched() throws Exception {
+		// A name cached by MeSH only is not an Entrez Gene answer: the service is still asked
+		Term heading = new Term("brca1");
+		heading.addTermRelationship(new TermRelationship("brca1", "ID", "MeSH:D019398", 1.0, "MeSH"));
+		this.cache.addWholeTerm(heading);
+		assertTrue("other source's term not returned", this.wrapper.getTerm("brca1") == null && this.service.searches == 1);
+	}
+
+	public void testFailureNotRecorded() throws Exception {
+		this.wrapper.getTerm("fail gene");
+		this.wrapper.getTerms("fail gene");
+		this.wrapper.getTerm("fail gene", true);
+		assertTrue("failed requests not recorded", !this.cache.isKnownMiss("EntrezGene", "fail gene", DBCache.MATCH_SEARCH)
+													&& !this.cache.isKnownMiss("EntrezGene", "fail gene", DBCache.MATCH_EXACT));
+		int searches = this.service.searches;
+		this.wrapper.getTerm("fail gene");
+		assertEquals("failed request asked again", searches + 1, this.service.searches);
+	}
+}
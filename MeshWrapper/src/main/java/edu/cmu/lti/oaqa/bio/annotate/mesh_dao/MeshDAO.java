@@ -17,11 +17,11 @@ import org.xml.sax.SAXException;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Entity;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.ID;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Relation;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.ResourceWrapper;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.ResourceDataAccessObject;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.xml.XMLNode;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.xml.XMLTree;
 
-public class MeshDAO implements ResourceWrapper {
+public class MeshDAO implements ResourceDataAccessObject {
 	private static final String baseURL = "http://eutils.ncbi.nlm.nih.gov/entrez/eutils/";
 	private static final String esearch = baseURL + "esearch.fcgi?db=mesh&term=";
 	private static final String efetch = baseURL + "efetch.fcgi?db=mesh&retmode=text&id=";
@@ -0,0 +1,40 @@
+package edu.cmu.lti.oaqa.bio.annotate.mesh_wrapper;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.bio.annotate.mesh_dao.MeshDAO;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Entity;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.TermFetcher;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.EntityTermConverter;
+
+/**
+ * Re-fetches cached MeSH records for the CacheRefresher.
+ * Usage: refresher.addFetcher(new MeshTermFetcher());
+ */
+public class MeshTermFetcher implements TermFetcher {
+	private MeshDAO dao;
+	
+	public MeshTermFetcher() {
+		this.dao = new MeshDAO();
+	}
+	
+	public String getSource() {
+		return "MeSH";
+	}
+	
+	public String getIDPrefix() {
+		return "MeSH:";
+	}
+	
+	/**
+	 * @param id MeSH ID, without the "MeSH:" prefix
+	 * @return Term built the same way the wrapper builds it, null if MeSH returned nothing usable
+	 */
+	public Term fetch(String id) throws IOException {
+		Entity ent = this.dao.fetch(id);
+		if (ent == null || ent.getName() == null)
+			return null;
+		return EntityTermConverter.EntityToTerm(ent);
+	}
+}
@@ -9,11 +9,12 @@ import edu.cmu.lti.oaqa.bio.annotate.mesh_dao.MeshDAO;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Entity;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.db_cache.DBCache;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.BulkLookup;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.EntityTermConverter;
-import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.ResourceDataAccessObject;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.resource_dao.ResourceWrapper;
 
-public class MeshWrapper implements ResourceDataAccessObject {
+public class MeshWrapper implements ResourceWrapper {
 	MeshDAO mw;
 	DBCache dbc;
 	
@@ -25,9 +26,18 @@ public class MeshWrapper implements ResourceDataAccessObject {
 		this.dbc = new DBCache();
 	}
 	
+	/**
+	 * Constructor using a given web service client and cache.
+	 */
+	MeshWrapper(MeshDAO mw, DBCache dbc) {
+		this.mw = mw;
+		this.dbc = dbc;
+	}
+	
 	/**
 	 * Get a complete Term object from MeSH. 
-	 * If the database already contains the top match, then it will be the source for
+	 * If the database already has a term named termQuery, or one listing it as a synonym, that term is returned
+	 * without asking MeSH.  If the database already contains the top match, then it will be the source for
 	 * the Term.  In the case that multiple entities have the same name, all of their relationships
 	 * will be put into the same 'composite' Term object.
 	 * Caution: may not return exact match to query.  Search is based on
@@ -39,9 +49,13 @@ public class MeshWrapper implements ResourceDataAccessObject {
 		Term outputTerm = null;
 		ArrayList<String> searchResults = null;
 		
-		// Check cache for term
-		if (this.dbc.inCache(termQuery))
-			outputTerm = this.dbc.getTerm(termQuery, "MeSH");
+		// Check cache for the term, or a cached term listing it as a synonym
+		Term cached = this.dbc.resolveTerm(termQuery, "MeSH");
+		if (cached != null)
+			outputTerm = cached;
+		// Skip queries MeSH recently found nothing for
+		else if (this.dbc.isKnownMiss("MeSH", termQuery, DBCache.MATCH_SEARCH))
+			return null;
 		else {
 			// Search from Mesh and get the top one
 			try {
@@ -51,6 +65,10 @@ public class MeshWrapper implements ResourceDataAccessObject {
 				e.printStackTrace();
 				return null;
 			}
+			if (searchResults.isEmpty()) {
+				this.dbc.recordMiss("MeSH", termQuery, DBCache.MATCH_SEARCH);
+				return null;
+			}
 			// Fetch first result and convert to Term
 			try {
 				outputTerm = EntityTermConverter.EntityToTerm(this.mw.fetch(searchResults.get(0)));
@@ -59,7 +77,7 @@ public class MeshWrapper implements ResourceDataAccessObject {
 				e.printStackTrace();
 				return null;
 			}
-			this.dbc.addWholeTerm(outputTerm);
+			this.dbc.queueWholeTerm(outputTerm);
 		}
 		
 		return outputTerm;
@@ -78,15 +96,18 @@ public class MeshWrapper implements ResourceDataAccessObject {
 			// Check cache for exact termQuery
 			if (this.dbc.inCache(termQuery))
 				outputTerm = this.dbc.getTerm(termQuery);
-			else {
+			else if (!this.dbc.isKnownMiss("MeSH", termQuery, DBCache.MATCH_EXACT)) {
 				// Mesh - getEntities exact
 				// Not re-implementing it locally because MeSH is fast enough that the request times are tolerable
 				ArrayList<Entity> entList = this.mw.getEntities(termQuery, true);
 				// get first, add to cache, return
-				if (entList.size() > 0) {
+				if (entList != null && entList.size() > 0) {
 					outputTerm = EntityTermConverter.EntityToTerm(entList.get(0));
-					this.dbc.addWholeTerm(outputTerm);
+					this.dbc.queueWholeTerm(outputTerm);
 				}
+				// null means the requests failed, only an empty answer is a miss
+				else if (entList != null)
+					this.dbc.recordMiss("MeSH", termQuery, DBCache.MATCH_EXACT);
 			}
 			return outputTerm;
 		}
@@ -109,8 +130,8 @@ public class MeshWrapper implements ResourceDataAccessObject {
 	 * Will never return a list larger than amountRequested, but may return a smaller list.
 	 * Order of the list is the relevance ranking from MeSH search.
 	 * 
-	 * Database cache is used to retrieve terms whenever possible; when the database does NOT contain
-	 * the required information, the MeSH web service is queried instead.
+	 * Database cache is used to retrieve terms whenever possible (all search hits are looked up with one bulk query);
+	 * when the database does NOT contain the required information, the MeSH web service is queried instead.
 	 * 
 	 * @param termQuery String to query for
 	 * @param amountRequested Maximum number of results to attempt to find
@@ -119,6 +140,8 @@ public class MeshWrapper implements ResourceDataAccessObject {
 	public Collection<Term> getTerms(String termQuery, int amountRequested) {
 		List<String> searchResults = null;
 		ArrayList<Term> termResults = null;
+		if (this.dbc.isKnownMiss("MeSH", termQuery, DBCache.MATCH_SEARCH))
+			return new ArrayList<Term>(0);
 		// Search MeSH
 		try {
 			searchResults = this.mw.search(termQuery);
@@ -127,18 +150,26 @@ public class MeshWrapper implements ResourceDataAccessObject {
 			e.printStackTrace();
 			return null;
 		}
+		if (searchResults.isEmpty())
+			this.dbc.recordMiss("MeSH", termQuery, DBCache.MATCH_SEARCH);
 		// Trim down to amountRequested
 		if (searchResults.size() > amountRequested)
 			searchResults = searchResults.subList(0, amountRequested);
 		termResults = new ArrayList<Term>(searchResults.size());
-		// Try to find them in the cache, otherwise get them from MeSH
+		// Try to find them all in the cache at once, otherwise get them from MeSH
+		ArrayList<String> qualifiedIds = new ArrayList<String>(searchResults.size());
+		for (String id : searchResults)
+			qualifiedIds.add("MeSH:"+id);
+		BulkLookup cached = this.dbc.getTermsByIDs(qualifiedIds, "MeSH");
+		ArrayList<Term> fetched = new ArrayList<Term>(cached.getMisses().size());
 		for (String id : searchResults) {
-			if (this.dbc.IDinCache("MeSH:"+id))
-				termResults.add(this.dbc.getTermByID("MeSH:"+id, "MeSH"));
+			Term cachedTerm = cached.get("MeSH:"+id);
+			if (cachedTerm != null)
+				termResults.add(cachedTerm);
 			else {
 				try {
 					Term tempTerm = EntityTermConverter.EntityToTerm(this.mw.fetch(id));
-					this.dbc.addWholeTerm(tempTerm);
+					fetched.add(tempTerm);
 					termResults.add(tempTerm);
 				} catch (IOException e) {
 					System.out.println("MeshDAO fetch failed due to IO.");
@@ -146,6 +177,7 @@ public class MeshWrapper implements ResourceDataAccessObject {
 				}
 			}
 		}
+		this.dbc.queueWholeTerms(fetched);
 		return termResults;
 	}
 
@@ -162,7 +194,7 @@ public class MeshWrapper implements ResourceDataAccessObject {
 			ArrayList<TermRelationship> results = resultTerm.getTermRelationshipsByRelation("synonym");
 			ArrayList<String> synonyms = new ArrayList<String>(results.size());
 			for (TermRelationship tr : results)
-				synonyms.add(tr.getValueTerm());
+				synonyms.add(tr.getToTerm());
 			return synonyms;
 		}
 	}
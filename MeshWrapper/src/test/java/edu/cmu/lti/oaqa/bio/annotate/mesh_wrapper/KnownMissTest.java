@@ -0,0 +1,90 @@
+package edu.cmu.lti.oaqa.bio.annotate.mesh_wrapper;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import junit.framework.TestCase;
+import edu.cmu.lti.oaqa.bio.annotate.mesh_dao.MeshDAO;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Entity;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.SchemaManager;
+
+/**
+ * Tests MeshWrapper's use of the lookup-miss records on an embedded H2 database, with a stand-in for the web
+ * service: an empty answer is recorded and not asked again, a failed request is never recorded.
+ */
+public class KnownMissTest extends TestCase {
+
+	/**
+	 * Finds nothing, or fails for queries starting with "fail".
+	 */
+	private static class StubDAO extends MeshDAO {
+		private int searches = 0;
+
+		public ArrayList<String> search(String queryTerms) throws IOException {
+			this.searches++;
+			if (queryTerms.startsWith("fail"))
+				throw new IOException("Service unavailable");
+			return new ArrayList<String>();
+		}
+
+		public ArrayList<Entity> getEntities(String query, boolean exactMatch) {
+			this.searches++;
+			// MeshDAO answers a failed request with null
+			return query.startsWith("fail") ? null : new ArrayList<Entity>();
+		}
+	}
+
+	private int accessSampleRate;
+	private long bloomExpectedEntries;
+	private long lookupMissTTL;
+	private ConnectionPool pool;
+	private DBCache cache;
+	private StubDAO service;
+	private MeshWrapper wrapper;
+
+	protected void setUp() throws Exception {
+		this.accessSampleRate = DBInfo.accessSampleRate;
+		this.bloomExpectedEntries = DBInfo.bloomExpectedEntries;
+		this.lookupMissTTL = DBInfo.lookupMissTTL;
+		DBInfo.accessSampleRate = 0;
+		DBInfo.bloomExpectedEntries = 0;
+		DBInfo.lookupMissTTL = 60000;
+		this.pool = new ConnectionPool("org.h2.Driver", "jdbc:h2:mem:meshknownmisstest-" + getName() + ";DB_CLOSE_DELAY=-1", "sa", "",
+										1, 2, 30000, 0, 5);
+		new SchemaManager(this.pool).migrate();
+		this.cache = new DBCache(this.pool);
+		this.service = new StubDAO();
+		this.wrapper = new MeshWrapper(this.service, this.cache);
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		this.pool.close();
+		DBInfo.accessSampleRate = this.accessSampleRate;
+		DBInfo.bloomExpectedEntries = this.bloomExpectedEntries;
+		DBInfo.lookupMissTTL = this.lookupMissTTL;
+	}
+
+	public void testEmptyAnswerRecorded() throws Exception {
+		assertTrue("empty search answered", this.wrapper.getTerm("no such heading") == null && this.service.searches == 1);
+		assertTrue("empty search recorded", this.cache.isKnownMiss("MeSH", "no such heading", DBCache.MATCH_SEARCH));
+		assertTrue("known miss not asked again", this.wrapper.getTerm("No such  heading") == null
+													&& this.wrapper.getTerms("no such heading").isEmpty() && this.service.searches == 1);
+		assertTrue("no exact match recorded", this.wrapper.getTerm("no exact heading", true) == null
+												&& this.cache.isKnownMiss("MeSH", "no exact heading", DBCache.MATCH_EXACT));
+	}
+
+	public void testFailureNotRecorded() throws Exception {
+		this.wrapper.getTerm("fail heading");
+		this.wrapper.getTerms("fail heading");
+		this.wrapper.getTerm("fail heading", true);
+		assertTrue("failed requests not recorded", !this.cache.isKnownMiss("MeSH", "fail heading", DBCache.MATCH_SEARCH)
+													&& !this.cache.isKnownMiss("MeSH", "fail heading", DBCache.MATCH_EXACT));
+		int searches = this.service.searches;
+		this.wrapper.getTerm("fail heading");
+		assertEquals("failed request asked again", searches + 1, this.service.searches);
+	}
+}
@@ -20,6 +20,164 @@ public final class DBInfo {
 
   public static String password;
 
+  /** Comma-separated connection strings of read replicas (same form as URL), empty to read from URL. */
+  public static String readURLs = "";
+
+  /** How a replica is picked for each read: "round-robin" or "least-loaded". */
+  public static String readPolicy = "round-robin";
+
+  /** Milliseconds after a write during which the writing ResourceDBWrapper reads from URL instead of a replica. */
+  public static long readYourWritesWindow = 2000;
+
+  /**
+   * Comma-separated connection strings of shard databases (same form as URL), empty for a single database.  Terms are
+   * spread over the shards by a hash of the term (see ShardedTermStore); URL is then not used by DBCache.
+   */
+  public static String shardURLs = "";
+
+  /** Points per shard on the consistent hash ring; more points spread terms more evenly. */
+  public static int shardVirtualNodes = 64;
+
+  /** Threads fanning bulk calls out to the shards, 0 for one per shard. */
+  public static int shardThreads = 0;
+
+  /**
+   * Where DBCache keeps its data: "jdbc" (the database above, a row per relationship), "blob" (the database above, a row
+   * per term and source, see BlobTermStore) or "mvstore" (an embedded key-value file, storeFile).
+   */
+  public static String storage = "jdbc";
+
+  /** File of the embedded key-value store (storage = mvstore). */
+  public static String storeFile = "./resource-cache/terms.mv";
+
+  /** Read the key-value store file through a memory mapping. */
+  public static boolean storeMemoryMapped = false;
+
+  /** Megabytes of pages the key-value store keeps cached in memory. */
+  public static int storeCacheSize = 16;
+
+  /** Connections the pool keeps open even when idle. */
+  public static int poolMinSize = 1;
+
+  /** Upper bound on open connections in the pool. */
+  public static int poolMaxSize = 8;
+
+  /** Milliseconds a caller waits for a free pooled connection before giving up. */
+  public static long poolMaxWait = 30000;
+
+  /** Milliseconds an idle pooled connection is kept before it is closed (0 to never evict). */
+  public static long poolIdleTimeout = 600000;
+
+  /** Seconds allowed for the validation check done when a connection is borrowed. */
+  public static int poolValidationTimeout = 5;
+
+  /** PreparedStatements cached on each pooled connection. */
+  public static int statementCacheSize = 32;
+
+  /**
+   * Milliseconds from which a ResourceDBWrapper call (connection wait included) is reported as slow to its
+   * MetricsRegistry (and logged to System.err), 0 to report none.
+   */
+  public static long slowQueryMillis = 0;
+
+  /** Terms (and ID lookups) DBCache keeps in memory, 0 to disable the in-memory cache. */
+  public static int cacheMaxEntries = 10000;
+
+  /** Milliseconds a Term stays in the in-memory cache (0 to keep it until evicted or invalidated). */
+  public static long cacheTTL = 0;
+
+  /** Milliseconds a confirmed miss stays in the in-memory cache (0 to not cache misses). */
+  public static long cacheNegativeTTL = 60000;
+
+  /** Terms DBCache.queueWholeTerm(s) can hold for the background writer, 0 to write synchronously instead. */
+  public static int writeBehindQueueSize = 0;
+
+  /** Most queued Terms the background writer commits per transaction. */
+  public static int writeBehindBatchSize = 500;
+
+  /** Milliseconds a caller waits for room in a full write-behind queue before the Term is dropped. */
+  public static long writeBehindMaxWait = 5000;
+
+  /** Threads running DBCache's asynchronous lookups and writes, 0 to match the connections the store can use. */
+  public static int asyncThreads = 0;
+
+  /** Asynchronous calls waiting for a thread; further calls fail at once with RejectedExecutionException. */
+  public static int asyncQueueSize = 1000;
+
+  /** Milliseconds a web service query that found nothing is remembered by DBCache.recordMiss, 0 to not remember misses. */
+  public static long lookupMissTTL = 7L * 24 * 60 * 60 * 1000;
+
+  /**
+   * Terms (and ID's) each DBCache Bloom filter is sized for up front, 0 (the default) to disable the filters.
+   * A filter is loaded once, then only learns of this process's writes and of those the change feed reports, so on a
+   * database other nodes write to set changeFeedInterval too; otherwise their terms read as absent until a restart.
+   */
+  public static long bloomExpectedEntries = 0;
+
+  /** Target false-positive rate of the DBCache Bloom filters. */
+  public static double bloomFalsePositiveRate = 0.01;
+
+  /** Create or migrate the tables and indexes on first use (see SchemaManager). */
+  public static boolean schemaAutoMigrate = true;
+
+  /** Milliseconds after which CacheRefresher considers a cached record stale. */
+  public static long refreshMaxAge = 30L * 24 * 60 * 60 * 1000;
+
+  /** Milliseconds between CacheRefresher runs. */
+  public static long refreshPeriod = 60L * 60 * 1000;
+
+  /** Stale rows CacheRefresher reads per query. */
+  public static int refreshPageSize = 100;
+
+  /** Most records CacheRefresher re-fetches from each resource per run. */
+  public static int refreshRequestsPerRun = 500;
+
+  /** Milliseconds CacheRefresher waits between two requests to a resource (NCBI asks for at most 3 per second). */
+  public static long refreshRequestInterval = 334;
+
+  /** One in this many DBCache reads is counted for eviction (weighted by the rate), 0 disables access tracking. */
+  public static int accessSampleRate = 16;
+
+  /** Milliseconds between writes of the sampled read counts. */
+  public static long accessFlushInterval = 10000;
+
+  /** Most distinct terms with read counts waiting to be written; samples of further terms are dropped. */
+  public static int accessMaxPending = 100000;
+
+  /** CacheEvictor evicts cold terms once the cache holds more relationships than this, 0 for no row budget. */
+  public static long evictMaxRows = 0;
+
+  /** CacheEvictor evicts cold terms once the relationships hold more characters than this, 0 for no byte budget. */
+  public static long evictMaxBytes = 0;
+
+  /** Fraction of the budget CacheEvictor evicts down to, so it doesn't run again right after the next insert. */
+  public static double evictTargetRatio = 0.9;
+
+  /** Milliseconds a term must have gone unread before CacheEvictor may evict it. */
+  public static long evictMinIdle = 24L * 60 * 60 * 1000;
+
+  /** Milliseconds between CacheEvictor runs. */
+  public static long evictPeriod = 15L * 60 * 1000;
+
+  /** Coldest terms CacheEvictor reads per query. */
+  public static int evictBatchSize = 500;
+
+  /** Record every write of ResourceDBWrapper in the 'termchanges' table, in the write's transaction, for other nodes' ChangeFeeds. */
+  public static boolean changeLog = false;
+
+  /**
+   * Milliseconds between DBCache's polls of the 'termchanges' table for other nodes' writes, 0 to not poll.
+   * Only the JDBC stores keep that log: a single database, or every shard when shardURLs is set.  A DBCache
+   * over storage = blob or mvstore refuses to start with this set.
+   */
+  public static long changeFeedInterval = 0;
+
+  /** Changes a ChangeFeed reads per query. */
+  public static int changeFeedBatchSize = 1000;
+
+  /** Milliseconds a change is kept in 'termchanges'; ChangeFeeds delete older ones. */
+  public static long changeRetention = 60L * 60 * 1000;
+
   static {
     InputStream in = DBInfo.class.getResourceAsStream("/default.properties");
     Properties prop = new Properties();
@@ -30,6 +188,61 @@ public final class DBInfo {
       URL = prop.getProperty("URL");
       userName = prop.getProperty("userName");
       password = prop.getProperty("password");
+      readURLs = prop.getProperty("readURLs", readURLs).trim();
+      readPolicy = prop.getProperty("readPolicy", readPolicy).trim();
+      readYourWritesWindow = Long.parseLong(prop.getProperty("readYourWritesWindow", String.valueOf(readYourWritesWindow)).trim());
+      shardURLs = prop.getProperty("shardURLs", shardURLs).trim();
+      shardVirtualNodes = Integer.parseInt(prop.getProperty("shardVirtualNodes", String.valueOf(shardVirtualNodes)).trim());
+      shardThreads = Integer.parseInt(prop.getProperty("shardThreads", String.valueOf(shardThreads)).trim());
+      storage = prop.getProperty("storage", storage).trim();
+      storeFile = prop.getProperty("storeFile", storeFile).trim();
+      storeMemoryMapped = Boolean.parseBoolean(prop.getProperty("storeMemoryMapped", String.valueOf(storeMemoryMapped)).trim());
+      storeCacheSize = Integer.parseInt(prop.getProperty("storeCacheSize", String.valueOf(storeCacheSize)).trim());
+      poolMinSize = Integer.parseInt(prop.getProperty("poolMinSize", String.valueOf(poolMinSize)).trim());
+      poolMaxSize = Integer.parseInt(prop.getProperty("poolMaxSize", String.valueOf(poolMaxSize)).trim());
+      poolMaxWait = Long.parseLong(prop.getProperty("poolMaxWait", String.valueOf(poolMaxWait)).trim());
+      poolIdleTimeout = Long.parseLong(prop.getProperty("poolIdleTimeout", String.valueOf(poolIdleTimeout)).trim());
+      poolValidationTimeout = Integer.parseInt(prop.getProperty("poolValidationTimeout",
+              String.valueOf(poolValidationTimeout)).trim());
+      statementCacheSize = Integer.parseInt(prop.getProperty("statementCacheSize",
+              String.valueOf(statementCacheSize)).trim());
+      slowQueryMillis = Long.parseLong(prop.getProperty("slowQueryMillis", String.valueOf(slowQueryMillis)).trim());
+      cacheMaxEntries = Integer.parseInt(prop.getProperty("cacheMaxEntries", String.valueOf(cacheMaxEntries)).trim());
+      cacheTTL = Long.parseLong(prop.getProperty("cacheTTL", String.valueOf(cacheTTL)).trim());
+      cacheNegativeTTL = Long.parseLong(prop.getProperty("cacheNegativeTTL", String.valueOf(cacheNegativeTTL)).trim());
+      writeBehindQueueSize = Integer.parseInt(prop.getProperty("writeBehindQueueSize",
+              String.valueOf(writeBehindQueueSize)).trim());
+      writeBehindBatchSize = Integer.parseInt(prop.getProperty("writeBehindBatchSize",
+              String.valueOf(writeBehindBatchSize)).trim());
+      writeBehindMaxWait = Long.parseLong(prop.getProperty("writeBehindMaxWait", String.valueOf(writeBehindMaxWait)).trim());
+      asyncThreads = Integer.parseInt(prop.getProperty("asyncThreads", String.valueOf(asyncThreads)).trim());
+      asyncQueueSize = Integer.parseInt(prop.getProperty("asyncQueueSize", String.valueOf(asyncQueueSize)).trim());
+      lookupMissTTL = Long.parseLong(prop.getProperty("lookupMissTTL", String.valueOf(lookupMissTTL)).trim());
+      bloomExpectedEntries = Long.parseLong(prop.getProperty("bloomExpectedEntries",
+              String.valueOf(bloomExpectedEntries)).trim());
+      bloomFalsePositiveRate = Double.parseDouble(prop.getProperty("bloomFalsePositiveRate",
+              String.valueOf(bloomFalsePositiveRate)).trim());
+      schemaAutoMigrate = Boolean.parseBoolean(prop.getProperty("schemaAutoMigrate", String.valueOf(schemaAutoMigrate)).trim());
+      refreshMaxAge = Long.parseLong(prop.getProperty("refreshMaxAge", String.valueOf(refreshMaxAge)).trim());
+      refreshPeriod = Long.parseLong(prop.getProperty("refreshPeriod", String.valueOf(refreshPeriod)).trim());
+      refreshPageSize = Integer.parseInt(prop.getProperty("refreshPageSize", String.valueOf(refreshPageSize)).trim());
+      refreshRequestsPerRun = Integer.parseInt(prop.getProperty("refreshRequestsPerRun",
+              String.valueOf(refreshRequestsPerRun)).trim());
+      refreshRequestInterval = Long.parseLong(prop.getProperty("refreshRequestInterval",
+              String.valueOf(refreshRequestInterval)).trim());
+      accessSampleRate = Integer.parseInt(prop.getProperty("accessSampleRate", String.valueOf(accessSampleRate)).trim());
+      accessFlushInterval = Long.parseLong(prop.getProperty("accessFlushInterval", String.valueOf(accessFlushInterval)).trim());
+      accessMaxPending = Integer.parseInt(prop.getProperty("accessMaxPending", String.valueOf(accessMaxPending)).trim());
+      evictMaxRows = Long.parseLong(prop.getProperty("evictMaxRows", String.valueOf(evictMaxRows)).trim());
+      evictMaxBytes = Long.parseLong(prop.getProperty("evictMaxBytes", String.valueOf(evictMaxBytes)).trim());
+      evictTargetRatio = Double.parseDouble(prop.getProperty("evictTargetRatio", String.valueOf(evictTargetRatio)).trim());
+      evictMinIdle = Long.parseLong(prop.getProperty("evictMinIdle", String.valueOf(evictMinIdle)).trim());
+      evictPeriod = Long.parseLong(prop.getProperty("evictPeriod", String.valueOf(evictPeriod)).trim());
+      evictBatchSize = Integer.parseInt(prop.getProperty("evictBatchSize", String.valueOf(evictBatchSize)).trim());
+      changeLog = Boolean.parseBoolean(prop.getProperty("changeLog", String.valueOf(changeLog)).trim());
+      changeFeedInterval = Long.parseLong(prop.getProperty("changeFeedInterval", String.valueOf(changeFeedInterval)).trim());
+      changeFeedBatchSize = Integer.parseInt(prop.getProperty("changeFeedBatchSize", String.valueOf(changeFeedBatchSize)).trim());
+      changeRetention = Long.parseLong(prop.getProperty("changeRetention", String.valueOf(changeRetention)).trim());
     } catch (IOException e) {
       e.printStackTrace();
     }
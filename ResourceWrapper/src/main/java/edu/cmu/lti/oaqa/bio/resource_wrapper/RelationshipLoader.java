@@ -0,0 +1,15 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper;
+
+import java.util.ArrayList;
+
+/**
+ * Loads the relationships a partially loaded {@link Term} doesn't hold yet, the first time they are asked for
+ * (see {@link Term#setRemainder(RelationshipLoader)}).
+ */
+public interface RelationshipLoader {
+	/**
+	 * @param term String term whose relationships are loaded
+	 * @return every relationship of the term; those the Term already holds are skipped
+	 */
+	ArrayList<TermRelationship> load(String term);
+}
@@ -2,10 +2,12 @@ package edu.cmu.lti.oaqa.bio.resource_wrapper;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 
 public class Term {
 	private String term;
 	private ArrayList<TermRelationship> relationships;
+	private RelationshipLoader remainder;
 	
 	public Term(String term) {
 		this.term = term;
@@ -25,10 +27,35 @@ public class Term {
 	}
 	
 	public ArrayList<TermRelationship> getAllTermRelationships() {
+		this.loadRemainder();
+		return this.relationships;
+	}
+	
+	/**
+	 * Mark the Term as partially loaded: the relationships it doesn't hold yet are loaded by the loader the first time
+	 * all of them are asked for ({@link #getAllTermRelationships()}, {@link #getTermRelationshipsByRelation(String)}).
+	 * @param remainder RelationshipLoader, null if the Term is complete
+	 */
+	public void setRemainder(RelationshipLoader remainder) {
+		this.remainder = remainder;
+	}
+	
+	/**
+	 * @return true if every relationship is loaded, false if some are still left to the loader
+	 */
+	public boolean isComplete() {
+		return this.remainder == null;
+	}
+	
+	/**
+	 * @return the relationships loaded so far, without loading the rest
+	 */
+	public ArrayList<TermRelationship> getLoadedTermRelationships() {
 		return this.relationships;
 	}
 	
 	public ArrayList<TermRelationship> getTermRelationshipsByRelation(String relation) {
+		this.loadRemainder();
 		ArrayList<TermRelationship> matching = new ArrayList<TermRelationship>();
 		for (TermRelationship tr : this.relationships) {
 			if (tr.getRelationship().equals(relation))
@@ -37,6 +64,19 @@ public class Term {
 		return matching;
 	}
 	
+	private synchronized void loadRemainder() {
+		if (this.remainder == null)
+			return;
+		HashSet<String> loaded = new HashSet<String>();
+		for (TermRelationship tr : this.relationships)
+			loaded.add(tr.getRelationship() + '\u0000' + tr.getToTerm());
+		for (TermRelationship tr : this.remainder.load(this.term)) {
+			if (loaded.add(tr.getRelationship() + '\u0000' + tr.getToTerm()))
+				this.relationships.add(tr);
+		}
+		this.remainder = null;
+	}
+	
 	public String toString() {
 		return this.term + " (" + this.hashCode() + ")";
 	}
@@ -0,0 +1,197 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermStore;
+
+/**
+ * Counts how often DBCache reads each term, for {@link CacheEvictor} to tell hot terms from cold ones, without a
+ * write per read.  One read in sampleRate is counted at random (as sampleRate reads), the counts are summed in memory
+ * per term and written to the store every flush interval by a background timer, one batched transaction per flush
+ * (see {@link TermStore#recordAccesses(Map, Date)}).
+ * <p>
+ * Counts are best-effort: samples of new terms are dropped while maxPending terms are waiting, and a failed flush
+ * loses its counts (both are counted, see the getters).
+ */
+public class AccessTracker {
+	// Random rather than every n-th read, which would keep missing the same terms of a repeating access pattern
+	private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+		protected Random initialValue() {
+			return new Random();
+		}
+	};
+
+	private final TermStore store;
+	private final int sampleRate;
+	private final int maxPending;
+	private final AtomicLong reads = new AtomicLong();
+	// Swapped for an empty map by each flush; a sample racing the swap may land in the old map and be lost
+	private volatile ConcurrentHashMap<String, AtomicLong> pending = new ConcurrentHashMap<String, AtomicLong>();
+	private final Object flushLock = new Object();
+	private Timer timer;
+
+	private final AtomicLong sampledCount = new AtomicLong();
+	private final AtomicLong droppedCount = new AtomicLong();
+	private final AtomicLong flushCount = new AtomicLong();
+	private final AtomicLong writtenCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile Exception lastFailure;
+
+	/**
+	 * Constructor, starts the flush timer.
+	 * @param store TermStore the counts are written to
+	 * @param sampleRate one read in this many is counted
+	 * @param maxPending most distinct terms with counts waiting to be written
+	 * @param flushIntervalMillis pause between two writes of the counts
+	 */
+	AccessTracker(TermStore store, int sampleRate, int maxPending, long flushIntervalMillis) {
+		if (sampleRate < 1 || maxPending < 1)
+			throw new IllegalArgumentException("Invalid access tracking: sampleRate=" + sampleRate + ", maxPending=" + maxPending);
+		this.store = store;
+		this.sampleRate = sampleRate;
+		this.maxPending = maxPending;
+		this.timer = new Timer("DBCache-access-tracker", true);
+		this.timer.schedule(new TimerTask() {
+			public void run() {
+				flush();
+			}
+		}, flushIntervalMillis, flushIntervalMillis);
+	}
+
+	/**
+	 * Note a read of a term.  Cheap enough for every lookup: most calls only draw a random number.
+	 * @param term String term that was read
+	 */
+	public void recordRead(String term) {
+		this.reads.incrementAndGet();
+		if (this.sampleRate > 1 && RANDOM.get().nextInt(this.sampleRate) != 0)
+			return;
+		ConcurrentHashMap<String, AtomicLong> counts = this.pending;
+		AtomicLong count = counts.get(term);
+		if (count == null) {
+			if (counts.size() >= this.maxPending) {
+				this.droppedCount.incrementAndGet();
+				return;
+			}
+			AtomicLong fresh = new AtomicLong();
+			count = counts.putIfAbsent(term, fresh);
+			if (count == null)
+				count = fresh;
+		}
+		count.addAndGet(this.sampleRate);
+		this.sampledCount.incrementAndGet();
+	}
+
+	/**
+	 * Write the counts gathered since the last flush.
+	 * @return number of terms whose counts were written, 0 if there were none or the write failed
+	 */
+	public int flush() {
+		synchronized (this.flushLock) {
+			ConcurrentHashMap<String, AtomicLong> counts = this.pending;
+			if (counts.isEmpty())
+				return 0;
+			this.pending = new ConcurrentHashMap<String, AtomicLong>();
+			HashMap<String, Long> hits = new HashMap<String, Long>(counts.size() * 2);
+			for (Map.Entry<String, AtomicLong> entry : counts.entrySet())
+				hits.put(entry.getKey(), entry.getValue().get());
+			try {
+				this.store.recordAccesses(hits, new Date());
+				this.flushCount.incrementAndGet();
+				this.writtenCount.addAndGet(hits.size());
+				return hits.size();
+			} catch (SQLException e) {
+				this.failedCount.addAndGet(hits.size());
+				this.lastFailure = e;
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Stop the timer and write what's pending.
+	 */
+	public void close() {
+		synchronized (this) {
+			if (this.timer == null)
+				return;
+			this.timer.cancel();
+			this.timer = null;
+		}
+		this.flush();
+	}
+
+	public int getSampleRate() {
+		return this.sampleRate;
+	}
+
+	/**
+	 * @return distinct terms with counts waiting to be written
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+
+	/**
+	 * @return reads noted, sampled or not
+	 */
+	public long getReadCount() {
+		return this.reads.get();
+	}
+
+	/**
+	 * @return reads counted
+	 */
+	public long getSampledCount() {
+		return this.sampledCount.get();
+	}
+
+	/**
+	 * @return samples dropped because maxPending terms were already waiting
+	 */
+	public long getDroppedCount() {
+		return this.droppedCount.get();
+	}
+
+	/**
+	 * @return flushes written
+	 */
+	public long getFlushCount() {
+		return this.flushCount.get();
+	}
+
+	/**
+	 * @return term counts written
+	 */
+	public long getWrittenCount() {
+		return this.writtenCount.get();
+	}
+
+	/**
+	 * @return term counts lost to failed flushes (see {@link #getLastFailure()})
+	 */
+	public long getFailedCount() {
+		return this.failedCount.get();
+	}
+
+	/**
+	 * @return the error from the most recent failed flush, null if none failed
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	public String toString() {
+		return "AccessTracker[sampleRate=" + this.sampleRate + ", pending=" + this.pending.size() + ", reads=" + this.reads
+				+ ", sampled=" + this.sampledCount + ", dropped=" + this.droppedCount + ", flushes=" + this.flushCount + ", written="
+				+ this.writtenCount + ", failed=" + this.failedCount + "]";
+	}
+}
@@ -0,0 +1,285 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Scalable Bloom filter over Strings, used by DBCache to answer "definitely not cached" without a database query.
+ * <p>
+ * Starts with one filter sized for expectedEntries at the target false-positive rate; when that fills up a new filter
+ * twice the size with half the false-positive rate is added, so the combined rate stays under the target however many
+ * entries are added.  Entries can't be removed, which only ever causes a false positive (a wasted query), never a wrong miss.
+ * Thread-safe; adds and lookups don't block each other.
+ * @see <a href="http://gsd.di.uminho.pt/members/cbm/ps/dbloom.pdf">Almeida et al., Scalable Bloom Filters</a>
+ */
+public class BloomFilter {
+	private static final double LN2 = Math.log(2);
+	private static final int GROWTH = 2;
+	private static final double TIGHTENING = 0.5;
+
+	/**
+	 * One fixed-size filter of the scalable chain.
+	 */
+	private static class Slice {
+		final AtomicLongArray bits;
+		final long bitCount;
+		final int hashCount;
+		final long capacity;
+		final AtomicLong count = new AtomicLong();
+
+		Slice(long capacity, double falsePositiveRate) {
+			long m = (long) Math.ceil(-capacity * Math.log(falsePositiveRate) / (LN2 * LN2));
+			m = Math.max(64, (m + 63) / 64 * 64);
+			this.bitCount = m;
+			this.bits = new AtomicLongArray((int) (m / 64));
+			this.hashCount = Math.max(1, (int) Math.round((double) m / capacity * LN2));
+			this.capacity = capacity;
+		}
+
+		boolean add(long h1, long h2) {
+			boolean changed = false;
+			for (int i = 0; i < this.hashCount; i++) {
+				long bit = index(h1 + i * h2, this.bitCount);
+				int word = (int) (bit >>> 6);
+				long mask = 1L << (bit & 63);
+				long old;
+				do {
+					old = this.bits.get(word);
+					if ((old & mask) != 0)
+						break;
+					changed = true;
+				} while (!this.bits.compareAndSet(word, old, old | mask));
+			}
+			if (changed)
+				this.count.incrementAndGet();
+			return changed;
+		}
+
+		boolean mightContain(long h1, long h2) {
+			for (int i = 0; i < this.hashCount; i++) {
+				long bit = index(h1 + i * h2, this.bitCount);
+				if ((this.bits.get((int) (bit >>> 6)) & (1L << (bit & 63))) == 0)
+					return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Expected false-positive rate at the current fill.
+		 */
+		double falsePositiveRate() {
+			return Math.pow(1 - Math.exp(-(double) this.hashCount * this.count.get() / this.bitCount), this.hashCount);
+		}
+	}
+
+	private final long expectedEntries;
+	private final double falsePositiveRate;
+	private volatile Slice[] slices;
+	private volatile boolean ready;
+
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong negatives = new AtomicLong();
+	private final AtomicLong falsePositives = new AtomicLong();
+
+	/**
+	 * Constructor.  The filter starts out not ready (see {@link #setReady(boolean)}).
+	 * @param expectedEntries entries the first filter is sized for
+	 * @param falsePositiveRate target false-positive rate (0 &lt; rate &lt; 1) for the whole chain
+	 */
+	public BloomFilter(long expectedEntries, double falsePositiveRate) {
+		if (expectedEntries < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("Invalid Bloom filter: expectedEntries=" + expectedEntries + ", falsePositiveRate="
+												+ falsePositiveRate);
+		this.expectedEntries = expectedEntries;
+		this.falsePositiveRate = falsePositiveRate;
+		this.slices = new Slice[] {new Slice(expectedEntries, falsePositiveRate * (1 - TIGHTENING))};
+		this.ready = false;
+	}
+
+	/**
+	 * Add a key.
+	 * @param key String to add (null is ignored)
+	 */
+	public void add(String key) {
+		if (key == null)
+			return;
+		long h1 = hash(key);
+		long h2 = mix(h1) | 1;
+		Slice[] current = this.slices;
+		for (Slice slice : current) {
+			if (slice.mightContain(h1, h2))
+				return;
+		}
+		Slice last = current[current.length - 1];
+		if (last.count.get() >= last.capacity)
+			last = this.grow(last);
+		last.add(h1, h2);
+	}
+
+	/**
+	 * Test a key.  Counts the query (and the negative answer) for {@link #getNegativeCount()}.
+	 * @param key String to look for
+	 * @return false if the key was definitely never added, true if it may have been
+	 */
+	public boolean mightContain(String key) {
+		this.queries.incrementAndGet();
+		if (key != null) {
+			long h1 = hash(key);
+			long h2 = mix(h1) | 1;
+			for (Slice slice : this.slices) {
+				if (slice.mightContain(h1, h2))
+					return true;
+			}
+		}
+		this.negatives.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Record that a "may contain" answer turned out to be wrong (the database didn't have the key).
+	 */
+	public void recordFalsePositive() {
+		this.falsePositives.incrementAndGet();
+	}
+
+	/**
+	 * @return true once the filter holds every key of the underlying table, so a negative answer can be trusted
+	 */
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	/**
+	 * Mark the filter as complete (after loading), or as not trustworthy.
+	 */
+	public void setReady(boolean ready) {
+		this.ready = ready;
+	}
+
+	/**
+	 * @return distinct keys added (approximately: keys that collided with earlier ones aren't counted)
+	 */
+	public long getEntryCount() {
+		long total = 0;
+		for (Slice slice : this.slices)
+			total += slice.count.get();
+		return total;
+	}
+
+	/**
+	 * @return filters in the scalable chain
+	 */
+	public int getSliceCount() {
+		return this.slices.length;
+	}
+
+	/**
+	 * @return bytes used by the bit arrays
+	 */
+	public long getMemoryBytes() {
+		long total = 0;
+		for (Slice slice : this.slices)
+			total += slice.bitCount / 8;
+		return total;
+	}
+
+	/**
+	 * @return entries the first filter was sized for
+	 */
+	public long getExpectedEntries() {
+		return this.expectedEntries;
+	}
+
+	/**
+	 * @return configured false-positive rate
+	 */
+	public double getTargetFalsePositiveRate() {
+		return this.falsePositiveRate;
+	}
+
+	/**
+	 * @return false-positive rate expected from the current fill of the filters
+	 */
+	public double getExpectedFalsePositiveRate() {
+		double pass = 1.0;
+		for (Slice slice : this.slices)
+			pass *= 1 - slice.falsePositiveRate();
+		return 1 - pass;
+	}
+
+	/**
+	 * @return false positives seen so far as a fraction of the "may contain" answers
+	 */
+	public double getObservedFalsePositiveRate() {
+		long positives = this.queries.get() - this.negatives.get();
+		return positives <= 0 ? 0.0 : (double) this.falsePositives.get() / positives;
+	}
+
+	public long getQueryCount() {
+		return this.queries.get();
+	}
+
+	/**
+	 * @return lookups answered "definitely not" (each one a database query saved)
+	 */
+	public long getNegativeCount() {
+		return this.negatives.get();
+	}
+
+	public long getFalsePositiveCount() {
+		return this.falsePositives.get();
+	}
+
+	public String toString() {
+		return "BloomFilter[entries=" + this.getEntryCount() + ", slices=" + this.slices.length + ", bytes=" + this.getMemoryBytes()
+				+ ", expectedFpp=" + String.format("%.4f", this.getExpectedFalsePositiveRate()) + ", queries=" + this.queries
+				+ ", negatives=" + this.negatives + ", falsePositives=" + this.falsePositives + ", ready=" + this.ready + "]";
+	}
+
+	/**
+	 * Append a bigger, stricter filter unless another thread already did.
+	 */
+	private synchronized Slice grow(Slice full) {
+		Slice[] current = this.slices;
+		Slice last = current[current.length - 1];
+		if (last != full)
+			return last;
+		double rate = this.falsePositiveRate * (1 - TIGHTENING);
+		for (int i = 0; i < current.length; i++)
+			rate *= TIGHTENING;
+		Slice next = new Slice(full.capacity * GROWTH, rate);
+		Slice[] grown = new Slice[current.length + 1];
+		System.arraycopy(current, 0, grown, 0, current.length);
+		grown[current.length] = next;
+		this.slices = grown;
+		return next;
+	}
+
+	private static long index(long hash, long bitCount) {
+		return (hash & Long.MAX_VALUE) % bitCount;
+	}
+
+	/**
+	 * 64-bit FNV-1a over the UTF-16 code units, finished with {@link #mix(long)}.
+	 */
+	private static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return mix(h);
+	}
+
+	/**
+	 * MurmurHash3 64-bit finalizer.
+	 */
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
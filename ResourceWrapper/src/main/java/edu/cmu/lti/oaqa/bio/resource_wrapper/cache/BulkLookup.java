@@ -0,0 +1,64 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+
+/**
+ * Result of a bulk DBCache lookup: the Terms that were found, keyed by the requested key, and the keys that were not.
+ * Both keep the order in which the keys were requested, so callers can fetch just the misses from the original resource.
+ * @see DBCache#getTerms(Collection, String)
+ * @see DBCache#getTermsByIDs(Collection, String)
+ */
+public class BulkLookup {
+	private LinkedHashMap<String, Term> found;
+	private LinkedHashSet<String> misses;
+	
+	/**
+	 * Constructor.
+	 * @param keys requested keys, in request order
+	 * @param results Terms found for (some of) the keys
+	 */
+	BulkLookup(Collection<String> keys, Map<String, Term> results) {
+		this.found = new LinkedHashMap<String, Term>();
+		this.misses = new LinkedHashSet<String>();
+		for (String key : keys) {
+			Term term = results.get(key);
+			if (term != null)
+				this.found.put(key, term);
+			else
+				this.misses.add(key);
+		}
+	}
+	
+	/**
+	 * @return Map from requested key to the cached Term
+	 */
+	public Map<String, Term> getFound() {
+		return Collections.unmodifiableMap(this.found);
+	}
+	
+	/**
+	 * @return requested keys that are not in the cache
+	 */
+	public Set<String> getMisses() {
+		return Collections.unmodifiableSet(this.misses);
+	}
+	
+	/**
+	 * @param key requested key
+	 * @return the cached Term, or null if it was a miss
+	 */
+	public Term get(String key) {
+		return this.found.get(key);
+	}
+	
+	public boolean isHit(String key) {
+		return this.found.containsKey(key);
+	}
+}
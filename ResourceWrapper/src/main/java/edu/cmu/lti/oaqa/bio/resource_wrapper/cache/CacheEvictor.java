@@ -0,0 +1,227 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermStore;
+
+/**
+ * Background job that caps the size of a DBCache, so exploratory queries don't grow the tables (and their indexes)
+ * past what the database can keep in memory.
+ * <p>
+ * Each run measures the stored relationships and their size in characters (see {@link TermStore#getStorageUsage()}).
+ * Once either is over its budget, the least valuable terms are deleted with their relationships until both are back
+ * under targetRatio of the budget: terms unread for at least the minimum idle time, fewest reads first
+ * (counted by the cache's {@link AccessTracker}), then least recently read.  Recently read terms are never evicted,
+ * so a run may end over budget; it then tries again on the next run.
+ */
+public class CacheEvictor {
+	private final DBCache cache;
+	private final long maxRows;
+	private final long maxBytes;
+	private final double targetRatio;
+	private final long minIdleMillis;
+	private final int batchSize;
+	private Timer timer;
+	// Held for a whole run so a manual runOnce() and a scheduled one don't overlap
+	private final Object runLock = new Object();
+
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong overBudgetCount = new AtomicLong();
+	private final AtomicLong evictedTermCount = new AtomicLong();
+	private final AtomicLong evictedRelationshipCount = new AtomicLong();
+	private final AtomicLong evictedByteCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile long rows = -1;
+	private volatile long bytes = -1;
+	private volatile Exception lastFailure;
+
+	/**
+	 * Constructor, with the budgets and batch size from DBInfo.
+	 * @param cache DBCache to keep under budget
+	 */
+	public CacheEvictor(DBCache cache) {
+		this(cache, DBInfo.evictMaxRows, DBInfo.evictMaxBytes, DBInfo.evictTargetRatio, DBInfo.evictMinIdle, DBInfo.evictBatchSize);
+	}
+
+	/**
+	 * Constructor.
+	 * @param cache DBCache to keep under budget
+	 * @param maxRows most relationships kept, 0 for no row budget
+	 * @param maxBytes most characters of relationship data kept, 0 for no byte budget
+	 * @param targetRatio fraction of the budget to evict down to once it is exceeded
+	 * @param minIdleMillis terms read more recently than this are kept
+	 * @param batchSize coldest terms read per query
+	 */
+	public CacheEvictor(DBCache cache, long maxRows, long maxBytes, double targetRatio, long minIdleMillis, int batchSize) {
+		if (batchSize < 1 || targetRatio <= 0 || targetRatio > 1)
+			throw new IllegalArgumentException("Invalid eviction settings: batchSize=" + batchSize + ", targetRatio=" + targetRatio);
+		this.cache = cache;
+		this.maxRows = maxRows;
+		this.maxBytes = maxBytes;
+		this.targetRatio = targetRatio;
+		this.minIdleMillis = minIdleMillis;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Run in the background every periodMillis (first run right away) until {@link #stop()}.
+	 * @param periodMillis pause between the end of one run and the start of the next
+	 */
+	public synchronized void start(long periodMillis) {
+		if (this.timer != null)
+			return;
+		this.timer = new Timer("CacheEvictor", true);
+		this.timer.schedule(new TimerTask() {
+			public void run() {
+				runOnce();
+			}
+		}, 0, periodMillis);
+	}
+
+	/**
+	 * @see #start(long)
+	 */
+	public void start() {
+		this.start(DBInfo.evictPeriod);
+	}
+
+	/**
+	 * Stop the background runs.  A run in progress finishes its current term.
+	 */
+	public synchronized void stop() {
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Measure the cache and, if it's over budget, evict the coldest terms.
+	 * @return number of terms evicted
+	 */
+	public int runOnce() {
+		synchronized (this.runLock) {
+			this.runCount.incrementAndGet();
+			// Reads not yet written would otherwise leave just-read terms looking cold
+			AccessTracker tracker = this.cache.getAccessTracker();
+			if (tracker != null)
+				tracker.flush();
+			TermStore store = this.cache.getStore();
+			int evicted = 0;
+			try {
+				long[] usage = store.getStorageUsage();
+				this.record(usage);
+				if (!this.over(usage, 1.0))
+					return 0;
+				this.overBudgetCount.incrementAndGet();
+				Date idleSince = new Date(System.currentTimeMillis() - this.minIdleMillis);
+				while (this.over(usage, this.targetRatio)) {
+					ArrayList<String> coldest = store.getColdestTerms(idleSince, this.batchSize);
+					if (coldest.isEmpty())
+						break; // everything left was read recently
+					for (String term : coldest) {
+						long[] removed = this.cache.evictTerm(term);
+						usage[0] -= removed[0];
+						usage[1] -= removed[1];
+						evicted++;
+						this.evictedTermCount.incrementAndGet();
+						this.evictedRelationshipCount.addAndGet(removed[0]);
+						this.evictedByteCount.addAndGet(removed[1]);
+						if (!this.over(usage, this.targetRatio))
+							break;
+					}
+				}
+				this.record(usage);
+			} catch (SQLException e) {
+				this.failedCount.incrementAndGet();
+				this.lastFailure = e;
+			}
+			return evicted;
+		}
+	}
+
+	private boolean over(long[] usage, double ratio) {
+		return (this.maxRows > 0 && usage[0] > this.maxRows * ratio) || (this.maxBytes > 0 && usage[1] > this.maxBytes * ratio);
+	}
+
+	private void record(long[] usage) {
+		this.rows = usage[0];
+		this.bytes = usage[1];
+	}
+
+	/**
+	 * @return runs started
+	 */
+	public long getRunCount() {
+		return this.runCount.get();
+	}
+
+	/**
+	 * @return runs that found the cache over budget
+	 */
+	public long getOverBudgetCount() {
+		return this.overBudgetCount.get();
+	}
+
+	/**
+	 * @return terms evicted
+	 */
+	public long getEvictedTermCount() {
+		return this.evictedTermCount.get();
+	}
+
+	/**
+	 * @return relationships deleted with the evicted terms
+	 */
+	public long getEvictedRelationshipCount() {
+		return this.evictedRelationshipCount.get();
+	}
+
+	/**
+	 * @return characters of relationship data deleted with the evicted terms
+	 */
+	public long getEvictedByteCount() {
+		return this.evictedByteCount.get();
+	}
+
+	/**
+	 * @return runs that stopped on a store error (see {@link #getLastFailure()})
+	 */
+	public long getFailedCount() {
+		return this.failedCount.get();
+	}
+
+	/**
+	 * @return relationships stored at the end of the last run, -1 before the first
+	 */
+	public long getRowCount() {
+		return this.rows;
+	}
+
+	/**
+	 * @return characters of relationship data stored at the end of the last run, -1 before the first
+	 */
+	public long getByteCount() {
+		return this.bytes;
+	}
+
+	/**
+	 * @return the error from the most recent failed run, null if none failed
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	public String toString() {
+		return "CacheEvictor[rows=" + this.rows + "/" + this.maxRows + ", bytes=" + this.bytes + "/" + this.maxBytes + ", runs="
+				+ this.runCount + ", overBudget=" + this.overBudgetCount + ", evictedTerms=" + this.evictedTermCount
+				+ ", evictedRelationships=" + this.evictedRelationshipCount + ", evictedBytes=" + this.evictedByteCount + ", failed="
+				+ this.failedCount + "]";
+	}
+}
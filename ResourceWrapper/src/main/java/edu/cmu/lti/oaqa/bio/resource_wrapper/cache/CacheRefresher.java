@@ -0,0 +1,292 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.RelationshipRow;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermStore;
+
+/**
+ * Background job that keeps cached records fresh, off the request path.
+ * <p>
+ * Each run walks the "ID" rows of every registered resource in last_updated order, oldest first, a page at a time,
+ * and re-fetches the records older than the maximum age through the resource's {@link TermFetcher}.  Only the
+ * relationships that changed are written (see {@link TermStore#refreshRelationships}); the rest are just
+ * marked as updated now.  At most requestsPerRun records are fetched per resource per run, spaced by the request
+ * interval, and the scan position is kept between runs so records that failed are retried on the next pass.
+ */
+public class CacheRefresher {
+	private final DBCache cache;
+	private final long maxAgeMillis;
+	private final int pageSize;
+	private final int requestsPerRun;
+	private final long requestIntervalMillis;
+	private final ArrayList<TermFetcher> fetchers = new ArrayList<TermFetcher>();
+	// Where each source's scan continues on the next run (null: from the oldest row)
+	private final HashMap<String, RelationshipRow> positions = new HashMap<String, RelationshipRow>();
+	private Timer timer;
+	// Held for a whole run so a manual runOnce() and a scheduled one don't overlap
+	private final Object runLock = new Object();
+
+	private final AtomicLong runCount = new AtomicLong();
+	private final AtomicLong scannedCount = new AtomicLong();
+	private final AtomicLong fetchedCount = new AtomicLong();
+	private final AtomicLong changedCount = new AtomicLong();
+	private final AtomicLong insertedCount = new AtomicLong();
+	private final AtomicLong updatedCount = new AtomicLong();
+	private final AtomicLong deletedCount = new AtomicLong();
+	private final AtomicLong missingCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile Exception lastFailure;
+
+	/**
+	 * Constructor, with the age, page size and request budget from DBInfo.
+	 * @param cache DBCache whose records are refreshed
+	 */
+	public CacheRefresher(DBCache cache) {
+		this(cache, DBInfo.refreshMaxAge, DBInfo.refreshPageSize, DBInfo.refreshRequestsPerRun, DBInfo.refreshRequestInterval);
+	}
+
+	/**
+	 * Constructor.
+	 * @param cache DBCache whose records are refreshed
+	 * @param maxAgeMillis records last updated longer ago than this are re-fetched
+	 * @param pageSize stale rows read per query
+	 * @param requestsPerRun most records re-fetched from each resource per run
+	 * @param requestIntervalMillis pause between two requests to a resource
+	 */
+	public CacheRefresher(DBCache cache, long maxAgeMillis, int pageSize, int requestsPerRun, long requestIntervalMillis) {
+		if (pageSize < 1 || requestsPerRun < 0)
+			throw new IllegalArgumentException("Invalid refresh budget: pageSize=" + pageSize + ", requestsPerRun=" + requestsPerRun);
+		this.cache = cache;
+		this.maxAgeMillis = maxAgeMillis;
+		this.pageSize = pageSize;
+		this.requestsPerRun = requestsPerRun;
+		this.requestIntervalMillis = requestIntervalMillis;
+	}
+
+	/**
+	 * Register a resource to refresh.
+	 * @param fetcher TermFetcher of the resource
+	 */
+	public synchronized void addFetcher(TermFetcher fetcher) {
+		this.fetchers.add(fetcher);
+	}
+
+	/**
+	 * Run in the background every periodMillis (first run right away) until {@link #stop()}.
+	 * @param periodMillis pause between the end of one run and the start of the next
+	 */
+	public synchronized void start(long periodMillis) {
+		if (this.timer != null)
+			return;
+		this.timer = new Timer("CacheRefresher", true);
+		this.timer.schedule(new TimerTask() {
+			public void run() {
+				runOnce();
+			}
+		}, 0, periodMillis);
+	}
+
+	/**
+	 * @see #start(long)
+	 */
+	public void start() {
+		this.start(DBInfo.refreshPeriod);
+	}
+
+	/**
+	 * Stop the background runs.  A run in progress finishes its current record.
+	 */
+	public synchronized void stop() {
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Do one refresh pass over every registered resource, within the request budget.
+	 * @return number of records re-fetched
+	 */
+	public int runOnce() {
+		ArrayList<TermFetcher> toRun;
+		synchronized (this) {
+			toRun = new ArrayList<TermFetcher>(this.fetchers);
+		}
+		synchronized (this.runLock) {
+			int fetched = 0;
+			for (TermFetcher fetcher : toRun)
+				fetched += this.refresh(fetcher);
+			this.runCount.incrementAndGet();
+			return fetched;
+		}
+	}
+
+	/**
+	 * Refresh the stalest records of one resource.
+	 */
+	private int refresh(TermFetcher fetcher) {
+		TermStore store = this.cache.getStore();
+		String source = fetcher.getSource();
+		Date cutoff = new Date(System.currentTimeMillis() - this.maxAgeMillis);
+		HashSet<String> seenTerms = new HashSet<String>();
+		RelationshipRow position;
+		synchronized (this) {
+			position = this.positions.get(source);
+		}
+		int requests = 0;
+		try {
+			while (requests < this.requestsPerRun) {
+				ArrayList<RelationshipRow> page = store.getOldestRelationships("ID", source, fetcher.getIDPrefix(), cutoff, position,
+																				this.pageSize);
+				if (page.isEmpty()) {
+					// End of the table, start over from the oldest row next time
+					position = null;
+					break;
+				}
+				for (RelationshipRow row : page) {
+					if (requests >= this.requestsPerRun)
+						break;
+					position = row;
+					this.scannedCount.incrementAndGet();
+					// A term can carry several of the resource's ID's, refresh it once
+					if (!seenTerms.add(row.getTerm()))
+						continue;
+					if (requests > 0 && this.requestIntervalMillis > 0)
+						Thread.sleep(this.requestIntervalMillis);
+					requests++;
+					this.refreshRecord(fetcher, row);
+				}
+			}
+		} catch (SQLException e) {
+			this.failedCount.incrementAndGet();
+			this.lastFailure = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			this.positions.put(source, position);
+		}
+		return requests;
+	}
+
+	/**
+	 * Re-fetch one record and write what changed.  Failures are counted and the record is left as it was.
+	 */
+	private void refreshRecord(TermFetcher fetcher, RelationshipRow row) {
+		String id = row.getValue().substring(fetcher.getIDPrefix().length());
+		Term fresh;
+		try {
+			fresh = fetcher.fetch(id);
+		} catch (IOException e) {
+			this.failedCount.incrementAndGet();
+			this.lastFailure = e;
+			return;
+		} catch (RuntimeException e) {
+			this.failedCount.incrementAndGet();
+			this.lastFailure = e;
+			return;
+		}
+		this.fetchedCount.incrementAndGet();
+		if (fresh == null) {
+			this.missingCount.incrementAndGet();
+			return;
+		}
+		try {
+			int[] counts;
+			boolean renamed = !fresh.getTerm().equals(row.getTerm());
+			if (!renamed)
+				counts = this.cache.refreshTerm(row.getTerm(), fetcher.getSource(), fresh);
+			else {
+				// The record was renamed: store it under its new name and drop the resource's rows from the old one
+				this.cache.writeWholeTerms(Collections.singletonList(fresh));
+				counts = this.cache.refreshTerm(row.getTerm(), fetcher.getSource(), new Term(row.getTerm()));
+			}
+			if (renamed || counts[0] + counts[1] + counts[2] > 0)
+				this.changedCount.incrementAndGet();
+			this.insertedCount.addAndGet(counts[0]);
+			this.updatedCount.addAndGet(counts[1]);
+			this.deletedCount.addAndGet(counts[2]);
+		} catch (SQLException e) {
+			this.failedCount.incrementAndGet();
+			this.lastFailure = e;
+		}
+	}
+
+	/**
+	 * @return completed runs
+	 */
+	public long getRunCount() {
+		return this.runCount.get();
+	}
+
+	/**
+	 * @return stale "ID" rows read
+	 */
+	public long getScannedCount() {
+		return this.scannedCount.get();
+	}
+
+	/**
+	 * @return records re-fetched from their resource
+	 */
+	public long getFetchedCount() {
+		return this.fetchedCount.get();
+	}
+
+	/**
+	 * @return re-fetched records that had at least one changed relationship
+	 */
+	public long getChangedCount() {
+		return this.changedCount.get();
+	}
+
+	public long getInsertedCount() {
+		return this.insertedCount.get();
+	}
+
+	public long getUpdatedCount() {
+		return this.updatedCount.get();
+	}
+
+	public long getDeletedCount() {
+		return this.deletedCount.get();
+	}
+
+	/**
+	 * @return re-fetches the resource answered with nothing usable (the cached copy is kept)
+	 */
+	public long getMissingCount() {
+		return this.missingCount.get();
+	}
+
+	/**
+	 * @return re-fetches or writes that failed (see {@link #getLastFailure()})
+	 */
+	public long getFailedCount() {
+		return this.failedCount.get();
+	}
+
+	/**
+	 * @return the most recent failure, null if there was none
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	public String toString() {
+		return "CacheRefresher[runs=" + this.runCount + ", scanned=" + this.scannedCount + ", fetched=" + this.fetchedCount
+				+ ", changed=" + this.changedCount + ", missing=" + this.missingCount + ", failed=" + this.failedCount + "]";
+	}
+}
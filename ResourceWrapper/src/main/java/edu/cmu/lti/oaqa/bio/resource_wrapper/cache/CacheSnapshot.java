@@ -0,0 +1,386 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermStore;
+
+/**
+ * Binary snapshot of everything a DBCache holds (terms and their relationships), for bringing a new node up warm
+ * without replaying web service fetches.  Written by {@link DBCache#exportSnapshot(OutputStream)} and loaded by
+ * {@link DBCache#importSnapshot(InputStream)}, which also returns the counts of the run.
+ * <p>
+ * Format (version 1): the magic "RWSNAP", the version and the creation time, then blocks of whole Terms, each
+ * deflate-compressed and checked with a CRC32: {int terms, int raw length, int compressed length, int crc, bytes}.
+ * A block with 0 terms ends the stream, followed by the total term and relationship counts.
+ * Inside a block strings are length-prefixed UTF-8; the low-cardinality ones (relationship, source, parent term)
+ * are dictionary-encoded across the whole snapshot, so each distinct one is written once and then as a small number.
+ */
+public class CacheSnapshot {
+	public static final int VERSION = 1;
+
+	private static final byte[] MAGIC = {'R', 'W', 'S', 'N', 'A', 'P'};
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// Raw bytes collected before a block is compressed and written
+	private static final int BLOCK_BYTES = 256 * 1024;
+	// Distinct strings the dictionary holds, later new ones are written literally
+	private static final int MAX_DICTIONARY = 65536;
+	// Dictionary codes: null, new string (added to the dictionary), literal string (dictionary full), then entry i at i + 3
+	private static final int CODE_NULL = 0;
+	private static final int CODE_NEW = 1;
+	private static final int CODE_LITERAL = 2;
+	private static final int CODE_FIRST_ENTRY = 3;
+
+	private long termCount;
+	private long relationshipCount;
+	private long failedCount;
+	private long blockCount;
+	private long rawBytes;
+	private long compressedBytes;
+	private long millis;
+
+	private CacheSnapshot() {
+	}
+
+	/**
+	 * Write every term in the store, reading pageSize terms per query.
+	 */
+	static CacheSnapshot export(TermStore store, OutputStream os, int pageSize) throws IOException, SQLException {
+		CacheSnapshot stats = new CacheSnapshot();
+		long start = System.currentTimeMillis();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+		out.write(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(start);
+
+		HashMap<String, Integer> dictionary = new HashMap<String, Integer>();
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(BLOCK_BYTES + 64 * 1024);
+		DataOutputStream block = new DataOutputStream(buffer);
+		Deflater deflater = new Deflater();
+		int blockTerms = 0;
+		try {
+			String after = null;
+			while (true) {
+				ArrayList<String> page = store.getTermPage(after, pageSize);
+				if (page.isEmpty())
+					break;
+				after = page.get(page.size() - 1);
+				HashMap<String, Term> terms = store.getWholeTerms(page, null);
+				for (String name : page) {
+					Term term = terms.get(name);
+					if (term == null)
+						continue; // deleted since the page was read
+					stats.relationshipCount += writeTerm(block, term, dictionary);
+					stats.termCount++;
+					blockTerms++;
+					if (buffer.size() >= BLOCK_BYTES) {
+						stats.writeBlock(out, deflater, buffer, blockTerms);
+						blockTerms = 0;
+					}
+				}
+			}
+			if (blockTerms > 0)
+				stats.writeBlock(out, deflater, buffer, blockTerms);
+		} finally {
+			deflater.end();
+		}
+		out.writeInt(0);
+		out.writeLong(stats.termCount);
+		out.writeLong(stats.relationshipCount);
+		out.flush();
+		stats.millis = System.currentTimeMillis() - start;
+		return stats;
+	}
+
+	/**
+	 * Read a snapshot and write its Terms to the cache, batchSize Terms per transaction.
+	 */
+	static CacheSnapshot restore(DBCache cache, InputStream is, int batchSize) throws IOException, SQLException {
+		CacheSnapshot stats = new CacheSnapshot();
+		long start = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+		byte[] magic = new byte[MAGIC.length];
+		in.readFully(magic);
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (magic[i] != MAGIC[i])
+				throw new IOException("Not a DBCache snapshot");
+		}
+		int version = in.readInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported snapshot version " + version + " (this code reads version " + VERSION + ")");
+		in.readLong(); // creation time
+
+		ArrayList<String> dictionary = new ArrayList<String>();
+		ArrayList<Term> batch = new ArrayList<Term>(batchSize);
+		Inflater inflater = new Inflater();
+		try {
+			while (true) {
+				int blockTerms = in.readInt();
+				if (blockTerms == 0)
+					break;
+				DataInputStream block = new DataInputStream(new ByteArrayInputStream(stats.readBlock(in, inflater)));
+				for (int i = 0; i < blockTerms; i++) {
+					Term term = readTerm(block, dictionary);
+					stats.termCount++;
+					stats.relationshipCount += term.getAllTermRelationships().size();
+					batch.add(term);
+					if (batch.size() >= batchSize) {
+						stats.writeBatch(cache, batch);
+						batch.clear();
+					}
+				}
+			}
+			if (!batch.isEmpty())
+				stats.writeBatch(cache, batch);
+		} finally {
+			inflater.end();
+		}
+		long terms = in.readLong();
+		long relationships = in.readLong();
+		if (terms != stats.termCount || relationships != stats.relationshipCount)
+			throw new IOException("Truncated snapshot: read " + stats.termCount + " terms, " + stats.relationshipCount
+									+ " relationships, expected " + terms + " and " + relationships);
+		stats.millis = System.currentTimeMillis() - start;
+		return stats;
+	}
+
+	/**
+	 * @return Terms exported or restored
+	 */
+	public long getTermCount() {
+		return this.termCount;
+	}
+
+	/**
+	 * @return relationships exported or restored
+	 */
+	public long getRelationshipCount() {
+		return this.relationshipCount;
+	}
+
+	/**
+	 * @return restored terms and relationships the store didn't take (see DBCache.addWholeTerms), 0 for an export
+	 */
+	public long getFailedCount() {
+		return this.failedCount;
+	}
+
+	public long getBlockCount() {
+		return this.blockCount;
+	}
+
+	/**
+	 * @return size of the encoded Terms before compression
+	 */
+	public long getRawBytes() {
+		return this.rawBytes;
+	}
+
+	/**
+	 * @return size of the compressed blocks (the snapshot is this plus a few bytes of header and framing)
+	 */
+	public long getCompressedBytes() {
+		return this.compressedBytes;
+	}
+
+	public long getMillis() {
+		return this.millis;
+	}
+
+	public String toString() {
+		return "CacheSnapshot[terms=" + this.termCount + ", relationships=" + this.relationshipCount + ", failed=" + this.failedCount
+				+ ", blocks=" + this.blockCount + ", raw=" + this.rawBytes + ", compressed=" + this.compressedBytes + ", ms="
+				+ this.millis + "]";
+	}
+
+	private void writeBlock(DataOutputStream out, Deflater deflater, ByteArrayOutputStream buffer, int blockTerms) throws IOException {
+		byte[] raw = buffer.toByteArray();
+		buffer.reset();
+		CRC32 crc = new CRC32();
+		crc.update(raw, 0, raw.length);
+		deflater.reset();
+		deflater.setInput(raw);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 4 + 64);
+		byte[] chunk = new byte[64 * 1024];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			compressed.write(chunk, 0, n);
+		}
+		out.writeInt(blockTerms);
+		out.writeInt(raw.length);
+		out.writeInt(compressed.size());
+		out.writeInt((int) crc.getValue());
+		compressed.writeTo(out);
+		this.blockCount++;
+		this.rawBytes += raw.length;
+		this.compressedBytes += compressed.size();
+	}
+
+	private byte[] readBlock(DataInputStream in, Inflater inflater) throws IOException {
+		int rawLength = in.readInt();
+		int compressedLength = in.readInt();
+		int expectedCrc = in.readInt();
+		if (rawLength < 0 || compressedLength < 0)
+			throw new IOException("Corrupt snapshot block header");
+		byte[] compressed = new byte[compressedLength];
+		in.readFully(compressed);
+		byte[] raw = new byte[rawLength];
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int n = 0;
+			while (n < rawLength && !inflater.finished()) {
+				int read = inflater.inflate(raw, n, rawLength - n);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					break;
+				n += read;
+			}
+			if (n != rawLength)
+				throw new IOException("Corrupt snapshot block: " + n + " of " + rawLength + " bytes");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt snapshot block", e);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(raw, 0, raw.length);
+		if ((int) crc.getValue() != expectedCrc)
+			throw new IOException("Snapshot block " + (this.blockCount + 1) + " failed its checksum");
+		this.blockCount++;
+		this.rawBytes += rawLength;
+		this.compressedBytes += compressedLength;
+		return raw;
+	}
+
+	private void writeBatch(DBCache cache, ArrayList<Term> batch) throws SQLException {
+		for (boolean[] flags : cache.writeWholeTerms(batch)) {
+			for (boolean stored : flags) {
+				if (!stored)
+					this.failedCount++;
+			}
+		}
+	}
+
+	/**
+	 * @return relationships written
+	 */
+	private static int writeTerm(DataOutputStream out, Term term, HashMap<String, Integer> dictionary) throws IOException {
+		ArrayList<TermRelationship> rels = new ArrayList<TermRelationship>();
+		for (TermRelationship tr : term.getAllTermRelationships()) {
+			if (tr.getToTerm() != null)
+				rels.add(tr);
+		}
+		writeString(out, term.getTerm());
+		writeVarInt(out, rels.size());
+		for (TermRelationship tr : rels) {
+			writeCode(out, tr.getRelationship(), dictionary);
+			writeString(out, tr.getToTerm());
+			out.writeDouble(tr.getConfidence());
+			writeCode(out, tr.getSource(), dictionary);
+			writeCode(out, tr.getParentTerm(), dictionary);
+		}
+		return rels.size();
+	}
+
+	private static Term readTerm(DataInputStream in, ArrayList<String> dictionary) throws IOException {
+		Term term = new Term(readString(in));
+		int rels = readVarInt(in);
+		for (int i = 0; i < rels; i++) {
+			String relationship = readCode(in, dictionary);
+			String value = readString(in);
+			double confidence = in.readDouble();
+			String source = readCode(in, dictionary);
+			String parentTerm = readCode(in, dictionary);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), relationship, value, confidence, source, parentTerm));
+		}
+		return term;
+	}
+
+	private static void writeCode(DataOutputStream out, String s, HashMap<String, Integer> dictionary) throws IOException {
+		if (s == null) {
+			writeVarInt(out, CODE_NULL);
+			return;
+		}
+		Integer entry = dictionary.get(s);
+		if (entry != null)
+			writeVarInt(out, entry + CODE_FIRST_ENTRY);
+		else if (dictionary.size() < MAX_DICTIONARY) {
+			dictionary.put(s, dictionary.size());
+			writeVarInt(out, CODE_NEW);
+			writeString(out, s);
+		}
+		else {
+			writeVarInt(out, CODE_LITERAL);
+			writeString(out, s);
+		}
+	}
+
+	private static String readCode(DataInputStream in, ArrayList<String> dictionary) throws IOException {
+		int code = readVarInt(in);
+		switch (code) {
+		case CODE_NULL:
+			return null;
+		case CODE_NEW:
+			String s = readString(in);
+			dictionary.add(s);
+			return s;
+		case CODE_LITERAL:
+			return readString(in);
+		default:
+			if (code - CODE_FIRST_ENTRY >= dictionary.size())
+				throw new IOException("Corrupt snapshot: unknown dictionary entry " + (code - CODE_FIRST_ENTRY));
+			return dictionary.get(code - CODE_FIRST_ENTRY);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] bytes = new byte[readVarInt(in)];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	/**
+	 * Unsigned LEB128: 7 bits per byte, high bit set on all but the last byte.
+	 */
+	private static void writeVarInt(DataOutputStream out, int n) throws IOException {
+		while ((n & ~0x7f) != 0) {
+			out.writeByte((n & 0x7f) | 0x80);
+			n >>>= 7;
+		}
+		out.writeByte(n);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int n = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readByte();
+			n |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return n;
+		}
+		throw new EOFException("Corrupt snapshot: varint too long");
+	}
+}
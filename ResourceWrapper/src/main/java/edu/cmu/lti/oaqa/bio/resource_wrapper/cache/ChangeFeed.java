@@ -0,0 +1,340 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ShardedTermStore;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermChange;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermStore;
+
+/**
+ * Keeps a DBCache's in-memory entries and Bloom filters in step with writes made by other nodes sharing its database.
+ * Every node's ResourceDBWrapper records the keys each write makes stale in the 'termchanges' table, in the write's
+ * own transaction (see {@link ResourceDBWrapper#setChangeLog(boolean)}); a background timer reads the rows written
+ * since the last poll, in id order, drops the in-memory entries of each key and adds it to the Bloom filters.
+ * The node's own writes come back too and are dropped a second time, which costs at most a re-read.
+ * <p>
+ * A {@link ShardedTermStore} writes each term through its shard's ResourceDBWrapper, so every shard has a log of its
+ * own; each is read from its own position, and a shard added later is read from the start of its log.  Other stores
+ * keep no log (see {@link #supports(TermStore)}).
+ * <p>
+ * Ids are taken when a row is inserted but become visible when its transaction commits, so a poll can see a change
+ * before an older one.  The ids it skipped over are read again on the following polls until they show up, or until
+ * GAP_WAIT has passed and they are taken to have been rolled back.  Changes older than the retention are deleted
+ * every PRUNE_INTERVAL (by every node; the deletes overlap harmlessly).
+ * <p>
+ * {@link #getLagMillis()} is how long the changes applied by the last poll had been in the log: a write on another
+ * node may be served stale here for about that long.
+ */
+public class ChangeFeed {
+	// Longer than any write transaction; a missing id not seen by then belongs to a rolled back write
+	private static final long GAP_WAIT = 60000;
+	// Most missing ids read again at once per log (one IN-list); further ones are given up on right away
+	private static final int MAX_GAPS = 256;
+	private static final long PRUNE_INTERVAL = 10L * 60 * 1000;
+
+	/**
+	 * Read state of one database's log.
+	 */
+	private static class Tail {
+		private final ResourceDBWrapper log;
+		// Id of the last change read, -1 until the end of the log has been found
+		private long position;
+		// Ids skipped over by a poll, with the time they were first missed
+		private final TreeMap<Long, Long> gaps = new TreeMap<Long, Long>();
+		private long lastPrune;
+
+		private Tail(ResourceDBWrapper log, long position, long now) {
+			this.log = log;
+			this.position = position;
+			this.lastPrune = now;
+		}
+	}
+
+	private final DBCache cache;
+	private final TermStore store;
+	private final int batchSize;
+	private final long retentionMillis;
+	// Held for a whole poll so a manual poll() and a scheduled one don't overlap
+	private final Object pollLock = new Object();
+	private Timer timer;
+	// One per log, in shard order; rebuilt when the store's shards change
+	private ArrayList<Tail> tails = new ArrayList<Tail>();
+	private boolean started = false;
+
+	private final AtomicLong pollCount = new AtomicLong();
+	private final AtomicLong appliedCount = new AtomicLong();
+	private final AtomicLong lateCount = new AtomicLong();
+	private final AtomicLong skippedCount = new AtomicLong();
+	private final AtomicLong prunedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+	private volatile long lagMillis = 0;
+	private volatile long maxLagMillis = 0;
+	private volatile Exception lastFailure;
+
+	/**
+	 * Constructor, finds the end of each log (changes written before it are ignored, nothing was cached then)
+	 * and starts the poll timer.
+	 * @param cache DBCache whose entries are dropped
+	 * @param store TermStore whose database(s) hold the log, one {@link #supports(TermStore)} accepts
+	 * @param intervalMillis pause between two polls
+	 * @param batchSize most changes read per query
+	 * @param retentionMillis changes older than this are deleted, 0 to keep them
+	 */
+	ChangeFeed(DBCache cache, TermStore store, long intervalMillis, int batchSize, long retentionMillis) {
+		if (intervalMillis < 1 || batchSize < 1)
+			throw new IllegalArgumentException("Invalid change feed: intervalMillis=" + intervalMillis + ", batchSize=" + batchSize);
+		if (!supports(store))
+			throw new IllegalArgumentException(store.getClass().getSimpleName() + " keeps no change log");
+		this.cache = cache;
+		this.store = store;
+		this.batchSize = batchSize;
+		this.retentionMillis = retentionMillis;
+		this.poll();
+		this.timer = new Timer("DBCache-change-feed", true);
+		this.timer.schedule(new TimerTask() {
+			public void run() {
+				poll();
+			}
+		}, intervalMillis, intervalMillis);
+	}
+
+	/**
+	 * @return true if writes to the store are logged where a ChangeFeed can read them: a ResourceDBWrapper or a
+	 * ShardedTermStore.  The blob and key-value stores keep no log.
+	 */
+	static boolean supports(TermStore store) {
+		return store instanceof ResourceDBWrapper || store instanceof ShardedTermStore;
+	}
+
+	/**
+	 * @return the wrappers whose databases hold the store's logs
+	 */
+	private List<ResourceDBWrapper> logs() {
+		if (this.store instanceof ShardedTermStore)
+			return ((ShardedTermStore) this.store).getShards();
+		return Collections.singletonList((ResourceDBWrapper) this.store);
+	}
+
+	/**
+	 * Apply the changes written since the last poll, and those it skipped that have committed since.
+	 * A log that can't be read is counted as a failed poll, the others are still read.
+	 * @return number of changes applied, 0 if there were none or no log could be read
+	 */
+	public int poll() {
+		synchronized (this.pollLock) {
+			this.pollCount.incrementAndGet();
+			long now = System.currentTimeMillis();
+			ArrayList<Tail> tails = new ArrayList<Tail>();
+			for (ResourceDBWrapper log : this.logs()) {
+				Tail tail = null;
+				for (Tail old : this.tails) {
+					if (old.log == log)
+						tail = old;
+				}
+				// A log that shows up after the start belongs to a new shard, terms may have been moved to it already
+				tails.add(tail != null ? tail : new Tail(log, this.started ? 0 : -1, now));
+			}
+			this.tails = tails;
+			this.started = true;
+			int applied = 0;
+			long lag = 0;
+			boolean read = false;
+			for (Tail tail : tails) {
+				try {
+					long[] polled = this.poll(tail, now);
+					applied += polled[0];
+					lag = Math.max(lag, polled[1]);
+					read = true;
+				} catch (SQLException e) {
+					this.failedCount.incrementAndGet();
+					this.lastFailure = e;
+				}
+			}
+			if (read) {
+				this.lagMillis = lag;
+				if (lag > this.maxLagMillis)
+					this.maxLagMillis = lag;
+			}
+			return applied;
+		}
+	}
+
+	/**
+	 * Poll one log.
+	 * @return long array {changes applied, lag in milliseconds}
+	 */
+	private long[] poll(Tail tail, long now) throws SQLException {
+		if (tail.position < 0) {
+			tail.position = tail.log.getLastChangeId();
+			return new long[2];
+		}
+		long applied = 0;
+		long lag = 0;
+		if (!tail.gaps.isEmpty()) {
+			for (TermChange change : tail.log.getChanges(new ArrayList<Long>(tail.gaps.keySet()))) {
+				tail.gaps.remove(change.getId());
+				this.apply(change);
+				this.lateCount.incrementAndGet();
+				applied++;
+				lag = Math.max(lag, change.getAgeMillis());
+			}
+			Iterator<Map.Entry<Long, Long>> iter = tail.gaps.entrySet().iterator();
+			while (iter.hasNext()) {
+				if (now - iter.next().getValue() >= GAP_WAIT) {
+					iter.remove();
+					this.skippedCount.incrementAndGet();
+				}
+			}
+		}
+		ArrayList<TermChange> page;
+		do {
+			page = tail.log.getChangesAfter(tail.position, this.batchSize);
+			for (TermChange change : page) {
+				this.skipTo(tail, change.getId(), now);
+				this.apply(change);
+				tail.position = change.getId();
+				applied++;
+				lag = Math.max(lag, change.getAgeMillis());
+			}
+		} while (page.size() == this.batchSize);
+		if (this.retentionMillis > 0 && now - tail.lastPrune >= PRUNE_INTERVAL) {
+			tail.lastPrune = now;
+			this.prunedCount.addAndGet(tail.log.deleteChangesBefore(new Date(now - this.retentionMillis)));
+		}
+		return new long[] {applied, lag};
+	}
+
+	/**
+	 * Stop the timer.  Changes written afterwards are no longer applied.
+	 */
+	public synchronized void close() {
+		if (this.timer != null) {
+			this.timer.cancel();
+			this.timer = null;
+		}
+	}
+
+	/**
+	 * Remember the ids between the tail's position and the next change read, newest first if there are too many.
+	 */
+	private void skipTo(Tail tail, long id, long now) {
+		long missing = id - tail.position - 1;
+		if (missing <= 0)
+			return;
+		long tracked = Math.min(missing, MAX_GAPS - tail.gaps.size());
+		for (long gap = id - tracked; gap < id; gap++)
+			tail.gaps.put(gap, now);
+		this.skippedCount.addAndGet(missing - tracked);
+	}
+
+	private void apply(TermChange change) {
+		this.cache.applyChange(change);
+		this.appliedCount.incrementAndGet();
+	}
+
+	/**
+	 * @return for each log, in shard order, the id of the last change read (-1 before the end of the log was found)
+	 */
+	public long[] getPositions() {
+		synchronized (this.pollLock) {
+			long[] positions = new long[this.tails.size()];
+			for (int i = 0; i < positions.length; i++)
+				positions[i] = this.tails.get(i).position;
+			return positions;
+		}
+	}
+
+	/**
+	 * @return ids skipped over that are still being read again, in all logs
+	 */
+	public int getGapCount() {
+		synchronized (this.pollLock) {
+			int gaps = 0;
+			for (Tail tail : this.tails)
+				gaps += tail.gaps.size();
+			return gaps;
+		}
+	}
+
+	/**
+	 * @return polls started
+	 */
+	public long getPollCount() {
+		return this.pollCount.get();
+	}
+
+	/**
+	 * @return changes applied
+	 */
+	public long getAppliedCount() {
+		return this.appliedCount.get();
+	}
+
+	/**
+	 * @return changes applied after a poll had skipped over them (their transaction committed late)
+	 */
+	public long getLateCount() {
+		return this.lateCount.get();
+	}
+
+	/**
+	 * @return skipped ids given up on, after GAP_WAIT or because MAX_GAPS were already being read again
+	 */
+	public long getSkippedCount() {
+		return this.skippedCount.get();
+	}
+
+	/**
+	 * @return old changes deleted from the log
+	 */
+	public long getPrunedCount() {
+		return this.prunedCount.get();
+	}
+
+	/**
+	 * @return logs a poll couldn't read (see {@link #getLastFailure()}); their changes are applied by the next poll
+	 */
+	public long getFailedCount() {
+		return this.failedCount.get();
+	}
+
+	/**
+	 * @return milliseconds the oldest change applied by the last poll had been in the log (by the database clock),
+	 * 0 if the last poll found none
+	 */
+	public long getLagMillis() {
+		return this.lagMillis;
+	}
+
+	/**
+	 * @return largest {@link #getLagMillis()} of any poll
+	 */
+	public long getMaxLagMillis() {
+		return this.maxLagMillis;
+	}
+
+	/**
+	 * @return the error from the most recent log that couldn't be read, null if none failed
+	 */
+	public Exception getLastFailure() {
+		return this.lastFailure;
+	}
+
+	public String toString() {
+		return "ChangeFeed[positions=" + Arrays.toString(this.getPositions()) + ", lag=" + this.lagMillis + "ms, maxLag=" + this.maxLagMillis
+				+ "ms, polls=" + this.pollCount + ", applied=" + this.appliedCount + ", late=" + this.lateCount + ", skipped="
+				+ this.skippedCount + ", failed=" + this.failedCount + "]";
+	}
+}
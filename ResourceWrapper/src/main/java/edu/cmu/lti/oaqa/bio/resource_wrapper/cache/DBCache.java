@@ -1,26 +1,256 @@
 package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.BlobTermStore;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.KeyValueTermStore;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ShardedTermStore;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermChange;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.TermStore;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ValueCallback;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
 
 /**
- * Database Cache Layer.  Uses ResourceDBWrapper to interface with the database.
+ * Database Cache Layer.  Uses a {@link TermStore} to interface with the database: ResourceDBWrapper over JDBC
+ * (a ShardedTermStore when DBInfo.shardURLs is set), or KeyValueTermStore's embedded file when DBInfo.storage is "mvstore".
  * Sits between the ReourceDataAccessObjects and the database, handles all interactions therein. 
+ * Terms and ID lookups (including confirmed misses) are kept in a {@link MemoryCache} sized by DBInfo.cacheMaxEntries,
+ * so repeated lookups of the same names don't go to the database; the entries for a term are dropped whenever it is written.
+ * With DBInfo.bloomExpectedEntries set, names and ID's that were never cached are answered by {@link BloomFilter}s
+ * loaded from the tables in the background, without a query, once loading has finished.  The filters learn of other
+ * nodes' writes only through the {@link ChangeFeed}, so nodes sharing a database need both.  A name that is only a synonym of a cached term is resolved to that
+ * term by {@link #resolveTerm(String, String)}, through an index of the case-folded relationship values.
+ * Web service queries that found nothing can be recorded with {@link #recordMiss(String, String, String)}, so the
+ * wrappers don't send them again until DBInfo.lookupMissTTL has passed.
+ * Reads are sampled by an {@link AccessTracker}, which lets a {@link CacheEvictor} remove the least-read terms once
+ * the cache outgrows its budget.
+ * <p>
+ * {@link #getTermAsync(String, String)}, {@link #getTermByIDAsync(String, String)} and {@link #addWholeTermAsync(Term)}
+ * run the blocking calls on a bounded pool of DBCache threads, as many as the store has connections, so a caller can
+ * overlap cache lookups with web service requests and with each other.
+ * <p>
+ * Several nodes can share one database: with DBInfo.changeLog on, writes are logged, and with DBInfo.changeFeedInterval
+ * set each node's {@link ChangeFeed} applies the others' writes to its in-memory entries and Bloom filters (JDBC storage
+ * only, sharded or not).
  * @author Collin McCormack (cmccorma)
  * @version 0.1
  */
 public class DBCache {
-	private ResourceDBWrapper rdb;
+	/** Match mode of {@link #recordMiss(String, String, String)} for a resource's native (ranked) search. */
+	public static final String MATCH_SEARCH = "search";
+	/** Match mode of {@link #recordMiss(String, String, String)} for an exact-name lookup. */
+	public static final String MATCH_EXACT = "exact";
+	/** Relationship {@link #resolveTerm(String, String)} matches names against, as written by EntityTermConverter. */
+	public static final String SYNONYM = "synonym";
+	
+	private static final int BLOOM_FETCH_SIZE = 10000;
+	private static final int MAX_MISS_QUERY_LENGTH = 255;
+	private static final int SNAPSHOT_PAGE_SIZE = 1000;
+	private static final int SNAPSHOT_BATCH_SIZE = 500;
+	private static final long ASYNC_SHUTDOWN_WAIT = 30000;
+	
+	private TermStore store;
+	private MemoryCache<Term> memory;
+	private WriteBehindQueue writeBehind;
+	private AccessTracker accessTracker;
+	private BloomFilter termFilter;
+	private BloomFilter idFilter;
+	private ThreadPoolExecutor asyncExecutor;
+	private boolean asyncClosed;
+	private ChangeFeed changeFeed;
+	private final AtomicLong failedWrites = new AtomicLong();
+	private volatile Exception lastWriteFailure;
+	private volatile Exception filterLoadFailure;
 	
 	/**
-	 * Constructor.
+	 * Constructor, uses the storage configured in DBInfo: the shared connection pool, the shards, or the key-value store file.
+	 * @throws IllegalStateException Thrown if the key-value store file or the shards can't be opened, or if
+	 * DBInfo.changeFeedInterval is set for a storage that keeps no change log
 	 */
 	public DBCache() {
-		this.rdb = new ResourceDBWrapper();
+		this(createStore());
+	}
+	
+	/**
+	 * Constructor using a dedicated connection pool.
+	 * @param pool ConnectionPool to use for all database access (the caller closes it)
+	 */
+	public DBCache(ConnectionPool pool) {
+		this(new ResourceDBWrapper(pool));
+	}
+	
+	/**
+	 * Constructor using a caller-supplied store.
+	 * @param store TermStore to keep the cached data in (closed by {@link #close()})
+	 * @throws IllegalStateException Thrown if DBInfo.changeFeedInterval is set and the store keeps no change log
+	 * (only a ResourceDBWrapper or a ShardedTermStore do, see {@link ChangeFeed})
+	 */
+	public DBCache(TermStore store) {
+		if (DBInfo.changeFeedInterval > 0 && !ChangeFeed.supports(store))
+			throw new IllegalStateException("changeFeedInterval is set, but a " + store.getClass().getSimpleName() + " keeps no change log to poll;"
+											+ " use JDBC storage or set changeFeedInterval = 0");
+		this.store = store;
+		this.memory = createMemoryCache();
+		this.createFilters();
+		if (DBInfo.accessSampleRate > 0)
+			this.accessTracker = new AccessTracker(store, DBInfo.accessSampleRate, DBInfo.accessMaxPending, DBInfo.accessFlushInterval);
+		if (DBInfo.writeBehindQueueSize > 0)
+			this.enableWriteBehind(DBInfo.writeBehindQueueSize, DBInfo.writeBehindBatchSize, DBInfo.writeBehindMaxWait);
+		if (DBInfo.changeFeedInterval > 0)
+			this.changeFeed = new ChangeFeed(this, store, DBInfo.changeFeedInterval, DBInfo.changeFeedBatchSize, DBInfo.changeRetention);
+	}
+	
+	/**
+	 * Get the connection pool backing this cache, e.g. to read its active-count and wait metrics.
+	 * @return ConnectionPool, or null if it couldn't be created or the store doesn't use a single JDBC pool (e.g. shards)
+	 */
+	public ConnectionPool getConnectionPool() {
+		try {
+			if (this.store instanceof BlobTermStore)
+				return ((BlobTermStore) this.store).getConnectionPool();
+			if (!(this.store instanceof ResourceDBWrapper))
+				return null;
+			return ((ResourceDBWrapper) this.store).getConnectionPool();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+	
+	/**
+	 * Get the store behind this cache.
+	 * @return TermStore
+	 */
+	public TermStore getStore() {
+		return this.store;
+	}
+	
+	/**
+	 * Finish the asynchronous calls already accepted, write out the write-behind queue and the read counts (if any)
+	 * and close the store.  A shared connection pool stays open.
+	 */
+	public void close() {
+		if (this.changeFeed != null)
+			this.changeFeed.close();
+		this.closeAsyncExecutor();
+		WriteBehindQueue queue = this.getWriteBehindQueue();
+		if (queue != null)
+			queue.close();
+		if (this.accessTracker != null)
+			this.accessTracker.close();
+		try {
+			this.store.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Get the in-memory cache in front of the database, e.g. to read its hit, miss and eviction counts.
+	 * @return MemoryCache, or null if it's disabled (DBInfo.cacheMaxEntries = 0)
+	 */
+	public MemoryCache<Term> getMemoryCache() {
+		return this.memory;
+	}
+	
+	/**
+	 * Get the sampler of term reads, e.g. to read its sampled and dropped counts or to flush it.
+	 * @return AccessTracker, or null if access tracking is disabled (DBInfo.accessSampleRate = 0)
+	 */
+	public AccessTracker getAccessTracker() {
+		return this.accessTracker;
+	}
+	
+	/**
+	 * Get the reader of other nodes' writes, e.g. to read its lag or to poll it right away.
+	 * @return ChangeFeed, or null if it's disabled (DBInfo.changeFeedInterval = 0)
+	 */
+	public ChangeFeed getChangeFeed() {
+		return this.changeFeed;
+	}
+	
+	/**
+	 * @return Terms whose write by {@link #addWholeTerms(Collection)} or an unqueued {@link #queueWholeTerms(Collection)}
+	 * failed (see {@link #getLastWriteFailure()}); failed queued writes are counted by {@link WriteBehindQueue#getFailedCount()}
+	 */
+	public long getFailedWriteCount() {
+		return this.failedWrites.get();
+	}
+	
+	/**
+	 * @return the error from the most recent failed write counted by {@link #getFailedWriteCount()}, null if none failed
+	 */
+	public Exception getLastWriteFailure() {
+		return this.lastWriteFailure;
+	}
+	
+	/**
+	 * Get the Bloom filter over the 'terms' table, e.g. to read its size and false-positive counts.
+	 * @return BloomFilter, or null if the filters are disabled (DBInfo.bloomExpectedEntries = 0)
+	 */
+	public BloomFilter getTermFilter() {
+		return this.termFilter;
+	}
+	
+	/**
+	 * Get the Bloom filter over the ID's (relationship="ID" values) in the 'termrelationships' table.
+	 * @return BloomFilter, or null if the filters are disabled (DBInfo.bloomExpectedEntries = 0)
+	 */
+	public BloomFilter getIDFilter() {
+		return this.idFilter;
+	}
+	
+	/**
+	 * @return the error that stopped the Bloom filters from loading, null if they loaded (or are still loading, or
+	 * are disabled); filters that failed to load are never trusted, so every existence check queries the database
+	 */
+	public Exception getFilterLoadFailure() {
+		return this.filterLoadFailure;
+	}
+	
+	/**
+	 * Switch {@link #queueWholeTerm(Term)} to write-behind mode: Terms are handed to a background writer instead of
+	 * being written by the caller.  Enabled from the constructor when DBInfo.writeBehindQueueSize is positive.
+	 * @param queueSize most distinct Terms waiting to be written
+	 * @param batchSize most Terms written per transaction
+	 * @param maxWaitMillis how long a caller waits for room in a full queue before the Term is dropped
+	 * @return the WriteBehindQueue (the one already running if write-behind was enabled before)
+	 */
+	public synchronized WriteBehindQueue enableWriteBehind(int queueSize, int batchSize, long maxWaitMillis) {
+		if (this.writeBehind == null || this.writeBehind.isClosed())
+			this.writeBehind = new WriteBehindQueue(this, queueSize, batchSize, maxWaitMillis);
+		return this.writeBehind;
+	}
+	
+	/**
+	 * Get the write-behind queue, e.g. to read its dropped and failed write counts, or to flush or close it.
+	 * @return WriteBehindQueue, or null if write-behind isn't enabled
+	 */
+	public synchronized WriteBehindQueue getWriteBehindQueue() {
+		return this.writeBehind;
 	}
 	
 	/**
@@ -29,8 +259,15 @@ public class DBCache {
 	 * @return true if it's already there, false if not (or on SQL error)
 	 */
 	public boolean inCache(String term) {
+		if (this.memory != null)
+			return this.getTerm(term, "all") != null;
+		if (definitelyAbsent(this.termFilter, term))
+			return this.pendingTerm(term, "all") != null;
 		try {
-			return this.rdb.termExists(term);
+			if (this.store.termExists(term))
+				return true;
+			falsePositive(this.termFilter);
+			return this.pendingTerm(term, "all") != null;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -50,8 +287,11 @@ public class DBCache {
 	 * @return true if it's already there, false if not (or on SQL error)
 	 */
 	public boolean inCache(TermRelationship tr) {
+		// Every relationship's term is in 'terms'
+		if (definitelyAbsent(this.termFilter, tr.getFromTerm()))
+			return false;
 		try {
-			return this.rdb.relationshipExists(tr);
+			return this.store.relationshipExists(tr.getFromTerm(), tr.getRelationship(), tr.getToTerm());
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -66,8 +306,10 @@ public class DBCache {
 	 * @return true if it's already there, false if not (or on SQL error)
 	 */
 	public boolean inCache(String term, String relationship, String valueTerm) {
+		if (definitelyAbsent(this.termFilter, term))
+			return false;
 		try {
-			return this.rdb.relationshipExists(term, relationship, valueTerm);
+			return this.store.relationshipExists(term, relationship, valueTerm);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -82,11 +324,15 @@ public class DBCache {
 	 * @return true if it's already there, false if not (or on SQL error)
 	 */
 	public boolean IDinCache(String id) {
+		if (this.memory != null)
+			return this.getTermByID(id, "all") != null;
+		if (definitelyAbsent(this.idFilter, id))
+			return this.pendingTermByID(id, "all") != null;
 		try {
-			if (this.rdb.getTermByRelationshipAndValue("ID", id) != null)
+			if (this.store.getTermByRelationshipAndValue("ID", id) != null)
 				return true;
-			else
-				return false;
+			falsePositive(this.idFilter);
+			return this.pendingTermByID(id, "all") != null;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -94,7 +340,7 @@ public class DBCache {
 	}
 	
 	/**
-	 * Add a term to the database.  Checks for existence of the term before attempting insertion.
+	 * Add a term to the database, in one statement that does nothing if the term is already there.
 	 * Returns true if the term is in the db (was there already or was inserted), false otherwise
 	 * Only the primary term is added to the db here, all relationships are ignored.  If you want to add
 	 * the whole Term object, use {@link #addWholeTerm(Term)}.
@@ -104,13 +350,8 @@ public class DBCache {
 	 */
 	private boolean addTerm(String term) {
 		try {
-			// check to see if term already exists
-			if (this.rdb.termExists(term))
-				return true;
-			else { // add term
-				this.rdb.insertTerm(term);
-				return true;
-			}
+			this.store.upsertTerm(term);
+			return true;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
@@ -120,53 +361,109 @@ public class DBCache {
 	/**
 	 * Add a Term and it's contents to the database.  Checks for existence of the term or it's
 	 * constituent TermRelationships before attempting insertion.
+	 * The whole Term is written in one transaction (see {@link TermStore#insertWholeTerms(Collection)}).
 	 * Returns true if the term is in the db (was there already or was inserted), false otherwise
 	 * @param term Term object to be added to the db
 	 * @return boolean array for existence of the Term and TermRelationships
 	 */
 	public boolean[] addWholeTerm(Term term) {
-		boolean[] results = new boolean[term.getAllTermRelationships().size() + 1];
-		results[0] = this.addTerm(term.getTerm());
-		int count = 0;
-		for (TermRelationship tr : term.getAllTermRelationships()) {
-			count += 1;
+		return this.addWholeTerms(Collections.singletonList(term)).get(0);
+	}
+	
+	/**
+	 * Add several Terms and their contents to the database in a single transaction, using JDBC batches.
+	 * Meant for bulk-warming the cache; pass chunks of a few hundred to a few thousand Terms per call.
+	 * A failed transaction writes nothing and is counted (see {@link #getFailedWriteCount()}) instead of thrown.
+	 * @param terms Term objects to be added to the db
+	 * @return one boolean array per Term (in iteration order), laid out as in {@link #addWholeTerm(Term)}; all false
+	 * if the transaction failed
+	 */
+	public ArrayList<boolean[]> addWholeTerms(Collection<Term> terms) {
+		try {
+			return this.writeWholeTerms(terms);
+		} catch (SQLException e) {
+			this.writeFailed(terms.size(), e);
+			ArrayList<boolean[]> results = new ArrayList<boolean[]>(terms.size());
+			for (Term term : terms)
+				results.add(new boolean[term.getAllTermRelationships().size() + 1]);
+			return results;
+		}
+	}
+	
+	/**
+	 * Add a Term and it's contents to the database without making the caller wait for the write, if write-behind is
+	 * enabled (see {@link #enableWriteBehind(int, int, long)}).  The Term is visible to lookups as soon as it's queued.
+	 * Without write-behind this is the same as {@link #addWholeTerm(Term)}.
+	 * @param term Term object to be added to the db
+	 * @return true if the Term was queued (or written), false if it was dropped because the queue stayed full
+	 */
+	public boolean queueWholeTerm(Term term) {
+		return this.queueWholeTerms(Collections.singletonList(term));
+	}
+	
+	/**
+	 * @see #queueWholeTerm(Term)
+	 * @param terms Term objects to be added to the db
+	 * @return true if every Term was queued (or written), false if one was dropped or the write failed
+	 * (see {@link #getFailedWriteCount()})
+	 */
+	public boolean queueWholeTerms(Collection<Term> terms) {
+		WriteBehindQueue queue = this.getWriteBehindQueue();
+		if (queue == null || queue.isClosed()) {
 			try {
-				if (!this.rdb.relationshipExists(tr))
-					this.rdb.insertRelationship(tr);
-				results[count] = true;
+				this.writeWholeTerms(terms);
+				return true;
 			} catch (SQLException e) {
-				System.out.println(e.toString());
-				e.printStackTrace();
-				results[count] = false;
-			} 
-		} 
-		return results;
+				this.writeFailed(terms.size(), e);
+				return false;
+			}
+		}
+		boolean queued = true;
+		for (Term term : terms) {
+			if (queue.offer(term))
+				this.invalidate(term.getTerm());
+			else
+				queued = false;
+		}
+		return queued;
 	}
 	
 	/**
-	 * Add a relationship to the database.  Checks for existence of the relationship before attempting insertion.
-	 * Automatically inserts terms into Terms table if they're absent.
+	 * Write Terms in one transaction and drop the in-memory entries they make stale.  Used directly by the write-behind writer.
+	 * @throws SQLException Thrown if the transaction fails
+	 */
+	ArrayList<boolean[]> writeWholeTerms(Collection<Term> terms) throws SQLException {
+		for (Term term : terms)
+			this.addToFilters(term.getTerm(), term.getAllTermRelationships());
+		try {
+			return this.store.insertWholeTerms(terms);
+		} finally {
+			for (Term term : terms) {
+				this.invalidate(term.getTerm());
+				for (TermRelationship tr : term.getAllTermRelationships())
+					this.invalidate(tr);
+			}
+		}
+	}
+	
+	/**
+	 * Add a relationship to the database unless it's there already; an existing one is left as it is.
+	 * Automatically inserts terms into Terms table if they're absent.  Takes two statements and no existence checks,
+	 * so concurrent callers can't insert duplicates (see {@link TermStore#upsertRelationship(TermRelationship)}).
 	 * Returns true if the relationship is in the db (was there already or was inserted), false otherwise
 	 * @param tr new TermRelationship
 	 * @return boolean for existence of the TermRelationship in the db
 	 */
 	public boolean addRelationship(TermRelationship tr) {
+		this.addToFilters(tr.getToTerm(), Collections.singletonList(tr));
 		try {
-			// check to see if relationship already exists
-			if (this.rdb.relationshipExists(tr))
-				return true;
-			else { // add relationship
-				// Check existence of terms, add if necessary
-				if (!this.rdb.termExists(tr.getFromTerm()))
-					this.addTerm(tr.getFromTerm());
-				if (!this.rdb.termExists(tr.getToTerm()))
-					this.addTerm(tr.getToTerm());
-				this.rdb.insertRelationship(tr);
-				return true;
-			}
+			this.store.upsertRelationship(tr);
+			return true;
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return false;
+		} finally {
+			this.invalidate(tr);
 		}
 	}
 	/**
@@ -198,7 +495,7 @@ public class DBCache {
 	 */
 	private ArrayList<TermRelationship> getRelationships(String term) {
 		try {
-			return this.rdb.getRelationships(term);
+			return this.store.getRelationships(term);
 		} catch (SQLException e) {
 			e.printStackTrace();
 			return new ArrayList<TermRelationship>(0);
@@ -212,16 +509,13 @@ public class DBCache {
 	 * @return ArrayList of TermRelationships originating from the provided source
 	 */
 	public ArrayList<TermRelationship> getRelationshipsBySource(String term, String source) {
-		ArrayList<TermRelationship> allTR = this.getRelationships(term);
 		if (source.equals("all"))
-			return allTR;
-		else {
-			ArrayList<TermRelationship> filteredTR = new ArrayList<TermRelationship>();
-			for (TermRelationship tr : allTR) {
-				if (tr.getSource().equals(source))
-					filteredTR.add(tr);
-			}
-			return filteredTR;
+			return this.getRelationships(term);
+		try {
+			return this.store.getRelationships(term, source);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return new ArrayList<TermRelationship>(0);
 		}
 	}
 	
@@ -236,36 +530,34 @@ public class DBCache {
 	
 	/**
 	 * Get a complete Term object from the database.
-	 * Tests for whether the primary term exists in the database first (though, ideally, this should be done before this method is called).  If it doesn't exist, null is returned.  
-	 * If the term is present then all relationships that originated from the specified source ("all" for all sources)
-	 * are gathered and added to the Term, which is returned.
+	 * If the primary term doesn't exist in the database, null is returned.  If it is present then all relationships
+	 * that originated from the specified source ("all" for all sources) are added to the Term, which is returned.
+	 * Existence, relationships and source filtering are all handled by a single query.
 	 * @param termQuery String, the desired term (searched exactly)
 	 * @param source String, resource name to match
 	 * @return complete Term (null on error or no term found)
 	 */
 	public Term getTerm(String termQuery, String source) {
-		Term outputTerm = null;
+		if (this.memory != null) {
+			MemoryCache.Entry<Term> entry = this.lookUp(termKey(termQuery, "all"), termKey(termQuery, source), source);
+			if (entry != null)
+				return this.accessed(entry.isNegative() ? this.pendingTerm(termQuery, source) : copyOf(entry.getValue(), source));
+		}
+		if (definitelyAbsent(this.termFilter, termQuery))
+			return this.pendingTerm(termQuery, source);
+		Term term;
 		try {
-			// If database does not contain the desired term then it doesn't exist and return null
-			if (!this.rdb.termExists(termQuery))
-				return outputTerm;
-			// If we've gotten this far the desired term is in the database and we can create the "hollow" Term object
-			outputTerm = new Term(termQuery);
-			// Fill the Term object with relevant relationships from the database
-			if (source.equals("all"))
-				outputTerm.addTermRelationship(this.rdb.getRelationships(outputTerm));
-			else { // Do filtering by source
-				ArrayList<TermRelationship> allTR = this.rdb.getRelationships(outputTerm);
-				for (TermRelationship tr : allTR) {
-					if (tr.getSource().equals(source))
-						outputTerm.addTermRelationship(tr);
-				}
-			}
+			term = this.store.getWholeTerm(termQuery, sourceFilter(source));
 		} catch (SQLException sqle) {
 			System.out.println("A SQL exception occurred.  Check parameters and/or database status.");
 			sqle.printStackTrace();
+			return null;
 		}
-		return outputTerm;
+		if (term == null)
+			falsePositive(this.termFilter);
+		if (this.memory != null)
+			this.memory.put(termKey(termQuery, source), copyOf(term, "all"), nameTag(termQuery));
+		return this.accessed(term != null ? term : this.pendingTerm(termQuery, source));
 	}
 	
 	/**
@@ -284,14 +576,734 @@ public class DBCache {
 	 * @return complete Term object
 	 */
 	public Term getTermByID(String id, String source) {
-		Term outputTerm = null;
+		if (this.memory != null) {
+			MemoryCache.Entry<Term> entry = this.lookUp(idKey(id, "all"), idKey(id, source), source);
+			if (entry != null)
+				return this.accessed(entry.isNegative() ? this.pendingTermByID(id, source) : copyOf(entry.getValue(), source));
+		}
+		if (definitelyAbsent(this.idFilter, id))
+			return this.pendingTermByID(id, source);
+		Term term;
 		try {
-			String term = this.rdb.getTermByRelationshipAndValue("ID", id);
-			outputTerm = this.getTerm(term, source);
+			term = this.store.getWholeTermByRelationshipAndValue("ID", id, sourceFilter(source));
 		} catch (SQLException e) {
 			System.out.println("A SQL exception occurred.  Check parameters and/or database status.");
 			e.printStackTrace();
+			return null;
 		}
-		return outputTerm;
+		if (term == null)
+			falsePositive(this.idFilter);
+		if (this.memory != null)
+			this.cacheID(id, source, term);
+		return this.accessed(term != null ? term : this.pendingTermByID(id, source));
+	}
+	
+	/**
+	 * Reverse lookup: the cached terms with a relationship whose value matches, ignoring case and white space
+	 * differences ("brca-1" finds the gene listing "BRCA-1" as a synonym).  One indexed query; terms still queued for
+	 * the background writer aren't searched.
+	 * @param relationship String relationship to match, e.g. {@link #SYNONYM}; null for any
+	 * @param value String value to look for
+	 * @return terms in name order, empty if none (or on error, or if the storage can't search values)
+	 */
+	public ArrayList<String> getTermsByValue(String relationship, String value) {
+		try {
+			return this.store.getTermsByValue(relationship, value);
+		} catch (SQLFeatureNotSupportedException e) {
+			return new ArrayList<String>(0);
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return new ArrayList<String>(0);
+		}
+	}
+	
+	/**
+	 * Resolve a name locally, before any web service is asked: the cached term of that name, or else a cached term
+	 * listing the name as a synonym (see {@link #getTermsByValue(String, String)}).  Either only counts if it has
+	 * relationships from source, since terms are shared by every resource: a name cached by one resource is not an
+	 * answer for another.  Of several terms listing the name, the first by name is returned.
+	 * @param name String name to resolve, e.g. "BRCA-1" or "Genes, APC"
+	 * @param source String, resource name to match ("all" for all)
+	 * @return complete Term, null if neither the name nor a term listing it is cached with relationships from source
+	 * (or on error)
+	 */
+	public Term resolveTerm(String name, String source) {
+		if (this.inCache(name)) {
+			Term exact = this.getTerm(name, source);
+			if (exact != null && !exact.getAllTermRelationships().isEmpty())
+				return exact;
+		}
+		for (String term : this.getTermsByValue(SYNONYM, name)) {
+			Term candidate = this.getTerm(term, source);
+			if (candidate != null && !candidate.getAllTermRelationships().isEmpty())
+				return candidate;
+		}
+		return null;
+	}
+	
+	/**
+	 * Asynchronous {@link #getTerm(String, String)}.  Answered on the calling thread when the in-memory cache or the
+	 * Bloom filter has the answer, so only lookups that need the database take a thread.
+	 * @param termQuery String, the desired term (searched exactly)
+	 * @param source String, resource name to match ("all" for all)
+	 * @return CompletableFuture of the complete Term (null on error or no term found); fails with
+	 * RejectedExecutionException if DBInfo.asyncQueueSize calls are already waiting, or the cache is closed
+	 */
+	public CompletableFuture<Term> getTermAsync(String termQuery, String source) {
+		if (this.answeredLocally(termKey(termQuery, "all"), termKey(termQuery, source), source, this.termFilter, termQuery))
+			return CompletableFuture.completedFuture(this.getTerm(termQuery, source));
+		return this.submit(() -> this.getTerm(termQuery, source));
+	}
+	
+	/**
+	 * Asynchronous {@link #getTermByID(String, String)}, answered on the calling thread when no query is needed.
+	 * @param id fully-qualified String ID e.g. "Authority:236789"
+	 * @param source String name of the source to retrieve from, "all" for all
+	 * @return CompletableFuture of the complete Term (null on error or no term found)
+	 * @see #getTermAsync(String, String)
+	 */
+	public CompletableFuture<Term> getTermByIDAsync(String id, String source) {
+		if (this.answeredLocally(idKey(id, "all"), idKey(id, source), source, this.idFilter, id))
+			return CompletableFuture.completedFuture(this.getTermByID(id, source));
+		return this.submit(() -> this.getTermByID(id, source));
+	}
+	
+	/**
+	 * Asynchronous {@link #addWholeTerm(Term)}.  The Term isn't visible to lookups until the future completes; use
+	 * {@link #queueWholeTerm(Term)} to write behind with immediate visibility instead.
+	 * @param term Term object to be added to the db
+	 * @return CompletableFuture of the boolean array for existence of the Term and TermRelationships
+	 * @see #getTermAsync(String, String)
+	 */
+	public CompletableFuture<boolean[]> addWholeTermAsync(Term term) {
+		return this.submit(() -> this.addWholeTerm(term));
+	}
+	
+	/**
+	 * Get the pool running the asynchronous calls, e.g. to read its queue length and active count.  Created on first
+	 * use with DBInfo.asyncThreads threads (0 for the connections the store can use) and DBInfo.asyncQueueSize slots.
+	 * @return ThreadPoolExecutor, null once the cache is closed if no asynchronous call was made before
+	 */
+	public synchronized ThreadPoolExecutor getAsyncExecutor() {
+		if (this.asyncExecutor == null && !this.asyncClosed) {
+			int threads = DBInfo.asyncThreads > 0 ? DBInfo.asyncThreads : this.connectionLimit();
+			AtomicInteger count = new AtomicInteger();
+			this.asyncExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+														new ArrayBlockingQueue<Runnable>(Math.max(1, DBInfo.asyncQueueSize)), r -> {
+				Thread thread = new Thread(r, "DBCache-async-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			this.asyncExecutor.allowCoreThreadTimeOut(true);
+		}
+		return this.asyncExecutor;
+	}
+	
+	/**
+	 * Retrieve many complete Terms at once.  The lookup takes one query per 256 terms instead of one per term.
+	 * @param termQueries Strings, the desired terms (searched exactly)
+	 * @param source String, resource name to match ("all" for all)
+	 * @return BulkLookup with the Terms found (keyed by term) and the terms that aren't cached
+	 */
+	public BulkLookup getTerms(Collection<String> termQueries, String source) {
+		HashMap<String, Term> results = new HashMap<String, Term>();
+		Collection<String> remaining = termQueries;
+		if (this.memory != null) {
+			remaining = new LinkedHashSet<String>();
+			for (String termQuery : termQueries) {
+				MemoryCache.Entry<Term> entry = this.lookUp(termKey(termQuery, "all"), termKey(termQuery, source), source);
+				if (entry == null)
+					remaining.add(termQuery);
+				else if (!entry.isNegative())
+					results.put(termQuery, copyOf(entry.getValue(), source));
+			}
+			if (remaining.isEmpty()) {
+				this.addPending(termQueries, results, source, false);
+				return this.accessed(new BulkLookup(termQueries, results));
+			}
+		}
+		remaining = this.withoutAbsent(this.termFilter, remaining);
+		if (remaining.isEmpty()) {
+			this.addPending(termQueries, results, source, false);
+			return this.accessed(new BulkLookup(termQueries, results));
+		}
+		HashMap<String, Term> found;
+		try {
+			found = this.store.getWholeTerms(remaining, sourceFilter(source));
+		} catch (SQLException e) {
+			System.out.println("A SQL exception occurred.  Check parameters and/or database status.");
+			e.printStackTrace();
+			this.addPending(termQueries, results, source, false);
+			return this.accessed(new BulkLookup(termQueries, results));
+		}
+		for (String termQuery : remaining) {
+			if (!found.containsKey(termQuery))
+				falsePositive(this.termFilter);
+		}
+		if (this.memory != null) {
+			for (String termQuery : remaining)
+				this.memory.put(termKey(termQuery, source), copyOf(found.get(termQuery), "all"), nameTag(termQuery));
+		}
+		results.putAll(found);
+		this.addPending(termQueries, results, source, false);
+		return this.accessed(new BulkLookup(termQueries, results));
+	}
+	
+	/**
+	 * Retrieve the complete Terms for many ID's at once.  The lookup takes one query per 256 ID's instead of three per ID.
+	 * @param ids fully-qualified String ID's e.g. "EntrezGene:672"
+	 * @param source String name of the source to retrieve from, "all" for all
+	 * @return BulkLookup with the Terms found (keyed by ID) and the ID's that aren't cached
+	 */
+	public BulkLookup getTermsByIDs(Collection<String> ids, String source) {
+		HashMap<String, Term> results = new HashMap<String, Term>();
+		Collection<String> remaining = ids;
+		if (this.memory != null) {
+			remaining = new LinkedHashSet<String>();
+			for (String id : ids) {
+				MemoryCache.Entry<Term> entry = this.lookUp(idKey(id, "all"), idKey(id, source), source);
+				if (entry == null)
+					remaining.add(id);
+				else if (!entry.isNegative())
+					results.put(id, copyOf(entry.getValue(), source));
+			}
+			if (remaining.isEmpty()) {
+				this.addPending(ids, results, source, true);
+				return this.accessed(new BulkLookup(ids, results));
+			}
+		}
+		remaining = this.withoutAbsent(this.idFilter, remaining);
+		if (remaining.isEmpty()) {
+			this.addPending(ids, results, source, true);
+			return this.accessed(new BulkLookup(ids, results));
+		}
+		HashMap<String, Term> found;
+		try {
+			found = this.store.getWholeTermsByRelationshipAndValue("ID", remaining, sourceFilter(source));
+		} catch (SQLException e) {
+			System.out.println("A SQL exception occurred.  Check parameters and/or database status.");
+			e.printStackTrace();
+			this.addPending(ids, results, source, true);
+			return this.accessed(new BulkLookup(ids, results));
+		}
+		for (String id : remaining) {
+			if (!found.containsKey(id))
+				falsePositive(this.idFilter);
+		}
+		if (this.memory != null) {
+			for (String id : remaining)
+				this.cacheID(id, source, found.get(id));
+		}
+		results.putAll(found);
+		this.addPending(ids, results, source, true);
+		return this.accessed(new BulkLookup(ids, results));
+	}
+	
+	/**
+	 * Note a read of the term for eviction.
+	 * @return term, unchanged
+	 */
+	private Term accessed(Term term) {
+		if (term != null && this.accessTracker != null)
+			this.accessTracker.recordRead(term.getTerm());
+		return term;
+	}
+	
+	/**
+	 * @see #accessed(Term)
+	 */
+	private BulkLookup accessed(BulkLookup lookup) {
+		if (this.accessTracker != null) {
+			for (Term term : lookup.getFound().values())
+				this.accessTracker.recordRead(term.getTerm());
+		}
+		return lookup;
+	}
+	
+	/**
+	 * Find a lookup in memory: the entry for the exact source if there is one, otherwise the unfiltered ("all") entry,
+	 * which holds a superset of the relationships.  Counts one hit or miss.
+	 * @return the Entry (its value still needs filtering by source), or null to go to the database
+	 */
+	private MemoryCache.Entry<Term> lookUp(String allKey, String sourceKey, String source) {
+		MemoryCache.Entry<Term> entry = this.memory.peek(sourceKey);
+		if (entry == null && sourceFilter(source) != null)
+			entry = this.memory.peek(allKey);
+		if (entry == null)
+			this.memory.recordMiss();
+		else
+			this.memory.recordHit(entry.isNegative());
+		return entry;
+	}
+	
+	/**
+	 * Cache the result of an ID lookup.  A found Term is tagged with its own name so writes to the term drop it;
+	 * a miss is tagged with the ID so adding a term carrying that ID drops it.
+	 */
+	private void cacheID(String id, String source, Term term) {
+		if (term == null)
+			this.memory.putMiss(idKey(id, source), idTag(id));
+		else
+			this.memory.put(idKey(id, source), copyOf(term, "all"), nameTag(term.getTerm()), idTag(id));
+	}
+	
+	/**
+	 * Has this query to a resource recently found nothing?  Wrappers check this before going to the web service.
+	 * Queries are compared after {@link #normalizeQuery(String)}.
+	 * @param source String resource name, e.g. "EntrezGene"
+	 * @param query String query as sent to the resource
+	 * @param matchMode {@link #MATCH_SEARCH} or {@link #MATCH_EXACT}
+	 * @return true if the query is a known miss, false if not (or on SQL error)
+	 */
+	public boolean isKnownMiss(String source, String query, String matchMode) {
+		String normalized = normalizeQuery(query);
+		if (DBInfo.lookupMissTTL <= 0 || normalized.length() > MAX_MISS_QUERY_LENGTH)
+			return false;
+		if (this.memoryMisses()) {
+			MemoryCache.Entry<Term> entry = this.memory.get(missKey(source, normalized, matchMode));
+			if (entry != null)
+				return true;
+		}
+		try {
+			boolean miss = this.store.lookupMissExists(source, normalized, matchMode);
+			if (miss && this.memoryMisses())
+				this.memory.putMiss(missKey(source, normalized, matchMode));
+			return miss;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+	
+	/**
+	 * Remember that a query to a resource found nothing, for DBInfo.lookupMissTTL milliseconds.
+	 * Only record definite answers: a failed request (IOException) is not a miss.
+	 * @param source String resource name, e.g. "EntrezGene"
+	 * @param query String query as sent to the resource
+	 * @param matchMode {@link #MATCH_SEARCH} or {@link #MATCH_EXACT}
+	 */
+	public void recordMiss(String source, String query, String matchMode) {
+		String normalized = normalizeQuery(query);
+		if (DBInfo.lookupMissTTL <= 0 || normalized.length() > MAX_MISS_QUERY_LENGTH)
+			return;
+		try {
+			this.store.insertLookupMiss(source, normalized, matchMode, new Date(System.currentTimeMillis() + DBInfo.lookupMissTTL));
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return;
+		}
+		if (this.memoryMisses())
+			this.memory.putMiss(missKey(source, normalized, matchMode));
+	}
+	
+	/**
+	 * Forget a recorded miss, so the next lookup goes to the resource again.
+	 * @see #recordMiss(String, String, String)
+	 */
+	public void forgetMiss(String source, String query, String matchMode) {
+		String normalized = normalizeQuery(query);
+		if (this.memory != null)
+			this.memory.invalidate(missKey(source, normalized, matchMode));
+		try {
+			this.store.deleteLookupMiss(source, normalized, matchMode);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Delete expired misses from the database (lookups already ignore them, this only reclaims the space).
+	 * @return number of misses deleted, -1 on SQL error
+	 */
+	public int purgeExpiredMisses() {
+		try {
+			return this.store.deleteLookupMissesExpiredBefore(new Date());
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+	
+	/**
+	 * Write every Term and relationship in the store to a {@link CacheSnapshot}, after writing out the write-behind queue.
+	 * Lookup misses aren't included.  The stream is flushed, not closed.
+	 * @param out OutputStream to write the snapshot to
+	 * @return CacheSnapshot with the counts and sizes of the export
+	 * @throws IOException Thrown if the stream can't be written
+	 * @throws SQLException Thrown if the store can't be read
+	 */
+	public CacheSnapshot exportSnapshot(OutputStream out) throws IOException, SQLException {
+		WriteBehindQueue queue = this.getWriteBehindQueue();
+		if (queue != null && !queue.isClosed()) {
+			try {
+				queue.flush();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return CacheSnapshot.export(this.store, out, SNAPSHOT_PAGE_SIZE);
+	}
+	
+	/**
+	 * Load a {@link CacheSnapshot} into the store, SNAPSHOT_BATCH_SIZE Terms per transaction, as {@link #addWholeTerms(Collection)}
+	 * would.  Terms already in the store are merged with the snapshot's copy.  The stream is not closed.
+	 * @param in InputStream to read the snapshot from
+	 * @return CacheSnapshot with the counts and sizes of the restore
+	 * @throws IOException Thrown if the stream can't be read or isn't a snapshot this version understands
+	 * @throws SQLException Thrown if a batch can't be written (earlier batches stay written)
+	 */
+	public CacheSnapshot importSnapshot(InputStream in) throws IOException, SQLException {
+		return CacheSnapshot.restore(this, in, SNAPSHOT_BATCH_SIZE);
+	}
+	
+	/**
+	 * Normalize a query for the miss records: trimmed, runs of whitespace collapsed to one space, lower case.
+	 * @param query String query
+	 * @return normalized query
+	 */
+	public static String normalizeQuery(String query) {
+		return query.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ENGLISH);
+	}
+	
+	/**
+	 * Delete a term and its relationships and drop the in-memory entries they were part of.  Used by {@link CacheEvictor}.
+	 * The Bloom filters keep the term; lookups of it cost one query until the filters are rebuilt.
+	 * @return long array {relationships, bytes} removed, bytes counted as in {@link TermStore#getStorageUsage()}
+	 */
+	long[] evictTerm(String term) throws SQLException {
+		ArrayList<TermRelationship> relationships = this.store.getRelationships(term);
+		this.store.deleteTerm(term);
+		this.invalidate(term);
+		long bytes = 0;
+		for (TermRelationship tr : relationships) {
+			this.invalidate(tr);
+			bytes += term.length() + tr.getRelationship().length() + tr.getToTerm().length()
+						+ (tr.getSource() == null ? 0 : tr.getSource().length())
+						+ (tr.getParentTerm() == null ? 0 : tr.getParentTerm().length());
+		}
+		return new long[] {relationships.size(), bytes};
+	}
+	
+	/**
+	 * Rewrite a term's relationships from one source to match a freshly fetched copy and drop the stale in-memory entries.
+	 * Used by {@link CacheRefresher}.
+	 * @return int array {inserted, updated, deleted}
+	 * @see TermStore#refreshRelationships(String, String, Collection)
+	 */
+	int[] refreshTerm(String term, String source, Term fresh) throws SQLException {
+		this.addToFilters(term, fresh.getAllTermRelationships());
+		try {
+			return this.store.refreshRelationships(term, source, fresh.getAllTermRelationships());
+		} finally {
+			this.invalidate(term);
+			for (TermRelationship tr : fresh.getAllTermRelationships())
+				this.invalidate(tr);
+		}
+	}
+	
+	/**
+	 * Apply a write read from the change log by the {@link ChangeFeed}: drop the in-memory entries of the key, and add it
+	 * to its Bloom filter, which was not told about a write made by another node.
+	 */
+	void applyChange(TermChange change) {
+		if (TermChange.ID.equals(change.getKind())) {
+			if (this.idFilter != null)
+				this.idFilter.add(change.getName());
+			if (this.memory != null)
+				this.memory.invalidateTag(idTag(change.getName()));
+		}
+		else {
+			if (this.termFilter != null)
+				this.termFilter.add(change.getName());
+			this.invalidate(change.getName());
+		}
+	}
+	
+	/**
+	 * Count a failed synchronous write, as WriteBehindQueue counts its failed batches.
+	 */
+	private void writeFailed(int terms, SQLException e) {
+		this.failedWrites.addAndGet(terms);
+		this.lastWriteFailure = e;
+	}
+	
+	/**
+	 * Run a call on the async pool.  A full queue fails the future instead of blocking the caller.
+	 */
+	private <T> CompletableFuture<T> submit(Supplier<T> call) {
+		try {
+			ThreadPoolExecutor executor = this.getAsyncExecutor();
+			if (executor == null)
+				throw new RejectedExecutionException("DBCache is closed.");
+			return CompletableFuture.supplyAsync(call, executor);
+		} catch (RejectedExecutionException e) {
+			CompletableFuture<T> rejected = new CompletableFuture<T>();
+			rejected.completeExceptionally(e);
+			return rejected;
+		}
+	}
+	
+	/**
+	 * @return connections the store can have open at once: its pool's maximum, the shards' pools together,
+	 * or one per processor for a store without a pool
+	 */
+	private int connectionLimit() {
+		ConnectionPool pool = this.getConnectionPool();
+		if (pool != null)
+			return pool.getMaxSize();
+		if (this.store instanceof ShardedTermStore)
+			return DBInfo.poolMaxSize * ((ShardedTermStore) this.store).getShardCount();
+		return Runtime.getRuntime().availableProcessors();
+	}
+	
+	/**
+	 * Stop accepting asynchronous calls and wait for the accepted ones, which still need the store.
+	 */
+	private void closeAsyncExecutor() {
+		ThreadPoolExecutor executor;
+		synchronized (this) {
+			this.asyncClosed = true;
+			executor = this.asyncExecutor;
+		}
+		if (executor == null)
+			return;
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(ASYNC_SHUTDOWN_WAIT, TimeUnit.MILLISECONDS))
+				System.out.println("DBCache closed with asynchronous calls still running.");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * @return true if a lookup can be answered without a query: the in-memory cache has an entry for it, or the Bloom
+	 * filter rules the key out
+	 */
+	private boolean answeredLocally(String allKey, String sourceKey, String source, BloomFilter filter, String key) {
+		if (definitelyAbsent(filter, key))
+			return true;
+		if (this.memory == null)
+			return false;
+		return this.memory.contains(sourceKey) || (sourceFilter(source) != null && this.memory.contains(allKey));
+	}
+	
+	/**
+	 * Get a Term that is waiting in the write-behind queue.
+	 * @return a copy filtered by source, null if the term isn't queued (or write-behind is off)
+	 */
+	private Term pendingTerm(String term, String source) {
+		WriteBehindQueue queue = this.getWriteBehindQueue();
+		return queue == null ? null : copyOf(queue.getPending(term), source);
+	}
+	
+	/**
+	 * @see #pendingTerm(String, String)
+	 */
+	private Term pendingTermByID(String id, String source) {
+		WriteBehindQueue queue = this.getWriteBehindQueue();
+		return queue == null ? null : copyOf(queue.getPendingByID(id), source);
+	}
+	
+	/**
+	 * Fill in bulk lookup misses with Terms waiting in the write-behind queue.
+	 */
+	private void addPending(Collection<String> keys, HashMap<String, Term> results, String source, boolean byID) {
+		if (this.getWriteBehindQueue() == null)
+			return;
+		for (String key : keys) {
+			if (!results.containsKey(key)) {
+				Term term = byID ? this.pendingTermByID(key, source) : this.pendingTerm(key, source);
+				if (term != null)
+					results.put(key, term);
+			}
+		}
+	}
+	
+	/**
+	 * Drop every in-memory entry for the term (all sources, and the ID lookups that resolved to it).
+	 */
+	private void invalidate(String term) {
+		if (this.memory != null)
+			this.memory.invalidateTag(nameTag(term));
+	}
+	
+	/**
+	 * Drop the in-memory entries a new relationship makes stale: both of its terms, and cached misses for its ID.
+	 */
+	private void invalidate(TermRelationship tr) {
+		if (this.memory == null)
+			return;
+		this.invalidate(tr.getFromTerm());
+		this.invalidate(tr.getToTerm());
+		if (tr.getRelationship().equals("ID"))
+			this.memory.invalidateTag(idTag(tr.getToTerm()));
+	}
+	
+	/**
+	 * Create the Bloom filters and load them from the tables on a background thread.  Until loading finishes
+	 * they aren't trusted and every lookup goes to the database as before; if loading fails they stay that way
+	 * (see {@link #getFilterLoadFailure()}).
+	 * Keys written meanwhile are added by the write paths, so nothing committed after the scan started is missed.
+	 */
+	private void createFilters() {
+		if (DBInfo.bloomExpectedEntries <= 0)
+			return;
+		this.termFilter = new BloomFilter(DBInfo.bloomExpectedEntries, DBInfo.bloomFalsePositiveRate);
+		this.idFilter = new BloomFilter(DBInfo.bloomExpectedEntries, DBInfo.bloomFalsePositiveRate);
+		Thread loader = new Thread("DBCache-bloom-loader") {
+			public void run() {
+				loadFilters();
+			}
+		};
+		loader.setDaemon(true);
+		loader.start();
+	}
+	
+	private void loadFilters() {
+		try {
+			this.store.forEachTerm(BLOOM_FETCH_SIZE, new ValueCallback() {
+				public boolean process(String value) {
+					termFilter.add(value);
+					return true;
+				}
+			});
+			this.termFilter.setReady(true);
+			this.store.forEachRelationshipValue("ID", BLOOM_FETCH_SIZE, new ValueCallback() {
+				public boolean process(String value) {
+					idFilter.add(value);
+					return true;
+				}
+			});
+			this.idFilter.setReady(true);
+		} catch (SQLException e) {
+			this.filterLoadFailure = e;
+		}
+	}
+	
+	/**
+	 * Add a term about to be written, and the ID's among its relationships, to the filters.  Done before the write
+	 * so a concurrent lookup can never be told "absent" for a committed key; a failed write only leaves a false positive.
+	 */
+	private void addToFilters(String term, Collection<TermRelationship> relationships) {
+		if (this.termFilter == null)
+			return;
+		this.termFilter.add(term);
+		for (TermRelationship tr : relationships) {
+			this.termFilter.add(tr.getFromTerm());
+			if (tr.getRelationship().equals("ID"))
+				this.idFilter.add(tr.getToTerm());
+		}
+	}
+	
+	/**
+	 * @return the keys the filter can't rule out, in their original order
+	 */
+	private Collection<String> withoutAbsent(BloomFilter filter, Collection<String> keys) {
+		if (filter == null || !filter.isReady())
+			return keys;
+		LinkedHashSet<String> maybe = new LinkedHashSet<String>();
+		for (String key : keys) {
+			if (filter.mightContain(key))
+				maybe.add(key);
+		}
+		return maybe;
+	}
+	
+	/**
+	 * @return true if the filter is loaded and has never seen the key, so the database doesn't have it
+	 */
+	private static boolean definitelyAbsent(BloomFilter filter, String key) {
+		return filter != null && filter.isReady() && !filter.mightContain(key);
+	}
+	
+	/**
+	 * Count a database miss for a key the filter let through.
+	 */
+	private static void falsePositive(BloomFilter filter) {
+		if (filter != null && filter.isReady())
+			filter.recordFalsePositive();
+	}
+	
+	private static MemoryCache<Term> createMemoryCache() {
+		if (DBInfo.cacheMaxEntries <= 0)
+			return null;
+		return new MemoryCache<Term>(DBInfo.cacheMaxEntries, DBInfo.cacheTTL, DBInfo.cacheNegativeTTL);
+	}
+	
+	private static String termKey(String term, String source) {
+		return "T\u0000" + term + "\u0000" + (sourceFilter(source) == null ? "all" : source);
+	}
+	
+	private static String idKey(String id, String source) {
+		return "I\u0000" + id + "\u0000" + (sourceFilter(source) == null ? "all" : source);
+	}
+	
+	/**
+	 * Are lookup misses also kept in memory?  Not if a cached miss (cacheNegativeTTL) would outlive its record.
+	 */
+	private boolean memoryMisses() {
+		return this.memory != null && DBInfo.cacheNegativeTTL <= DBInfo.lookupMissTTL;
+	}
+	
+	private static String missKey(String source, String normalizedQuery, String matchMode) {
+		return "M\u0000" + source + "\u0000" + matchMode + "\u0000" + normalizedQuery;
+	}
+	
+	private static String nameTag(String term) {
+		return "N\u0000" + term;
+	}
+	
+	private static String idTag(String id) {
+		return "ID\u0000" + id;
+	}
+	
+	/**
+	 * Copy a Term, keeping only the relationships from the source ("all" for all), so callers never share
+	 * the instance held in memory.
+	 * @return the copy, null if term is null
+	 */
+	private static Term copyOf(Term term, String source) {
+		if (term == null)
+			return null;
+		Term copy = new Term(term.getTerm());
+		String filter = sourceFilter(source);
+		for (TermRelationship tr : term.getAllTermRelationships()) {
+			if (filter == null || filter.equals(tr.getSource()))
+				copy.addTermRelationship(tr);
+		}
+		return copy;
+	}
+	
+	/**
+	 * Open the store DBInfo.storage asks for; JDBC storage is spread over the shards in DBInfo.shardURLs if any are set.
+	 */
+	private static TermStore createStore() {
+		if ("mvstore".equalsIgnoreCase(DBInfo.storage)) {
+			try {
+				return new KeyValueTermStore();
+			} catch (SQLException e) {
+				throw new IllegalStateException("Couldn't open the key-value store " + DBInfo.storeFile, e);
+			}
+		}
+		if ("blob".equalsIgnoreCase(DBInfo.storage))
+			return new BlobTermStore();
+		if (DBInfo.shardURLs != null && DBInfo.shardURLs.trim().length() > 0) {
+			try {
+				return new ShardedTermStore(ShardedTermStore.getDefaultShards());
+			} catch (SQLException e) {
+				throw new IllegalStateException("Couldn't open the shards " + DBInfo.shardURLs, e);
+			}
+		}
+		return new ResourceDBWrapper();
+	}
+	
+	/**
+	 * Translate the "all" source convention into TermStore's null (no filter).
+	 */
+	private static String sourceFilter(String source) {
+		if (source == null || source.equals("all"))
+			return null;
+		return source;
 	}
 }
@@ -0,0 +1,326 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Size-bounded, thread-safe in-memory cache used by DBCache in front of the database.
+ * <p>
+ * Eviction is frequency-aware: when the cache is full, the least frequently used of the few least recently used
+ * entries is dropped, so a burst of one-off lookups can't push out the hot terms.  Access counts are halved
+ * periodically so terms that stop being asked for eventually age out.
+ * Entries can expire after a TTL, and confirmed misses can be cached as negative entries with their own TTL.
+ * Each entry carries tags (e.g. the term it belongs to) so every entry derived from a term can be invalidated at once.
+ * @param <V> type of the cached values
+ */
+public class MemoryCache<V> {
+	private static final int EVICTION_SAMPLE = 8;
+
+	/**
+	 * A cached value, or a cached miss.
+	 * @param <V> type of the cached value
+	 */
+	public static class Entry<V> {
+		private final V value;
+		private final long expiresAt;
+		private final String[] tags;
+		private int frequency;
+
+		Entry(V value, long expiresAt, String[] tags) {
+			this.value = value;
+			this.expiresAt = expiresAt;
+			this.tags = tags;
+			this.frequency = 1;
+		}
+
+		/**
+		 * @return the cached value, null for a negative entry
+		 */
+		public V getValue() {
+			return this.value;
+		}
+
+		/**
+		 * @return true if this entry records a confirmed miss
+		 */
+		public boolean isNegative() {
+			return this.value == null;
+		}
+
+		boolean isExpired(long now) {
+			return this.expiresAt > 0 && now >= this.expiresAt;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttlMillis;
+	private final long negativeTtlMillis;
+	// Access order: least recently used first
+	private final LinkedHashMap<String, Entry<V>> entries;
+	private final HashMap<String, HashSet<String>> keysByTag;
+	private long accessesSinceAging;
+	// Milliseconds expiry is measured in; tests substitute a clock they advance by hand
+	LongSupplier clock = System::currentTimeMillis;
+
+	private long hits;
+	private long negativeHits;
+	private long misses;
+	private long evictions;
+	private long expirations;
+	private long invalidations;
+
+	/**
+	 * Constructor.
+	 * @param maxEntries most entries held at once (positive and negative)
+	 * @param ttlMillis lifetime of a cached value, 0 for no expiry
+	 * @param negativeTtlMillis lifetime of a cached miss, 0 to not cache misses at all
+	 */
+	public MemoryCache(int maxEntries, long ttlMillis, long negativeTtlMillis) {
+		if (maxEntries < 1)
+			throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		this.maxEntries = maxEntries;
+		this.ttlMillis = ttlMillis;
+		this.negativeTtlMillis = negativeTtlMillis;
+		this.entries = new LinkedHashMap<String, Entry<V>>(16, 0.75f, true);
+		this.keysByTag = new HashMap<String, HashSet<String>>();
+	}
+
+	/**
+	 * Look up a key and count the result as a hit or miss.
+	 * @param key String key
+	 * @return the Entry (check {@link Entry#isNegative()}), or null if the key isn't cached
+	 */
+	public synchronized Entry<V> get(String key) {
+		Entry<V> entry = this.peek(key);
+		if (entry == null)
+			this.misses++;
+		else if (entry.isNegative())
+			this.negativeHits++;
+		else
+			this.hits++;
+		return entry;
+	}
+
+	/**
+	 * @return true if the key has an unexpired entry (found or miss); not counted as a hit or miss, nor in its access frequency
+	 */
+	synchronized boolean contains(String key) {
+		Entry<V> entry = this.entries.get(key);
+		return entry != null && !entry.isExpired(this.clock.getAsLong());
+	}
+
+	/**
+	 * Look up a key without counting a hit or miss (the access still counts for eviction).
+	 * Callers combining several lookups into one answer record the outcome with {@link #recordHit(boolean)} / {@link #recordMiss()}.
+	 */
+	synchronized Entry<V> peek(String key) {
+		Entry<V> entry = this.entries.get(key);
+		if (entry == null)
+			return null;
+		if (entry.isExpired(this.clock.getAsLong())) {
+			this.remove(key);
+			this.expirations++;
+			return null;
+		}
+		entry.frequency++;
+		if (++this.accessesSinceAging > 10L * this.maxEntries)
+			this.age();
+		return entry;
+	}
+
+	synchronized void recordHit(boolean negative) {
+		if (negative)
+			this.negativeHits++;
+		else
+			this.hits++;
+	}
+
+	synchronized void recordMiss() {
+		this.misses++;
+	}
+
+	/**
+	 * Cache a value.
+	 * @param key String key
+	 * @param value value to cache (null is treated as a miss, see {@link #putMiss(String, String...)})
+	 * @param tags tags for {@link #invalidateTag(String)}
+	 */
+	public synchronized void put(String key, V value, String... tags) {
+		if (value == null) {
+			this.putMiss(key, tags);
+			return;
+		}
+		long expiresAt = this.ttlMillis > 0 ? this.clock.getAsLong() + this.ttlMillis : 0;
+		this.store(key, new Entry<V>(value, expiresAt, tags));
+	}
+
+	/**
+	 * Cache a confirmed miss.  Does nothing if negative caching is disabled.
+	 * @param key String key
+	 * @param tags tags for {@link #invalidateTag(String)}
+	 */
+	public synchronized void putMiss(String key, String... tags) {
+		if (this.negativeTtlMillis <= 0)
+			return;
+		this.store(key, new Entry<V>(null, this.clock.getAsLong() + this.negativeTtlMillis, tags));
+	}
+
+	/**
+	 * Drop one key.
+	 */
+	public synchronized void invalidate(String key) {
+		if (this.remove(key) != null)
+			this.invalidations++;
+	}
+
+	/**
+	 * Drop every entry carrying the tag.
+	 */
+	public synchronized void invalidateTag(String tag) {
+		HashSet<String> keys = this.keysByTag.get(tag);
+		if (keys == null)
+			return;
+		for (String key : new HashSet<String>(keys))
+			this.invalidate(key);
+	}
+
+	/**
+	 * Drop everything.
+	 */
+	public synchronized void clear() {
+		this.invalidations += this.entries.size();
+		this.entries.clear();
+		this.keysByTag.clear();
+	}
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	public int getMaxEntries() {
+		return this.maxEntries;
+	}
+
+	/**
+	 * @return lookups answered with a cached value
+	 */
+	public synchronized long getHitCount() {
+		return this.hits;
+	}
+
+	/**
+	 * @return lookups answered with a cached miss
+	 */
+	public synchronized long getNegativeHitCount() {
+		return this.negativeHits;
+	}
+
+	/**
+	 * @return lookups that had to go to the database
+	 */
+	public synchronized long getMissCount() {
+		return this.misses;
+	}
+
+	/**
+	 * @return entries dropped to make room
+	 */
+	public synchronized long getEvictionCount() {
+		return this.evictions;
+	}
+
+	/**
+	 * @return entries dropped because their TTL ran out
+	 */
+	public synchronized long getExpirationCount() {
+		return this.expirations;
+	}
+
+	/**
+	 * @return entries dropped because the underlying data changed
+	 */
+	public synchronized long getInvalidationCount() {
+		return this.invalidations;
+	}
+
+	/**
+	 * @return fraction of lookups answered from memory (positive or negative), 0 if there were none
+	 */
+	public synchronized double getHitRate() {
+		long total = this.hits + this.negativeHits + this.misses;
+		return total == 0 ? 0.0 : (double) (this.hits + this.negativeHits) / total;
+	}
+
+	public synchronized String toString() {
+		return "MemoryCache[size=" + this.entries.size() + "/" + this.maxEntries + ", hits=" + this.hits + ", negativeHits="
+				+ this.negativeHits + ", misses=" + this.misses + ", evictions=" + this.evictions + "]";
+	}
+
+	private void store(String key, Entry<V> entry) {
+		Entry<V> old = this.remove(key);
+		if (old != null)
+			entry.frequency += old.frequency;
+		this.entries.put(key, entry);
+		for (String tag : entry.tags) {
+			HashSet<String> keys = this.keysByTag.get(tag);
+			if (keys == null) {
+				keys = new HashSet<String>();
+				this.keysByTag.put(tag, keys);
+			}
+			keys.add(key);
+		}
+		while (this.entries.size() > this.maxEntries)
+			this.evictOne();
+	}
+
+	private Entry<V> remove(String key) {
+		Entry<V> entry = this.entries.remove(key);
+		if (entry != null) {
+			for (String tag : entry.tags) {
+				HashSet<String> keys = this.keysByTag.get(tag);
+				if (keys != null) {
+					keys.remove(key);
+					if (keys.isEmpty())
+						this.keysByTag.remove(tag);
+				}
+			}
+		}
+		return entry;
+	}
+
+	/**
+	 * Evict the least frequently used of the EVICTION_SAMPLE least recently used entries, preferring expired ones.
+	 */
+	private void evictOne() {
+		long now = this.clock.getAsLong();
+		String victim = null;
+		int lowest = Integer.MAX_VALUE;
+		Iterator<Map.Entry<String, Entry<V>>> iter = this.entries.entrySet().iterator();
+		for (int i = 0; i < EVICTION_SAMPLE && iter.hasNext(); i++) {
+			Map.Entry<String, Entry<V>> candidate = iter.next();
+			if (candidate.getValue().isExpired(now)) {
+				victim = candidate.getKey();
+				break;
+			}
+			if (candidate.getValue().frequency < lowest) {
+				lowest = candidate.getValue().frequency;
+				victim = candidate.getKey();
+			}
+		}
+		this.remove(victim);
+		this.evictions++;
+	}
+
+	/**
+	 * Halve every access count so old popularity fades.
+	 */
+	private void age() {
+		for (Entry<V> entry : this.entries.values())
+			entry.frequency = Math.max(1, entry.frequency / 2);
+		this.accessesSinceAging = 0;
+	}
+}
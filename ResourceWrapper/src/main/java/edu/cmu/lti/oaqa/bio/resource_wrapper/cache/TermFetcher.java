@@ -0,0 +1,29 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.io.IOException;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+
+/**
+ * Re-fetches cached records from their original resource, for {@link CacheRefresher}.
+ * Each resource wrapper provides one (e.g. EntrezGeneTermFetcher, MeshTermFetcher).
+ */
+public interface TermFetcher {
+	/**
+	 * @return source name the resource's TermRelationships are stored under, e.g. "EntrezGene"
+	 */
+	String getSource();
+	
+	/**
+	 * @return prefix of the resource's own ID's in the "ID" relationships, e.g. "EntrezGene:"
+	 */
+	String getIDPrefix();
+	
+	/**
+	 * Fetch the current version of a record.
+	 * @param id the resource's ID, without the prefix (e.g. "672")
+	 * @return complete Term, or null if the resource returned nothing usable
+	 * @throws IOException Thrown if the resource couldn't be reached
+	 */
+	Term fetch(String id) throws IOException;
+}
@@ -0,0 +1,444 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Bounded queue of Terms waiting to be written to the database by a background thread.
+ * <p>
+ * Terms queued more than once before they are written are merged into one write.  The writer drains the queue
+ * in batches of up to batchSize Terms, each written in one transaction.  When the queue is full, callers wait up to
+ * maxWaitMillis for room and the Term is dropped after that.  Dropped and failed writes are counted instead of
+ * printed; see the getters.  A shutdown hook flushes whatever is still queued when the JVM exits.
+ */
+public class WriteBehindQueue {
+	private final DBCache owner;
+	private final int capacity;
+	private final int batchSize;
+	private final long maxWaitMillis;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = this.lock.newCondition();
+	private final Condition notFull = this.lock.newCondition();
+	private final Condition drained = this.lock.newCondition();
+	// Queued Terms by name, oldest first
+	private final LinkedHashMap<String, Term> pending = new LinkedHashMap<String, Term>();
+	// Terms taken by the writer and not yet committed, still visible to lookups
+	private final HashMap<String, Term> inFlight = new HashMap<String, Term>();
+	// Owning term for each ID relationship waiting to be written
+	private final HashMap<String, String> pendingIDs = new HashMap<String, String>();
+	private boolean closed = false;
+	private final Thread writer;
+	private final Thread shutdownHook;
+
+	private long enqueued;
+	private long coalesced;
+	private long written;
+	private long batches;
+	private long dropped;
+	private long failed;
+	private long blocked;
+	private long blockedMillis;
+	private Exception lastFailure;
+
+	/**
+	 * Constructor, starts the writer thread.
+	 * @param owner DBCache the Terms are written through
+	 * @param capacity most distinct Terms waiting at once
+	 * @param batchSize most Terms written per transaction
+	 * @param maxWaitMillis how long a caller waits for room in a full queue before the Term is dropped
+	 */
+	WriteBehindQueue(DBCache owner, int capacity, int batchSize, long maxWaitMillis) {
+		if (capacity < 1 || batchSize < 1)
+			throw new IllegalArgumentException("Invalid write-behind queue: capacity=" + capacity + ", batchSize=" + batchSize);
+		this.owner = owner;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.maxWaitMillis = maxWaitMillis;
+
+		this.writer = new Thread("DBCache-writer") {
+			public void run() {
+				drain();
+			}
+		};
+		this.writer.setDaemon(true);
+		this.writer.start();
+		this.shutdownHook = new Thread("DBCache-writer-shutdown") {
+			public void run() {
+				close();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+	}
+
+	/**
+	 * Queue a Term to be written.  Merged with the queued copy if the Term is already waiting.
+	 * Blocks while the queue is full, up to the maximum wait.
+	 * @param term Term to write
+	 * @return true if the Term was queued, false if it was dropped (queue full or closed)
+	 */
+	public boolean offer(Term term) {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.maxWaitMillis);
+		boolean waited = false;
+		this.lock.lock();
+		try {
+			while (true) {
+				if (this.closed) {
+					this.dropped++;
+					return false;
+				}
+				Term queued = this.pending.get(term.getTerm());
+				if (queued != null) {
+					merge(queued, term);
+					this.addPendingIDs(term);
+					this.enqueued++;
+					this.coalesced++;
+					return true;
+				}
+				if (this.pending.size() < this.capacity) {
+					Term copy = new Term(term.getTerm());
+					merge(copy, term);
+					this.pending.put(copy.getTerm(), copy);
+					this.addPendingIDs(copy);
+					this.enqueued++;
+					this.notEmpty.signal();
+					return true;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					this.dropped++;
+					return false;
+				}
+				waited = true;
+				try {
+					this.notFull.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					this.dropped++;
+					return false;
+				}
+			}
+		} finally {
+			if (waited) {
+				this.blocked++;
+				this.blockedMillis += TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			}
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Get a Term that is queued or being written, so lookups can see it before it reaches the database.
+	 * @param term String term name
+	 * @return the queued Term (callers must copy it), or null if it isn't waiting
+	 */
+	Term getPending(String term) {
+		this.lock.lock();
+		try {
+			Term queued = this.pending.get(term);
+			return queued != null ? queued : this.inFlight.get(term);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @see #getPending(String)
+	 * @param id fully qualified ID, e.g. "EntrezGene:672"
+	 */
+	Term getPendingByID(String id) {
+		this.lock.lock();
+		try {
+			String term = this.pendingIDs.get(id);
+			return term == null ? null : this.getPending(term);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until everything queued so far has been written (or has failed).
+	 * @throws InterruptedException Thrown if the caller is interrupted while waiting
+	 */
+	public void flush() throws InterruptedException {
+		this.lock.lock();
+		try {
+			while (!this.pending.isEmpty() || !this.inFlight.isEmpty()) {
+				if (!this.writer.isAlive())
+					return;
+				this.drained.await();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop accepting Terms, write everything still queued and stop the writer thread.
+	 * Called by the shutdown hook if it hasn't been called before the JVM exits.
+	 */
+	public void close() {
+		this.lock.lock();
+		try {
+			if (this.closed)
+				return;
+			this.closed = true;
+			this.notEmpty.signalAll();
+			this.notFull.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		if (Thread.currentThread() != this.shutdownHook) {
+			try {
+				Runtime.getRuntime().removeShutdownHook(this.shutdownHook);
+			} catch (IllegalStateException e) {
+				; // already shutting down
+			}
+		}
+		try {
+			this.writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public boolean isClosed() {
+		this.lock.lock();
+		try {
+			return this.closed;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return distinct Terms waiting to be written
+	 */
+	public int getQueuedCount() {
+		this.lock.lock();
+		try {
+			return this.pending.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return Terms accepted, including ones merged into a queued copy
+	 */
+	public long getEnqueuedCount() {
+		this.lock.lock();
+		try {
+			return this.enqueued;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Terms merged into a copy that was already queued
+	 */
+	public long getCoalescedCount() {
+		this.lock.lock();
+		try {
+			return this.coalesced;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Terms written successfully
+	 */
+	public long getWrittenCount() {
+		this.lock.lock();
+		try {
+			return this.written;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return transactions (batches) committed
+	 */
+	public long getBatchCount() {
+		this.lock.lock();
+		try {
+			return this.batches;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Terms dropped because the queue stayed full for the maximum wait, or was closed
+	 */
+	public long getDroppedCount() {
+		this.lock.lock();
+		try {
+			return this.dropped;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return Terms whose write failed (see {@link #getLastFailure()})
+	 */
+	public long getFailedCount() {
+		this.lock.lock();
+		try {
+			return this.failed;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return times a caller had to wait for room in the queue
+	 */
+	public long getBlockedCount() {
+		this.lock.lock();
+		try {
+			return this.blocked;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return total milliseconds callers spent waiting for room in the queue
+	 */
+	public long getBlockedMillis() {
+		this.lock.lock();
+		try {
+			return this.blockedMillis;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the error from the most recent failed batch, null if none failed
+	 */
+	public Exception getLastFailure() {
+		this.lock.lock();
+		try {
+			return this.lastFailure;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	public String toString() {
+		this.lock.lock();
+		try {
+			return "WriteBehindQueue[queued=" + this.pending.size() + "/" + this.capacity + ", enqueued=" + this.enqueued
+					+ ", coalesced=" + this.coalesced + ", written=" + this.written + ", batches=" + this.batches + ", dropped="
+					+ this.dropped + ", failed=" + this.failed + ", blocked=" + this.blocked + "]";
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Writer thread: take up to batchSize Terms at a time and write them until the queue is closed and empty.
+	 */
+	private void drain() {
+		while (true) {
+			ArrayList<Term> batch = new ArrayList<Term>();
+			this.lock.lock();
+			try {
+				while (this.pending.isEmpty() && !this.closed) {
+					try {
+						this.notEmpty.await();
+					} catch (InterruptedException e) {
+						; // keep draining, only close() stops the writer
+					}
+				}
+				if (this.pending.isEmpty()) {
+					this.drained.signalAll();
+					return;
+				}
+				Iterator<Term> iter = this.pending.values().iterator();
+				while (iter.hasNext() && batch.size() < this.batchSize) {
+					Term term = iter.next();
+					iter.remove();
+					this.inFlight.put(term.getTerm(), term);
+					batch.add(term);
+				}
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+
+			Exception failure = null;
+			try {
+				this.owner.writeWholeTerms(batch);
+			} catch (Exception e) {
+				failure = e;
+			}
+
+			this.lock.lock();
+			try {
+				for (Term term : batch) {
+					this.inFlight.remove(term.getTerm());
+					if (!this.pending.containsKey(term.getTerm()))
+						this.removePendingIDs(term);
+				}
+				if (failure == null) {
+					this.written += batch.size();
+					this.batches++;
+				}
+				else {
+					this.failed += batch.size();
+					this.lastFailure = failure;
+				}
+				if (this.pending.isEmpty() && this.inFlight.isEmpty())
+					this.drained.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	private void addPendingIDs(Term term) {
+		for (TermRelationship tr : term.getTermRelationshipsByRelation("ID"))
+			this.pendingIDs.put(tr.getToTerm(), term.getTerm());
+	}
+
+	private void removePendingIDs(Term term) {
+		for (TermRelationship tr : term.getTermRelationshipsByRelation("ID")) {
+			if (term.getTerm().equals(this.pendingIDs.get(tr.getToTerm())))
+				this.pendingIDs.remove(tr.getToTerm());
+		}
+	}
+
+	/**
+	 * Add the relationships of from that target doesn't have yet.
+	 */
+	private static void merge(Term target, Term from) {
+		HashSet<String> keys = new HashSet<String>();
+		for (TermRelationship tr : target.getAllTermRelationships())
+			keys.add(tr.getRelationship() + "\u0000" + tr.getToTerm());
+		for (TermRelationship tr : from.getAllTermRelationships()) {
+			if (keys.add(tr.getRelationship() + "\u0000" + tr.getToTerm()))
+				target.addTermRelationship(tr);
+		}
+	}
+}
@@ -0,0 +1,989 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * {@link TermStore} in the resources database that keeps each term's relationships from one source as a single
+ * encoded row ('termblobs', see {@link TermBlob}) instead of one 'termrelationships' row each.  Selected with
+ * storage = blob in default.properties.
+ * <p>
+ * A gene with a hundred synonyms and ID's is then read with one primary key lookup and decoded in memory, instead of
+ * a hundred-row join.  Every stored term has a row with source '' (its anchor): it holds the relationships without a
+ * source and the term's read counts.  Only ID's have rows of their own ('termblobids'), for lookups by ID and the
+ * refresh sweeps; other relationships can't be searched by value, and the calls that would need that throw
+ * SQLFeatureNotSupportedException.  Staleness is tracked per blob: storing new relationships leaves a blob's
+ * last_updated as it was, only a refresh of the source moves it to now.
+ * <p>
+ * Writes lock the term's rows (SELECT ... FOR UPDATE), rewrite the changed blobs and ID rows, and commit, so they are
+ * all or nothing and concurrent writers of one term queue up.  Lookup misses are kept in 'lookupmisses' as by
+ * {@link ResourceDBWrapper}.
+ */
+public class BlobTermStore implements TermStore {
+	// The one relationship with rows of its own
+	static final String INDEXED_RELATIONSHIP = "ID";
+	// Source of the anchor row
+	private static final String NO_SOURCE = "";
+	// Same limit as the term column, longer values aren't mirrored as terms (see ResourceDBWrapper.upsertRelationship)
+	private static final int MAX_TERM_LENGTH = 255;
+
+	private static final String TERM_EXISTS = "SELECT COUNT(*) FROM termblobs WHERE term=? AND source=''";
+	private static final String GET_BLOBS = "SELECT source, data FROM termblobs WHERE term=?";
+	private static final String LOCK_BLOBS = GET_BLOBS + " FOR UPDATE";
+	private static final String INSERT_BLOB = "INSERT INTO termblobs (term, source, data, rel_count, char_count) VALUES (?, ?, ?, ?, ?)";
+	private static final String UPDATE_BLOB = "UPDATE termblobs SET data=?, rel_count=?, char_count=? WHERE term=? AND source=?";
+	private static final String REFRESH_BLOB = "UPDATE termblobs SET data=?, rel_count=?, char_count=?, last_updated=CURRENT_TIMESTAMP "
+												+ "WHERE term=? AND source=?";
+	private static final String DELETE_BLOB = "DELETE FROM termblobs WHERE term=? AND source=?";
+	private static final String DELETE_TERM_BLOBS = "DELETE FROM termblobs WHERE term=?";
+	private static final String GET_WHOLE_TERMS = "SELECT term, source, data FROM termblobs WHERE term IN ";
+	private static final String TERM_BY_ID = "SELECT MIN(term) FROM termblobids WHERE value_hash=?";
+	private static final String WHOLE_TERM_BY_ID = "SELECT term, source, data FROM termblobs WHERE term=(" + TERM_BY_ID + ")";
+	// The ID comes first so rows can be mapped back to the requested ID's
+	private static final String WHOLE_TERMS_BY_ID = "SELECT i.value, b.term, b.source, b.data FROM termblobids i "
+													+ "JOIN termblobs b ON b.term=i.term WHERE i.value_hash IN ";
+	private static final String INSERT_ID = "INSERT INTO termblobids (term, source, value, value_hash) VALUES (?, ?, ?, ?)";
+	private static final String DELETE_ID = "DELETE FROM termblobids WHERE term=? AND value_hash=?";
+	private static final String DELETE_TERM_IDS = "DELETE FROM termblobids WHERE term=?";
+	private static final String TOUCH_IDS = "UPDATE termblobids SET last_updated=CURRENT_TIMESTAMP WHERE term=? AND source=?";
+	private static final String ALL_IDS = "SELECT value FROM termblobids";
+	private static final String OLDEST_IDS_SELECT = "SELECT id, term, value, source, last_updated FROM termblobids "
+													+ "WHERE source=? AND value LIKE ? AND last_updated < ?";
+	private static final String OLDEST_IDS_ORDER = " ORDER BY last_updated, id LIMIT ?";
+	private static final String GET_OLDEST_IDS = OLDEST_IDS_SELECT + OLDEST_IDS_ORDER;
+	private static final String GET_OLDEST_IDS_AFTER = OLDEST_IDS_SELECT + " AND (last_updated > ? OR (last_updated = ? AND id > ?))"
+														+ OLDEST_IDS_ORDER;
+	private static final String BLOBS_OLDER_THAN = "SELECT term, source, data FROM termblobs WHERE last_updated < ?";
+	private static final String ALL_TERMS = "SELECT term FROM termblobs WHERE source=''";
+	private static final String TERM_PAGE = "SELECT term FROM termblobs WHERE source='' ORDER BY term LIMIT ?";
+	private static final String TERM_PAGE_AFTER = "SELECT term FROM termblobs WHERE source='' AND term > ? ORDER BY term LIMIT ?";
+	private static final String RECORD_ACCESS = "UPDATE termblobs SET hits=hits+?, last_accessed=? WHERE term=? AND source=''";
+	private static final String COLDEST_TERMS = "SELECT term FROM termblobs WHERE source='' AND last_accessed < ? "
+												+ "ORDER BY hits, last_accessed LIMIT ?";
+	private static final String STORAGE_USAGE = "SELECT SUM(rel_count), SUM(char_count) FROM termblobs";
+
+	/**
+	 * The blobs of one term being rewritten by a write transaction: relationships per source ('' for none).
+	 */
+	private static class TermBlobs {
+		final String term;
+		final LinkedHashMap<String, ArrayList<TermRelationship>> bySource = new LinkedHashMap<String, ArrayList<TermRelationship>>();
+		// Sources with a row in the table, and sources whose blob was changed
+		final HashSet<String> stored = new HashSet<String>();
+		final HashSet<String> changed = new HashSet<String>();
+		// Stored ID's: value -> source
+		final HashMap<String, String> ids = new HashMap<String, String>();
+
+		TermBlobs(String term) {
+			this.term = term;
+		}
+
+		ArrayList<TermRelationship> get(String source) {
+			ArrayList<TermRelationship> rows = this.bySource.get(source);
+			if (rows == null) {
+				rows = new ArrayList<TermRelationship>();
+				this.bySource.put(source, rows);
+			}
+			return rows;
+		}
+
+		/**
+		 * @return the stored relationship with that relationship and value, from any source, null if none
+		 */
+		TermRelationship find(String relationship, String value) {
+			for (ArrayList<TermRelationship> rows : this.bySource.values()) {
+				for (TermRelationship tr : rows) {
+					if (tr.getRelationship().equals(relationship) && tr.getToTerm().equals(value))
+						return tr;
+				}
+			}
+			return null;
+		}
+
+		void add(TermRelationship tr, String source) {
+			String key = source == null ? NO_SOURCE : source;
+			this.get(key).add(new TermRelationship(this.term, tr.getRelationship(), tr.getToTerm(), tr.getConfidence(), source,
+													tr.getParentTerm()));
+			this.changed.add(key);
+		}
+
+		boolean remove(TermRelationship tr) {
+			String key = tr.getSource() == null ? NO_SOURCE : tr.getSource();
+			this.changed.add(key);
+			return this.get(key).remove(tr);
+		}
+	}
+
+	/**
+	 * Body of a write transaction, see {@link BlobTermStore#write(Write)}.
+	 */
+	private static abstract class Write<T> {
+		abstract T run(PooledConnection pc) throws SQLException;
+	}
+
+	private ConnectionPool pool;
+	private volatile boolean schemaChecked = false;
+	private ResourceDBWrapper misses;
+
+	/**
+	 * Constructor, uses the shared pool configured in DBInfo (see {@link ConnectionPool#getDefault()}), created on first use.
+	 */
+	public BlobTermStore() {
+		this.pool = null;
+	}
+
+	/**
+	 * Constructor using a caller-supplied pool.  The caller remains responsible for closing it.
+	 * @param pool ConnectionPool to borrow connections from
+	 */
+	public BlobTermStore(ConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	public boolean termExists(String term) throws SQLException {
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(TERM_EXISTS);
+			ps.setString(1, term);
+			ResultSet rs = ps.executeQuery();
+			try {
+				rs.next();
+				return rs.getInt(1) > 0;
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			pc.evict(TERM_EXISTS);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	public String getTermByRelationshipAndValue(String relationship, String value) throws SQLException {
+		checkIndexed(relationship);
+		if (value == null)
+			return null;
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(TERM_BY_ID);
+			ps.setString(1, ResourceDBWrapper.valueHash(value));
+			ResultSet rs = ps.executeQuery();
+			try {
+				return rs.next() ? rs.getString(1) : null;
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			pc.evict(TERM_BY_ID);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Not supported: values are only stored inside the blobs, and even ID's are only indexed exactly.
+	 * @throws SQLFeatureNotSupportedException always
+	 */
+	public ArrayList<String> getTermsByValue(String relationship, String value) throws SQLException {
+		throw new SQLFeatureNotSupportedException("Reverse lookups by value aren't supported by the blob store");
+	}
+
+	/**
+	 * Decodes the term's blobs, there is no per-relationship index to ask.
+	 */
+	public boolean relationshipExists(String term, String relationship, String value) throws SQLException {
+		if (value == null)
+			return false;
+		for (TermRelationship tr : this.getRelationships(term, null)) {
+			if (tr.getRelationship().equals(relationship) && tr.getToTerm().equals(value))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * One primary key range read of the term's rows; only the requested source's blob is decoded.
+	 */
+	public Term getWholeTerm(String term, String source) throws SQLException {
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(GET_BLOBS);
+			ps.setString(1, term);
+			Term whole = null;
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					if (whole == null)
+						whole = new Term(term);
+					decodeInto(whole, term, rs.getString(1), rs.getBytes(2), source);
+				}
+			} finally {
+				rs.close();
+			}
+			return whole;
+		} catch (SQLException e) {
+			pc.evict(GET_BLOBS);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	public Term getWholeTermByRelationshipAndValue(String relationship, String value, String source) throws SQLException {
+		checkIndexed(relationship);
+		if (value == null)
+			return null;
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(WHOLE_TERM_BY_ID);
+			ps.setString(1, ResourceDBWrapper.valueHash(value));
+			Term whole = null;
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					if (whole == null)
+						whole = new Term(rs.getString(1));
+					decodeInto(whole, rs.getString(1), rs.getString(2), rs.getBytes(3), source);
+				}
+			} finally {
+				rs.close();
+			}
+			return whole;
+		} catch (SQLException e) {
+			pc.evict(WHOLE_TERM_BY_ID);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Reads the terms in padded IN-list chunks, like {@link ResourceDBWrapper#getWholeTerms(Collection, String)}.
+	 */
+	public HashMap<String, Term> getWholeTerms(Collection<String> terms, String source) throws SQLException {
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		ArrayList<String> keys = new ArrayList<String>(new LinkedHashSet<String>(terms));
+		if (keys.isEmpty())
+			return found;
+		PooledConnection pc = this.getDBConnection();
+		String sql = null;
+		try {
+			int chunkSize = ResourceDBWrapper.IN_LIST_SIZES[ResourceDBWrapper.IN_LIST_SIZES.length - 1];
+			for (int start = 0; start < keys.size(); start += chunkSize) {
+				List<String> chunk = keys.subList(start, Math.min(keys.size(), start + chunkSize));
+				int size = ResourceDBWrapper.inListSize(chunk.size());
+				sql = GET_WHOLE_TERMS + "(" + ResourceDBWrapper.placeholders(size) + ")";
+				PreparedStatement ps = pc.prepare(sql);
+				ResourceDBWrapper.setInList(ps, 1, chunk, size);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						String term = rs.getString(1);
+						Term whole = found.get(term);
+						if (whole == null) {
+							whole = new Term(term);
+							found.put(term, whole);
+						}
+						decodeInto(whole, term, rs.getString(2), rs.getBytes(3), source);
+					}
+				} finally {
+					rs.close();
+				}
+			}
+			return found;
+		} catch (SQLException e) {
+			if (sql != null)
+				pc.evict(sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * If several terms have an ID, the first one by name is returned, as for a single lookup.
+	 */
+	public HashMap<String, Term> getWholeTermsByRelationshipAndValue(String relationship, Collection<String> values, String source)
+			throws SQLException {
+		checkIndexed(relationship);
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		HashMap<String, String> byHash = new HashMap<String, String>();
+		for (String value : values) {
+			if (value != null)
+				byHash.put(ResourceDBWrapper.valueHash(value), value);
+		}
+		if (byHash.isEmpty())
+			return found;
+		ArrayList<String> hashes = new ArrayList<String>(byHash.keySet());
+		PooledConnection pc = this.getDBConnection();
+		String sql = null;
+		try {
+			int chunkSize = ResourceDBWrapper.IN_LIST_SIZES[ResourceDBWrapper.IN_LIST_SIZES.length - 1];
+			for (int start = 0; start < hashes.size(); start += chunkSize) {
+				List<String> chunk = hashes.subList(start, Math.min(hashes.size(), start + chunkSize));
+				int size = ResourceDBWrapper.inListSize(chunk.size());
+				sql = WHOLE_TERMS_BY_ID + "(" + ResourceDBWrapper.placeholders(size) + ")";
+				PreparedStatement ps = pc.prepare(sql);
+				ResourceDBWrapper.setInList(ps, 1, chunk, size);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						String value = rs.getString(1);
+						String term = rs.getString(2);
+						Term whole = found.get(value);
+						if (whole != null && !whole.getTerm().equals(term)) {
+							if (whole.getTerm().compareTo(term) < 0)
+								continue;
+							whole = null;
+						}
+						if (whole == null) {
+							whole = new Term(term);
+							found.put(value, whole);
+						}
+						decodeInto(whole, term, rs.getString(3), rs.getBytes(4), source);
+					}
+				} finally {
+					rs.close();
+				}
+			}
+			return found;
+		} catch (SQLException e) {
+			if (sql != null)
+				pc.evict(sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	public ArrayList<TermRelationship> getRelationships(String term) throws SQLException {
+		return this.getRelationships(term, null);
+	}
+
+	public ArrayList<TermRelationship> getRelationships(String term, String source) throws SQLException {
+		Term whole = this.getWholeTerm(term, source);
+		return whole == null ? new ArrayList<TermRelationship>() : whole.getAllTermRelationships();
+	}
+
+	public void upsertTerm(final String term) throws SQLException {
+		this.write(new Write<Void>() {
+			Void run(PooledConnection pc) throws SQLException {
+				ensureTerm(pc, term);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * The value is stored as a term too if it fits (255 characters).  An existing relationship is left as it is.
+	 */
+	public void upsertRelationship(final TermRelationship tr) throws SQLException {
+		final String value = tr.getToTerm();
+		if (value == null)
+			return;
+		this.write(new Write<Void>() {
+			Void run(PooledConnection pc) throws SQLException {
+				TermBlobs blobs = lock(pc, tr.getFromTerm());
+				if (blobs.find(tr.getRelationship(), value) == null)
+					blobs.add(tr, tr.getSource());
+				save(pc, blobs, null);
+				if (value.length() <= MAX_TERM_LENGTH && !value.equals(tr.getFromTerm()))
+					ensureTerm(pc, value);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Throws on failure (nothing is written then), so every flag of the result is true.
+	 */
+	public ArrayList<boolean[]> insertWholeTerms(final Collection<Term> terms) throws SQLException {
+		ArrayList<boolean[]> results = new ArrayList<boolean[]>(terms.size());
+		if (!terms.isEmpty()) {
+			this.write(new Write<Void>() {
+				Void run(PooledConnection pc) throws SQLException {
+					// Every term is read and written once, however many of the Terms name it
+					LinkedHashMap<String, TermBlobs> changed = new LinkedHashMap<String, TermBlobs>();
+					for (Term term : terms) {
+						blobsOf(pc, changed, term.getTerm());
+						for (TermRelationship tr : term.getAllTermRelationships()) {
+							if (tr.getToTerm() == null)
+								continue;
+							TermBlobs blobs = blobsOf(pc, changed, tr.getFromTerm());
+							if (blobs.find(tr.getRelationship(), tr.getToTerm()) == null)
+								blobs.add(tr, tr.getSource());
+						}
+					}
+					for (TermBlobs blobs : changed.values())
+						save(pc, blobs, null);
+					return null;
+				}
+			});
+		}
+		for (Term term : terms) {
+			boolean[] flags = new boolean[term.getAllTermRelationships().size() + 1];
+			for (int i = 0; i < flags.length; i++)
+				flags[i] = true;
+			results.add(flags);
+		}
+		return results;
+	}
+
+	public int[] refreshRelationships(final String term, final String source, final Collection<TermRelationship> fresh)
+			throws SQLException {
+		return this.write(new Write<int[]>() {
+			int[] run(PooledConnection pc) throws SQLException {
+				TermBlobs blobs = lock(pc, term);
+				HashMap<String, TermRelationship> existing = new HashMap<String, TermRelationship>();
+				HashSet<String> otherSources = new HashSet<String>();
+				for (Map.Entry<String, ArrayList<TermRelationship>> entry : blobs.bySource.entrySet()) {
+					for (TermRelationship tr : entry.getValue()) {
+						String key = tr.getRelationship() + '\u0000' + tr.getToTerm();
+						if (source.equals(entry.getKey()))
+							existing.put(key, tr);
+						else
+							otherSources.add(key);
+					}
+				}
+
+				int[] counts = new int[3];
+				HashSet<String> wanted = new HashSet<String>();
+				for (TermRelationship tr : fresh) {
+					if (tr.getToTerm() == null)
+						continue;
+					String key = tr.getRelationship() + '\u0000' + tr.getToTerm();
+					if (!wanted.add(key) || otherSources.contains(key))
+						continue;
+					TermRelationship old = existing.get(key);
+					if (old == null) {
+						blobs.add(tr, source);
+						counts[0]++;
+					}
+					else if (old.getConfidence() != tr.getConfidence() || !equal(old.getParentTerm(), tr.getParentTerm())) {
+						old.setConfidence(tr.getConfidence());
+						old.setParentTerm(tr.getParentTerm());
+						counts[1]++;
+					}
+				}
+				Iterator<TermRelationship> iter = blobs.get(source).iterator();
+				while (iter.hasNext()) {
+					TermRelationship tr = iter.next();
+					if (!wanted.contains(tr.getRelationship() + '\u0000' + tr.getToTerm())) {
+						iter.remove();
+						counts[2]++;
+					}
+				}
+				blobs.changed.add(source);
+				save(pc, blobs, source);
+				PreparedStatement touch = pc.prepare(TOUCH_IDS);
+				touch.setString(1, term);
+				touch.setString(2, source);
+				touch.executeUpdate();
+				return counts;
+			}
+		});
+	}
+
+	public void deleteTerm(final String term) throws SQLException {
+		this.write(new Write<Void>() {
+			Void run(PooledConnection pc) throws SQLException {
+				PreparedStatement ps = pc.prepare(DELETE_TERM_IDS);
+				ps.setString(1, term);
+				ps.executeUpdate();
+				ps = pc.prepare(DELETE_TERM_BLOBS);
+				ps.setString(1, term);
+				ps.executeUpdate();
+				return null;
+			}
+		});
+	}
+
+	public void deleteRelationship(final String term, final String relationship, final String value) throws SQLException {
+		if (value == null)
+			return;
+		this.write(new Write<Void>() {
+			Void run(PooledConnection pc) throws SQLException {
+				TermBlobs blobs = lock(pc, term);
+				TermRelationship tr = blobs.find(relationship, value);
+				if (tr != null) {
+					blobs.remove(tr);
+					save(pc, blobs, null);
+				}
+				return null;
+			}
+		});
+	}
+
+	public long forEachTerm(int fetchSize, ValueCallback callback) throws SQLException {
+		return this.forEachValue(ALL_TERMS, fetchSize, callback);
+	}
+
+	public ArrayList<String> getTermPage(String after, int limit) throws SQLException {
+		ArrayList<String> page = new ArrayList<String>();
+		String sql = after == null ? TERM_PAGE : TERM_PAGE_AFTER;
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			int param = 1;
+			if (after != null)
+				ps.setString(param++, after);
+			ps.setInt(param, limit);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					page.add(rs.getString(1));
+			} finally {
+				rs.close();
+			}
+			return page;
+		} catch (SQLException e) {
+			pc.evict(sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	public long forEachRelationshipValue(String relationship, int fetchSize, ValueCallback callback) throws SQLException {
+		checkIndexed(relationship);
+		return this.forEachValue(ALL_IDS, fetchSize, callback);
+	}
+
+	/**
+	 * Streams the blobs last updated before datetime and hands out their relationships.
+	 */
+	public long forEachRelationshipOlderThan(Date datetime, int fetchSize, RelationshipCallback callback) throws SQLException {
+		PooledConnection pc = this.getDBConnection();
+		long count = 0;
+		try {
+			PreparedStatement ps = pc.prepare(BLOBS_OLDER_THAN);
+			ps.setFetchSize(pc.getPool().getDialect().streamingFetchSize(fetchSize));
+			ps.setTimestamp(1, new Timestamp(datetime.getTime()));
+			ResultSet rs = ps.executeQuery();
+			try {
+				ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
+				while (rs.next()) {
+					trList.clear();
+					String source = rs.getString(2);
+					TermBlob.decode(rs.getString(1), NO_SOURCE.equals(source) ? null : source, rs.getBytes(3), trList);
+					for (TermRelationship tr : trList) {
+						count++;
+						if (!callback.process(tr))
+							return count;
+					}
+				}
+			} finally {
+				rs.close();
+			}
+			return count;
+		} catch (SQLException e) {
+			pc.evict(BLOBS_OLDER_THAN);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * ID's only.  A row's last update is that of the last refresh of its source, or its insert.
+	 */
+	public ArrayList<RelationshipRow> getOldestRelationships(String relationship, String source, String valuePrefix, Date olderThan,
+																RelationshipRow after, int limit) throws SQLException {
+		checkIndexed(relationship);
+		ArrayList<RelationshipRow> rows = new ArrayList<RelationshipRow>();
+		String sql = after == null ? GET_OLDEST_IDS : GET_OLDEST_IDS_AFTER;
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			int param = 1;
+			ps.setString(param++, source);
+			ps.setString(param++, ResourceDBWrapper.likePrefix(valuePrefix));
+			ps.setTimestamp(param++, new Timestamp(olderThan.getTime()));
+			if (after != null) {
+				ps.setTimestamp(param++, after.getLastUpdated());
+				ps.setTimestamp(param++, after.getLastUpdated());
+				ps.setLong(param++, after.getId());
+			}
+			ps.setInt(param, limit);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					rows.add(new RelationshipRow(rs.getLong(1), rs.getString(2), INDEXED_RELATIONSHIP, rs.getString(3), rs.getString(4),
+													rs.getTimestamp(5)));
+			} finally {
+				rs.close();
+			}
+			return rows;
+		} catch (SQLException e) {
+			pc.evict(sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Counts are kept on the term's anchor row.
+	 */
+	public void recordAccesses(final Map<String, Long> hits, final Date accessed) throws SQLException {
+		if (hits.isEmpty())
+			return;
+		this.write(new Write<Void>() {
+			Void run(PooledConnection pc) throws SQLException {
+				PreparedStatement ps = pc.prepare(RECORD_ACCESS);
+				Timestamp when = new Timestamp(accessed.getTime());
+				for (Map.Entry<String, Long> entry : hits.entrySet()) {
+					ps.setLong(1, entry.getValue());
+					ps.setTimestamp(2, when);
+					ps.setString(3, entry.getKey());
+					ps.addBatch();
+				}
+				ps.executeBatch();
+				return null;
+			}
+		});
+	}
+
+	public ArrayList<String> getColdestTerms(Date idleSince, int limit) throws SQLException {
+		ArrayList<String> terms = new ArrayList<String>();
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(COLDEST_TERMS);
+			ps.setTimestamp(1, new Timestamp(idleSince.getTime()));
+			ps.setInt(2, limit);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					terms.add(rs.getString(1));
+			} finally {
+				rs.close();
+			}
+			return terms;
+		} catch (SQLException e) {
+			pc.evict(COLDEST_TERMS);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Sums the counts each blob row keeps, no decoding.
+	 */
+	public long[] getStorageUsage() throws SQLException {
+		PooledConnection pc = this.getDBConnection();
+		try {
+			PreparedStatement ps = pc.prepare(STORAGE_USAGE);
+			ResultSet rs = ps.executeQuery();
+			try {
+				rs.next();
+				return new long[] {rs.getLong(1), rs.getLong(2)};
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			pc.evict(STORAGE_USAGE);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	public boolean lookupMissExists(String source, String query, String matchMode) throws SQLException {
+		return this.getMisses().lookupMissExists(source, query, matchMode);
+	}
+
+	public void insertLookupMiss(String source, String query, String matchMode, Date expires) throws SQLException {
+		this.getMisses().insertLookupMiss(source, query, matchMode, expires);
+	}
+
+	public void deleteLookupMiss(String source, String query, String matchMode) throws SQLException {
+		this.getMisses().deleteLookupMiss(source, query, matchMode);
+	}
+
+	public int deleteLookupMissesExpiredBefore(Date datetime) throws SQLException {
+		return this.getMisses().deleteLookupMissesExpiredBefore(datetime);
+	}
+
+	/**
+	 * Nothing to release: connections go back to the pool after every call, and the pool is closed by whoever created it.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * @return the ConnectionPool this store borrows from (for metrics)
+	 * @throws SQLException Thrown if the shared pool can't be created
+	 */
+	public ConnectionPool getConnectionPool() throws SQLException {
+		if (this.pool == null)
+			this.pool = ConnectionPool.getDefault();
+		return this.pool;
+	}
+
+	/**
+	 * Run a write in one transaction, and once more if it lost a race to insert a term's first row (the retry finds it).
+	 */
+	private <T> T write(Write<T> body) throws SQLException {
+		for (int attempt = 0; ; attempt++) {
+			PooledConnection pc = this.getDBConnection();
+			Connection conn = pc.getConnection();
+			try {
+				conn.setAutoCommit(false);
+				T result = body.run(pc);
+				conn.commit();
+				return result;
+			} catch (SQLException e) {
+				try {
+					conn.rollback();
+				} catch (SQLException re) {
+					pc.markBroken();
+				}
+				if (attempt > 0 || !ResourceDBWrapper.isDuplicateKey(e))
+					throw e;
+			} finally {
+				this.releaseDBConnection(pc);
+			}
+		}
+	}
+
+	/**
+	 * Read and lock a term's rows for a write transaction.
+	 * @return TermBlobs, without a source if the term isn't stored
+	 */
+	private TermBlobs lock(PooledConnection pc, String term) throws SQLException {
+		TermBlobs blobs = new TermBlobs(term);
+		PreparedStatement ps = pc.prepare(LOCK_BLOBS);
+		ps.setString(1, term);
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next()) {
+				String source = rs.getString(1);
+				ArrayList<TermRelationship> rows = blobs.get(source);
+				TermBlob.decode(term, NO_SOURCE.equals(source) ? null : source, rs.getBytes(2), rows);
+				blobs.stored.add(source);
+				for (TermRelationship tr : rows) {
+					if (INDEXED_RELATIONSHIP.equals(tr.getRelationship()))
+						blobs.ids.put(tr.getToTerm(), source);
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			throw new SQLException("Unreadable blob of term " + term, e);
+		} finally {
+			rs.close();
+		}
+		// A stored term always has its anchor, a new one gets it with the first save
+		blobs.get(NO_SOURCE);
+		if (!blobs.stored.contains(NO_SOURCE))
+			blobs.changed.add(NO_SOURCE);
+		return blobs;
+	}
+
+	/**
+	 * TermBlobs of a term within a multi-term write, locked on first use.
+	 */
+	private TermBlobs blobsOf(PooledConnection pc, Map<String, TermBlobs> locked, String term) throws SQLException {
+		TermBlobs blobs = locked.get(term);
+		if (blobs == null) {
+			blobs = this.lock(pc, term);
+			locked.put(term, blobs);
+		}
+		return blobs;
+	}
+
+	/**
+	 * Store a term (its anchor row) unless it's already there.
+	 */
+	private void ensureTerm(PooledConnection pc, String term) throws SQLException {
+		TermBlobs blobs = this.lock(pc, term);
+		if (!blobs.stored.contains(NO_SOURCE))
+			this.save(pc, blobs, null);
+	}
+
+	/**
+	 * Write a term's changed blobs and bring its ID rows in line with them.
+	 * @param refreshed source whose blob gets last_updated set to now, null for none
+	 */
+	private void save(PooledConnection pc, TermBlobs blobs, String refreshed) throws SQLException {
+		HashMap<String, String> ids = new HashMap<String, String>();
+		for (Map.Entry<String, ArrayList<TermRelationship>> entry : blobs.bySource.entrySet()) {
+			String source = entry.getKey();
+			ArrayList<TermRelationship> rows = entry.getValue();
+			for (TermRelationship tr : rows) {
+				if (INDEXED_RELATIONSHIP.equals(tr.getRelationship()))
+					ids.put(tr.getToTerm(), source);
+			}
+			if (!blobs.changed.contains(source))
+				continue;
+			PreparedStatement ps;
+			if (rows.isEmpty() && !source.equals(NO_SOURCE)) {
+				if (!blobs.stored.contains(source))
+					continue;
+				ps = pc.prepare(DELETE_BLOB);
+				ps.setString(1, blobs.term);
+				ps.setString(2, source);
+				ps.executeUpdate();
+				continue;
+			}
+			long chars = 0;
+			for (TermRelationship tr : rows)
+				chars += TermBlob.chars(blobs.term, source.equals(NO_SOURCE) ? null : source, tr);
+			boolean insert = !blobs.stored.contains(source);
+			ps = pc.prepare(insert ? INSERT_BLOB : source.equals(refreshed) ? REFRESH_BLOB : UPDATE_BLOB);
+			int param = 1;
+			if (insert) {
+				ps.setString(param++, blobs.term);
+				ps.setString(param++, source);
+			}
+			ps.setBytes(param++, TermBlob.encode(rows));
+			ps.setInt(param++, rows.size());
+			ps.setLong(param++, chars);
+			if (!insert) {
+				ps.setString(param++, blobs.term);
+				ps.setString(param++, source);
+			}
+			ps.executeUpdate();
+		}
+
+		// ID rows: drop the ones that are gone (or moved to another source) before adding, the index is on (term, value)
+		PreparedStatement delete = pc.prepare(DELETE_ID);
+		int deletes = 0;
+		for (Map.Entry<String, String> entry : blobs.ids.entrySet()) {
+			if (!entry.getValue().equals(ids.get(entry.getKey()))) {
+				delete.setString(1, blobs.term);
+				delete.setString(2, ResourceDBWrapper.valueHash(entry.getKey()));
+				delete.addBatch();
+				deletes++;
+			}
+		}
+		if (deletes > 0)
+			delete.executeBatch();
+		PreparedStatement insert = pc.prepare(INSERT_ID);
+		int inserts = 0;
+		for (Map.Entry<String, String> entry : ids.entrySet()) {
+			if (!entry.getValue().equals(blobs.ids.get(entry.getKey()))) {
+				insert.setString(1, blobs.term);
+				insert.setString(2, entry.getValue());
+				insert.setString(3, entry.getKey());
+				insert.setString(4, ResourceDBWrapper.valueHash(entry.getKey()));
+				insert.addBatch();
+				inserts++;
+			}
+		}
+		if (inserts > 0)
+			insert.executeBatch();
+
+		// The TermBlobs now matches the table, so a second save in the same transaction only writes new changes
+		for (Map.Entry<String, ArrayList<TermRelationship>> entry : blobs.bySource.entrySet()) {
+			if (entry.getValue().isEmpty() && !entry.getKey().equals(NO_SOURCE))
+				blobs.stored.remove(entry.getKey());
+			else
+				blobs.stored.add(entry.getKey());
+		}
+		blobs.changed.clear();
+		blobs.ids.clear();
+		blobs.ids.putAll(ids);
+	}
+
+	/**
+	 * Run a single-column query without parameters as a streaming scan.
+	 */
+	private long forEachValue(String sql, int fetchSize, ValueCallback callback) throws SQLException {
+		PooledConnection pc = this.getDBConnection();
+		long count = 0;
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			ps.setFetchSize(pc.getPool().getDialect().streamingFetchSize(fetchSize));
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					count++;
+					if (!callback.process(rs.getString(1)))
+						break;
+				}
+			} finally {
+				rs.close();
+			}
+			return count;
+		} catch (SQLException e) {
+			pc.evict(sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Add the relationships of one blob row to a Term, if the row's source is the one asked for (null for all).
+	 */
+	private static void decodeInto(Term whole, String term, String rowSource, byte[] data, String source) throws SQLException {
+		String blobSource = NO_SOURCE.equals(rowSource) ? null : rowSource;
+		if (source != null && !source.equals(blobSource))
+			return;
+		ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
+		try {
+			TermBlob.decode(term, blobSource, data, trList);
+		} catch (IllegalArgumentException e) {
+			throw new SQLException("Unreadable blob of term " + term, e);
+		}
+		whole.addTermRelationship(trList);
+	}
+
+	private static void checkIndexed(String relationship) throws SQLException {
+		if (!INDEXED_RELATIONSHIP.equals(relationship))
+			throw new SQLFeatureNotSupportedException("Only " + INDEXED_RELATIONSHIP + " relationships can be looked up by value "
+														+ "in the blob store, not " + relationship);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Store for the lookup misses, which are kept as they are by ResourceDBWrapper.
+	 */
+	private synchronized ResourceDBWrapper getMisses() throws SQLException {
+		if (this.misses == null)
+			this.misses = new ResourceDBWrapper(this.getConnectionPool());
+		return this.misses;
+	}
+
+	/**
+	 * Borrow a connection from the pool, creating or migrating the schema on first use (unless DBInfo.schemaAutoMigrate is off).
+	 * @return PooledConnection, must be handed back with {@link #releaseDBConnection(PooledConnection)}
+	 * @throws SQLException Thrown if no connection could be obtained
+	 */
+	private PooledConnection getDBConnection() throws SQLException {
+		ConnectionPool pool = this.getConnectionPool();
+		if (!this.schemaChecked && DBInfo.schemaAutoMigrate) {
+			SchemaManager.ensureSchema(pool);
+			this.schemaChecked = true;
+		}
+		return pool.borrow();
+	}
+
+	private void releaseDBConnection(PooledConnection pc) {
+		if (pc != null)
+			pc.getPool().release(pc);
+	}
+}
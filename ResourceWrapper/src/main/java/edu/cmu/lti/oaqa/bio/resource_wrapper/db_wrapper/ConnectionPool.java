@@ -0,0 +1,496 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+
+/**
+ * Bounded pool of reusable JDBC connections.
+ * Connections are validated when they are borrowed, and connections that sit idle longer than the idle timeout
+ * are closed by a background task (never going below the minimum size).
+ * Callers that find the pool exhausted wait up to the maximum wait time; the wait is recorded in the pool metrics.
+ */
+public class ConnectionPool {
+	private static ConnectionPool defaultPool;
+
+	private final String url;
+	private final String userName;
+	private final String password;
+	private final int minSize;
+	private final int maxSize;
+	private final long maxWaitMillis;
+	private final long idleTimeoutMillis;
+	private final int validationTimeoutSeconds;
+	private final int statementCacheSize;
+	private final SQLDialect dialect;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = this.lock.newCondition();
+	// Most recently released connections are at the head, so idle ones collect at the tail
+	private final LinkedList<PooledConnection> idle = new LinkedList<PooledConnection>();
+	private int total = 0;
+	private int active = 0;
+	private boolean closed = false;
+	private final Timer evictor;
+
+	private final AtomicLong borrowCount = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+	private final AtomicLong timeoutCount = new AtomicLong();
+	private final AtomicLong createdCount = new AtomicLong();
+	private final AtomicLong evictedCount = new AtomicLong();
+	private final AtomicLong invalidCount = new AtomicLong();
+
+	/**
+	 * Constructor, caches up to DBInfo.statementCacheSize PreparedStatements per connection.
+	 * @see #ConnectionPool(String, String, String, String, int, int, long, long, int, int)
+	 */
+	public ConnectionPool(String dbClass, String url, String userName, String password, int minSize, int maxSize,
+							long maxWaitMillis, long idleTimeoutMillis, int validationTimeoutSeconds) throws SQLException {
+		this(dbClass, url, userName, password, minSize, maxSize, maxWaitMillis, idleTimeoutMillis, validationTimeoutSeconds,
+				DBInfo.statementCacheSize);
+	}
+
+	/**
+	 * Constructor.
+	 * @param dbClass JDBC driver class name (null if the driver registers itself)
+	 * @param url JDBC connection string
+	 * @param userName database user
+	 * @param password database password
+	 * @param minSize connections kept open even when idle
+	 * @param maxSize upper bound on open connections
+	 * @param maxWaitMillis how long a borrower waits for a free connection before failing
+	 * @param idleTimeoutMillis idle time after which a connection above minSize is closed (0 disables eviction)
+	 * @param validationTimeoutSeconds timeout for the validation check done on borrow
+	 * @param statementCacheSize PreparedStatements kept open per connection
+	 * @throws SQLException Thrown if the driver can't be loaded
+	 */
+	public ConnectionPool(String dbClass, String url, String userName, String password, int minSize, int maxSize,
+							long maxWaitMillis, long idleTimeoutMillis, int validationTimeoutSeconds, int statementCacheSize)
+							throws SQLException {
+		if (maxSize < 1 || minSize < 0 || minSize > maxSize)
+			throw new IllegalArgumentException("Invalid pool size: min=" + minSize + ", max=" + maxSize);
+		if (dbClass != null) {
+			try {
+				Class.forName(dbClass).newInstance();
+			} catch (Exception e) {
+				throw new SQLException("Unable to load database driver " + dbClass, e);
+			}
+		}
+		this.url = url;
+		this.userName = userName;
+		this.password = password;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.maxWaitMillis = maxWaitMillis;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.validationTimeoutSeconds = validationTimeoutSeconds;
+		this.statementCacheSize = statementCacheSize;
+		this.dialect = SQLDialect.forURL(url);
+
+		this.evictor = new Timer("ConnectionPool-evictor", true);
+		if (idleTimeoutMillis > 0) {
+			long period = Math.max(1000, idleTimeoutMillis / 2);
+			this.evictor.schedule(new TimerTask() {
+				public void run() {
+					evictIdle();
+				}
+			}, period, period);
+		}
+		// Open the minimum set of connections in the background so construction never blocks on the database
+		this.evictor.schedule(new TimerTask() {
+			public void run() {
+				fillToMinimum();
+			}
+		}, 0);
+	}
+
+	/**
+	 * Get the pool shared by every ResourceDBWrapper that is constructed without an explicit pool.
+	 * Created on first use from the settings in {@link DBInfo}.
+	 * @return the shared ConnectionPool
+	 * @throws SQLException Thrown if the driver can't be loaded
+	 */
+	public static synchronized ConnectionPool getDefault() throws SQLException {
+		if (defaultPool == null || defaultPool.isClosed()) {
+			defaultPool = new ConnectionPool(DBInfo.dbClass, DBInfo.URL + "resources", DBInfo.userName, DBInfo.password,
+												DBInfo.poolMinSize, DBInfo.poolMaxSize, DBInfo.poolMaxWait,
+												DBInfo.poolIdleTimeout, DBInfo.poolValidationTimeout);
+		}
+		return defaultPool;
+	}
+
+	/**
+	 * Borrow a validated connection, opening a new one if the pool is below its maximum size.
+	 * Blocks up to the maximum wait time if every connection is in use.
+	 * Every borrowed connection must be handed back with {@link #release(PooledConnection)}.
+	 * @return PooledConnection for exclusive use by the caller
+	 * @throws SQLException Thrown if the pool is closed, the wait times out, or a connection can't be opened
+	 */
+	PooledConnection borrow() throws SQLException {
+		long start = System.nanoTime();
+		long deadline = start + TimeUnit.MILLISECONDS.toNanos(this.maxWaitMillis);
+		boolean waited = false;
+		try {
+			while (true) {
+				PooledConnection pc = null;
+				boolean create = false;
+				this.lock.lock();
+				try {
+					while (true) {
+						if (this.closed)
+							throw new SQLException("Connection pool is closed.");
+						if (!this.idle.isEmpty()) {
+							pc = this.idle.removeFirst();
+							this.active++;
+							break;
+						}
+						if (this.total < this.maxSize) {
+							// Reserve the slot now, open the connection outside the lock
+							this.total++;
+							this.active++;
+							create = true;
+							break;
+						}
+						long remaining = deadline - System.nanoTime();
+						if (remaining <= 0) {
+							this.timeoutCount.incrementAndGet();
+							throw new SQLException("Timed out after " + this.maxWaitMillis + "ms waiting for a database connection ("
+													+ this.active + " active).");
+						}
+						waited = true;
+						try {
+							this.available.awaitNanos(remaining);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new SQLException("Interrupted while waiting for a database connection.", e);
+						}
+					}
+				} finally {
+					this.lock.unlock();
+				}
+
+				if (create) {
+					try {
+						pc = this.open();
+					} catch (SQLException e) {
+						this.discard(null);
+						throw e;
+					}
+					return pc;
+				}
+				if (pc.isValid(this.validationTimeoutSeconds))
+					return pc;
+				// Stale connection (server restart, wait_timeout, ...), throw it away and try again
+				this.invalidCount.incrementAndGet();
+				this.discard(pc);
+			}
+		} finally {
+			this.borrowCount.incrementAndGet();
+			if (waited) {
+				long elapsed = System.nanoTime() - start;
+				this.waitCount.incrementAndGet();
+				this.waitNanos.addAndGet(elapsed);
+				long max = this.maxWaitNanos.get();
+				while (elapsed > max && !this.maxWaitNanos.compareAndSet(max, elapsed))
+					max = this.maxWaitNanos.get();
+			}
+		}
+	}
+
+	/**
+	 * Hand a borrowed connection back to the pool.
+	 * Connections that were marked broken, or that can't be reset to autocommit, are closed instead of reused.
+	 * @param pc PooledConnection obtained from {@link #borrow()} (null is ignored)
+	 */
+	void release(PooledConnection pc) {
+		if (pc == null)
+			return;
+		pc.endOperation();
+		if (!pc.isBroken()) {
+			try {
+				Connection conn = pc.getConnection();
+				if (!conn.getAutoCommit()) {
+					conn.rollback();
+					conn.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				pc.markBroken();
+			}
+		}
+		if (pc.isBroken()) {
+			this.discard(pc);
+			return;
+		}
+		pc.markReleased();
+		this.lock.lock();
+		try {
+			this.active--;
+			if (this.closed) {
+				this.total--;
+				pc.closeQuietly();
+			}
+			else {
+				this.idle.addFirst(pc);
+				this.available.signal();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Close every idle connection and refuse further borrowing.
+	 * Connections still in use are closed as they are released.
+	 */
+	public void close() {
+		ArrayList<PooledConnection> toClose;
+		this.lock.lock();
+		try {
+			if (this.closed)
+				return;
+			this.closed = true;
+			toClose = new ArrayList<PooledConnection>(this.idle);
+			this.total -= this.idle.size();
+			this.idle.clear();
+			this.available.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		this.evictor.cancel();
+		for (PooledConnection pc : toClose)
+			pc.closeQuietly();
+	}
+
+	public boolean isClosed() {
+		this.lock.lock();
+		try {
+			return this.closed;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of connections currently borrowed
+	 */
+	public int getActiveCount() {
+		this.lock.lock();
+		try {
+			return this.active;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of open connections waiting in the pool
+	 */
+	public int getIdleCount() {
+		this.lock.lock();
+		try {
+			return this.idle.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return number of open connections, borrowed or idle
+	 */
+	public int getTotalCount() {
+		this.lock.lock();
+		try {
+			return this.total;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the JDBC connection string (e.g. to name a shard)
+	 */
+	public String getURL() {
+		return this.url;
+	}
+
+	/**
+	 * @return the SQLDialect matching the pool's JDBC URL
+	 */
+	public SQLDialect getDialect() {
+		return this.dialect;
+	}
+
+	public int getMinSize() {
+		return this.minSize;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * @return total number of borrow requests
+	 */
+	public long getBorrowCount() {
+		return this.borrowCount.get();
+	}
+
+	/**
+	 * @return number of borrow requests that had to wait for a connection to be released
+	 */
+	public long getWaitCount() {
+		return this.waitCount.get();
+	}
+
+	/**
+	 * @return cumulative time spent waiting for a free connection, in milliseconds
+	 */
+	public long getTotalWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.waitNanos.get());
+	}
+
+	/**
+	 * @return longest single wait for a free connection, in milliseconds
+	 */
+	public long getMaxWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(this.maxWaitNanos.get());
+	}
+
+	/**
+	 * @return number of borrow requests that gave up after the maximum wait time
+	 */
+	public long getTimeoutCount() {
+		return this.timeoutCount.get();
+	}
+
+	/**
+	 * @return number of physical connections opened over the life of the pool
+	 */
+	public long getCreatedCount() {
+		return this.createdCount.get();
+	}
+
+	/**
+	 * @return number of connections closed for being idle too long
+	 */
+	public long getEvictedCount() {
+		return this.evictedCount.get();
+	}
+
+	/**
+	 * @return number of connections that failed validation on borrow
+	 */
+	public long getInvalidCount() {
+		return this.invalidCount.get();
+	}
+
+	public String toString() {
+		return "ConnectionPool[" + this.url + "; active=" + this.getActiveCount() + ", idle=" + this.getIdleCount() + ", max="
+				+ this.maxSize + ", waits=" + this.getWaitCount() + ", waitMs=" + this.getTotalWaitMillis() + "]";
+	}
+
+	/**
+	 * Open a new physical connection.  Its slot must already be reserved in total/active.
+	 */
+	private PooledConnection open() throws SQLException {
+		Connection conn = DriverManager.getConnection(this.url, this.userName, this.password);
+		this.createdCount.incrementAndGet();
+		return new PooledConnection(this, conn, this.statementCacheSize);
+	}
+
+	/**
+	 * Close a borrowed connection (or give back a reserved slot when pc is null) and free its slot.
+	 */
+	private void discard(PooledConnection pc) {
+		if (pc != null)
+			pc.closeQuietly();
+		this.lock.lock();
+		try {
+			this.total--;
+			this.active--;
+			this.available.signal();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Close connections that have been idle longer than the idle timeout, keeping at least minSize open.
+	 */
+	private void evictIdle() {
+		ArrayList<PooledConnection> toClose = new ArrayList<PooledConnection>();
+		long cutoff = System.currentTimeMillis() - this.idleTimeoutMillis;
+		this.lock.lock();
+		try {
+			Iterator<PooledConnection> iter = this.idle.descendingIterator();
+			while (iter.hasNext() && this.total > this.minSize) {
+				PooledConnection pc = iter.next();
+				if (pc.getLastReleased() > cutoff)
+					break;
+				iter.remove();
+				this.total--;
+				toClose.add(pc);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		for (PooledConnection pc : toClose)
+			pc.closeQuietly();
+		this.evictedCount.addAndGet(toClose.size());
+		this.fillToMinimum();
+	}
+
+	/**
+	 * Open connections until the pool holds at least minSize.
+	 */
+	private void fillToMinimum() {
+		while (true) {
+			this.lock.lock();
+			try {
+				if (this.closed || this.total >= this.minSize)
+					return;
+				this.total++;
+			} finally {
+				this.lock.unlock();
+			}
+			PooledConnection pc;
+			try {
+				pc = this.open();
+			} catch (SQLException e) {
+				// Database unavailable, borrowers will see the error themselves
+				this.lock.lock();
+				try {
+					this.total--;
+				} finally {
+					this.lock.unlock();
+				}
+				return;
+			}
+			this.lock.lock();
+			try {
+				if (this.closed) {
+					this.total--;
+					pc.closeQuietly();
+					return;
+				}
+				this.idle.addLast(pc);
+				this.available.signal();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+}
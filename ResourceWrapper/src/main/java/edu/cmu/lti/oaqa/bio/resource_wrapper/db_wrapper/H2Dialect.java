@@ -0,0 +1,58 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+/**
+ * H2, used embedded (jdbc:h2:file:...) or in memory (jdbc:h2:mem:...).
+ */
+class H2Dialect extends SQLDialect {
+	public String getName() {
+		return "H2";
+	}
+
+	public String tableOptions() {
+		return "";
+	}
+
+	public String longTextType() {
+		// VARCHAR without a length is unbounded in H2
+		return "VARCHAR";
+	}
+
+	/**
+	 * VARBINARY is stored in the row like VARCHAR, a BLOB would be a separate LOB read.
+	 */
+	public String blobType() {
+		return "VARBINARY";
+	}
+
+	public String alterColumn(String table, String column, String definition) {
+		return "ALTER TABLE " + table + " ALTER COLUMN " + column + " " + definition;
+	}
+
+	public String dropIndex(String name, String table) {
+		return "DROP INDEX " + name;
+	}
+
+	public String upsertTerms(int rows) {
+		return "MERGE INTO terms (term) KEY (term) VALUES " + repeat("(?)", rows);
+	}
+
+	/**
+	 * MERGE ... KEY would overwrite the existing row, so this is the standard MERGE with only an insert branch.
+	 */
+	public String upsertRelationship() {
+		return "MERGE INTO termrelationships r USING (SELECT CAST(? AS VARCHAR(255)) AS term, CAST(? AS VARCHAR(255)) AS relationship, "
+				+ "CAST(? AS VARCHAR) AS value, CAST(? AS DOUBLE) AS confidence, CAST(? AS VARCHAR(255)) AS source, "
+				+ "CAST(? AS VARCHAR(255)) AS parentTerm, CAST(? AS CHAR(40)) AS value_hash, CAST(? AS CHAR(40)) AS folded_hash) n "
+				+ "ON (r.term=n.term AND r.relationship=n.relationship AND r.value_hash=n.value_hash) "
+				+ "WHEN NOT MATCHED THEN INSERT (term, relationship, value, confidence, source, parentTerm, value_hash, folded_hash) "
+				+ "VALUES (n.term, n.relationship, n.value, n.confidence, n.source, n.parentTerm, n.value_hash, n.folded_hash)";
+	}
+
+	public String upsertIdRoute() {
+		return "MERGE INTO idroutes (value_hash, term) KEY (value_hash, term) VALUES (?, ?)";
+	}
+
+	public String storedIdentifier(String identifier) {
+		return identifier.toUpperCase();
+	}
+}
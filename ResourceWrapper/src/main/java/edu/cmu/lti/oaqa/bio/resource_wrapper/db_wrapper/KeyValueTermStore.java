@@ -0,0 +1,874 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.MVMap;
+import org.h2.mvstore.MVStore;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * {@link TermStore} kept in an embedded key-value file (an H2 MVStore), for single-process deployments that don't
+ * need a database server or SQL.  Selected with storage = mvstore in default.properties.
+ * <p>
+ * Each term is one record holding all of its relationships, so a whole-Term read is a single key lookup.
+ * Secondary maps stand in for the SQL indexes: (relationship, value digest, term) for ID lookups and relationship
+ * scans, (folded value digest, relationship, term) for reverse lookups, and (last updated, row id) for the older-than
+ * sweeps of CacheRefresher.  A third map keeps each
+ * term's read count and last read time for CacheEvictor.
+ * Reads don't lock.  Writes are serialized and each call is committed on its own (or rolled back as a whole), which
+ * gives the same all-or-nothing behaviour as the JDBC transactions.  The file is opened by one process at a time.
+ */
+public class KeyValueTermStore implements TermStore {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String NEXT_ID = "nextId";
+	// Set once the folded value index covers every row (files written before it existed get it built on open)
+	private static final String FOLDED_INDEXED = "foldedIndexed";
+	// Same limit as the 'terms' column, longer values aren't mirrored as terms (see ResourceDBWrapper.upsertRelationship)
+	private static final int MAX_TERM_LENGTH = 255;
+	// Eviction order of the access records: fewest hits, then least recently read
+	private static final Comparator<Map.Entry<String, long[]>> COLDEST_FIRST = new Comparator<Map.Entry<String, long[]>>() {
+		public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+			long[] x = a.getValue();
+			long[] y = b.getValue();
+			if (x[0] != y[0])
+				return x[0] < y[0] ? -1 : 1;
+			if (x[1] != y[1])
+				return x[1] < y[1] ? -1 : 1;
+			return a.getKey().compareTo(b.getKey());
+		}
+	};
+
+	/**
+	 * One relationship of a term record.
+	 */
+	private static class Row {
+		long id;
+		String relationship;
+		String value;
+		String source;
+		double confidence;
+		String parentTerm;
+		long lastUpdated;
+
+		TermRelationship toRelationship(String term) {
+			return new TermRelationship(term, this.relationship, this.value, this.confidence, this.source, this.parentTerm);
+		}
+	}
+
+	private final MVStore store;
+	// term -> encoded Rows
+	private final MVMap<String, byte[]> terms;
+	// relationship \0 value digest \0 term -> value
+	private final MVMap<String, String> values;
+	// folded value digest \0 relationship \0 term \0 value digest -> "" (reverse lookups, see getTermsByValue)
+	private final MVMap<String, String> folded;
+	// hex last updated + hex row id -> term
+	private final MVMap<String, String> ages;
+	// source \0 match mode \0 query -> expiry (epoch millis)
+	private final MVMap<String, Long> misses;
+	// term -> {hits, last accessed (epoch millis)}, written when the term is created
+	private final MVMap<String, long[]> accesses;
+	private final MVMap<String, Long> meta;
+	private final Object writeLock = new Object();
+	private long nextId;
+
+	/**
+	 * Constructor, opens the file configured in DBInfo (storeFile, storeMemoryMapped, storeCacheSize).
+	 * @throws SQLException Thrown if the file can't be opened (e.g. another process has it open)
+	 */
+	public KeyValueTermStore() throws SQLException {
+		this(DBInfo.storeFile, DBInfo.storeMemoryMapped, DBInfo.storeCacheSize);
+	}
+
+	/**
+	 * Constructor.
+	 * @param fileName file to keep the store in (created if missing), null for a store that only lives in memory
+	 * @param memoryMapped read the file through a memory mapping instead of file channel reads
+	 * @param cacheSizeMB page cache size in megabytes
+	 * @throws SQLException Thrown if the file can't be opened (e.g. another process has it open)
+	 */
+	public KeyValueTermStore(String fileName, boolean memoryMapped, int cacheSizeMB) throws SQLException {
+		try {
+			MVStore.Builder builder = new MVStore.Builder().cacheSize(cacheSizeMB).autoCommitDisabled();
+			if (fileName != null)
+				builder.fileName(memoryMapped ? "nioMapped:" + fileName : fileName);
+			this.store = builder.open();
+			this.terms = this.store.openMap("terms");
+			this.values = this.store.openMap("values");
+			this.folded = this.store.openMap("foldedvalues");
+			this.ages = this.store.openMap("ages");
+			this.misses = this.store.openMap("lookupmisses");
+			this.accesses = this.store.openMap("accesses");
+			this.meta = this.store.openMap("meta");
+			Long id = this.meta.get(NEXT_ID);
+			this.nextId = id == null ? 1 : id;
+			if (this.accesses.sizeAsLong() < this.terms.sizeAsLong())
+				this.addMissingAccesses();
+			if (!this.meta.containsKey(FOLDED_INDEXED))
+				this.addFoldedIndex();
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public boolean termExists(String term) throws SQLException {
+		try {
+			return this.terms.containsKey(term);
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public String getTermByRelationshipAndValue(String relationship, String value) throws SQLException {
+		if (value == null)
+			return null;
+		try {
+			// Keys sort by term after the prefix, so the first match is the first term by name, as in the JDBC store
+			String prefix = relationship + '\u0000' + ResourceDBWrapper.valueHash(value) + '\u0000';
+			String key = this.values.ceilingKey(prefix);
+			return key != null && key.startsWith(prefix) ? key.substring(prefix.length()) : null;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public ArrayList<String> getTermsByValue(String relationship, String value) throws SQLException {
+		TreeSet<String> terms = new TreeSet<String>();
+		if (value == null)
+			return new ArrayList<String>();
+		String prefix = ResourceDBWrapper.foldedHash(value) + '\u0000' + (relationship == null ? "" : relationship + '\u0000');
+		try {
+			Cursor<String, String> cursor = this.folded.cursor(prefix);
+			while (cursor.hasNext()) {
+				String key = cursor.next();
+				if (!key.startsWith(prefix))
+					break;
+				// What's left is [relationship \0] term \0 value digest
+				String rest = key.substring(prefix.length(), key.lastIndexOf('\u0000'));
+				terms.add(relationship == null ? rest.substring(rest.indexOf('\u0000') + 1) : rest);
+			}
+			return new ArrayList<String>(terms);
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public boolean relationshipExists(String term, String relationship, String value) throws SQLException {
+		if (value == null)
+			return false;
+		try {
+			return this.values.containsKey(valueKey(relationship, value, term));
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public Term getWholeTerm(String term, String source) throws SQLException {
+		try {
+			byte[] record = this.terms.get(term);
+			if (record == null)
+				return null;
+			Term whole = new Term(term);
+			for (Row row : decode(record)) {
+				if (source == null || source.equals(row.source))
+					whole.addTermRelationship(row.toRelationship(term));
+			}
+			return whole;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public Term getWholeTermByRelationshipAndValue(String relationship, String value, String source) throws SQLException {
+		String term = this.getTermByRelationshipAndValue(relationship, value);
+		return term == null ? null : this.getWholeTerm(term, source);
+	}
+
+	public HashMap<String, Term> getWholeTerms(Collection<String> terms, String source) throws SQLException {
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		for (String term : terms) {
+			Term whole = this.getWholeTerm(term, source);
+			if (whole != null)
+				found.put(term, whole);
+		}
+		return found;
+	}
+
+	public HashMap<String, Term> getWholeTermsByRelationshipAndValue(String relationship, Collection<String> values, String source)
+			throws SQLException {
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		for (String value : values) {
+			Term whole = this.getWholeTermByRelationshipAndValue(relationship, value, source);
+			if (whole != null)
+				found.put(value, whole);
+		}
+		return found;
+	}
+
+	public ArrayList<TermRelationship> getRelationships(String term) throws SQLException {
+		return this.getRelationships(term, null);
+	}
+
+	public ArrayList<TermRelationship> getRelationships(String term, String source) throws SQLException {
+		ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
+		try {
+			for (Row row : this.readRows(term)) {
+				if (source == null || source.equals(row.source))
+					trList.add(row.toRelationship(term));
+			}
+			return trList;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public void upsertTerm(String term) throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				this.ensureTerm(term);
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	public void upsertRelationship(TermRelationship tr) throws SQLException {
+		String value = tr.getToTerm();
+		if (value == null)
+			return;
+		synchronized (this.writeLock) {
+			try {
+				this.ensureTerm(tr.getFromTerm());
+				if (value.length() <= MAX_TERM_LENGTH && !value.equals(tr.getFromTerm()))
+					this.ensureTerm(value);
+				ArrayList<Row> rows = this.readRows(tr.getFromTerm());
+				if (find(rows, tr.getRelationship(), value) == null) {
+					this.addRow(tr.getFromTerm(), rows, tr, tr.getSource());
+					this.terms.put(tr.getFromTerm(), encode(rows));
+				}
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	public ArrayList<boolean[]> insertWholeTerms(Collection<Term> terms) throws SQLException {
+		ArrayList<boolean[]> results = new ArrayList<boolean[]>(terms.size());
+		synchronized (this.writeLock) {
+			try {
+				// Records changed by this call, written back once at the end
+				HashMap<String, ArrayList<Row>> changed = new HashMap<String, ArrayList<Row>>();
+				for (Term term : terms) {
+					this.ensureTerm(term.getTerm());
+					for (TermRelationship tr : term.getAllTermRelationships()) {
+						if (tr.getToTerm() == null)
+							continue;
+						ArrayList<Row> rows = changed.get(tr.getFromTerm());
+						if (rows == null) {
+							this.ensureTerm(tr.getFromTerm());
+							rows = this.readRows(tr.getFromTerm());
+							changed.put(tr.getFromTerm(), rows);
+						}
+						if (find(rows, tr.getRelationship(), tr.getToTerm()) == null)
+							this.addRow(tr.getFromTerm(), rows, tr, tr.getSource());
+					}
+				}
+				for (Map.Entry<String, ArrayList<Row>> entry : changed.entrySet())
+					this.terms.put(entry.getKey(), encode(entry.getValue()));
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+		// Everything is stored once the commit went through
+		for (Term term : terms) {
+			boolean[] flags = new boolean[term.getAllTermRelationships().size() + 1];
+			for (int i = 0; i < flags.length; i++)
+				flags[i] = true;
+			results.add(flags);
+		}
+		return results;
+	}
+
+	public int[] refreshRelationships(String term, String source, Collection<TermRelationship> fresh) throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				this.ensureTerm(term);
+				ArrayList<Row> rows = this.readRows(term);
+				HashMap<String, Row> existing = new HashMap<String, Row>();
+				HashSet<String> otherSources = new HashSet<String>();
+				for (Row row : rows) {
+					String key = row.relationship + '\u0000' + row.value;
+					if (source.equals(row.source))
+						existing.put(key, row);
+					else
+						otherSources.add(key);
+				}
+
+				int[] counts = new int[3];
+				HashSet<String> wanted = new HashSet<String>();
+				for (TermRelationship tr : fresh) {
+					if (tr.getToTerm() == null)
+						continue;
+					String key = tr.getRelationship() + '\u0000' + tr.getToTerm();
+					if (!wanted.add(key) || otherSources.contains(key))
+						continue;
+					Row old = existing.get(key);
+					if (old == null) {
+						this.addRow(term, rows, tr, source);
+						counts[0]++;
+					}
+					else if (old.confidence != tr.getConfidence() || !equal(old.parentTerm, tr.getParentTerm())) {
+						old.confidence = tr.getConfidence();
+						old.parentTerm = tr.getParentTerm();
+						counts[1]++;
+					}
+				}
+				Iterator<Row> iter = rows.iterator();
+				while (iter.hasNext()) {
+					Row row = iter.next();
+					if (source.equals(row.source) && !wanted.contains(row.relationship + '\u0000' + row.value)) {
+						iter.remove();
+						this.removeIndexes(term, row);
+						counts[2]++;
+					}
+				}
+				long now = System.currentTimeMillis();
+				for (Row row : rows) {
+					if (source.equals(row.source))
+						this.touch(term, row, now);
+				}
+				this.terms.put(term, encode(rows));
+				this.commit();
+				return counts;
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	public void deleteTerm(String term) throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				byte[] record = this.terms.remove(term);
+				this.accesses.remove(term);
+				if (record != null) {
+					for (Row row : decode(record))
+						this.removeIndexes(term, row);
+				}
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	public void deleteRelationship(String term, String relationship, String value) throws SQLException {
+		if (value == null)
+			return;
+		synchronized (this.writeLock) {
+			try {
+				ArrayList<Row> rows = this.readRows(term);
+				Row row = find(rows, relationship, value);
+				if (row == null)
+					return;
+				rows.remove(row);
+				this.removeIndexes(term, row);
+				this.terms.put(term, encode(rows));
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	/**
+	 * Walks the term keys in order; fetchSize is ignored, pages are read as the scan reaches them.
+	 */
+	public long forEachTerm(int fetchSize, ValueCallback callback) throws SQLException {
+		long count = 0;
+		try {
+			Iterator<String> iter = this.terms.keyIterator(null);
+			while (iter.hasNext()) {
+				count++;
+				if (!callback.process(iter.next()))
+					break;
+			}
+			return count;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public ArrayList<String> getTermPage(String after, int limit) throws SQLException {
+		ArrayList<String> page = new ArrayList<String>();
+		try {
+			String start = after == null ? null : this.terms.higherKey(after);
+			if (after != null && start == null)
+				return page;
+			Iterator<String> iter = this.terms.keyIterator(start);
+			while (iter.hasNext() && page.size() < limit)
+				page.add(iter.next());
+			return page;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public long forEachRelationshipValue(String relationship, int fetchSize, ValueCallback callback) throws SQLException {
+		String prefix = relationship + '\u0000';
+		long count = 0;
+		try {
+			Cursor<String, String> cursor = this.values.cursor(prefix);
+			while (cursor.hasNext()) {
+				if (!cursor.next().startsWith(prefix))
+					break;
+				count++;
+				if (!callback.process(cursor.getValue()))
+					break;
+			}
+			return count;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public long forEachRelationshipOlderThan(Date datetime, int fetchSize, RelationshipCallback callback) throws SQLException {
+		String end = ageKey(datetime.getTime(), 0);
+		long count = 0;
+		try {
+			Cursor<String, String> cursor = this.ages.cursor(null);
+			while (cursor.hasNext()) {
+				String key = cursor.next();
+				if (key.compareTo(end) >= 0)
+					break;
+				String term = cursor.getValue();
+				Row row = findById(this.readRows(term), ageId(key));
+				if (row == null)
+					continue; // deleted since the cursor was opened
+				count++;
+				if (!callback.process(row.toRelationship(term)))
+					break;
+			}
+			return count;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public ArrayList<RelationshipRow> getOldestRelationships(String relationship, String source, String valuePrefix, Date olderThan,
+																RelationshipRow after, int limit) throws SQLException {
+		ArrayList<RelationshipRow> page = new ArrayList<RelationshipRow>();
+		String end = ageKey(olderThan.getTime(), 0);
+		try {
+			String start = after == null ? null : this.ages.higherKey(ageKey(after.getLastUpdated().getTime(), after.getId()));
+			if (after != null && start == null)
+				return page;
+			Cursor<String, String> cursor = this.ages.cursor(start);
+			while (cursor.hasNext() && page.size() < limit) {
+				String key = cursor.next();
+				if (key.compareTo(end) >= 0)
+					break;
+				String term = cursor.getValue();
+				Row row = findById(this.readRows(term), ageId(key));
+				if (row == null || !relationship.equals(row.relationship) || !source.equals(row.source)
+					|| (valuePrefix != null && !row.value.startsWith(valuePrefix)))
+					continue;
+				page.add(new RelationshipRow(row.id, term, row.relationship, row.value, row.source, new Timestamp(row.lastUpdated)));
+			}
+			return page;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public void recordAccesses(Map<String, Long> hits, Date accessed) throws SQLException {
+		if (hits.isEmpty())
+			return;
+		synchronized (this.writeLock) {
+			try {
+				for (Map.Entry<String, Long> entry : hits.entrySet()) {
+					long[] access = this.accesses.get(entry.getKey());
+					if (access != null)
+						this.accesses.put(entry.getKey(), new long[] {access[0] + entry.getValue(), Math.max(access[1], accessed.getTime())});
+				}
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	/**
+	 * Scans every term's access record, keeping the coldest limit in a heap.
+	 */
+	public ArrayList<String> getColdestTerms(Date idleSince, int limit) throws SQLException {
+		long cutoff = idleSince.getTime();
+		// Warmest on top, so it's the one dropped when the heap grows past limit
+		PriorityQueue<Map.Entry<String, long[]>> heap = new PriorityQueue<Map.Entry<String, long[]>>(limit + 1,
+																										Collections.reverseOrder(COLDEST_FIRST));
+		try {
+			Cursor<String, long[]> cursor = this.accesses.cursor(null);
+			while (cursor.hasNext()) {
+				String term = cursor.next();
+				long[] access = cursor.getValue();
+				if (access[1] >= cutoff)
+					continue;
+				heap.add(new AbstractMap.SimpleEntry<String, long[]>(term, access));
+				if (heap.size() > limit)
+					heap.poll();
+			}
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+		ArrayList<Map.Entry<String, long[]>> coldest = new ArrayList<Map.Entry<String, long[]>>(heap);
+		Collections.sort(coldest, COLDEST_FIRST);
+		ArrayList<String> terms = new ArrayList<String>(coldest.size());
+		for (Map.Entry<String, long[]> entry : coldest)
+			terms.add(entry.getKey());
+		return terms;
+	}
+
+	/**
+	 * Walks and decodes every term record.
+	 */
+	public long[] getStorageUsage() throws SQLException {
+		long[] usage = new long[2];
+		try {
+			Cursor<String, byte[]> cursor = this.terms.cursor(null);
+			while (cursor.hasNext()) {
+				String term = cursor.next();
+				for (Row row : decode(cursor.getValue())) {
+					usage[0]++;
+					usage[1] += term.length() + row.relationship.length() + row.value.length()
+								+ (row.source == null ? 0 : row.source.length()) + (row.parentTerm == null ? 0 : row.parentTerm.length());
+				}
+			}
+			return usage;
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public boolean lookupMissExists(String source, String query, String matchMode) throws SQLException {
+		try {
+			Long expires = this.misses.get(missKey(source, query, matchMode));
+			return expires != null && expires > System.currentTimeMillis();
+		} catch (IllegalStateException e) {
+			throw storeError(e);
+		}
+	}
+
+	public void insertLookupMiss(String source, String query, String matchMode, Date expires) throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				this.misses.put(missKey(source, query, matchMode), expires.getTime());
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	public void deleteLookupMiss(String source, String query, String matchMode) throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				this.misses.remove(missKey(source, query, matchMode));
+				this.commit();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	public int deleteLookupMissesExpiredBefore(Date datetime) throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				ArrayList<String> expired = new ArrayList<String>();
+				for (Map.Entry<String, Long> entry : this.misses.entrySet()) {
+					if (entry.getValue() <= datetime.getTime())
+						expired.add(entry.getKey());
+				}
+				for (String key : expired)
+					this.misses.remove(key);
+				this.commit();
+				return expired.size();
+			} catch (IllegalStateException e) {
+				throw this.rollback(e);
+			}
+		}
+	}
+
+	/**
+	 * Write out anything pending and close the file.  Calls made after this fail.
+	 */
+	public void close() throws SQLException {
+		synchronized (this.writeLock) {
+			try {
+				if (!this.store.isClosed())
+					this.store.close();
+			} catch (IllegalStateException e) {
+				throw storeError(e);
+			}
+		}
+	}
+
+	/**
+	 * @return terms stored
+	 */
+	public long getTermCount() {
+		return this.terms.sizeAsLong();
+	}
+
+	/**
+	 * @return relationships stored
+	 */
+	public long getRelationshipCount() {
+		return this.ages.sizeAsLong();
+	}
+
+	public String toString() {
+		return "KeyValueTermStore[file=" + this.store.getFileStore() + ", terms=" + this.terms.sizeAsLong() + ", relationships="
+				+ this.ages.sizeAsLong() + ", misses=" + this.misses.sizeAsLong() + "]";
+	}
+
+	/**
+	 * Add an empty record for the term unless it's stored already.
+	 */
+	private void ensureTerm(String term) {
+		if (!this.terms.containsKey(term)) {
+			this.terms.put(term, encode(new ArrayList<Row>()));
+			this.accesses.put(term, new long[] {0, System.currentTimeMillis()});
+		}
+	}
+
+	/**
+	 * Give the terms of a file written before access tracking an access record, as if they had just been read.
+	 */
+	private void addMissingAccesses() {
+		long now = System.currentTimeMillis();
+		Iterator<String> iter = this.terms.keyIterator(null);
+		while (iter.hasNext()) {
+			String term = iter.next();
+			if (!this.accesses.containsKey(term))
+				this.accesses.put(term, new long[] {0, now});
+		}
+		this.store.commit();
+	}
+
+	/**
+	 * Index the values of a file written before reverse lookups existed.
+	 */
+	private void addFoldedIndex() {
+		Cursor<String, String> cursor = this.values.cursor(null);
+		while (cursor.hasNext()) {
+			String key = cursor.next();
+			int end = key.indexOf('\u0000');
+			String term = key.substring(key.indexOf('\u0000', end + 1) + 1);
+			this.folded.put(foldedKey(key.substring(0, end), cursor.getValue(), term), "");
+		}
+		this.meta.put(FOLDED_INDEXED, 1L);
+		this.store.commit();
+	}
+
+	private ArrayList<Row> readRows(String term) {
+		byte[] record = this.terms.get(term);
+		return record == null ? new ArrayList<Row>() : decode(record);
+	}
+
+	/**
+	 * Append a new relationship to a term's rows and index it.  The record itself is written by the caller.
+	 */
+	private void addRow(String term, ArrayList<Row> rows, TermRelationship tr, String source) {
+		Row row = new Row();
+		row.id = this.nextId++;
+		row.relationship = tr.getRelationship();
+		row.value = tr.getToTerm();
+		row.source = source;
+		row.confidence = tr.getConfidence();
+		row.parentTerm = tr.getParentTerm();
+		row.lastUpdated = System.currentTimeMillis();
+		rows.add(row);
+		this.values.put(valueKey(row.relationship, row.value, term), row.value);
+		this.folded.put(foldedKey(row.relationship, row.value, term), "");
+		this.ages.put(ageKey(row.lastUpdated, row.id), term);
+	}
+
+	/**
+	 * Mark a row as updated at the given time (moving it in the age index).
+	 */
+	private void touch(String term, Row row, long now) {
+		this.ages.remove(ageKey(row.lastUpdated, row.id));
+		row.lastUpdated = now;
+		this.ages.put(ageKey(row.lastUpdated, row.id), term);
+	}
+
+	private void removeIndexes(String term, Row row) {
+		this.values.remove(valueKey(row.relationship, row.value, term));
+		this.folded.remove(foldedKey(row.relationship, row.value, term));
+		this.ages.remove(ageKey(row.lastUpdated, row.id));
+	}
+
+	private void commit() {
+		this.meta.put(NEXT_ID, this.nextId);
+		this.store.commit();
+	}
+
+	/**
+	 * Undo the uncommitted changes of a failed write.
+	 * @return the failure as an SQLException, for the caller to throw
+	 */
+	private SQLException rollback(IllegalStateException e) {
+		try {
+			this.store.rollback();
+			Long id = this.meta.get(NEXT_ID);
+			this.nextId = id == null ? 1 : id;
+		} catch (IllegalStateException re) {
+			; // closed or broken, nothing left to undo
+		}
+		return storeError(e);
+	}
+
+	private static SQLException storeError(IllegalStateException e) {
+		return new SQLException("Key-value store error: " + e.getMessage(), e);
+	}
+
+	private static Row find(ArrayList<Row> rows, String relationship, String value) {
+		for (Row row : rows) {
+			if (row.relationship.equals(relationship) && row.value.equals(value))
+				return row;
+		}
+		return null;
+	}
+
+	private static Row findById(ArrayList<Row> rows, long id) {
+		for (Row row : rows) {
+			if (row.id == id)
+				return row;
+		}
+		return null;
+	}
+
+	private static String valueKey(String relationship, String value, String term) {
+		return relationship + '\u0000' + ResourceDBWrapper.valueHash(value) + '\u0000' + term;
+	}
+
+	private static String foldedKey(String relationship, String value, String term) {
+		return ResourceDBWrapper.foldedHash(value) + '\u0000' + relationship + '\u0000' + term + '\u0000'
+				+ ResourceDBWrapper.valueHash(value);
+	}
+
+	/**
+	 * Age index key: last updated and row id as fixed-width hex, so keys sort by (last_updated, id) like the SQL sweeps.
+	 */
+	private static String ageKey(long lastUpdated, long id) {
+		return hex(lastUpdated) + hex(id);
+	}
+
+	private static long ageId(String key) {
+		return Long.parseLong(key.substring(16), 16);
+	}
+
+	private static String hex(long n) {
+		String digits = Long.toHexString(n);
+		return "0000000000000000".substring(digits.length()) + digits;
+	}
+
+	private static String missKey(String source, String query, String matchMode) {
+		return source + '\u0000' + matchMode + '\u0000' + query;
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	private static byte[] encode(ArrayList<Row> rows) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + rows.size() * 96);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(rows.size());
+			for (Row row : rows) {
+				out.writeLong(row.id);
+				writeString(out, row.relationship);
+				writeString(out, row.value);
+				writeString(out, row.source);
+				out.writeDouble(row.confidence);
+				writeString(out, row.parentTerm);
+				out.writeLong(row.lastUpdated);
+			}
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new IllegalStateException(e); // not thrown by in-memory streams
+		}
+	}
+
+	private static ArrayList<Row> decode(byte[] record) {
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+			int size = in.readInt();
+			ArrayList<Row> rows = new ArrayList<Row>(size);
+			for (int i = 0; i < size; i++) {
+				Row row = new Row();
+				row.id = in.readLong();
+				row.relationship = readString(in);
+				row.value = readString(in);
+				row.source = readString(in);
+				row.confidence = in.readDouble();
+				row.parentTerm = readString(in);
+				row.lastUpdated = in.readLong();
+				rows.add(row);
+			}
+			return rows;
+		} catch (IOException e) {
+			throw new IllegalStateException("Corrupt term record", e);
+		}
+	}
+
+	/**
+	 * Length-prefixed UTF-8 (writeUTF can't hold values over 64KB), -1 for null.
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+}
@@ -0,0 +1,30 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+/**
+ * Receives a measurement for every database call a {@link ResourceDBWrapper} makes, e.g. to aggregate them in
+ * memory ({@link OperationMetrics}, the default) or pass them on to a monitoring system.
+ * Called on the thread that made the call, right after its connection was handed back, so it must be thread-safe
+ * and quick.
+ */
+public interface MetricsRegistry {
+	/**
+	 * Record one finished operation.
+	 * @param operation name of the ResourceDBWrapper method, e.g. "termExists"
+	 * @param nanos time from asking for a connection to handing it back
+	 * @param acquireNanos part of nanos spent waiting for the connection
+	 * @param rows rows the operation read or wrote
+	 * @param failed true if it ended in an error, whether thrown or only printed
+	 */
+	void record(String operation, long nanos, long acquireNanos, long rows, boolean failed);
+
+	/**
+	 * Report an operation that took at least the wrapper's slow-query threshold (see
+	 * {@link ResourceDBWrapper#setSlowQueryMillis(long)}), right after it was recorded.  Not called with the threshold at 0.
+	 * @param operation name of the ResourceDBWrapper method
+	 * @param nanos time from asking for a connection to handing it back
+	 * @param acquireNanos part of nanos spent waiting for the connection
+	 * @param rows rows the operation read or wrote
+	 * @param failed true if it ended in an error
+	 */
+	void slowOperation(String operation, long nanos, long acquireNanos, long rows, boolean failed);
+}
@@ -0,0 +1,62 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+/**
+ * MySQL / InnoDB.
+ */
+class MySQLDialect extends SQLDialect {
+	public String getName() {
+		return "MySQL";
+	}
+
+	public String tableOptions() {
+		// InnoDB for the foreign key and transactions; utf8 keeps the (term, relationship, value) index under the key size limit
+		return " ENGINE=InnoDB DEFAULT CHARSET=utf8";
+	}
+
+	public String longTextType() {
+		return "MEDIUMTEXT";
+	}
+
+	public String blobType() {
+		return "MEDIUMBLOB";
+	}
+
+	/**
+	 * Digests are plain ASCII, one byte per character keeps the unique (term, relationship, value_hash) index small.
+	 */
+	public String hashColumnType() {
+		return "CHAR(40) CHARACTER SET ascii";
+	}
+
+	public String alterColumn(String table, String column, String definition) {
+		return "ALTER TABLE " + table + " MODIFY " + column + " " + definition;
+	}
+
+	public String dropIndex(String name, String table) {
+		return "DROP INDEX " + name + " ON " + table;
+	}
+
+	public String upsertTerms(int rows) {
+		return "INSERT INTO terms (term) VALUES " + repeat("(?)", rows) + " ON DUPLICATE KEY UPDATE term=term";
+	}
+
+	public String upsertRelationship() {
+		return "INSERT INTO termrelationships (term, relationship, value, confidence, source, parentTerm, value_hash, folded_hash) "
+				+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?) ON DUPLICATE KEY UPDATE id=id";
+	}
+
+	public String upsertIdRoute() {
+		return "INSERT INTO idroutes (value_hash, term) VALUES (?, ?) ON DUPLICATE KEY UPDATE term=term";
+	}
+
+	/**
+	 * Connector/J reads the whole ResultSet into memory unless the fetch size is Integer.MIN_VALUE, which streams it row by row.
+	 */
+	public int streamingFetchSize(int fetchSize) {
+		return Integer.MIN_VALUE;
+	}
+
+	public String storedIdentifier(String identifier) {
+		return identifier;
+	}
+}
@@ -0,0 +1,205 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-memory {@link MetricsRegistry}: per operation, the number of calls, errors, slow calls and rows, the time spent
+ * waiting for connections, and a latency histogram.  The histogram has one bucket per power of two microseconds, so
+ * percentiles are read to within a factor of two at a fixed cost of a few atomic increments per call.
+ * Slow calls are also written to System.err, one line each.
+ */
+public class OperationMetrics implements MetricsRegistry {
+	// Bucket i counts calls that took less than 2^i microseconds (the last one everything slower)
+	private static final int BUCKETS = 32;
+
+	private final ConcurrentHashMap<String, Stats> operations = new ConcurrentHashMap<String, Stats>();
+
+	public void record(String operation, long nanos, long acquireNanos, long rows, boolean failed) {
+		this.statsFor(operation).add(nanos, acquireNanos, rows, failed);
+	}
+
+	public void slowOperation(String operation, long nanos, long acquireNanos, long rows, boolean failed) {
+		this.statsFor(operation).slow.incrementAndGet();
+		System.err.println(describeSlow(operation, nanos, acquireNanos, rows, failed));
+	}
+
+	private Stats statsFor(String operation) {
+		Stats stats = this.operations.get(operation);
+		if (stats == null) {
+			Stats created = new Stats(operation);
+			stats = this.operations.putIfAbsent(operation, created);
+			if (stats == null)
+				stats = created;
+		}
+		return stats;
+	}
+
+	/**
+	 * @return the log line of a slow operation
+	 */
+	static String describeSlow(String operation, long nanos, long acquireNanos, long rows, boolean failed) {
+		return "Slow database operation: " + operation + " took " + nanos / 1000000 + "ms (" + acquireNanos / 1000000
+				+ "ms waiting for a connection, " + rows + " rows" + (failed ? ", failed" : "") + ").";
+	}
+
+	/**
+	 * @param operation name of the ResourceDBWrapper method
+	 * @return its statistics, null if it hasn't been called
+	 */
+	public Stats getStats(String operation) {
+		return this.operations.get(operation);
+	}
+
+	/**
+	 * @return statistics of every operation called so far, the one with the most total time first
+	 */
+	public ArrayList<Stats> getAllStats() {
+		ArrayList<Stats> all = new ArrayList<Stats>(this.operations.values());
+		Collections.sort(all, new java.util.Comparator<Stats>() {
+			public int compare(Stats a, Stats b) {
+				long x = a.totalNanos.get();
+				long y = b.totalNanos.get();
+				return x > y ? -1 : (x == y ? a.operation.compareTo(b.operation) : 1);
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * Forget everything recorded so far, e.g. at the start of a measurement interval.
+	 */
+	public void reset() {
+		this.operations.clear();
+	}
+
+	/**
+	 * One line per operation, slowest in total first.
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder("OperationMetrics");
+		for (Stats stats : this.getAllStats())
+			sb.append("\n  ").append(stats);
+		return sb.toString();
+	}
+
+	/**
+	 * Running totals of one operation.  Read while calls are being recorded, so the counts may be a call apart.
+	 */
+	public static class Stats {
+		private final String operation;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong slow = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong acquireNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		Stats(String operation) {
+			this.operation = operation;
+		}
+
+		void add(long nanos, long acquire, long rowCount, boolean failed) {
+			this.count.incrementAndGet();
+			if (failed)
+				this.errors.incrementAndGet();
+			this.rows.addAndGet(rowCount);
+			this.totalNanos.addAndGet(nanos);
+			this.acquireNanos.addAndGet(acquire);
+			long max = this.maxNanos.get();
+			while (nanos > max && !this.maxNanos.compareAndSet(max, nanos))
+				max = this.maxNanos.get();
+			long micros = nanos / 1000;
+			int bucket = micros <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+			this.histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+		}
+
+		public String getOperation() {
+			return this.operation;
+		}
+
+		public long getCount() {
+			return this.count.get();
+		}
+
+		public long getErrorCount() {
+			return this.errors.get();
+		}
+
+		/**
+		 * @return calls that took at least the slow-query threshold
+		 */
+		public long getSlowCount() {
+			return this.slow.get();
+		}
+
+		public long getRowCount() {
+			return this.rows.get();
+		}
+
+		public long getTotalMillis() {
+			return this.totalNanos.get() / 1000000;
+		}
+
+		/**
+		 * @return total time spent waiting for connections, in milliseconds
+		 */
+		public long getAcquireMillis() {
+			return this.acquireNanos.get() / 1000000;
+		}
+
+		public long getMeanMicros() {
+			long calls = this.count.get();
+			return calls == 0 ? 0 : this.totalNanos.get() / 1000 / calls;
+		}
+
+		public long getMaxMicros() {
+			return this.maxNanos.get() / 1000;
+		}
+
+		/**
+		 * @param percentile between 0 and 100, e.g. 99
+		 * @return upper bound of the histogram bucket holding that percentile, in microseconds (0 if never called)
+		 */
+		public long getPercentileMicros(double percentile) {
+			long[] buckets = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				buckets[i] = this.histogram.get(i);
+				total += buckets[i];
+			}
+			if (total == 0)
+				return 0;
+			long rank = (long) Math.ceil(total * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets[i];
+				if (seen >= rank && buckets[i] > 0)
+					return i == BUCKETS - 1 ? this.getMaxMicros() : 1L << i;
+			}
+			return this.getMaxMicros();
+		}
+
+		/**
+		 * @return calls per latency bucket: index i counts calls under 2^i microseconds (and over the previous bound)
+		 */
+		public long[] getHistogram() {
+			long[] buckets = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++)
+				buckets[i] = this.histogram.get(i);
+			return buckets;
+		}
+
+		public String toString() {
+			return this.operation + "[calls=" + this.getCount() + ", errors=" + this.getErrorCount() + ", slow=" + this.getSlowCount()
+					+ ", rows=" + this.getRowCount() + ", totalMs=" + this.getTotalMillis() + ", acquireMs=" + this.getAcquireMillis()
+					+ ", meanUs=" + this.getMeanMicros() + ", p50Us<=" + this.getPercentileMicros(50) + ", p99Us<=" + this.getPercentileMicros(99)
+					+ ", maxUs=" + this.getMaxMicros() + "]";
+		}
+	}
+}
@@ -0,0 +1,200 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A physical database connection owned by a {@link ConnectionPool}.
+ * Keeps track of when the connection was last handed back so the pool can evict idle connections,
+ * and caches the PreparedStatements created on it so repeated queries skip parsing and planning.
+ */
+class PooledConnection {
+	private static final int MIN_STATEMENTS = 8;
+
+	private final ConnectionPool pool;
+	private final Connection conn;
+	private long lastReleased;
+	private boolean broken;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	// The operation the connection is currently borrowed for (null if untracked), reported when it is released
+	private ResourceDBWrapper owner;
+	private String operation;
+	private long operationStart;
+	private long acquireNanos;
+	private long rows;
+	private boolean failed;
+
+	/**
+	 * Constructor.
+	 * @param pool ConnectionPool the connection belongs to (and goes back to)
+	 * @param conn open Connection
+	 * @param statementCacheSize most PreparedStatements kept open on the connection (least recently used are closed);
+	 * never less than MIN_STATEMENTS so a single operation can't evict a statement it is still using
+	 */
+	PooledConnection(ConnectionPool pool, Connection conn, int statementCacheSize) {
+		this.pool = pool;
+		this.conn = conn;
+		this.lastReleased = System.currentTimeMillis();
+		this.broken = false;
+		final int capacity = Math.max(MIN_STATEMENTS, statementCacheSize);
+		this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+				if (size() <= capacity)
+					return false;
+				closeQuietly(eldest.getValue());
+				return true;
+			}
+		};
+	}
+
+	ConnectionPool getPool() {
+		return this.pool;
+	}
+
+	Connection getConnection() {
+		return this.conn;
+	}
+
+	/**
+	 * Get a PreparedStatement for the SQL, reusing the one cached on this connection if there is one.
+	 * The statement belongs to the connection: callers must NOT close it, only its ResultSets.
+	 * @param sql parameterized SQL
+	 * @return PreparedStatement ready for its parameters to be set, with no batch left over from a call that failed
+	 * @throws SQLException Thrown if the statement can't be prepared
+	 */
+	PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = this.statements.get(sql);
+		if (ps == null) {
+			ps = this.conn.prepareStatement(sql);
+			this.statements.put(sql, ps);
+		}
+		else {
+			ps.clearParameters();
+			ps.clearBatch();
+		}
+		return ps;
+	}
+
+	/**
+	 * Drop a cached statement, e.g. after it failed and may be in a bad state.
+	 * @param sql SQL the statement was prepared with
+	 */
+	void evict(String sql) {
+		closeQuietly(this.statements.remove(sql));
+	}
+
+	/**
+	 * @return number of PreparedStatements currently cached on this connection
+	 */
+	int getCachedStatementCount() {
+		return this.statements.size();
+	}
+
+	/**
+	 * Start timing the operation the connection was borrowed for; it is reported to the owner when the connection is
+	 * released.
+	 * @param operation name of the ResourceDBWrapper method
+	 * @param startNanos System.nanoTime() when the connection was asked for
+	 * @param acquireNanos nanoseconds spent getting the connection
+	 * @param owner ResourceDBWrapper to report to
+	 */
+	void beginOperation(String operation, long startNanos, long acquireNanos, ResourceDBWrapper owner) {
+		this.owner = owner;
+		this.operation = operation;
+		this.operationStart = startNanos;
+		this.acquireNanos = acquireNanos;
+		this.rows = 0;
+		this.failed = false;
+	}
+
+	/**
+	 * Count rows the current operation read or wrote.
+	 */
+	void addRows(long count) {
+		this.rows += count;
+	}
+
+	/**
+	 * Flag the current operation as failed (the connection itself may still be fine).
+	 */
+	void markFailed() {
+		this.failed = true;
+	}
+
+	/**
+	 * Report the current operation, if one is being timed, to its owner.
+	 */
+	void endOperation() {
+		if (this.operation == null)
+			return;
+		ResourceDBWrapper reportTo = this.owner;
+		String name = this.operation;
+		this.owner = null;
+		this.operation = null;
+		reportTo.operationFinished(name, System.nanoTime() - this.operationStart, this.acquireNanos, this.rows, this.failed);
+	}
+
+	long getLastReleased() {
+		return this.lastReleased;
+	}
+
+	void markReleased() {
+		this.lastReleased = System.currentTimeMillis();
+	}
+
+	/**
+	 * Flag the connection so the pool closes it instead of handing it out again.
+	 */
+	void markBroken() {
+		this.broken = true;
+	}
+
+	boolean isBroken() {
+		return this.broken;
+	}
+
+	/**
+	 * Tests the connection with the driver's own validation check.
+	 * @param timeoutSeconds seconds to wait for the database to respond (0 for no limit)
+	 * @return true if the connection is usable, false if not
+	 */
+	boolean isValid(int timeoutSeconds) {
+		try {
+			return !this.conn.isClosed() && this.conn.isValid(timeoutSeconds);
+		} catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close the underlying connection, ignoring any error.
+	 */
+	void closeQuietly() {
+		Iterator<PreparedStatement> iter = this.statements.values().iterator();
+		while (iter.hasNext()) {
+			closeQuietly(iter.next());
+			iter.remove();
+		}
+		try {
+			this.conn.close();
+		} catch (SQLException e) {
+			;
+		}
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		if (ps == null)
+			return;
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			;
+		}
+	}
+}
@@ -0,0 +1,16 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Receives TermRelationships one at a time from a streaming ResourceDBWrapper query,
+ * e.g. {@link ResourceDBWrapper#forEachRelationshipOlderThan(java.util.Date, int, RelationshipCallback)}.
+ */
+public interface RelationshipCallback {
+	/**
+	 * Handle one row.  The TermRelationship is not referenced again by the caller, so it can be dropped right away.
+	 * @param tr TermRelationship read from the current row
+	 * @return true to continue with the next row, false to stop the scan
+	 */
+	boolean process(TermRelationship tr);
+}
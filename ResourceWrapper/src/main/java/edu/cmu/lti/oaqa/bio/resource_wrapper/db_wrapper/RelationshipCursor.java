@@ -0,0 +1,91 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.io.Closeable;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Iterator over the rows of a streaming termrelationships query.
+ * Rows are read from the driver as the iterator advances, so only the current fetch batch is held in memory.
+ * The cursor keeps its pooled connection until it is exhausted or closed: always close it in a finally block.
+ * Database errors while advancing are rethrown as IllegalStateException (with the SQLException as the cause).
+ */
+public class RelationshipCursor implements Iterator<TermRelationship>, Closeable {
+	private final ConnectionPool pool;
+	private PooledConnection pc;
+	private final ResultSet rs;
+	private TermRelationship next;
+	private long rowCount;
+
+	/**
+	 * Constructor, takes ownership of the connection and the ResultSet.
+	 */
+	RelationshipCursor(ConnectionPool pool, PooledConnection pc, ResultSet rs) {
+		this.pool = pool;
+		this.pc = pc;
+		this.rs = rs;
+		this.next = null;
+		this.rowCount = 0;
+	}
+
+	public boolean hasNext() {
+		if (this.next != null)
+			return true;
+		if (this.pc == null)
+			return false;
+		try {
+			if (this.rs.next()) {
+				this.next = ResourceDBWrapper.readRelationship(this.rs);
+				return true;
+			}
+		} catch (SQLException e) {
+			this.pc.markBroken();
+			this.pc.markFailed();
+			this.close();
+			throw new IllegalStateException("Reading the next row failed.", e);
+		}
+		this.close();
+		return false;
+	}
+
+	public TermRelationship next() {
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+		TermRelationship tr = this.next;
+		this.next = null;
+		this.rowCount++;
+		return tr;
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * @return rows returned by {@link #next()} so far
+	 */
+	public long getRowCount() {
+		return this.rowCount;
+	}
+
+	/**
+	 * Close the ResultSet and hand the connection back to the pool.  Safe to call more than once.
+	 */
+	public void close() {
+		if (this.pc == null)
+			return;
+		try {
+			this.rs.close();
+		} catch (SQLException e) {
+			this.pc.markBroken();
+		}
+		this.pc.addRows(this.rowCount);
+		this.pool.release(this.pc);
+		this.pc = null;
+		this.next = null;
+	}
+}
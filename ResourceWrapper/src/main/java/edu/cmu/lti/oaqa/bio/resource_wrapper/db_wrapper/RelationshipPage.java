@@ -0,0 +1,62 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.util.ArrayList;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * One page of a term's relationships, highest confidence first, as returned by
+ * {@link ResourceDBWrapper#getRelationshipPage(String, String, String, String, int)}.
+ * The token of the next page encodes the position of the page's last row (its confidence and row id), so fetching the
+ * next page is an index seek however deep into the term it is, and rows written meanwhile don't shift the pages.
+ */
+public class RelationshipPage {
+	private final ArrayList<TermRelationship> relationships;
+	private final String nextToken;
+
+	RelationshipPage(ArrayList<TermRelationship> relationships, String nextToken) {
+		this.relationships = relationships;
+		this.nextToken = nextToken;
+	}
+
+	public ArrayList<TermRelationship> getRelationships() {
+		return this.relationships;
+	}
+
+	/**
+	 * @return token to pass for the next page, null if this is the last one
+	 */
+	public String getNextToken() {
+		return this.nextToken;
+	}
+
+	/**
+	 * @return a token for the position after the row with this confidence and id
+	 */
+	static String token(double confidence, long id) {
+		return Long.toHexString(Double.doubleToLongBits(confidence)) + ":" + Long.toString(id);
+	}
+
+	/**
+	 * @return confidence of the row a token was made for
+	 * @throws IllegalArgumentException Thrown if the token wasn't made by {@link #token(double, long)}
+	 */
+	static double tokenConfidence(String token) {
+		return Double.longBitsToDouble(Long.parseUnsignedLong(tokenPart(token, 0), 16));
+	}
+
+	/**
+	 * @return row id of the row a token was made for
+	 * @throws IllegalArgumentException Thrown if the token wasn't made by {@link #token(double, long)}
+	 */
+	static long tokenId(String token) {
+		return Long.parseLong(tokenPart(token, 1));
+	}
+
+	private static String tokenPart(String token, int part) {
+		String[] parts = token.split(":");
+		if (parts.length != 2)
+			throw new IllegalArgumentException("Not a relationship page token: " + token);
+		return parts[part];
+	}
+}
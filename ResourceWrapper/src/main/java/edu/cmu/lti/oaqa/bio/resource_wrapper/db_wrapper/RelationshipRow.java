@@ -0,0 +1,54 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Timestamp;
+
+/**
+ * A termrelationships row together with its bookkeeping columns (row id and last update time), as returned by
+ * {@link ResourceDBWrapper#getOldestRelationships(String, String, String, java.util.Date, RelationshipRow, int)}.
+ * Also serves as the position to continue a paged scan from.
+ */
+public class RelationshipRow {
+	private final long id;
+	private final String term;
+	private final String relationship;
+	private final String value;
+	private final String source;
+	private final Timestamp lastUpdated;
+
+	RelationshipRow(long id, String term, String relationship, String value, String source, Timestamp lastUpdated) {
+		this.id = id;
+		this.term = term;
+		this.relationship = relationship;
+		this.value = value;
+		this.source = source;
+		this.lastUpdated = lastUpdated;
+	}
+
+	public long getId() {
+		return this.id;
+	}
+
+	public String getTerm() {
+		return this.term;
+	}
+
+	public String getRelationship() {
+		return this.relationship;
+	}
+
+	public String getValue() {
+		return this.value;
+	}
+
+	public String getSource() {
+		return this.source;
+	}
+
+	public Timestamp getLastUpdated() {
+		return this.lastUpdated;
+	}
+
+	public String toString() {
+		return this.term + " | " + this.relationship + " | " + this.value + "; " + this.source + "; " + this.lastUpdated;
+	}
+}
@@ -0,0 +1,151 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+
+/**
+ * Read replicas of the resources database, one {@link ConnectionPool} each, and the policy for picking one per read.
+ * ResourceDBWrapper sends its read-only queries here and everything else to the primary pool.
+ * <p>
+ * ROUND_ROBIN takes the replicas in turn.  LEAST_LOADED takes the one with the smallest share of its connections
+ * in use, so a replica slowed down by a long query gets fewer new reads; ties go round-robin.  Closed pools are skipped.
+ * The replicas are expected to be kept in sync by the database (e.g. MySQL replication); nothing here copies data.
+ */
+public class ReplicaSet {
+	/** How a replica is picked for each read. */
+	public static enum Policy {
+		ROUND_ROBIN, LEAST_LOADED
+	}
+
+	private static ReplicaSet defaultSet;
+
+	private final List<ConnectionPool> replicas;
+	private final Policy policy;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicLong[] reads;
+
+	/**
+	 * Constructor.
+	 * @param replicas ConnectionPools of the replicas (the caller closes them, unless {@link #close()} is used)
+	 * @param policy how a replica is picked for each read
+	 */
+	public ReplicaSet(List<ConnectionPool> replicas, Policy policy) {
+		if (replicas.isEmpty())
+			throw new IllegalArgumentException("A ReplicaSet needs at least one replica");
+		this.replicas = Collections.unmodifiableList(new ArrayList<ConnectionPool>(replicas));
+		this.policy = policy;
+		this.reads = new AtomicLong[replicas.size()];
+		for (int i = 0; i < this.reads.length; i++)
+			this.reads[i] = new AtomicLong();
+	}
+
+	/**
+	 * Get the replicas configured in DBInfo (readURLs, readPolicy), shared by every ResourceDBWrapper that is
+	 * constructed without an explicit pool.  Each replica gets a pool sized like the primary's.
+	 * @return the shared ReplicaSet, null if no replicas are configured
+	 * @throws SQLException Thrown if the driver can't be loaded
+	 */
+	public static synchronized ReplicaSet getDefault() throws SQLException {
+		if (DBInfo.readURLs == null || DBInfo.readURLs.trim().length() == 0)
+			return null;
+		if (defaultSet == null || defaultSet.isClosed()) {
+			ArrayList<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+			for (String url : DBInfo.readURLs.split(",")) {
+				if (url.trim().length() > 0)
+					pools.add(new ConnectionPool(DBInfo.dbClass, url.trim() + "resources", DBInfo.userName, DBInfo.password,
+													DBInfo.poolMinSize, DBInfo.poolMaxSize, DBInfo.poolMaxWait,
+													DBInfo.poolIdleTimeout, DBInfo.poolValidationTimeout));
+			}
+			defaultSet = new ReplicaSet(pools, parsePolicy(DBInfo.readPolicy));
+		}
+		return defaultSet;
+	}
+
+	/**
+	 * @param name "round-robin" or "least-loaded" (case and separator insensitive)
+	 * @return the Policy, ROUND_ROBIN for anything unrecognized
+	 */
+	public static Policy parsePolicy(String name) {
+		if (name != null && name.trim().replace('-', '_').equalsIgnoreCase(Policy.LEAST_LOADED.name()))
+			return Policy.LEAST_LOADED;
+		return Policy.ROUND_ROBIN;
+	}
+
+	/**
+	 * Pick the replica for the next read.
+	 * @return ConnectionPool of the chosen replica, null if every replica is closed
+	 */
+	public ConnectionPool choose() {
+		int count = this.replicas.size();
+		int start = (this.next.getAndIncrement() & Integer.MAX_VALUE) % count;
+		int chosen = -1;
+		double lowest = Double.MAX_VALUE;
+		for (int i = 0; i < count; i++) {
+			int index = (start + i) % count;
+			ConnectionPool pool = this.replicas.get(index);
+			if (pool.isClosed())
+				continue;
+			if (this.policy == Policy.ROUND_ROBIN) {
+				chosen = index;
+				break;
+			}
+			double load = (double) pool.getActiveCount() / pool.getMaxSize();
+			if (load < lowest) {
+				lowest = load;
+				chosen = index;
+			}
+		}
+		if (chosen < 0)
+			return null;
+		this.reads[chosen].incrementAndGet();
+		return this.replicas.get(chosen);
+	}
+
+	public List<ConnectionPool> getReplicas() {
+		return this.replicas;
+	}
+
+	public Policy getPolicy() {
+		return this.policy;
+	}
+
+	/**
+	 * @param index position of the replica in {@link #getReplicas()}
+	 * @return reads routed to that replica
+	 */
+	public long getReadCount(int index) {
+		return this.reads[index].get();
+	}
+
+	/**
+	 * @return true once every replica pool is closed
+	 */
+	public boolean isClosed() {
+		for (ConnectionPool pool : this.replicas) {
+			if (!pool.isClosed())
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close every replica pool.
+	 */
+	public void close() {
+		for (ConnectionPool pool : this.replicas)
+			pool.close();
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("ReplicaSet[" + this.policy);
+		for (int i = 0; i < this.replicas.size(); i++)
+			sb.append("; ").append(this.replicas.get(i)).append(" reads=").append(this.reads[i]);
+		return sb.append("]").toString();
+	}
+}
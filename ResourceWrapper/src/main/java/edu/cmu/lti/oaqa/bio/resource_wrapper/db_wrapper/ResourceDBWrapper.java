@@ -1,32 +1,199 @@
 package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
 
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Statement;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
 
 import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.RelationshipLoader;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
 import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
 
 /**
- * Object for interfacing with the resources database.
+ * Object for interfacing with the resources database; the JDBC implementation of {@link TermStore}.
+ * Connections are borrowed from a {@link ConnectionPool} for the duration of each call and handed back afterwards.
+ * All queries are parameterized PreparedStatements, which stay cached on the pooled connection between calls.
+ * Unless DBInfo.schemaAutoMigrate is off, the tables and indexes are created or migrated by {@link SchemaManager}
+ * the first time the database is used, so an empty MySQL schema or a new embedded H2 file works out of the box.
+ * Relationship values are stored in full and identified by their digest ('value_hash', see {@link #valueHash(String)}),
+ * so lookups, existence checks and deletes compare a short fixed-width column however long the value is.  A second
+ * digest of the case-folded value ('folded_hash') serves the reverse lookups of {@link #getTermsByValue(String, String)}.
+ * <p>
+ * With a {@link ReplicaSet}, read-only queries go to the replicas and writes to the primary pool.  For a short
+ * window after this wrapper writes, its reads go to the primary too, so a caller reading back what it just wrote
+ * doesn't miss it while the replicas catch up.  A replica that can't hand out a connection is skipped for that read.
+ * <p>
+ * Every call is timed under its method name, from asking for a connection to handing it back, together with the time
+ * spent waiting for the connection, the rows read or written and whether it failed (including the errors that are
+ * only printed).  The measurements go to a {@link MetricsRegistry}, which is also told of the calls slower than
+ * DBInfo.slowQueryMillis (the default {@link OperationMetrics} counts them and logs them to System.err).
+ * Streaming calls include the time their callbacks take.
+ * <p>
+ * With the change log on ({@link #setChangeLog(boolean)}), each write also records the term names and ID's it makes
+ * stale in the 'termchanges' table, in the same transaction, for the DBCaches of other nodes to read back.
  * @author Collin McCormack (cmccorma)
  * @version 0.1
  */
-public class ResourceDBWrapper {
-	
+public class ResourceDBWrapper implements TermStore {
+	private static final String TERM_EXISTS = "SELECT COUNT(*) FROM terms WHERE term=?";
+	private static final String DELETE_TERM = "DELETE FROM terms WHERE term=?";
+	private static final String TERM_BY_RELATIONSHIP_AND_VALUE = "SELECT term FROM termrelationships WHERE relationship=? "
+																+ "AND value_hash=?";
+	// Reverse lookups on the case-folded digest ('folded_hash', see foldedHash)
+	private static final String TERMS_BY_FOLDED_VALUE = "SELECT DISTINCT term FROM termrelationships WHERE folded_hash=? "
+														+ "ORDER BY term";
+	private static final String TERMS_BY_RELATIONSHIP_AND_FOLDED_VALUE = "SELECT DISTINCT term FROM termrelationships "
+																		+ "WHERE folded_hash=? AND relationship=? ORDER BY term";
+	private static final String HAS_RELATIONSHIPS = "SELECT COUNT(*) FROM termrelationships WHERE term=?";
+	private static final String RELATIONSHIP_EXISTS = "SELECT COUNT(*) FROM termrelationships WHERE term=? AND relationship=? "
+														+ "AND value_hash=?";
+	private static final String RELATIONSHIP_COLUMNS = "term, relationship, value, source, confidence, parentTerm";
+	private static final String GET_RELATIONSHIPS = "SELECT " + RELATIONSHIP_COLUMNS + " FROM termrelationships WHERE term=?";
+	private static final String GET_RELATIONSHIPS_BY_SOURCE = GET_RELATIONSHIPS + " AND source=?";
+	// Highest confidence first, ties broken by row id so page positions are exact (termrelationships_term_rel_conf)
+	private static final String RELATIONSHIP_PAGE = "SELECT id, " + RELATIONSHIP_COLUMNS + " FROM termrelationships WHERE term=?";
+	private static final String RELATIONSHIP_PAGE_AFTER = " AND (confidence < ? OR (confidence = ? AND id < ?))";
+	private static final String RELATIONSHIP_PAGE_ORDER = " ORDER BY confidence DESC, id DESC LIMIT ?";
+	// One row per relationship type of the term, one row of NULL if it has none, no row if it isn't stored
+	private static final String RELATIONSHIP_TYPES = "SELECT DISTINCT r.relationship FROM terms t LEFT JOIN termrelationships r "
+													+ "ON r.term=t.term WHERE t.term=? ORDER BY r.relationship";
+	private static final String RELATIONSHIP_TYPES_BY_SOURCE = "SELECT DISTINCT r.relationship FROM terms t LEFT JOIN "
+																+ "termrelationships r ON r.term=t.term AND r.source=? WHERE t.term=? "
+																+ "ORDER BY r.relationship";
+	// Whole-term reads: one row per relationship, or a single row of NULLs if the term has none; no rows if the term is absent
+	private static final String WHOLE_TERM_SELECT = "SELECT t.term, r.relationship, r.value, r.source, r.confidence, r.parentTerm "
+													+ "FROM terms t LEFT JOIN termrelationships r ON r.term=t.term";
+	private static final String GET_WHOLE_TERM = WHOLE_TERM_SELECT + " WHERE t.term=?";
+	private static final String GET_WHOLE_TERM_BY_SOURCE = WHOLE_TERM_SELECT + " AND r.source=? WHERE t.term=?";
+	private static final String BY_RELATIONSHIP_AND_VALUE = " WHERE t.term=(SELECT MIN(term) FROM termrelationships "
+															+ "WHERE relationship=? AND value_hash=?)";
+	private static final String GET_WHOLE_TERM_BY_RELATIONSHIP_AND_VALUE = WHOLE_TERM_SELECT + BY_RELATIONSHIP_AND_VALUE;
+	private static final String GET_WHOLE_TERM_BY_RELATIONSHIP_AND_VALUE_AND_SOURCE = WHOLE_TERM_SELECT + " AND r.source=?"
+																						+ BY_RELATIONSHIP_AND_VALUE;
+	private static final String GET_RELATIONSHIPS_OLDER_THAN = "SELECT " + RELATIONSHIP_COLUMNS + " FROM termrelationships "
+																+ "WHERE last_updated < ?";
+	// Maintenance sweeps: oldest rows first, continuing after the (last_updated, id) position of the previous page
+	private static final String OLDEST_RELATIONSHIPS_SELECT = "SELECT id, term, relationship, value, source, last_updated "
+																+ "FROM termrelationships WHERE relationship=? AND source=? AND value LIKE ? "
+																+ "AND last_updated < ?";
+	private static final String OLDEST_RELATIONSHIPS_ORDER = " ORDER BY last_updated, id LIMIT ?";
+	private static final String GET_OLDEST_RELATIONSHIPS = OLDEST_RELATIONSHIPS_SELECT + OLDEST_RELATIONSHIPS_ORDER;
+	private static final String GET_OLDEST_RELATIONSHIPS_AFTER = OLDEST_RELATIONSHIPS_SELECT
+																	+ " AND (last_updated > ? OR (last_updated = ? AND id > ?))"
+																	+ OLDEST_RELATIONSHIPS_ORDER;
+	private static final String UPDATE_RELATIONSHIP_DETAILS = "UPDATE termrelationships SET confidence=?, parentTerm=? "
+																+ "WHERE term=? AND relationship=? AND value_hash=? AND source=?";
+	private static final String DELETE_RELATIONSHIP_BY_SOURCE = "DELETE FROM termrelationships WHERE term=? AND relationship=? "
+																+ "AND value_hash=? AND source=?";
+	private static final String TOUCH_RELATIONSHIPS = "UPDATE termrelationships SET last_updated=CURRENT_TIMESTAMP "
+														+ "WHERE term=? AND source=?";
+	private static final String MISS_KEY = "source=? AND querytext=? AND matchmode=?";
+	private static final String LOOKUP_MISS_EXISTS = "SELECT COUNT(*) FROM lookupmisses WHERE " + MISS_KEY + " AND expires > ?";
+	private static final String UPDATE_LOOKUP_MISS = "UPDATE lookupmisses SET expires=? WHERE " + MISS_KEY;
+	private static final String INSERT_LOOKUP_MISS = "INSERT INTO lookupmisses (expires, source, querytext, matchmode) VALUES (?, ?, ?, ?)";
+	private static final String DELETE_LOOKUP_MISS = "DELETE FROM lookupmisses WHERE " + MISS_KEY;
+	private static final String DELETE_EXPIRED_LOOKUP_MISSES = "DELETE FROM lookupmisses WHERE expires <= ?";
+	private static final String ALL_TERMS = "SELECT term FROM terms";
+	private static final String TERM_PAGE = "SELECT term FROM terms ORDER BY term LIMIT ?";
+	private static final String TERM_PAGE_AFTER = "SELECT term FROM terms WHERE term > ? ORDER BY term LIMIT ?";
+	private static final String RECORD_ACCESS = "UPDATE terms SET hits=hits+?, last_accessed=? WHERE term=?";
+	private static final String COLDEST_TERMS = "SELECT term, hits, last_accessed FROM terms WHERE last_accessed < ? "
+												+ "ORDER BY hits, last_accessed LIMIT ?";
+	private static final String STORAGE_USAGE = "SELECT COUNT(*), SUM(CHAR_LENGTH(term) + CHAR_LENGTH(relationship) + CHAR_LENGTH(value) "
+												+ "+ COALESCE(CHAR_LENGTH(source), 0) + COALESCE(CHAR_LENGTH(parentTerm), 0)) FROM termrelationships";
+	private static final String ALL_VALUES_OF_RELATIONSHIP = "SELECT value FROM termrelationships WHERE relationship=?";
+	private static final String INSERT_RELATIONSHIP = "INSERT INTO termrelationships (term, relationship, value, confidence, source, "
+														+ "parentTerm, value_hash, folded_hash) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+	private static final String UPDATE_RELATIONSHIP = "UPDATE termrelationships SET term=?, relationship=?, value=?, confidence=?, "
+														+ "source=?, parentTerm=?, value_hash=?, folded_hash=? WHERE term=? AND relationship=? "
+														+ "AND value_hash=?";
+	private static final String DELETE_RELATIONSHIP = "DELETE FROM termrelationships WHERE term=? AND relationship=? AND value_hash=?";
+	// Bulk reads: the owning term's value is returned first so results can be mapped back to the requested keys
+	private static final String WHOLE_TERMS_BY_VALUE_SELECT = "SELECT i.value, t.term, r.relationship, r.value, r.source, r.confidence, "
+															+ "r.parentTerm FROM termrelationships i JOIN terms t ON t.term=i.term "
+															+ "LEFT JOIN termrelationships r ON r.term=t.term";
+	// IN-lists are padded to one of these sizes so only a handful of distinct statements end up in the statement cache
+	static final int[] IN_LIST_SIZES = {1, 4, 16, 64, 256};
+	private static final String TERM_AND_RELATIONSHIP_KEYS = "SELECT t.term, r.relationship, r.value_hash FROM terms t "
+																+ "LEFT JOIN termrelationships r ON r.term=t.term WHERE t.term=?";
+
+	// ShardedTermStore's ID routing index
+	private static final String GET_ID_ROUTES = "SELECT value_hash, term FROM idroutes WHERE value_hash IN ";
+	private static final String DELETE_ID_ROUTE = "DELETE FROM idroutes WHERE value_hash=? AND term=?";
+	private static final String ID_ROUTE_PAGE = "SELECT value_hash, term FROM idroutes ORDER BY value_hash, term LIMIT ?";
+	private static final String ID_ROUTE_PAGE_AFTER = "SELECT value_hash, term FROM idroutes WHERE value_hash > ? "
+														+ "OR (value_hash = ? AND term > ?) ORDER BY value_hash, term LIMIT ?";
+
+	private static final String INSERT_CHANGE = "INSERT INTO termchanges (kind, name) VALUES (?, ?)";
+	private static final String CHANGE_SELECT = "SELECT id, kind, name, changed, CURRENT_TIMESTAMP FROM termchanges";
+	private static final String CHANGES_AFTER = CHANGE_SELECT + " WHERE id > ? ORDER BY id LIMIT ?";
+	private static final String LAST_CHANGE_ID = "SELECT MAX(id) FROM termchanges";
+	private static final String DELETE_CHANGES_BEFORE = "DELETE FROM termchanges WHERE changed < ?";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ConnectionPool pool;
+	private volatile boolean schemaChecked = false;
+	private ReplicaSet replicas;
+	// Replicas still to be looked up in DBInfo on first use (default constructor)
+	private volatile boolean defaultReplicas;
+	private final long readYourWritesMillis;
+	private volatile long lastWriteMillis = 0;
+	private final AtomicLong replicaFailures = new AtomicLong();
+	private volatile MetricsRegistry metrics = new OperationMetrics();
+	private volatile long slowQueryMillis = DBInfo.slowQueryMillis;
+	private volatile boolean changeLog = DBInfo.changeLog;
+
 	/**
-	 * Constructor, currently does no actual initiation.
+	 * Constructor, uses the shared pool and replicas configured in DBInfo (see {@link ConnectionPool#getDefault()} and
+	 * {@link ReplicaSet#getDefault()}).  The pools are only created on first use.
 	 */
 	public ResourceDBWrapper() {
-		;
+		this.pool = null;
+		this.defaultReplicas = true;
+		this.readYourWritesMillis = DBInfo.readYourWritesWindow;
+	}
+
+	/**
+	 * Constructor using a caller-supplied pool for reads and writes.  The caller remains responsible for closing it.
+	 * @param pool ConnectionPool to borrow connections from
+	 */
+	public ResourceDBWrapper(ConnectionPool pool) {
+		this(pool, null, 0);
+	}
+
+	/**
+	 * Constructor with separate read and write endpoints.  The caller remains responsible for closing the pools.
+	 * @param pool ConnectionPool of the primary, for writes (and reads when no replica can be used)
+	 * @param replicas ReplicaSet for reads, null to read from the primary
+	 * @param readYourWritesMillis how long after a write of this wrapper its reads stay on the primary (0 for never)
+	 */
+	public ResourceDBWrapper(ConnectionPool pool, ReplicaSet replicas, long readYourWritesMillis) {
+		this.pool = pool;
+		this.replicas = replicas;
+		this.defaultReplicas = false;
+		this.readYourWritesMillis = readYourWritesMillis;
 	}
-	
+
 	/**
 	 * Tests for existence of a term in the database.
 	 * @param term String to query for
@@ -34,102 +201,108 @@ public class ResourceDBWrapper {
 	 * @throws SQLException
 	 */
 	public boolean termExists(String term) throws SQLException {
-		Connection conn = null;
-		boolean result = false;
-		try {
-			conn = this.getDBConnection();
-			String query = "SELECT COUNT(*) FROM terms WHERE term=\"" + term + "\";";
-			
-			Statement stmt = conn.createStatement();
-			ResultSet rs = stmt.executeQuery(query);
-			rs.next();
-			
-			if (rs.getInt(1) == 1)
-				return true;
-			else
-				return false;
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("termExists");
+			PreparedStatement ps = pc.prepare(TERM_EXISTS);
+			ps.setString(1, term);
+			return this.queryCount(ps) > 0;
 		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
+			return false;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
 		}
-		return result;
 	}
-	
+
 	/**
 	 * @see #termExists(String)
 	 */
 	public boolean termExists(Term term) throws SQLException {
 		return this.termExists(term.getTerm());
 	}
-	
+
 	/**
 	 * Insert a new term into the database.
-	 * Term existence is tested before insertion, no action is taken if the term already exists.
+	 * No action is taken if the term already exists (see {@link #upsertTerm(String)}).
 	 * @param term Term to insert (must be unique in the db)
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
 	public void insertTerm(String term) throws SQLException {
-		Connection conn = null;
 		try {
-			conn = this.getDBConnection();
-			String query = "INSERT INTO terms VALUES (\"" + term + "\");";
-			
-			// Test to see if the term is already in the database
-			// Only insert the term if it is NOT present
-			if (!this.termExists(term)) {
-				Statement stmt = conn.createStatement();
-				stmt.executeUpdate(query);
-			}
+			this.upsertTerm(term);
 		} catch(Exception e) {
 			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Insert a term unless it's already there, in a single statement without an existence check first.
+	 * Safe to call concurrently for the same term: the primary key on 'terms' keeps it to one row.
+	 * @param term String term (at most 255 characters)
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public void upsertTerm(String term) throws SQLException {
+		PooledConnection pc = this.getWriteConnection("upsertTerm");
+		String sql = this.pool.getDialect().upsertTerms(1);
+		try {
+			this.beginChanges(pc);
+			PreparedStatement ps = pc.prepare(sql);
+			ps.setString(1, term);
+			int rows = executeUpsert(ps);
+			this.commitChanges(pc, rows > 0 ? termChanges(term) : new ArrayList<String[]>(0));
+			pc.addRows(rows);
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
 		} finally {
-			conn.close();
+			this.releaseWriteConnection(pc);
 		}
 	}
-	
+
 	/**
 	 * @see #insertTerm(String)
 	 */
 	public void insertTerm(Term term) throws SQLException {
 		this.insertTerm(term.getTerm());
 	}
-	
+
 	/**
 	 * Delete an existing term in the database.
-	 * Checks for existence of term before attempting deletion.  If the term is not in the database, no action is taken.
+	 * If the term is not in the database, no action is taken.
 	 * Term deletions cascade to the 'term' and 'valueTerm' columns in the 'termRelationships' table!
 	 * @param term String to delete from the database
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
 	public void deleteTerm(String term) throws SQLException {
-		Connection conn = null;
-		// DELETE cascades to TermRelationship's 'term' and 'value'
-		String query = "DELETE FROM terms WHERE term = \"" + term + "\";";
-		
+		PooledConnection pc = null;
 		try {
-			conn = this.getDBConnection();
-			
-			if (this.termExists(term)) {
-				Statement stmt = conn.createStatement();
-				stmt.executeUpdate(query);
-			}
+			pc = this.getWriteConnection("deleteTerm");
+			this.beginChanges(pc);
+			// DELETE cascades to TermRelationship's 'term' and 'value'
+			PreparedStatement ps = pc.prepare(DELETE_TERM);
+			ps.setString(1, term);
+			int rows = ps.executeUpdate();
+			this.commitChanges(pc, rows > 0 ? termChanges(term) : new ArrayList<String[]>(0));
+			pc.addRows(rows);
 		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
 		} finally {
-			conn.close();
+			this.releaseWriteConnection(pc);
 		}
 	}
-	
+
 	/**
 	 * @see #deleteTerm(String)
 	 */
 	public void deleteTerm(Term term) throws SQLException {
 		this.deleteTerm(term.getTerm());
 	}
-	
+
 	/**
-	 * This is a vague method.  It should ONLY be used to look for ID's as those are guaranteed to be unique.  
+	 * This is a vague method.  It should ONLY be used to look for ID's as those are guaranteed to be unique.
 	 * It will probably fail spectacularly for anything else.
 	 * It will only return the first result of the query.
 	 * @param relationship String to query on relationship column
@@ -138,25 +311,257 @@ public class ResourceDBWrapper {
 	 * @throws SQLException
 	 */
 	public String getTermByRelationshipAndValue(String relationship, String toTerm) throws SQLException {
-		String query = "SELECT term FROM termrelationships WHERE relationship=\""+ relationship + "\" AND value=\"" + toTerm + "\";";
-		Connection conn = null;
-		try {
-			conn = this.getDBConnection();
-			
-			Statement stmt = conn.createStatement();
-			ResultSet rs = stmt.executeQuery(query);
-			if (rs.next())
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getTermByRelationshipAndValue");
+			PreparedStatement ps = pc.prepare(TERM_BY_RELATIONSHIP_AND_VALUE);
+			ps.setString(1, relationship);
+			ps.setString(2, valueHash(toTerm));
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (!rs.next())
+					return null;
+				pc.addRows(1);
 				return rs.getString(1);
-			else
-				return null;
+			} finally {
+				rs.close();
+			}
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+			return null;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Find the terms listing a value, compared case-folded (see {@link #foldValue(String)}): one lookup on the
+	 * (folded_hash, relationship, term) index, whatever the relationship.
+	 * @param relationship String relationship to match, null for any
+	 * @param value String value to look for, e.g. a synonym
+	 * @return terms in name order, empty if none
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public ArrayList<String> getTermsByValue(String relationship, String value) throws SQLException {
+		ArrayList<String> terms = new ArrayList<String>();
+		if (value == null)
+			return terms;
+		String sql = relationship == null ? TERMS_BY_FOLDED_VALUE : TERMS_BY_RELATIONSHIP_AND_FOLDED_VALUE;
+		PooledConnection pc = this.getReadConnection("getTermsByValue");
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			ps.setString(1, foldedHash(value));
+			if (relationship != null)
+				ps.setString(2, relationship);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					terms.add(rs.getString(1));
+			} finally {
+				rs.close();
+			}
+			pc.addRows(terms.size());
+			return terms;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Get a complete Term, with its relationships from one source (or all sources), in a single query.
+	 * The source filter is applied by the database, so rows from other sources are never transferred.
+	 * @param term String term to retrieve (searched exactly)
+	 * @param source String source to restrict relationships to, null for all sources
+	 * @return Term populated with the matching TermRelationships, null if the term is not in the database
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public Term getWholeTerm(String term, String source) throws SQLException {
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getWholeTerm");
+			PreparedStatement ps;
+			if (source == null) {
+				ps = pc.prepare(GET_WHOLE_TERM);
+				ps.setString(1, term);
+			}
+			else {
+				ps = pc.prepare(GET_WHOLE_TERM_BY_SOURCE);
+				ps.setString(1, source);
+				ps.setString(2, term);
+			}
+			return this.readWholeTerm(pc, ps);
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+			return null;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Get the complete Term owning a relationship, in a single query.
+	 * Like {@link #getTermByRelationshipAndValue(String, String)} this should ONLY be used to look up ID's;
+	 * if several terms match, the first one (by name) is returned.
+	 * @param relationship String to query on relationship column (e.g. "ID")
+	 * @param toTerm String value to query on valueTerm column (e.g. "EntrezGene:672")
+	 * @param source String source to restrict the returned relationships to, null for all sources
+	 * @return Term populated with the matching TermRelationships, null if no term has the relationship
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public Term getWholeTermByRelationshipAndValue(String relationship, String toTerm, String source) throws SQLException {
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getWholeTermByRelationshipAndValue");
+			PreparedStatement ps;
+			int param = 1;
+			if (source == null)
+				ps = pc.prepare(GET_WHOLE_TERM_BY_RELATIONSHIP_AND_VALUE);
+			else {
+				ps = pc.prepare(GET_WHOLE_TERM_BY_RELATIONSHIP_AND_VALUE_AND_SOURCE);
+				ps.setString(param++, source);
+			}
+			ps.setString(param++, relationship);
+			ps.setString(param, valueHash(toTerm));
+			return this.readWholeTerm(pc, ps);
 		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
 			return null;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Bulk version of {@link #getWholeTerm(String, String)}: retrieves many complete Terms with one IN-list query
+	 * per 256 keys instead of one query per term.
+	 * @param terms Strings to retrieve (searched exactly, duplicates are ignored)
+	 * @param source String source to restrict relationships to, null for all sources
+	 * @return HashMap from term to populated Term; terms that are not in the database are absent
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public HashMap<String, Term> getWholeTerms(Collection<String> terms, String source) throws SQLException {
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		ArrayList<String> keys = new ArrayList<String>(new LinkedHashSet<String>(terms));
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getWholeTerms");
+			int chunkSize = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+			for (int start = 0; start < keys.size(); start += chunkSize) {
+				List<String> chunk = keys.subList(start, Math.min(keys.size(), start + chunkSize));
+				int size = inListSize(chunk.size());
+				PreparedStatement ps;
+				int param = 1;
+				if (source == null)
+					ps = pc.prepare(WHOLE_TERM_SELECT + " WHERE t.term IN (" + placeholders(size) + ")");
+				else {
+					ps = pc.prepare(WHOLE_TERM_SELECT + " AND r.source=? WHERE t.term IN (" + placeholders(size) + ")");
+					ps.setString(param++, source);
+				}
+				param = setInList(ps, param, chunk, size);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						pc.addRows(1);
+						Term term = found.get(rs.getString(1));
+						if (term == null) {
+							term = new Term(rs.getString(1));
+							found.put(term.getTerm(), term);
+						}
+						if (rs.getString(2) != null)
+							term.addTermRelationship(new TermRelationship(rs.getString(1), rs.getString(2), rs.getString(3),
+																			rs.getDouble(5), rs.getString(4), rs.getString(6)));
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+		return found;
+	}
+
+	/**
+	 * Bulk version of {@link #getWholeTermByRelationshipAndValue(String, String, String)}, for resolving many ID's at once
+	 * with one IN-list query per 256 values.  If several terms share a value, the first one (by name) is used.
+	 * @param relationship String to query on relationship column (e.g. "ID")
+	 * @param toTerms String values to query on valueTerm column (e.g. "EntrezGene:672")
+	 * @param source String source to restrict the returned relationships to, null for all sources
+	 * @return HashMap from value to populated Term; values that no term has are absent
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public HashMap<String, Term> getWholeTermsByRelationshipAndValue(String relationship, Collection<String> toTerms, String source)
+			throws SQLException {
+		HashMap<String, Term> termsByName = new HashMap<String, Term>();
+		// Value whose rows fill each term; a term matching several values is returned once per value
+		HashMap<String, String> fillingValue = new HashMap<String, String>();
+		HashMap<String, String> valueToTerm = new HashMap<String, String>();
+		ArrayList<String> keys = new ArrayList<String>(new LinkedHashSet<String>(toTerms));
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getWholeTermsByRelationshipAndValue");
+			int chunkSize = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+			for (int start = 0; start < keys.size(); start += chunkSize) {
+				List<String> chunk = keys.subList(start, Math.min(keys.size(), start + chunkSize));
+				int size = inListSize(chunk.size());
+				PreparedStatement ps;
+				int param = 1;
+				if (source == null)
+					ps = pc.prepare(WHOLE_TERMS_BY_VALUE_SELECT + " WHERE i.relationship=? AND i.value_hash IN (" + placeholders(size) + ")");
+				else {
+					ps = pc.prepare(WHOLE_TERMS_BY_VALUE_SELECT + " AND r.source=? WHERE i.relationship=? AND i.value_hash IN ("
+									+ placeholders(size) + ")");
+					ps.setString(param++, source);
+				}
+				ps.setString(param++, relationship);
+				ArrayList<String> hashes = new ArrayList<String>(chunk.size());
+				for (String value : chunk)
+					hashes.add(valueHash(value));
+				param = setInList(ps, param, hashes, size);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						pc.addRows(1);
+						String value = rs.getString(1);
+						String name = rs.getString(2);
+						Term term = termsByName.get(name);
+						if (term == null) {
+							term = new Term(name);
+							termsByName.put(name, term);
+							fillingValue.put(name, value);
+						}
+						String current = valueToTerm.get(value);
+						if (current == null || name.compareTo(current) < 0)
+							valueToTerm.put(value, name);
+						if (rs.getString(3) != null && value.equals(fillingValue.get(name)))
+							term.addTermRelationship(new TermRelationship(name, rs.getString(3), rs.getString(4),
+																			rs.getDouble(6), rs.getString(5), rs.getString(7)));
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+		} finally {
+			this.releaseDBConnection(pc);
 		}
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		for (String value : valueToTerm.keySet())
+			found.put(value, termsByName.get(valueToTerm.get(value)));
+		return found;
 	}
-	
+
 	/**
 	 * Tests for whether a term is part of a relationship in the database.
 	 * @param term String to query on
@@ -164,24 +569,18 @@ public class ResourceDBWrapper {
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
 	public boolean hasRelationships(String term) throws SQLException {
-		String query = "SELECT COUNT(*) FROM termrelationships WHERE term=\"" + term + "\"";
-		Connection conn = null;
+		PooledConnection pc = null;
 		try {
-			conn = this.getDBConnection();
-			
-			Statement stmt = conn.createStatement();
-			ResultSet rs = stmt.executeQuery(query);
-			rs.next();
-			int count = rs.getInt(1);
-			if (count > 0)
-				return true;
-			else
-				return false;
+			pc = this.getReadConnection("hasRelationships");
+			PreparedStatement ps = pc.prepare(HAS_RELATIONSHIPS);
+			ps.setString(1, term);
+			return this.queryCount(ps) > 0;
 		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
 			return false;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
 		}
 	}
 
@@ -191,7 +590,7 @@ public class ResourceDBWrapper {
 	public boolean hasRelationships(Term term) throws SQLException {
 		return this.hasRelationships(term.getTerm());
 	}
-	
+
 	/**
 	 * @see #relationshipExists(String fromTerm, String relationship, String toTerm)
 	 * @param tr TermRelationship to test for
@@ -201,7 +600,7 @@ public class ResourceDBWrapper {
 	public boolean relationshipExists(TermRelationship tr) throws SQLException {
 		return this.relationshipExists(tr.getFromTerm(), tr.getRelationship(), tr.getToTerm());
 	}
-	
+
 	/**
 	 * Tests for the existence of a term relationship in the database.
 	 * @param fromTerm
@@ -211,33 +610,26 @@ public class ResourceDBWrapper {
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
 	public boolean relationshipExists(String fromTerm, String relationship, String toTerm) throws SQLException {
-		Connection conn = null;
 		// value in DB cannot/should not be null, so it won't be there
 		if (toTerm == null)
 			return false;
-		if (toTerm.length() > 255)
-			toTerm = toTerm.substring(0, 255);
-		String query = "SELECT COUNT(*) FROM termrelationships WHERE term=\"" + fromTerm + "\" AND relationship=\"" 
-							+ relationship + "\" AND value=\"" + toTerm + "\";";
-		
-		try {
-			conn = this.getDBConnection();
-			Statement stmt = conn.createStatement();
-			
-			ResultSet rs = stmt.executeQuery(query);
-			rs.next();
-			if (rs.getInt(1) == 1)
-				return true;
-			else
-				return false;
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("relationshipExists");
+			PreparedStatement ps = pc.prepare(RELATIONSHIP_EXISTS);
+			ps.setString(1, fromTerm);
+			ps.setString(2, relationship);
+			ps.setString(3, valueHash(toTerm));
+			return this.queryCount(ps) > 0;
 		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
 			return false;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
 		}
 	}
-	
+
 	/**
 	 * Retrieves all term relationships from the database where the term parameter is the primary term (i.e. in the 'term' column).
 	 * @param term String to query on
@@ -245,232 +637,1801 @@ public class ResourceDBWrapper {
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
 	public ArrayList<TermRelationship> getRelationships(String term) throws SQLException {
-		Connection conn = null;
-		String query = "SELECT term, relationship, value, source, confidence, parentTerm FROM " +
-							"termrelationships WHERE term=\"" + term + "\";";
 		ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
-		
+		PooledConnection pc = null;
 		try {
-			conn = this.getDBConnection();
-			Statement stmt = conn.createStatement();
-			
-			ResultSet rs = stmt.executeQuery(query);
-			while (rs.next()) {
-				trList.add(new TermRelationship(rs.getString("term"), rs.getString("relationship"), rs.getString("value"), 
-												rs.getDouble("confidence"), rs.getString("source"), rs.getString("parentTerm")));
-			}
-			
+			pc = this.getReadConnection("getRelationships");
+			PreparedStatement ps = pc.prepare(GET_RELATIONSHIPS);
+			ps.setString(1, term);
+			this.readRelationships(ps, trList);
+			pc.addRows(trList.size());
+			return trList;
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+			return trList;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Retrieves the term relationships for the primary term that originated at the specified source.
+	 * @param term String to query on
+	 * @param source String source to match
+	 * @return ArrayList of TermRelationship's
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public ArrayList<TermRelationship> getRelationships(String term, String source) throws SQLException {
+		ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getRelationships");
+			PreparedStatement ps = pc.prepare(GET_RELATIONSHIPS_BY_SOURCE);
+			ps.setString(1, term);
+			ps.setString(2, source);
+			this.readRelationships(ps, trList);
+			pc.addRows(trList.size());
 			return trList;
 		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
 			return trList;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
 		}
 	}
-	
+
 	/**
 	 * @see #getRelationships(String)
 	 */
 	public ArrayList<TermRelationship> getRelationships(Term term) throws SQLException {
 		return this.getRelationships(term.getTerm());
 	}
-	
+
+	/**
+	 * Get a term's relationships with the highest confidence, e.g. the few an answer ranking looks at.  Reads only the
+	 * returned rows, from the (term, relationship, confidence) index when relationship is given.
+	 * @param term String to query on
+	 * @param relationship String relationship to restrict to, null for all
+	 * @param source String source to restrict to, null for all sources
+	 * @param limit most relationships returned
+	 * @return ArrayList of TermRelationship's, highest confidence first
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public ArrayList<TermRelationship> getTopRelationships(String term, String relationship, String source, int limit)
+			throws SQLException {
+		return this.getRelationshipPage(term, relationship, source, null, limit).getRelationships();
+	}
+
+	/**
+	 * Get one page of a term's relationships, highest confidence first.  Pass the previous page's
+	 * {@link RelationshipPage#getNextToken()} to continue.  With a relationship, each page is a seek on the
+	 * (term, relationship, confidence) index, so deep pages cost no more than the first one; without one, the term's
+	 * rows are sorted for each page.
+	 * @param term String to query on
+	 * @param relationship String relationship to restrict to, null for all
+	 * @param source String source to restrict to, null for all sources
+	 * @param pageToken token of the previous page, null for the first page
+	 * @param limit most relationships per page
+	 * @return RelationshipPage, with no next token once the term's last relationship is returned
+	 * @throws SQLException Thrown in the case of a database error
+	 * @throws IllegalArgumentException Thrown if pageToken isn't a token of a previous page
+	 */
+	public RelationshipPage getRelationshipPage(String term, String relationship, String source, String pageToken, int limit)
+			throws SQLException {
+		String sql = relationshipPageSQL(relationship != null, source != null, pageToken != null);
+		PooledConnection pc = this.getReadConnection("getRelationshipPage");
+		try {
+			return this.readRelationshipPage(pc, sql, term, relationship, source, pageToken, limit);
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Get a Term with only its top relationships of each type loaded, in one query for the types and one per type, on
+	 * one connection.  If a type has more, the rest are loaded all at once the first time the Term's relationships are
+	 * asked for in full (see {@link Term#setRemainder(RelationshipLoader)}); {@link Term#getLoadedTermRelationships()}
+	 * reads only the top ones.
+	 * @param term String term to retrieve (searched exactly)
+	 * @param source String source to restrict relationships to, null for all sources
+	 * @param perType most relationships loaded per relationship type, highest confidence first
+	 * @return Term, null if the term is not in the database
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public Term getTopTerm(String term, final String source, int perType) throws SQLException {
+		String sql = source == null ? RELATIONSHIP_TYPES : RELATIONSHIP_TYPES_BY_SOURCE;
+		PooledConnection pc = this.getReadConnection("getTopTerm");
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			int param = 1;
+			if (source != null)
+				ps.setString(param++, source);
+			ps.setString(param, term);
+			ArrayList<String> types = new ArrayList<String>();
+			boolean stored = false;
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					stored = true;
+					if (rs.getString(1) != null)
+						types.add(rs.getString(1));
+				}
+			} finally {
+				rs.close();
+			}
+			if (!stored)
+				return null;
+			Term result = new Term(term);
+			boolean partial = false;
+			sql = relationshipPageSQL(true, source != null, false);
+			for (String type : types) {
+				RelationshipPage page = this.readRelationshipPage(pc, sql, term, type, source, null, perType);
+				result.addTermRelationship(page.getRelationships());
+				partial |= page.getNextToken() != null;
+			}
+			if (partial) {
+				result.setRemainder(new RelationshipLoader() {
+					public ArrayList<TermRelationship> load(String name) {
+						try {
+							return source == null ? getRelationships(name) : getRelationships(name, source);
+						} catch (SQLException e) {
+							e.printStackTrace();
+							return new ArrayList<TermRelationship>(0);
+						}
+					}
+				});
+			}
+			return result;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
 	/**
 	 * Retrieve all TermRelationship rows that were last updated before the datetime parameter.
 	 * (Should be used for updating the database.)
-	 * @param datetime 
+	 * Every row is held in memory at once; to walk a large table use
+	 * {@link #forEachRelationshipOlderThan(Date, int, RelationshipCallback)} or {@link #openRelationshipsOlderThan(Date, int)}.
+	 * @param datetime
 	 * @return ArrayList of TermRelationship's
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
 	public ArrayList<TermRelationship> getRelationshipsOlderThan(Date datetime) throws SQLException {
-		Connection conn = null;
-		String query = "SELECT term, relationship, value, source, confidence, parentTerm FROM " +
-							"termrelationships WHERE last_updated > " + datetime.toString() + ";";
-		ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
-		
+		final ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
 		try {
-			conn = this.getDBConnection();
-			Statement stmt = conn.createStatement();
-			
-			ResultSet rs = stmt.executeQuery(query);
-			while (rs.next()) {
-				trList.add(new TermRelationship(rs.getString("term"), rs.getString("relationship"), rs.getString("value"), 
-												rs.getDouble("confidence"), rs.getString("source"), rs.getString("parentTerm")));
-			}
-			
-			return trList;
+			this.forEachRelationshipOlderThan(datetime, 0, new RelationshipCallback() {
+				public boolean process(TermRelationship tr) {
+					return trList.add(tr);
+				}
+			});
 		} catch (Exception e) {
 			e.printStackTrace();
-			return trList;
-		} finally {
-			conn.close();
 		}
+		return trList;
 	}
-	
+
 	/**
-	 * Inserts a new TermRelationship into the database.
-	 * Does NOT check for the existence of the primary term!
-	 * @param fromTerm
-	 * @param relationship
-	 * @param toTerm
-	 * @param confidence
-	 * @param source
-	 * @param parentTerm (null allowable)
+	 * Stream the TermRelationship rows last updated before the datetime parameter to a callback, one row at a time,
+	 * so heap use stays flat however many rows match.  Uses the last_updated index.
+	 * @param datetime rows with last_updated strictly before this are returned
+	 * @param fetchSize rows the driver fetches per round trip (0 for the driver default; MySQL always streams row by row)
+	 * @param callback receives each row, returns false to stop early
+	 * @return number of rows handed to the callback
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
-	public void insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source, String parentTerm) throws SQLException {
-		Connection conn = null;
-		String query = null;
-		if (toTerm != null) {
-			if (toTerm.length() > 255)
-				toTerm = toTerm.substring(0, 255);
-			if (parentTerm == null) {
-				query = "INSERT INTO termrelationships (term, relationship, value, confidence, source, parentTerm) VALUES (\""
-							+ fromTerm + "\", \"" + relationship + "\", \"" + toTerm + "\", " + confidence + ", \"" + source + "\", NULL);";
-			}
-			else {
-				query = "INSERT INTO termrelationships (term, relationship, value, confidence, source, parentTerm) VALUES (\""
-					+ fromTerm + "\", \"" + relationship + "\", \"" + toTerm + "\", " + confidence + ", \"" + source + "\", \"" + parentTerm +
-					"\");";
+	public long forEachRelationshipOlderThan(Date datetime, int fetchSize, RelationshipCallback callback) throws SQLException {
+		RelationshipCursor cursor = this.openRelationshipsOlderThan(datetime, fetchSize);
+		try {
+			while (cursor.hasNext()) {
+				if (!callback.process(cursor.next()))
+					break;
 			}
-			
+			return cursor.getRowCount();
+		} catch (IllegalStateException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw e;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	/**
+	 * Open a cursor over the TermRelationship rows last updated before the datetime parameter.
+	 * The cursor holds a pooled connection until it is exhausted or closed, so close it in a finally block.
+	 * @param datetime rows with last_updated strictly before this are returned
+	 * @param fetchSize rows the driver fetches per round trip (0 for the driver default; MySQL always streams row by row)
+	 * @return RelationshipCursor positioned before the first row
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public RelationshipCursor openRelationshipsOlderThan(Date datetime, int fetchSize) throws SQLException {
+		PooledConnection pc = this.getReadConnection("openRelationshipsOlderThan");
+		try {
+			PreparedStatement ps = pc.prepare(GET_RELATIONSHIPS_OLDER_THAN);
+			ps.setFetchSize(pc.getPool().getDialect().streamingFetchSize(fetchSize));
+			ps.setTimestamp(1, new Timestamp(datetime.getTime()));
+			return new RelationshipCursor(pc.getPool(), pc, ps.executeQuery());
+		} catch (SQLException e) {
+			this.failed(pc, GET_RELATIONSHIPS_OLDER_THAN);
+			this.releaseDBConnection(pc);
+			throw e;
+		}
+	}
+
+	/**
+	 * Stream every term in the 'terms' table to a callback, e.g. to load an in-memory index.
+	 * @param fetchSize rows the driver fetches per round trip (0 for the driver default; MySQL always streams row by row)
+	 * @param callback receives each term, returns false to stop early
+	 * @return number of terms handed to the callback
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public long forEachTerm(int fetchSize, ValueCallback callback) throws SQLException {
+		return this.forEachValue("forEachTerm", ALL_TERMS, null, fetchSize, callback);
+	}
+
+	/**
+	 * Get one page of the 'terms' table in name order.  Unlike {@link #forEachTerm(int, ValueCallback)} no connection
+	 * is held between pages, so the caller can query each page's terms while walking the table.
+	 * @param after last term of the previous page, null for the first page
+	 * @param limit most terms returned
+	 * @return ArrayList of terms, empty when the walk is complete
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public ArrayList<String> getTermPage(String after, int limit) throws SQLException {
+		ArrayList<String> page = new ArrayList<String>();
+		String sql = after == null ? TERM_PAGE : TERM_PAGE_AFTER;
+		PooledConnection pc = this.getReadConnection("getTermPage");
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			int param = 1;
+			if (after != null)
+				ps.setString(param++, after);
+			ps.setInt(param, limit);
+			ResultSet rs = ps.executeQuery();
 			try {
-				conn = this.getDBConnection();
-				
-				Statement stmt = conn.createStatement();
-				stmt.executeUpdate(query);
-			} catch (Exception e) {
-				e.printStackTrace();
+				while (rs.next())
+					page.add(rs.getString(1));
 			} finally {
-				conn.close();
+				rs.close();
 			}
+			pc.addRows(page.size());
+			return page;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
 		}
-		// if toTerm == null, skip it
 	}
-	
+
 	/**
-	 * Excludes parent term.
-	 * @see #insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source, String parentTerm)
+	 * Stream the value of every row with the given relationship (e.g. all ID's) to a callback.
+	 * @param relationship String relationship to scan (e.g. "ID")
+	 * @param fetchSize rows the driver fetches per round trip (0 for the driver default; MySQL always streams row by row)
+	 * @param callback receives each value, returns false to stop early
+	 * @return number of values handed to the callback
+	 * @throws SQLException Thrown in the case of a database error
 	 */
-	public void insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source) throws SQLException {
-		this.insertRelationship(fromTerm, relationship, toTerm, confidence, source, null);
+	public long forEachRelationshipValue(String relationship, int fetchSize, ValueCallback callback) throws SQLException {
+		return this.forEachValue("forEachRelationshipValue", ALL_VALUES_OF_RELATIONSHIP, relationship, fetchSize, callback);
 	}
-	
+
 	/**
-	 * @see #insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source, String parentTerm)
-	 * @param tr
+	 * Get one page of the least recently updated rows for a relationship and source, oldest first.
+	 * Pass the last row of the previous page as after to continue the scan; rows are ordered by (last_updated, id)
+	 * so no row is skipped or repeated between pages.
+	 * @param relationship String relationship to scan (e.g. "ID")
+	 * @param source String source the rows came from (e.g. "EntrezGene")
+	 * @param valuePrefix only rows whose value starts with this (e.g. "EntrezGene:"), null for all
+	 * @param olderThan only rows with last_updated strictly before this
+	 * @param after position to continue from, null to start with the oldest row
+	 * @param limit most rows returned
+	 * @return ArrayList of RelationshipRows, empty when the scan is complete
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
-	public void insertRelationship(TermRelationship tr) throws SQLException {
-		this.insertRelationship(tr.getFromTerm(), tr.getRelationship(), tr.getToTerm(), tr.getConfidence(), tr.getSource(), tr.getParentTerm());
+	public ArrayList<RelationshipRow> getOldestRelationships(String relationship, String source, String valuePrefix, Date olderThan,
+																RelationshipRow after, int limit) throws SQLException {
+		ArrayList<RelationshipRow> rows = new ArrayList<RelationshipRow>();
+		PooledConnection pc = null;
+		try {
+			pc = this.getReadConnection("getOldestRelationships");
+			PreparedStatement ps = pc.prepare(after == null ? GET_OLDEST_RELATIONSHIPS : GET_OLDEST_RELATIONSHIPS_AFTER);
+			int param = 1;
+			ps.setString(param++, relationship);
+			ps.setString(param++, source);
+			ps.setString(param++, likePrefix(valuePrefix));
+			ps.setTimestamp(param++, new Timestamp(olderThan.getTime()));
+			if (after != null) {
+				ps.setTimestamp(param++, after.getLastUpdated());
+				ps.setTimestamp(param++, after.getLastUpdated());
+				ps.setLong(param++, after.getId());
+			}
+			ps.setInt(param, limit);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					rows.add(new RelationshipRow(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getString(4), rs.getString(5),
+													rs.getTimestamp(6)));
+			} finally {
+				rs.close();
+			}
+			pc.addRows(rows.size());
+		} catch (SQLException e) {
+			this.failed(pc, null);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+		return rows;
 	}
-	
+
 	/**
-	 * Update a relationship in the database.
-	 * The old TermRelationship is entirely replaced with the new TermRelationship.  Does not test for similarity between the parameters. 
-	 * @param trOld TermRelationship to query for and replace
-	 * @param trNew TermRelationship that replaces trOld
-	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 * Add sampled read counts to the 'terms' rows and set their last_accessed time, in one transaction of batched updates.
+	 * Terms that were deleted in the meantime match no row and are skipped.
+	 * @param hits Map from term to the number of reads to add
+	 * @param accessed Date of the reads, usually now
+	 * @throws SQLException Thrown in the case of a database error; nothing is written in that case
 	 */
-	public void updateRelationship(TermRelationship trOld, TermRelationship trNew) throws SQLException {
-		Connection conn = null;
-		if (trOld.getToTerm().length() > 255)
-			trOld.setToTerm(trOld.getToTerm().substring(0, 255));
-		if (trNew.getToTerm().length() > 255)
-			trNew.setToTerm(trNew.getToTerm().substring(0, 255));
-		String query = "UPDATE termrelationships SET term=\"" + trNew.getFromTerm() + "\", relationship=\"" + trNew.getRelationship() + 
-								"\", value=\"" + trNew.getToTerm() + "\", confidence=" + trNew.getConfidence() + ", source=\"" + 
-								trNew.getSource() + "\", parentTerm=\"" + trNew.getParentTerm() + "\" WHERE term=\"" + trOld.getFromTerm() + 
-								"\" AND relationship=\"" + trOld.getRelationship() + "\" AND value=\"" + trOld.getToTerm() + "\";";
-		
-		try {
-			conn = this.getDBConnection();
-			Statement stmt = conn.createStatement();
-			
-			if (this.relationshipExists(trOld))
-				System.out.println("UPDATE!");
-				stmt.executeUpdate(query);
-		} catch (Exception e) {
-			e.printStackTrace();
+	public void recordAccesses(Map<String, Long> hits, Date accessed) throws SQLException {
+		if (hits.isEmpty())
+			return;
+		// Bookkeeping, not data a reader could miss, so it doesn't start a read-your-writes window
+		PooledConnection pc = this.getDBConnection("recordAccesses");
+		Connection conn = pc.getConnection();
+		try {
+			conn.setAutoCommit(false);
+			PreparedStatement ps = pc.prepare(RECORD_ACCESS);
+			Timestamp when = new Timestamp(accessed.getTime());
+			for (Map.Entry<String, Long> entry : hits.entrySet()) {
+				ps.setLong(1, entry.getValue());
+				ps.setTimestamp(2, when);
+				ps.setString(3, entry.getKey());
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			conn.commit();
+			pc.addRows(hits.size());
+		} catch (SQLException e) {
+			try {
+				conn.rollback();
+			} catch (SQLException re) {
+				pc.markBroken();
+			}
+			this.failed(pc, RECORD_ACCESS);
+			throw e;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
 		}
 	}
-	
+
 	/**
-	 * Delete a TermRelationship from the database.
-	 * Does not check for existence before attempting deletion!
-	 * @param fromTerm
-	 * @param relationship
-	 * @param toTerm
+	 * Get the terms to evict first: not read since idleSince, fewest reads first, then least recently read.
+	 * Rows get last_accessed when they are inserted, so a term that was never read is as old as the row.
+	 * @param idleSince Date terms read at or after this are left out
+	 * @param limit most terms returned
+	 * @return ArrayList of terms, coldest first
 	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
-	public void deleteRelationship(String fromTerm, String relationship, String toTerm) throws SQLException {
-		Connection conn = null;
-		if (toTerm == null)
-			return; // Exit early because the relationship won't be there
-		// trim down to 255 to fit into database field
-		if (toTerm.length() > 255)
-			toTerm = toTerm.substring(0, 255);
-		String query = "DELETE FROM termrelationships WHERE term=\"" + fromTerm + "\" AND relationship=\"" + relationship + "\" AND value=\"" + toTerm + "\";";
-		
-		try {
-			conn = this.getDBConnection();
-			Statement stmt = conn.createStatement();
-			stmt.executeUpdate(query);
-		} catch (Exception e) {
-			e.printStackTrace();
-		} finally {
-			conn.close();
-		}
+	public ArrayList<String> getColdestTerms(Date idleSince, int limit) throws SQLException {
+		return this.getColdestTerms(idleSince, limit, null);
 	}
-	
+
 	/**
-	 * @see #deleteRelationship(String fromTerm, String relationship, String toTerm)
-	 * @param tr
-	 * @throws SQLException
+	 * @param ranks if not null, gets long array {hits, last accessed (epoch millis)} for each returned term, in the same order
+	 * @see #getColdestTerms(Date, int)
 	 */
-	public void deleteRelationship(TermRelationship tr) throws SQLException {
-		this.deleteRelationship(tr.getFromTerm(), tr.getRelationship(), tr.getToTerm());
+	ArrayList<String> getColdestTerms(Date idleSince, int limit, ArrayList<long[]> ranks) throws SQLException {
+		ArrayList<String> terms = new ArrayList<String>();
+		PooledConnection pc = this.getReadConnection("getColdestTerms");
+		try {
+			PreparedStatement ps = pc.prepare(COLDEST_TERMS);
+			ps.setTimestamp(1, new Timestamp(idleSince.getTime()));
+			ps.setInt(2, limit);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					terms.add(rs.getString(1));
+					if (ranks != null)
+						ranks.add(new long[] {rs.getLong(2), rs.getTimestamp(3).getTime()});
+				}
+			} finally {
+				rs.close();
+			}
+			pc.addRows(terms.size());
+			return terms;
+		} catch (SQLException e) {
+			this.failed(pc, COLDEST_TERMS);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
 	}
-	
+
 	/**
-	 * Executes the supplied query.  Returns the ResultSet for that query.
-	 * SHOULD ONLY BE USED FOR DEBUGGING PURPOSES, NEVER IN PRODUCTION CODE!
-	 * @param query
-	 * @return raw ResultSet
-	 * @throws SQLException
+	 * Count the rows of 'termrelationships' and the characters they hold.  Scans the whole table, so it's meant for
+	 * periodic jobs like CacheEvictor, not the request path.  Read from the primary, which is what eviction deletes from.
+	 * @return long array {relationships, bytes}
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
 	 */
-	public ResultSet debugExecQuery(String query) throws SQLException {
-		Connection conn = null;
+	public long[] getStorageUsage() throws SQLException {
+		PooledConnection pc = this.getDBConnection("getStorageUsage");
 		try {
-			conn = this.getDBConnection();
-			Statement stmt = conn.createStatement();
-			return stmt.executeQuery(query);
-		} catch (Exception e) {
-			e.printStackTrace();
-			return null;
+			PreparedStatement ps = pc.prepare(STORAGE_USAGE);
+			ResultSet rs = ps.executeQuery();
+			try {
+				rs.next();
+				return new long[] {rs.getLong(1), rs.getLong(2)};
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			this.failed(pc, STORAGE_USAGE);
+			throw e;
 		} finally {
-			conn.close();
+			this.releaseDBConnection(pc);
 		}
 	}
-	
+
 	/**
-	 * Get a connection to the database.
-	 * @return new Connection to the database
-	 * @throws Exception
+	 * Bring a term's relationships from one source in line with a freshly fetched copy, in a single transaction.
+	 * Only the differences are written: new relationships are inserted, ones that disappeared are deleted,
+	 * and ones whose confidence or parent term changed are updated.  Every remaining row of the term from that
+	 * source then gets its last_updated set to now, so it drops to the back of the staleness order.
+	 * @param term String term whose relationships are refreshed (must already be in the database)
+	 * @param source String source the relationships came from
+	 * @param fresh TermRelationships as the source currently reports them (fromTerm is ignored, term is used)
+	 * @return int array {inserted, updated, deleted}
+	 * @throws SQLException Thrown in the case of a database error; nothing is written in that case
 	 */
-	private Connection getDBConnection() throws Exception {
-		Connection conn = null;
+	public int[] refreshRelationships(String term, String source, Collection<TermRelationship> fresh) throws SQLException {
+		PooledConnection pc = this.getWriteConnection("refreshRelationships");
+		Connection conn = pc.getConnection();
 		try {
-			Class.forName(DBInfo.dbClass).newInstance();
-			conn = DriverManager.getConnection(DBInfo.URL+"resources", DBInfo.userName, DBInfo.password);
-		} catch(Exception e) {
-			System.out.println("Database connection failed.");
+			conn.setAutoCommit(false);
+			HashMap<String, TermRelationship> existing = new HashMap<String, TermRelationship>();
+			// Rows of the term another source already has; (term, relationship, value) is unique, so they are left alone
+			HashSet<String> otherSources = new HashSet<String>();
+			PreparedStatement ps = pc.prepare(GET_RELATIONSHIPS);
+			ps.setString(1, term);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					TermRelationship tr = readRelationship(rs);
+					String key = relationshipKey(term, tr.getRelationship(), tr.getToTerm());
+					if (source.equals(tr.getSource()))
+						existing.put(key, tr);
+					else
+						otherSources.add(key);
+				}
+			} finally {
+				rs.close();
+			}
+
+			int[] counts = new int[3];
+			ArrayList<String[]> changes = termChanges(term);
+			PreparedStatement insert = pc.prepare(INSERT_RELATIONSHIP);
+			PreparedStatement update = pc.prepare(UPDATE_RELATIONSHIP_DETAILS);
+			HashSet<String> wanted = new HashSet<String>();
+			for (TermRelationship tr : fresh) {
+				String value = tr.getToTerm();
+				if (value == null)
+					continue;
+				String key = relationshipKey(term, tr.getRelationship(), value);
+				if (!wanted.add(key) || otherSources.contains(key))
+					continue;
+				TermRelationship old = existing.get(key);
+				if (old == null) {
+					insert.setString(1, term);
+					insert.setString(2, tr.getRelationship());
+					insert.setString(3, value);
+					insert.setDouble(4, tr.getConfidence());
+					insert.setString(5, source);
+					insert.setString(6, tr.getParentTerm());
+					insert.setString(7, valueHash(value));
+					insert.setString(8, foldedHash(value));
+					insert.addBatch();
+					relationshipChanges(changes, term, tr.getRelationship(), value);
+					counts[0]++;
+				}
+				else if (old.getConfidence() != tr.getConfidence() || !equal(old.getParentTerm(), tr.getParentTerm())) {
+					update.setDouble(1, tr.getConfidence());
+					update.setString(2, tr.getParentTerm());
+					update.setString(3, term);
+					update.setString(4, tr.getRelationship());
+					update.setString(5, valueHash(value));
+					update.setString(6, source);
+					update.addBatch();
+					counts[1]++;
+				}
+			}
+			PreparedStatement delete = pc.prepare(DELETE_RELATIONSHIP_BY_SOURCE);
+			for (TermRelationship tr : existing.values()) {
+				if (!wanted.contains(relationshipKey(term, tr.getRelationship(), tr.getToTerm()))) {
+					delete.setString(1, term);
+					delete.setString(2, tr.getRelationship());
+					delete.setString(3, valueHash(tr.getToTerm()));
+					delete.setString(4, source);
+					delete.addBatch();
+					relationshipChanges(changes, term, tr.getRelationship(), tr.getToTerm());
+					counts[2]++;
+				}
+			}
+			if (counts[0] > 0)
+				insert.executeBatch();
+			if (counts[1] > 0)
+				update.executeBatch();
+			if (counts[2] > 0)
+				delete.executeBatch();
+			PreparedStatement touch = pc.prepare(TOUCH_RELATIONSHIPS);
+			touch.setString(1, term);
+			touch.setString(2, source);
+			touch.executeUpdate();
+			if (counts[0] + counts[1] + counts[2] > 0)
+				this.logChanges(pc, changes);
+			conn.commit();
+			pc.addRows(counts[0] + counts[1] + counts[2]);
+			return counts;
+		} catch (SQLException e) {
+			try {
+				conn.rollback();
+			} catch (SQLException re) {
+				pc.markBroken();
+			}
+			this.failed(pc, null);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Inserts a new TermRelationship into the database.
+	 * Does NOT check for the existence of the primary term!
+	 * @param fromTerm
+	 * @param relationship
+	 * @param toTerm
+	 * @param confidence
+	 * @param source
+	 * @param parentTerm (null allowable)
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public void insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source, String parentTerm) throws SQLException {
+		// if toTerm == null, skip it
+		if (toTerm == null)
+			return;
+		PooledConnection pc = null;
+		try {
+			pc = this.getWriteConnection("insertRelationship");
+			this.beginChanges(pc);
+			PreparedStatement ps = pc.prepare(INSERT_RELATIONSHIP);
+			ps.setString(1, fromTerm);
+			ps.setString(2, relationship);
+			ps.setString(3, toTerm);
+			ps.setDouble(4, confidence);
+			ps.setString(5, source);
+			ps.setString(6, parentTerm);
+			ps.setString(7, valueHash(toTerm));
+			ps.setString(8, foldedHash(toTerm));
+			int rows = ps.executeUpdate();
+			this.commitChanges(pc, relationshipChanges(new ArrayList<String[]>(), fromTerm, relationship, toTerm));
+			pc.addRows(rows);
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Insert a relationship unless a row with the same (term, relationship, value) exists, which is left as it is,
+	 * in a single statement keyed on the unique (term, relationship, value_hash) index.
+	 * Its terms are upserted into 'terms' first with one more statement (the value only if it fits in a term,
+	 * 255 characters).  Safe under concurrency: no existence checks, and no duplicates however many callers race.
+	 * @param tr TermRelationship to write (ignored if its value is null)
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public void upsertRelationship(TermRelationship tr) throws SQLException {
+		this.upsertRelationship(tr, true);
+	}
+
+	/**
+	 * @param mirrorValue false to leave the value out of 'terms' (ShardedTermStore stores it on the shard it hashes to)
+	 * @see #upsertRelationship(TermRelationship)
+	 */
+	void upsertRelationship(TermRelationship tr, boolean mirrorValue) throws SQLException {
+		String value = tr.getToTerm();
+		if (value == null)
+			return;
+		ArrayList<String> terms = new ArrayList<String>(2);
+		terms.add(tr.getFromTerm());
+		if (mirrorValue && value.length() <= 255 && !value.equals(tr.getFromTerm()))
+			terms.add(value);
+		PooledConnection pc = this.getWriteConnection("upsertRelationship");
+		SQLDialect dialect = this.pool.getDialect();
+		String sql = dialect.upsertTerms(terms.size());
+		try {
+			this.beginChanges(pc);
+			PreparedStatement ps = pc.prepare(sql);
+			for (int i = 0; i < terms.size(); i++)
+				ps.setString(i + 1, terms.get(i));
+			pc.addRows(executeUpsert(ps));
+			sql = dialect.upsertRelationship();
+			ps = pc.prepare(sql);
+			ps.setString(1, tr.getFromTerm());
+			ps.setString(2, tr.getRelationship());
+			ps.setString(3, value);
+			ps.setDouble(4, tr.getConfidence());
+			ps.setString(5, tr.getSource());
+			ps.setString(6, tr.getParentTerm());
+			ps.setString(7, valueHash(value));
+			ps.setString(8, foldedHash(value));
+			int rows = executeUpsert(ps);
+			this.commitChanges(pc, relationshipChanges(new ArrayList<String[]>(), tr.getFromTerm(), tr.getRelationship(), value));
+			pc.addRows(rows);
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Excludes parent term.
+	 * @see #insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source, String parentTerm)
+	 */
+	public void insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source) throws SQLException {
+		this.insertRelationship(fromTerm, relationship, toTerm, confidence, source, null);
+	}
+
+	/**
+	 * @see #insertRelationship(String fromTerm, String relationship, String toTerm, double confidence, String source, String parentTerm)
+	 * @param tr
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public void insertRelationship(TermRelationship tr) throws SQLException {
+		this.insertRelationship(tr.getFromTerm(), tr.getRelationship(), tr.getToTerm(), tr.getConfidence(), tr.getSource(), tr.getParentTerm());
+	}
+
+	/**
+	 * Is there an unexpired record of a resource query that found nothing ('lookupmisses' table)?
+	 * @param source String resource the query was sent to
+	 * @param query String query, as normalized by the caller
+	 * @param matchMode String kind of lookup (e.g. "search" or "exact")
+	 * @return true if the query is a known miss
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public boolean lookupMissExists(String source, String query, String matchMode) throws SQLException {
+		PooledConnection pc = this.getReadConnection("lookupMissExists");
+		try {
+			PreparedStatement ps = pc.prepare(LOOKUP_MISS_EXISTS);
+			setMissKey(ps, 1, source, query, matchMode);
+			ps.setTimestamp(4, new Timestamp(System.currentTimeMillis()));
+			return this.queryCount(ps) > 0;
+		} catch (SQLException e) {
+			this.failed(pc, LOOKUP_MISS_EXISTS);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Record that a resource query found nothing, or push back the expiry of an existing record.
+	 * @param source String resource the query was sent to
+	 * @param query String query, as normalized by the caller (at most 255 characters)
+	 * @param matchMode String kind of lookup (e.g. "search" or "exact")
+	 * @param expires Date after which the query should be tried again
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public void insertLookupMiss(String source, String query, String matchMode, Date expires) throws SQLException {
+		PooledConnection pc = this.getWriteConnection("insertLookupMiss");
+		String sql = UPDATE_LOOKUP_MISS;
+		try {
+			Timestamp ts = new Timestamp(expires.getTime());
+			PreparedStatement ps = pc.prepare(UPDATE_LOOKUP_MISS);
+			ps.setTimestamp(1, ts);
+			setMissKey(ps, 2, source, query, matchMode);
+			int updated = ps.executeUpdate();
+			pc.addRows(updated);
+			if (updated > 0)
+				return;
+			sql = INSERT_LOOKUP_MISS;
+			ps = pc.prepare(INSERT_LOOKUP_MISS);
+			ps.setTimestamp(1, ts);
+			setMissKey(ps, 2, source, query, matchMode);
+			try {
+				pc.addRows(ps.executeUpdate());
+			} catch (SQLException e) {
+				// Another caller recorded the same miss in between, that's as good
+				if (!isDuplicateKey(e))
+					throw e;
+			}
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Drop the record of a resource query that found nothing, e.g. once the resource is known to have an answer.
+	 * @see #insertLookupMiss(String, String, String, Date)
+	 */
+	public void deleteLookupMiss(String source, String query, String matchMode) throws SQLException {
+		PooledConnection pc = this.getWriteConnection("deleteLookupMiss");
+		try {
+			PreparedStatement ps = pc.prepare(DELETE_LOOKUP_MISS);
+			setMissKey(ps, 1, source, query, matchMode);
+			pc.addRows(ps.executeUpdate());
+		} catch (SQLException e) {
+			this.failed(pc, DELETE_LOOKUP_MISS);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Delete the lookup misses that expired before the given time.
+	 * @param datetime Date cutoff, usually now
+	 * @return number of records deleted
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public int deleteLookupMissesExpiredBefore(Date datetime) throws SQLException {
+		PooledConnection pc = this.getWriteConnection("deleteLookupMissesExpiredBefore");
+		try {
+			PreparedStatement ps = pc.prepare(DELETE_EXPIRED_LOOKUP_MISSES);
+			ps.setTimestamp(1, new Timestamp(datetime.getTime()));
+			int deleted = ps.executeUpdate();
+			pc.addRows(deleted);
+			return deleted;
+		} catch (SQLException e) {
+			this.failed(pc, DELETE_EXPIRED_LOOKUP_MISSES);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Insert whole Terms (the primary term and all of its TermRelationships) in a single transaction.
+	 * Existing terms and relationships are read with one query per Term, everything missing is then written with
+	 * JDBC batches, so a Term costs one round trip plus its share of two batches instead of two round trips per relationship.
+	 * The batches are upserts, so rows another writer added after the read don't make the transaction fail.
+	 * If any insert fails the whole transaction is rolled back.
+	 * <p>
+	 * Each returned array follows the layout of {@link edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache#addWholeTerm(Term)}:
+	 * index 0 is the primary term, index i the i-th TermRelationship; true means the row is in the db after the call
+	 * (TermRelationships with a null value are skipped and reported as true).
+	 * @param terms Terms to insert, callers warming the cache should pass chunks of a few hundred to a few thousand
+	 * @return ArrayList of boolean arrays, in the iteration order of terms
+	 * @throws SQLException Thrown if any statement of the transaction fails (a BatchUpdateException if a batch does);
+	 * the transaction is rolled back, so nothing of terms was written
+	 */
+	public ArrayList<boolean[]> insertWholeTerms(Collection<Term> terms) throws SQLException {
+		ArrayList<boolean[]> results = new ArrayList<boolean[]>(terms.size());
+		for (Term term : terms)
+			results.add(new boolean[term.getAllTermRelationships().size() + 1]);
+		if (terms.isEmpty())
+			return results;
+
+		PooledConnection pc = this.getWriteConnection("insertWholeTerms");
+		Connection conn = pc.getConnection();
+		try {
+			conn.setAutoCommit(false);
+			// Keys of rows present in the db, or already queued in this batch
+			HashSet<String> knownTerms = new HashSet<String>();
+			HashSet<String> knownRelationships = new HashSet<String>();
+			HashSet<String> checkedTerms = new HashSet<String>();
+			// Where each queued insert reports its result: {term index, relationship index}
+			ArrayList<int[]> termSlots = new ArrayList<int[]>();
+			ArrayList<int[]> relationshipSlots = new ArrayList<int[]>();
+			ArrayList<String[]> changes = new ArrayList<String[]>();
+			PreparedStatement keys = pc.prepare(TERM_AND_RELATIONSHIP_KEYS);
+			PreparedStatement insertTerm = pc.prepare(this.pool.getDialect().upsertTerms(1));
+			PreparedStatement insertRelationship = pc.prepare(this.pool.getDialect().upsertRelationship());
+
+			int t = 0;
+			for (Term term : terms) {
+				boolean[] flags = results.get(t);
+				if (checkedTerms.add(term.getTerm())) {
+					keys.setString(1, term.getTerm());
+					ResultSet rs = keys.executeQuery();
+					try {
+						while (rs.next()) {
+							knownTerms.add(rs.getString(1));
+							if (rs.getString(2) != null)
+								knownRelationships.add(relationshipKey(rs.getString(1), rs.getString(2), rs.getString(3)));
+						}
+					} finally {
+						rs.close();
+					}
+				}
+				if (knownTerms.add(term.getTerm())) {
+					insertTerm.setString(1, term.getTerm());
+					insertTerm.addBatch();
+					termSlots.add(new int[] {t, 0});
+					changes.addAll(termChanges(term.getTerm()));
+				}
+				else
+					flags[0] = true;
+
+				int r = 0;
+				for (TermRelationship tr : term.getAllTermRelationships()) {
+					r += 1;
+					String value = tr.getToTerm();
+					if (value == null) {
+						flags[r] = true;
+						continue;
+					}
+					String hash = valueHash(value);
+					if (knownRelationships.add(relationshipKey(tr.getFromTerm(), tr.getRelationship(), hash))) {
+						insertRelationship.setString(1, tr.getFromTerm());
+						insertRelationship.setString(2, tr.getRelationship());
+						insertRelationship.setString(3, value);
+						insertRelationship.setDouble(4, tr.getConfidence());
+						insertRelationship.setString(5, tr.getSource());
+						insertRelationship.setString(6, tr.getParentTerm());
+						insertRelationship.setString(7, hash);
+						insertRelationship.setString(8, foldedHash(value));
+						insertRelationship.addBatch();
+						relationshipSlots.add(new int[] {t, r});
+						relationshipChanges(changes, tr.getFromTerm(), tr.getRelationship(), value);
+					}
+					else
+						flags[r] = true;
+				}
+				t += 1;
+			}
+
+			// Terms first, relationships reference them
+			int[] termCounts = termSlots.isEmpty() ? new int[0] : insertTerm.executeBatch();
+			int[] relationshipCounts = relationshipSlots.isEmpty() ? new int[0] : insertRelationship.executeBatch();
+			this.logChanges(pc, changes);
+			conn.commit();
+			pc.addRows(termSlots.size() + relationshipSlots.size());
+			setBatchFlags(results, termSlots, termCounts);
+			setBatchFlags(results, relationshipSlots, relationshipCounts);
+		} catch (SQLException e) {
+			// Nothing from this transaction was written, including a batch the driver only partly ran
+			try {
+				conn.rollback();
+			} catch (SQLException re) {
+				pc.markBroken();
+			}
+			this.failed(pc, null);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+		return results;
+	}
+
+	/**
+	 * Update a relationship in the database.
+	 * The old TermRelationship is entirely replaced with the new TermRelationship.  Does not test for similarity between the parameters.
+	 * @param trOld TermRelationship to query for and replace
+	 * @param trNew TermRelationship that replaces trOld
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public void updateRelationship(TermRelationship trOld, TermRelationship trNew) throws SQLException {
+		PooledConnection pc = null;
+		try {
+			pc = this.getWriteConnection("updateRelationship");
+			this.beginChanges(pc);
+			PreparedStatement ps = pc.prepare(UPDATE_RELATIONSHIP);
+			ps.setString(1, trNew.getFromTerm());
+			ps.setString(2, trNew.getRelationship());
+			ps.setString(3, trNew.getToTerm());
+			ps.setDouble(4, trNew.getConfidence());
+			ps.setString(5, trNew.getSource());
+			ps.setString(6, trNew.getParentTerm());
+			ps.setString(7, valueHash(trNew.getToTerm()));
+			ps.setString(8, foldedHash(trNew.getToTerm()));
+			ps.setString(9, trOld.getFromTerm());
+			ps.setString(10, trOld.getRelationship());
+			ps.setString(11, valueHash(trOld.getToTerm()));
+			int rows = ps.executeUpdate();
+			ArrayList<String[]> changes = new ArrayList<String[]>();
+			if (rows > 0) {
+				relationshipChanges(changes, trOld.getFromTerm(), trOld.getRelationship(), trOld.getToTerm());
+				relationshipChanges(changes, trNew.getFromTerm(), trNew.getRelationship(), trNew.getToTerm());
+			}
+			this.commitChanges(pc, changes);
+			pc.addRows(rows);
+		} catch (Exception e) {
+			this.failed(pc, null);
 			e.printStackTrace();
-			throw new Exception(e);
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Delete a TermRelationship from the database.
+	 * Does not check for existence before attempting deletion!
+	 * @param fromTerm
+	 * @param relationship
+	 * @param toTerm
+	 * @throws SQLException Thrown in the case of a database error or bad SQL statement
+	 */
+	public void deleteRelationship(String fromTerm, String relationship, String toTerm) throws SQLException {
+		if (toTerm == null)
+			return; // Exit early because the relationship won't be there
+		PooledConnection pc = null;
+		try {
+			pc = this.getWriteConnection("deleteRelationship");
+			this.beginChanges(pc);
+			PreparedStatement ps = pc.prepare(DELETE_RELATIONSHIP);
+			ps.setString(1, fromTerm);
+			ps.setString(2, relationship);
+			ps.setString(3, valueHash(toTerm));
+			int rows = ps.executeUpdate();
+			ArrayList<String[]> changes = new ArrayList<String[]>();
+			if (rows > 0)
+				relationshipChanges(changes, fromTerm, relationship, toTerm);
+			this.commitChanges(pc, changes);
+			pc.addRows(rows);
+		} catch (Exception e) {
+			this.failed(pc, null);
+			e.printStackTrace();
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * @see #deleteRelationship(String fromTerm, String relationship, String toTerm)
+	 * @param tr
+	 * @throws SQLException
+	 */
+	public void deleteRelationship(TermRelationship tr) throws SQLException {
+		this.deleteRelationship(tr.getFromTerm(), tr.getRelationship(), tr.getToTerm());
+	}
+
+	/**
+	 * Read the change log ('termchanges' table, see {@link #setChangeLog(boolean)}) from a position on, oldest first.
+	 * Read from the primary, so a replica's delay doesn't add to the readers' lag.
+	 * @param afterId id of the last change already read, 0 for the start of the log
+	 * @param limit most changes returned
+	 * @return ArrayList of TermChanges in id order
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public ArrayList<TermChange> getChangesAfter(long afterId, int limit) throws SQLException {
+		PooledConnection pc = this.getDBConnection("getChangesAfter");
+		try {
+			PreparedStatement ps = pc.prepare(CHANGES_AFTER);
+			ps.setLong(1, afterId);
+			ps.setInt(2, limit);
+			ArrayList<TermChange> changes = readChanges(ps);
+			pc.addRows(changes.size());
+			return changes;
+		} catch (SQLException e) {
+			this.failed(pc, CHANGES_AFTER);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Read particular changes, e.g. ones whose transactions hadn't committed yet when the changes after them were read.
+	 * @param ids row ids of the changes
+	 * @return ArrayList of the TermChanges found, in id order
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public ArrayList<TermChange> getChanges(Collection<Long> ids) throws SQLException {
+		if (ids.isEmpty())
+			return new ArrayList<TermChange>(0);
+		ArrayList<Long> keys = new ArrayList<Long>(ids);
+		int size = inListSize(keys.size());
+		String sql = CHANGE_SELECT + " WHERE id IN (" + placeholders(size) + ") ORDER BY id";
+		PooledConnection pc = this.getDBConnection("getChanges");
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			for (int i = 0; i < size; i++)
+				ps.setLong(i + 1, keys.get(Math.min(i, keys.size() - 1)));
+			ArrayList<TermChange> changes = readChanges(ps);
+			pc.addRows(changes.size());
+			return changes;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * @return id of the newest change in the log, 0 if it is empty
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public long getLastChangeId() throws SQLException {
+		PooledConnection pc = this.getDBConnection("getLastChangeId");
+		try {
+			ResultSet rs = pc.prepare(LAST_CHANGE_ID).executeQuery();
+			try {
+				rs.next();
+				return rs.getLong(1);
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			this.failed(pc, LAST_CHANGE_ID);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Delete changes written before a given time, which every reader is expected to have read.
+	 * @param datetime Date before which changes are deleted
+	 * @return number of changes deleted
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public int deleteChangesBefore(Date datetime) throws SQLException {
+		PooledConnection pc = this.getDBConnection("deleteChangesBefore");
+		try {
+			PreparedStatement ps = pc.prepare(DELETE_CHANGES_BEFORE);
+			ps.setTimestamp(1, new Timestamp(datetime.getTime()));
+			int deleted = ps.executeUpdate();
+			pc.addRows(deleted);
+			return deleted;
+		} catch (SQLException e) {
+			this.failed(pc, DELETE_CHANGES_BEFORE);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
 		}
-		return conn;
+	}
+
+	/**
+	 * Executes the supplied query.  Returns the ResultSet for that query.
+	 * SHOULD ONLY BE USED FOR DEBUGGING PURPOSES, NEVER IN PRODUCTION CODE!
+	 * @param query
+	 * @return disconnected copy of the ResultSet (all rows are read before the connection goes back to the pool)
+	 * @throws SQLException
+	 */
+	public ResultSet debugExecQuery(String query) throws SQLException {
+		PooledConnection pc = this.getDBConnection("debugExecQuery");
+		Statement stmt = null;
+		try {
+			stmt = pc.getConnection().createStatement();
+			CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+			rows.populate(stmt.executeQuery(query));
+			pc.addRows(rows.size());
+			return rows;
+		} catch (SQLException e) {
+			this.failed(pc, null);
+			throw e;
+		} finally {
+			if (stmt != null)
+				stmt.close();
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Add rows to the 'idroutes' table (ShardedTermStore's index from ID to term), in one transaction.
+	 * Rows already there are left alone.
+	 * @param routes String arrays {value_hash, term}
+	 * @throws SQLException Thrown in the case of a database error; nothing is written in that case
+	 */
+	void addIdRoutes(Collection<String[]> routes) throws SQLException {
+		this.writeIdRoutes("addIdRoutes", this.getConnectionPool().getDialect().upsertIdRoute(), routes);
+	}
+
+	/**
+	 * Remove rows from the 'idroutes' table, in one transaction.
+	 * @param routes String arrays {value_hash, term}
+	 * @throws SQLException Thrown in the case of a database error; nothing is removed in that case
+	 */
+	void deleteIdRoutes(Collection<String[]> routes) throws SQLException {
+		this.writeIdRoutes("deleteIdRoutes", DELETE_ID_ROUTE, routes);
+	}
+
+	private void writeIdRoutes(String operation, String sql, Collection<String[]> routes) throws SQLException {
+		if (routes.isEmpty())
+			return;
+		PooledConnection pc = this.getWriteConnection(operation);
+		Connection conn = pc.getConnection();
+		try {
+			conn.setAutoCommit(false);
+			PreparedStatement ps = pc.prepare(sql);
+			for (String[] route : routes) {
+				ps.setString(1, route[0]);
+				ps.setString(2, route[1]);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+			conn.commit();
+			pc.addRows(routes.size());
+		} catch (SQLException e) {
+			try {
+				conn.rollback();
+			} catch (SQLException re) {
+				pc.markBroken();
+			}
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseWriteConnection(pc);
+		}
+	}
+
+	/**
+	 * Look up ID digests in the 'idroutes' table.
+	 * @param hashes value_hash digests of the ID's
+	 * @return HashMap from digest to the terms routed for it, in name order; digests without a route are absent
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	HashMap<String, ArrayList<String>> getIdRoutes(Collection<String> hashes) throws SQLException {
+		HashMap<String, ArrayList<String>> routes = new HashMap<String, ArrayList<String>>();
+		ArrayList<String> keys = new ArrayList<String>(new LinkedHashSet<String>(hashes));
+		PooledConnection pc = this.getReadConnection("getIdRoutes");
+		String sql = null;
+		try {
+			int chunkSize = IN_LIST_SIZES[IN_LIST_SIZES.length - 1];
+			for (int start = 0; start < keys.size(); start += chunkSize) {
+				List<String> chunk = keys.subList(start, Math.min(keys.size(), start + chunkSize));
+				int size = inListSize(chunk.size());
+				sql = GET_ID_ROUTES + "(" + placeholders(size) + ") ORDER BY value_hash, term";
+				PreparedStatement ps = pc.prepare(sql);
+				setInList(ps, 1, chunk, size);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						pc.addRows(1);
+						ArrayList<String> terms = routes.get(rs.getString(1));
+						if (terms == null) {
+							terms = new ArrayList<String>(1);
+							routes.put(rs.getString(1), terms);
+						}
+						terms.add(rs.getString(2));
+					}
+				} finally {
+					rs.close();
+				}
+			}
+			return routes;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * One page of the 'idroutes' table in key order, for moving routes between shards.
+	 * @param after last {value_hash, term} of the previous page, null for the first page
+	 * @param limit most rows returned
+	 * @return String arrays {value_hash, term}, empty when the walk is complete
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	ArrayList<String[]> getIdRoutePage(String[] after, int limit) throws SQLException {
+		ArrayList<String[]> page = new ArrayList<String[]>();
+		String sql = after == null ? ID_ROUTE_PAGE : ID_ROUTE_PAGE_AFTER;
+		PooledConnection pc = this.getDBConnection("getIdRoutePage");
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			int param = 1;
+			if (after != null) {
+				ps.setString(param++, after[0]);
+				ps.setString(param++, after[0]);
+				ps.setString(param++, after[1]);
+			}
+			ps.setInt(param, limit);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next())
+					page.add(new String[] {rs.getString(1), rs.getString(2)});
+			} finally {
+				rs.close();
+			}
+			pc.addRows(page.size());
+			return page;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * Nothing to release: connections go back to the pool after every call, and the pool is closed by whoever created it.
+	 */
+	public void close() {
+	}
+
+	/**
+	 * @return the ConnectionPool this wrapper borrows from (for metrics)
+	 * @throws SQLException Thrown if the shared pool can't be created
+	 */
+	public ConnectionPool getConnectionPool() throws SQLException {
+		if (this.pool == null)
+			this.pool = ConnectionPool.getDefault();
+		return this.pool;
+	}
+
+	/**
+	 * @return the replicas reads are routed to, null if reads go to the primary
+	 * @throws SQLException Thrown if the configured replica pools can't be created
+	 */
+	public ReplicaSet getReplicaSet() throws SQLException {
+		if (this.defaultReplicas) {
+			synchronized (this) {
+				if (this.defaultReplicas) {
+					this.replicas = ReplicaSet.getDefault();
+					this.defaultReplicas = false;
+				}
+			}
+		}
+		return this.replicas;
+	}
+
+	/**
+	 * @return reads that went to the primary because the chosen replica couldn't hand out a connection
+	 */
+	public long getReplicaFailureCount() {
+		return this.replicaFailures.get();
+	}
+
+	/**
+	 * @return where each call's latency, rows, errors and connection wait are recorded, null if nowhere; by default an
+	 * {@link OperationMetrics} of this wrapper's own
+	 */
+	public MetricsRegistry getMetricsRegistry() {
+		return this.metrics;
+	}
+
+	/**
+	 * Record each call in another registry, e.g. one shared by several wrappers or feeding a monitoring system.
+	 * @param metrics MetricsRegistry, null to stop recording
+	 */
+	public void setMetricsRegistry(MetricsRegistry metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * @param slowQueryMillis milliseconds from which a call (connection wait included) is reported to the metrics registry
+	 * as slow, 0 to report none; DBInfo.slowQueryMillis by default
+	 */
+	public void setSlowQueryMillis(long slowQueryMillis) {
+		this.slowQueryMillis = slowQueryMillis;
+	}
+
+	/**
+	 * @return true if writes are recorded in the change log
+	 */
+	public boolean isChangeLogged() {
+		return this.changeLog;
+	}
+
+	/**
+	 * Record the keys each write makes stale in the 'termchanges' table, in the write's own transaction, so the
+	 * ChangeFeeds of other nodes' DBCaches can drop their copies.  Single-statement writes then take a transaction.
+	 * @param changeLog true to record writes; DBInfo.changeLog by default
+	 */
+	public void setChangeLog(boolean changeLog) {
+		this.changeLog = changeLog;
+	}
+
+	/**
+	 * Smallest padded IN-list size that holds n keys.
+	 */
+	static int inListSize(int n) {
+		for (int size : IN_LIST_SIZES) {
+			if (size >= n)
+				return size;
+		}
+		return n;
+	}
+
+	/**
+	 * @return "?, ?, ..., ?" with n placeholders
+	 */
+	static String placeholders(int n) {
+		StringBuilder sb = new StringBuilder(n * 3);
+		for (int i = 0; i < n; i++)
+			sb.append(i == 0 ? "?" : ", ?");
+		return sb.toString();
+	}
+
+	/**
+	 * Bind an IN-list of the given padded size, repeating the last key in the padding slots.
+	 * @return the next free parameter index
+	 */
+	static int setInList(PreparedStatement ps, int param, List<String> keys, int size) throws SQLException {
+		for (int i = 0; i < size; i++)
+			ps.setString(param++, keys.get(Math.min(i, keys.size() - 1)));
+		return param;
+	}
+
+	/**
+	 * Start a write: with the change log on, its statements and its 'termchanges' rows are committed together by
+	 * {@link #commitChanges(PooledConnection, Collection)}.
+	 */
+	private void beginChanges(PooledConnection pc) throws SQLException {
+		if (this.changeLog)
+			pc.getConnection().setAutoCommit(false);
+	}
+
+	/**
+	 * Finish a write started with beginChanges: log its changes and commit.  If the write fails instead, the pool rolls
+	 * the transaction back when the connection is released.
+	 */
+	private void commitChanges(PooledConnection pc, Collection<String[]> changes) throws SQLException {
+		Connection conn = pc.getConnection();
+		if (conn.getAutoCommit())
+			return;
+		this.logChanges(pc, changes);
+		conn.commit();
+	}
+
+	/**
+	 * Add rows to 'termchanges' in the transaction of the write that made the keys stale (nothing if the log is off).
+	 * @param changes String arrays {kind, name}, duplicates are written once
+	 */
+	private void logChanges(PooledConnection pc, Collection<String[]> changes) throws SQLException {
+		if (!this.changeLog || changes.isEmpty())
+			return;
+		PreparedStatement ps = pc.prepare(INSERT_CHANGE);
+		HashSet<String> logged = new HashSet<String>();
+		for (String[] change : changes) {
+			if (!logged.add(change[0] + "\0" + change[1]))
+				continue;
+			ps.setString(1, change[0]);
+			ps.setString(2, change[1]);
+			ps.addBatch();
+		}
+		ps.executeBatch();
+	}
+
+	/**
+	 * @return the change of a term written or deleted
+	 */
+	private static ArrayList<String[]> termChanges(String term) {
+		ArrayList<String[]> changes = new ArrayList<String[]>();
+		changes.add(new String[] {TermChange.TERM, term});
+		return changes;
+	}
+
+	/**
+	 * Add the changes of a relationship written or deleted: both of its terms (the value is a term too) and its ID,
+	 * the keys DBCache drops for it locally.
+	 * @return changes
+	 */
+	private static ArrayList<String[]> relationshipChanges(ArrayList<String[]> changes, String term, String relationship, String value) {
+		changes.add(new String[] {TermChange.TERM, term});
+		if (value == null)
+			return changes;
+		changes.add(new String[] {TermChange.TERM, value});
+		if (relationship.equals("ID"))
+			changes.add(new String[] {TermChange.ID, value});
+		return changes;
+	}
+
+	/**
+	 * Run a query selecting CHANGE_SELECT's columns.
+	 */
+	private static ArrayList<TermChange> readChanges(PreparedStatement ps) throws SQLException {
+		ArrayList<TermChange> changes = new ArrayList<TermChange>();
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next())
+				changes.add(new TermChange(rs.getLong(1), rs.getString(2), rs.getString(3), rs.getTimestamp(4), rs.getTimestamp(5)));
+		} finally {
+			rs.close();
+		}
+		return changes;
+	}
+
+	/**
+	 * Run an upsert, and once more if it lost a race with a concurrent insert of the same key (the retry finds the row).
+	 * @return update count reported by the driver
+	 */
+	private static int executeUpsert(PreparedStatement ps) throws SQLException {
+		try {
+			return ps.executeUpdate();
+		} catch (SQLException e) {
+			if (!isDuplicateKey(e))
+				throw e;
+			return ps.executeUpdate();
+		}
+	}
+
+	/**
+	 * @return true if the error is a unique or primary key violation (SQLSTATE class 23, integrity constraint)
+	 */
+	static boolean isDuplicateKey(SQLException e) {
+		return e.getSQLState() != null && e.getSQLState().startsWith("23");
+	}
+
+	/**
+	 * Digest identifying a relationship value in the 'value_hash' column: SHA-1 of its UTF-8 bytes, as 40 lower case hex digits.
+	 * @param value String relationship value (any length)
+	 * @return hex digest
+	 */
+	static String valueHash(String value) {
+		MessageDigest sha1;
+		try {
+			sha1 = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-1 is not available", e);
+		}
+		byte[] digest = sha1.digest(value.getBytes(UTF8));
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[2 * i] = Character.forDigit((digest[i] >> 4) & 0xf, 16);
+			hex[2 * i + 1] = Character.forDigit(digest[i] & 0xf, 16);
+		}
+		return new String(hex);
+	}
+
+	/**
+	 * Case-folded form of a value, as reverse lookups compare it: lower case, without leading or trailing white space,
+	 * and with each run of white space inside it turned into one space.  "Genes,  APC" and "genes, apc" fold the same.
+	 * @param value String value
+	 * @return folded value
+	 */
+	public static String foldValue(String value) {
+		StringBuilder folded = new StringBuilder(value.length());
+		boolean space = false;
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (Character.isWhitespace(c))
+				space = folded.length() > 0;
+			else {
+				if (space)
+					folded.append(' ');
+				space = false;
+				folded.append(c);
+			}
+		}
+		return folded.toString().toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Digest of a value's folded form, as stored in the 'folded_hash' column.
+	 * @see #foldValue(String)
+	 * @see #valueHash(String)
+	 */
+	static String foldedHash(String value) {
+		return valueHash(foldValue(value));
+	}
+
+	/**
+	 * Key identifying a termrelationships row the way relationshipExists does (term, relationship, value or its digest).
+	 */
+	private static String relationshipKey(String term, String relationship, String value) {
+		return term + '\u0000' + relationship + '\u0000' + value;
+	}
+
+	/**
+	 * Run a single-column query (with at most one String parameter) as a streaming scan.
+	 */
+	private long forEachValue(String operation, String sql, String param, int fetchSize, ValueCallback callback) throws SQLException {
+		PooledConnection pc = this.getReadConnection(operation);
+		long count = 0;
+		try {
+			PreparedStatement ps = pc.prepare(sql);
+			ps.setFetchSize(pc.getPool().getDialect().streamingFetchSize(fetchSize));
+			if (param != null)
+				ps.setString(1, param);
+			ResultSet rs = ps.executeQuery();
+			try {
+				while (rs.next()) {
+					count++;
+					if (!callback.process(rs.getString(1)))
+						break;
+				}
+			} finally {
+				rs.close();
+			}
+			pc.addRows(count);
+			return count;
+		} catch (SQLException e) {
+			this.failed(pc, sql);
+			throw e;
+		} finally {
+			this.releaseDBConnection(pc);
+		}
+	}
+
+	/**
+	 * LIKE pattern matching values that start with prefix (wildcards in the prefix are escaped).
+	 */
+	static String likePrefix(String prefix) {
+		if (prefix == null)
+			return "%";
+		return prefix.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+	}
+
+	/**
+	 * Bind the (source, query, match mode) key of a 'lookupmisses' row to three consecutive parameters.
+	 */
+	private static void setMissKey(PreparedStatement ps, int param, String source, String query, String matchMode) throws SQLException {
+		ps.setString(param, source);
+		ps.setString(param + 1, query);
+		ps.setString(param + 2, matchMode);
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Copy the update counts from a committed batch into the result flags.
+	 */
+	private static void setBatchFlags(ArrayList<boolean[]> results, ArrayList<int[]> slots, int[] counts) {
+		for (int i = 0; i < slots.size() && i < counts.length; i++) {
+			int[] slot = slots.get(i);
+			results.get(slot[0])[slot[1]] = counts[i] >= 0 || counts[i] == Statement.SUCCESS_NO_INFO;
+		}
+	}
+
+	/**
+	 * @return SQL of a RELATIONSHIP_PAGE query with the given filters
+	 */
+	private static String relationshipPageSQL(boolean byRelationship, boolean bySource, boolean after) {
+		return RELATIONSHIP_PAGE + (byRelationship ? " AND relationship=?" : "") + (bySource ? " AND source=?" : "")
+				+ (after ? RELATIONSHIP_PAGE_AFTER : "") + RELATIONSHIP_PAGE_ORDER;
+	}
+
+	/**
+	 * Run a RELATIONSHIP_PAGE query from {@link #relationshipPageSQL(boolean, boolean, boolean)}, fetching one row more
+	 * than the page to tell whether another page follows.
+	 */
+	private RelationshipPage readRelationshipPage(PooledConnection pc, String sql, String term, String relationship, String source,
+													String pageToken, int limit) throws SQLException {
+		if (limit < 1)
+			throw new IllegalArgumentException("Page size must be positive: " + limit);
+		PreparedStatement ps = pc.prepare(sql);
+		int param = 1;
+		ps.setString(param++, term);
+		if (relationship != null)
+			ps.setString(param++, relationship);
+		if (source != null)
+			ps.setString(param++, source);
+		if (pageToken != null) {
+			double confidence = RelationshipPage.tokenConfidence(pageToken);
+			ps.setDouble(param++, confidence);
+			ps.setDouble(param++, confidence);
+			ps.setLong(param++, RelationshipPage.tokenId(pageToken));
+		}
+		ps.setInt(param, limit + 1);
+		ArrayList<TermRelationship> relationships = new ArrayList<TermRelationship>();
+		String next = null;
+		long lastId = 0;
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next()) {
+				if (relationships.size() == limit) {
+					next = RelationshipPage.token(relationships.get(limit - 1).getConfidence(), lastId);
+					break;
+				}
+				lastId = rs.getLong("id");
+				relationships.add(readRelationship(rs));
+			}
+		} finally {
+			rs.close();
+		}
+		pc.addRows(relationships.size());
+		return new RelationshipPage(relationships, next);
+	}
+
+	/**
+	 * Run a single-value COUNT query.
+	 */
+	private int queryCount(PreparedStatement ps) throws SQLException {
+		ResultSet rs = ps.executeQuery();
+		try {
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Run a query selecting RELATIONSHIP_COLUMNS and add a TermRelationship for each row to the list.
+	 */
+	private void readRelationships(PreparedStatement ps, ArrayList<TermRelationship> trList) throws SQLException {
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next())
+				trList.add(readRelationship(rs));
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Build a TermRelationship from the current row of a query selecting RELATIONSHIP_COLUMNS.
+	 */
+	static TermRelationship readRelationship(ResultSet rs) throws SQLException {
+		return new TermRelationship(rs.getString("term"), rs.getString("relationship"), rs.getString("value"),
+									rs.getDouble("confidence"), rs.getString("source"), rs.getString("parentTerm"));
+	}
+
+	/**
+	 * Run a query selecting the WHOLE_TERM_SELECT columns and build the Term from its rows.
+	 * @return Term, or null if the query returned no rows
+	 */
+	private Term readWholeTerm(PooledConnection pc, PreparedStatement ps) throws SQLException {
+		Term term = null;
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next()) {
+				pc.addRows(1);
+				if (term == null)
+					term = new Term(rs.getString(1));
+				// LEFT JOIN gives a row of NULLs for a term without (matching) relationships
+				if (rs.getString(2) != null)
+					term.addTermRelationship(new TermRelationship(rs.getString(1), rs.getString(2), rs.getString(3),
+																	rs.getDouble(5), rs.getString(4), rs.getString(6)));
+			}
+		} finally {
+			rs.close();
+		}
+		return term;
+	}
+
+	/**
+	 * Borrow a connection to the database from the pool.
+	 * @param operation name of the calling method, under which the call is timed (see {@link #setMetricsRegistry(MetricsRegistry)})
+	 * @return PooledConnection, must be handed back with {@link #releaseDBConnection(PooledConnection)}
+	 * @throws SQLException Thrown if no connection could be obtained
+	 */
+	private PooledConnection getDBConnection(String operation) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return this.beginOperation(this.borrowPrimary(), operation, start);
+		} catch (SQLException e) {
+			this.acquireFailed(operation, start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Borrow a connection for a read-only query: from a replica, unless there are none, this wrapper wrote within
+	 * the read-your-writes window, or the replica fails (then from the primary).
+	 * @param operation name of the calling method, under which the call is timed
+	 * @return PooledConnection, must be handed back with {@link #releaseDBConnection(PooledConnection)}
+	 * @throws SQLException Thrown if no connection could be obtained
+	 */
+	private PooledConnection getReadConnection(String operation) throws SQLException {
+		long start = System.nanoTime();
+		try {
+			return this.beginOperation(this.borrowForRead(), operation, start);
+		} catch (SQLException e) {
+			this.acquireFailed(operation, start);
+			throw e;
+		}
+	}
+
+	/**
+	 * Borrow a connection to the primary for a write, starting the read-your-writes window.
+	 * @param operation name of the calling method, under which the call is timed
+	 * @return PooledConnection, must be handed back with {@link #releaseWriteConnection(PooledConnection)}
+	 * @throws SQLException Thrown if no connection could be obtained
+	 */
+	private PooledConnection getWriteConnection(String operation) throws SQLException {
+		PooledConnection pc = this.getDBConnection(operation);
+		this.lastWriteMillis = System.currentTimeMillis();
+		return pc;
+	}
+
+	private PooledConnection borrowPrimary() throws SQLException {
+		try {
+			ConnectionPool pool = this.getConnectionPool();
+			if (!this.schemaChecked && DBInfo.schemaAutoMigrate) {
+				SchemaManager.ensureSchema(pool);
+				this.schemaChecked = true;
+			}
+			return pool.borrow();
+		} catch(SQLException e) {
+			System.out.println("Database connection failed.");
+			throw e;
+		}
+	}
+
+	private PooledConnection borrowForRead() throws SQLException {
+		ReplicaSet set = this.getReplicaSet();
+		if (set == null || System.currentTimeMillis() - this.lastWriteMillis < this.readYourWritesMillis)
+			return this.borrowPrimary();
+		ConnectionPool replica = set.choose();
+		if (replica != null) {
+			try {
+				return replica.borrow();
+			} catch (SQLException e) {
+				this.replicaFailures.incrementAndGet();
+			}
+		}
+		return this.borrowPrimary();
+	}
+
+	/**
+	 * Start timing the operation on a freshly borrowed connection; the pool reports it back through
+	 * {@link #operationFinished(String, long, long, long, boolean)} when the connection is released.
+	 */
+	private PooledConnection beginOperation(PooledConnection pc, String operation, long start) {
+		if (this.metrics != null || this.slowQueryMillis > 0)
+			pc.beginOperation(operation, start, System.nanoTime() - start, this);
+		return pc;
+	}
+
+	/**
+	 * Record an operation that failed before it got a connection.
+	 */
+	private void acquireFailed(String operation, long start) {
+		long elapsed = System.nanoTime() - start;
+		this.operationFinished(operation, elapsed, elapsed, 0, true);
+	}
+
+	/**
+	 * Flag the operation on pc as failed and drop the statement that failed, which may be in a bad state.
+	 * @param pc PooledConnection, may be null if borrowing it failed
+	 * @param sql SQL of the failed statement, null if unknown
+	 */
+	private void failed(PooledConnection pc, String sql) {
+		if (pc == null)
+			return;
+		pc.markFailed();
+		if (sql != null)
+			pc.evict(sql);
+	}
+
+	/**
+	 * Called by the pool when a connection borrowed for an operation is released: hands the measurement to the
+	 * metrics registry, and reports the operation to it if it was slow (to System.err without a registry).
+	 * A registry that throws is reported and otherwise ignored, so it can't keep the connection from going back to the pool.
+	 */
+	void operationFinished(String operation, long nanos, long acquireNanos, long rows, boolean failed) {
+		long threshold = this.slowQueryMillis;
+		boolean slow = threshold > 0 && nanos >= threshold * 1000000L;
+		MetricsRegistry registry = this.metrics;
+		if (registry != null) {
+			try {
+				registry.record(operation, nanos, acquireNanos, rows, failed);
+				if (slow)
+					registry.slowOperation(operation, nanos, acquireNanos, rows, failed);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		else if (slow)
+			System.err.println(OperationMetrics.describeSlow(operation, nanos, acquireNanos, rows, failed));
+	}
+
+	/**
+	 * Hand back a write connection; the read-your-writes window runs from the end of the write.
+	 */
+	private void releaseWriteConnection(PooledConnection pc) {
+		this.lastWriteMillis = System.currentTimeMillis();
+		this.releaseDBConnection(pc);
+	}
+
+	/**
+	 * Hand the connection back to the pool it came from.  Its cached statements stay open for the next borrower.
+	 * @param pc PooledConnection from one of the get*Connection methods, may be null
+	 */
+	private void releaseDBConnection(PooledConnection pc) {
+		if (pc != null)
+			pc.getPool().release(pc);
 	}
 }
@@ -0,0 +1,135 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+/**
+ * The parts of the SQL used by ResourceDBWrapper and {@link SchemaManager} that differ between database engines.
+ * Queries that every supported engine understands stay in ResourceDBWrapper; only DDL details and
+ * engine-specific statements go through the dialect.
+ */
+public abstract class SQLDialect {
+	/** MySQL (InnoDB), the shared production database. */
+	public static final SQLDialect MYSQL = new MySQLDialect();
+
+	/** H2, embedded file-based (or in-memory) database for single-node deployments, tests and benchmarks. */
+	public static final SQLDialect H2 = new H2Dialect();
+
+	/**
+	 * Pick the dialect for a JDBC URL.
+	 * @param url JDBC connection string, e.g. "jdbc:h2:file:./resource-cache/resources"
+	 * @return the matching SQLDialect, MYSQL for URLs it doesn't recognize
+	 */
+	public static SQLDialect forURL(String url) {
+		if (url != null && url.startsWith("jdbc:h2:"))
+			return H2;
+		return MYSQL;
+	}
+
+	/**
+	 * @return short engine name, e.g. "MySQL"
+	 */
+	public abstract String getName();
+
+	/**
+	 * @return column definition of an auto-generated BIGINT primary key
+	 */
+	public String autoIncrementKey() {
+		return "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY";
+	}
+
+	/**
+	 * @return column definition of a timestamp set on insert and refreshed on every update
+	 */
+	public String lastUpdatedColumn() {
+		return "TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP";
+	}
+
+	/**
+	 * @return column type for text of any length that can still be compared with '=' (relationship values)
+	 */
+	public abstract String longTextType();
+
+	/**
+	 * @return column type for binary data of up to a few megabytes (BlobTermStore's encoded terms)
+	 */
+	public abstract String blobType();
+
+	/**
+	 * @return column type of a 40 hex digit digest
+	 */
+	public String hashColumnType() {
+		return "CHAR(40)";
+	}
+
+	/**
+	 * @param table table name
+	 * @param column column name
+	 * @param definition new column type and constraints, e.g. "VARCHAR(255) NOT NULL"
+	 * @return statement changing the definition of an existing column
+	 */
+	public abstract String alterColumn(String table, String column, String definition);
+
+	/**
+	 * @param name index name
+	 * @param table table the index is on
+	 * @return statement dropping the index
+	 */
+	public abstract String dropIndex(String name, String table);
+
+	/**
+	 * Single statement inserting terms that aren't in the 'terms' table yet and leaving the others alone.
+	 * @param rows number of terms, one parameter each
+	 * @return SQL with rows placeholders
+	 */
+	public abstract String upsertTerms(int rows);
+
+	/**
+	 * Single statement inserting a relationship unless the (term, relationship, value_hash) key is taken, in which case
+	 * the existing row is left as it is.  Parameters in the order of an insert:
+	 * term, relationship, value, confidence, source, parentTerm, value_hash, folded_hash.
+	 * @return SQL
+	 */
+	public abstract String upsertRelationship();
+
+	/**
+	 * Single statement inserting an (value_hash, term) row into 'idroutes' unless it's there already.
+	 * @return SQL
+	 */
+	public abstract String upsertIdRoute();
+
+	/**
+	 * @return clause appended to CREATE TABLE (storage engine, character set), may be empty
+	 */
+	public abstract String tableOptions();
+
+	/**
+	 * Fetch size to set on a statement whose ResultSet is streamed rather than read into memory.
+	 * @param fetchSize rows wanted per round trip, 0 for the driver default
+	 * @return value for Statement.setFetchSize
+	 */
+	public int streamingFetchSize(int fetchSize) {
+		return fetchSize;
+	}
+
+	/**
+	 * Convert an unquoted identifier to the case the engine stores it in, for DatabaseMetaData lookups.
+	 * @param identifier table or index name as written in the DDL
+	 * @return the identifier as it appears in the catalog
+	 */
+	public abstract String storedIdentifier(String identifier);
+
+	/**
+	 * @return group repeated n times, comma separated, e.g. "(?), (?)"
+	 */
+	static String repeat(String group, int n) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < n; i++) {
+			if (i > 0)
+				sb.append(", ");
+			sb.append(group);
+		}
+		return sb.toString();
+	}
+
+	public String toString() {
+		return this.getName();
+	}
+}
@@ -0,0 +1,298 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Creates and migrates the resources schema ('terms' and 'termrelationships' plus their indexes, 'lookupmisses', and
+ * BlobTermStore's 'termblobs' and 'termblobids', ShardedTermStore's 'idroutes', and the 'termchanges' log).
+ * The applied version is kept in the 'schemaversion' table; each migration only adds what is missing,
+ * so it is safe to run against a database whose tables were created by hand before the version table existed.
+ */
+public class SchemaManager {
+	/** Latest schema version this code knows how to create. */
+	public static final int CURRENT_VERSION = 11;
+
+	private static final String VERSION_TABLE = "schemaversion";
+	// Rows digested per transaction when value_hash or folded_hash is filled in for an existing table
+	private static final int HASH_PAGE_SIZE = 1000;
+	// Pools whose schema has already been brought up to date in this JVM
+	private static final Map<ConnectionPool, Boolean> checked = new WeakHashMap<ConnectionPool, Boolean>();
+
+	private final ConnectionPool pool;
+	private final SQLDialect dialect;
+
+	/**
+	 * Constructor.
+	 * @param pool ConnectionPool of the database to manage, its URL decides the dialect
+	 */
+	public SchemaManager(ConnectionPool pool) {
+		this.pool = pool;
+		this.dialect = pool.getDialect();
+	}
+
+	/**
+	 * Migrate the pool's database the first time it is used in this JVM.
+	 * @param pool ConnectionPool about to be used
+	 * @throws SQLException Thrown if the migration fails (it is retried on the next call)
+	 */
+	static synchronized void ensureSchema(ConnectionPool pool) throws SQLException {
+		if (checked.containsKey(pool))
+			return;
+		new SchemaManager(pool).migrate();
+		checked.put(pool, Boolean.TRUE);
+	}
+
+	/**
+	 * @return the applied schema version, 0 for an empty database (or one created before versioning)
+	 * @throws SQLException Thrown in the case of a database error
+	 */
+	public int getVersion() throws SQLException {
+		PooledConnection pc = this.pool.borrow();
+		try {
+			return this.readVersion(pc.getConnection());
+		} finally {
+			this.pool.release(pc);
+		}
+	}
+
+	/**
+	 * Apply every migration newer than the database's version, recording each one as it completes.
+	 * @return the schema version after migrating
+	 * @throws SQLException Thrown if a migration fails; the versions applied before it stay recorded
+	 */
+	public int migrate() throws SQLException {
+		PooledConnection pc = this.pool.borrow();
+		try {
+			Connection conn = pc.getConnection();
+			Statement stmt = conn.createStatement();
+			try {
+				stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + VERSION_TABLE + " (version INT NOT NULL)" + this.dialect.tableOptions());
+				int version = this.readVersion(conn);
+				while (version < CURRENT_VERSION) {
+					version += 1;
+					this.apply(version, conn, stmt);
+					if (stmt.executeUpdate("UPDATE " + VERSION_TABLE + " SET version=" + version) == 0)
+						stmt.executeUpdate("INSERT INTO " + VERSION_TABLE + " (version) VALUES (" + version + ")");
+				}
+				return version;
+			} finally {
+				stmt.close();
+			}
+		} finally {
+			this.pool.release(pc);
+		}
+	}
+
+	/**
+	 * Run one migration step.
+	 */
+	private void apply(int version, Connection conn, Statement stmt) throws SQLException {
+		switch (version) {
+		case 1:
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS terms (term VARCHAR(255) NOT NULL PRIMARY KEY)" + this.dialect.tableOptions());
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS termrelationships (id " + this.dialect.autoIncrementKey() + ", "
+								+ "term VARCHAR(255) NOT NULL, relationship VARCHAR(255) NOT NULL, value VARCHAR(255) NOT NULL, "
+								+ "confidence DOUBLE, source VARCHAR(255), parentTerm VARCHAR(255), "
+								+ "last_updated " + this.dialect.lastUpdatedColumn() + ", "
+								+ "FOREIGN KEY (term) REFERENCES terms (term) ON DELETE CASCADE)" + this.dialect.tableOptions());
+			break;
+		case 2:
+			// relationshipExists and the whole-Term key reads are answered from this index alone
+			this.createIndex(conn, stmt, "termrelationships_term_rel_value", "termrelationships", "term, relationship, value", false);
+			// ID lookups (relationship="ID" AND value=?) resolve the owning term without touching the table
+			this.createIndex(conn, stmt, "termrelationships_rel_value", "termrelationships", "relationship, value, term", false);
+			this.createIndex(conn, stmt, "termrelationships_source", "termrelationships", "source", false);
+			break;
+		case 3:
+			// Range scans for maintenance sweeps (getRelationshipsOlderThan and friends)
+			this.createIndex(conn, stmt, "termrelationships_last_updated", "termrelationships", "last_updated", false);
+			break;
+		case 4:
+			// Web service queries that found nothing, so they aren't sent again until they expire
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS lookupmisses (source VARCHAR(255) NOT NULL, querytext VARCHAR(255) NOT NULL, "
+								+ "matchmode VARCHAR(32) NOT NULL, expires TIMESTAMP NOT NULL, "
+								+ "PRIMARY KEY (source, querytext, matchmode))" + this.dialect.tableOptions());
+			this.createIndex(conn, stmt, "lookupmisses_expires", "lookupmisses", "expires", false);
+			break;
+		case 5:
+			// Full-length values, identified by a fixed-width digest (ResourceDBWrapper.valueHash) instead of the value itself
+			if (!this.columnExists(conn, "termrelationships", "value_hash"))
+				stmt.executeUpdate("ALTER TABLE termrelationships ADD COLUMN value_hash " + this.dialect.hashColumnType());
+			this.dropIndex(conn, stmt, "termrelationships_term_rel_value", "termrelationships");
+			this.dropIndex(conn, stmt, "termrelationships_rel_value", "termrelationships");
+			stmt.executeUpdate(this.dialect.alterColumn("termrelationships", "value", this.dialect.longTextType() + " NOT NULL"));
+			this.fillHashes(conn, "value_hash");
+			stmt.executeUpdate(this.dialect.alterColumn("termrelationships", "value_hash", this.dialect.hashColumnType() + " NOT NULL"));
+			// Duplicates the old check-then-insert let through (or that truncation made equal); the unique index rules them out
+			stmt.executeUpdate("DELETE FROM termrelationships WHERE id NOT IN (SELECT keep FROM (SELECT MIN(id) AS keep "
+								+ "FROM termrelationships GROUP BY term, relationship, value_hash) kept)");
+			this.createIndex(conn, stmt, "termrelationships_term_rel_hash", "termrelationships", "term, relationship, value_hash", true);
+			this.createIndex(conn, stmt, "termrelationships_rel_hash", "termrelationships", "relationship, value_hash, term", false);
+			break;
+		case 6:
+			// Sampled read counts for CacheEvictor; existing terms start out as read now, new ones as read when inserted
+			if (!this.columnExists(conn, "terms", "hits"))
+				stmt.executeUpdate("ALTER TABLE terms ADD COLUMN hits BIGINT DEFAULT 0 NOT NULL");
+			if (!this.columnExists(conn, "terms", "last_accessed"))
+				stmt.executeUpdate("ALTER TABLE terms ADD COLUMN last_accessed TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL");
+			this.createIndex(conn, stmt, "terms_hits_accessed", "terms", "hits, last_accessed", false);
+			break;
+		case 7:
+			// BlobTermStore: one row per (term, source) holding its encoded relationships, plus the ID's for lookups by ID
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS termblobs (term VARCHAR(255) NOT NULL, source VARCHAR(255) NOT NULL, "
+								+ "data " + this.dialect.blobType() + " NOT NULL, rel_count INT NOT NULL, char_count BIGINT NOT NULL, "
+								+ "last_updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, hits BIGINT DEFAULT 0 NOT NULL, "
+								+ "last_accessed TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL, PRIMARY KEY (term, source))"
+								+ this.dialect.tableOptions());
+			this.createIndex(conn, stmt, "termblobs_hits_accessed", "termblobs", "hits, last_accessed", false);
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS termblobids (id " + this.dialect.autoIncrementKey() + ", "
+								+ "term VARCHAR(255) NOT NULL, source VARCHAR(255) NOT NULL, value " + this.dialect.longTextType()
+								+ " NOT NULL, value_hash " + this.dialect.hashColumnType() + " NOT NULL, "
+								+ "last_updated TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL)" + this.dialect.tableOptions());
+			this.createIndex(conn, stmt, "termblobids_term_hash", "termblobids", "term, value_hash", true);
+			this.createIndex(conn, stmt, "termblobids_hash", "termblobids", "value_hash, term", false);
+			this.createIndex(conn, stmt, "termblobids_last_updated", "termblobids", "last_updated", false);
+			break;
+		case 8:
+			// ShardedTermStore: which terms have an ID, kept on the shard the ID hashes to (empty in an unsharded database)
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS idroutes (value_hash " + this.dialect.hashColumnType() + " NOT NULL, "
+								+ "term VARCHAR(255) NOT NULL, PRIMARY KEY (value_hash, term))" + this.dialect.tableOptions());
+			break;
+		case 9:
+			// Reverse lookups by case-folded value (ResourceDBWrapper.getTermsByValue), with or without the relationship
+			if (!this.columnExists(conn, "termrelationships", "folded_hash"))
+				stmt.executeUpdate("ALTER TABLE termrelationships ADD COLUMN folded_hash " + this.dialect.hashColumnType());
+			this.fillHashes(conn, "folded_hash");
+			stmt.executeUpdate(this.dialect.alterColumn("termrelationships", "folded_hash", this.dialect.hashColumnType() + " NOT NULL"));
+			this.createIndex(conn, stmt, "termrelationships_folded", "termrelationships", "folded_hash, relationship, term", false);
+			break;
+		case 10:
+			// Top-N and keyset pages by confidence (ResourceDBWrapper.getRelationshipPage); rows without one rank lowest
+			stmt.executeUpdate("UPDATE termrelationships SET confidence=0 WHERE confidence IS NULL");
+			this.createIndex(conn, stmt, "termrelationships_term_rel_conf", "termrelationships", "term, relationship, confidence, id",
+								false);
+			break;
+		case 11:
+			// Keys made stale by each write (DBInfo.changeLog), read in id order by the ChangeFeed of every node's DBCache
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS termchanges (id " + this.dialect.autoIncrementKey() + ", "
+								+ "kind VARCHAR(8) NOT NULL, name " + this.dialect.longTextType() + " NOT NULL, "
+								+ "changed TIMESTAMP DEFAULT CURRENT_TIMESTAMP NOT NULL)" + this.dialect.tableOptions());
+			this.createIndex(conn, stmt, "termchanges_changed", "termchanges", "changed", false);
+			break;
+		default:
+			throw new SQLException("Unknown schema version " + version);
+		}
+	}
+
+	/**
+	 * Create an index unless one with that name already exists.
+	 */
+	private void createIndex(Connection conn, Statement stmt, String name, String table, String columns, boolean unique)
+			throws SQLException {
+		if (this.indexExists(conn, name, table))
+			return;
+		stmt.executeUpdate("CREATE " + (unique ? "UNIQUE " : "") + "INDEX " + name + " ON " + table + " (" + columns + ")");
+	}
+
+	/**
+	 * Drop an index if it exists.
+	 */
+	private void dropIndex(Connection conn, Statement stmt, String name, String table) throws SQLException {
+		if (this.indexExists(conn, name, table))
+			stmt.executeUpdate(this.dialect.dropIndex(name, table));
+	}
+
+	private boolean indexExists(Connection conn, String name, String table) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet rs = meta.getIndexInfo(conn.getCatalog(), null, this.dialect.storedIdentifier(table), false, true);
+		try {
+			while (rs.next()) {
+				if (this.dialect.storedIdentifier(name).equals(rs.getString("INDEX_NAME")))
+					return true;
+			}
+			return false;
+		} finally {
+			rs.close();
+		}
+	}
+
+	private boolean columnExists(Connection conn, String table, String column) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet rs = meta.getColumns(conn.getCatalog(), null, this.dialect.storedIdentifier(table), this.dialect.storedIdentifier(column));
+		try {
+			return rs.next();
+		} finally {
+			rs.close();
+		}
+	}
+
+	/**
+	 * Compute a digest column (value_hash or folded_hash) for every row that doesn't have it yet, a page of rows per
+	 * transaction.  last_updated is kept as it was so the rows don't all look freshly refreshed.
+	 */
+	private void fillHashes(Connection conn, String column) throws SQLException {
+		PreparedStatement select = conn.prepareStatement("SELECT id, value FROM termrelationships WHERE id > ? AND " + column + " IS NULL "
+															+ "ORDER BY id LIMIT " + HASH_PAGE_SIZE);
+		PreparedStatement update = conn.prepareStatement("UPDATE termrelationships SET " + column + "=?, last_updated=last_updated "
+															+ "WHERE id=?");
+		boolean autoCommit = conn.getAutoCommit();
+		try {
+			conn.setAutoCommit(false);
+			long last = Long.MIN_VALUE;
+			int rows;
+			do {
+				select.setLong(1, last);
+				ResultSet rs = select.executeQuery();
+				rows = 0;
+				try {
+					while (rs.next()) {
+						last = rs.getLong(1);
+						String value = rs.getString(2);
+						update.setString(1, column.equals("folded_hash") ? ResourceDBWrapper.foldedHash(value) : ResourceDBWrapper.valueHash(value));
+						update.setLong(2, last);
+						update.addBatch();
+						rows++;
+					}
+				} finally {
+					rs.close();
+				}
+				if (rows > 0)
+					update.executeBatch();
+				conn.commit();
+			} while (rows == HASH_PAGE_SIZE);
+		} catch (SQLException e) {
+			conn.rollback();
+			throw e;
+		} finally {
+			conn.setAutoCommit(autoCommit);
+			select.close();
+			update.close();
+		}
+	}
+
+	private int readVersion(Connection conn) throws SQLException {
+		DatabaseMetaData meta = conn.getMetaData();
+		ResultSet rs = meta.getTables(conn.getCatalog(), null, this.dialect.storedIdentifier(VERSION_TABLE), null);
+		try {
+			if (!rs.next())
+				return 0;
+		} finally {
+			rs.close();
+		}
+		Statement stmt = conn.createStatement();
+		try {
+			rs = stmt.executeQuery("SELECT MAX(version) FROM " + VERSION_TABLE);
+			rs.next();
+			return rs.getInt(1);
+		} finally {
+			stmt.close();
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring assigning keys (terms, ID digests) to shards.  Each shard is placed on the ring at
+ * virtualNodes points derived from its name, and a key belongs to the first shard point at or after the key's hash.
+ * Adding a shard only takes over the keys between its points and their predecessors, about 1/n of them, and every
+ * other key keeps its shard.  Hashes are MD5 based, so every process computes the same placement.
+ */
+final class ShardRing {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<String> names;
+	private final TreeMap<Long, Integer> points = new TreeMap<Long, Integer>();
+
+	/**
+	 * @param names shard names (e.g. their URLs), the index in this list is the shard number
+	 * @param virtualNodes points per shard
+	 */
+	ShardRing(List<String> names, int virtualNodes) {
+		if (names.isEmpty() || virtualNodes < 1)
+			throw new IllegalArgumentException("Invalid shard ring: " + names.size() + " shards, " + virtualNodes + " points each");
+		this.names = Collections.unmodifiableList(new ArrayList<String>(names));
+		for (int shard = 0; shard < names.size(); shard++) {
+			for (int i = 0; i < virtualNodes; i++) {
+				// A collision keeps the earlier shard's point, so the ring doesn't depend on the order of the puts
+				Long point = hash(names.get(shard) + '#' + i);
+				if (!this.points.containsKey(point))
+					this.points.put(point, shard);
+			}
+		}
+	}
+
+	/**
+	 * @return number of the shard owning key
+	 */
+	int shardFor(String key) {
+		Map.Entry<Long, Integer> point = this.points.ceilingEntry(hash(key));
+		if (point == null)
+			point = this.points.firstEntry();
+		return point.getValue();
+	}
+
+	int size() {
+		return this.names.size();
+	}
+
+	List<String> getNames() {
+		return this.names;
+	}
+
+	/**
+	 * @return the first 8 bytes of the key's MD5 digest
+	 */
+	static long hash(String key) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+		byte[] digest = md5.digest(key.getBytes(UTF8));
+		long h = 0;
+		for (int i = 0; i < 8; i++)
+			h = (h << 8) | (digest[i] & 0xff);
+		return h;
+	}
+}
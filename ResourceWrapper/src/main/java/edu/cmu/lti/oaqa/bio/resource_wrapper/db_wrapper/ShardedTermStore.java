@@ -0,0 +1,954 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * {@link TermStore} spreading the cache over several databases (shards), each with the regular schema and accessed
+ * through its own {@link ResourceDBWrapper}.  Used by DBCache when shardURLs is set in default.properties.
+ * <p>
+ * A term and all of its relationships live on the shard a {@link ShardRing} assigns the term to.  Lookups by ID go
+ * through a routing index: the 'idroutes' table holds (ID digest, term) rows, each on the shard the digest hashes to,
+ * so an ID lookup is one point read for the route and one for the term.  Routes are written before the relationship
+ * and removed after it, so a route may be briefly stale but never missing; lookups check the term actually has the ID.
+ * Calls spanning several terms (bulk reads and inserts, access counts, eviction candidates, usage) are split per shard
+ * and run on the shards in parallel; scans walk the shards one after the other.
+ * <p>
+ * {@link #addShard(ConnectionPool)} adds a shard and moves the terms and routes it now owns, about 1/n of each.
+ * While it runs, reads fall back to a key's previous shard, and a write first moves the term it touches.
+ * Each shard's writes are atomic, calls writing to several shards are not.  Lookup misses are spread over the shards
+ * too and aren't moved by a rebalance (a lost miss is just looked up again).
+ */
+public class ShardedTermStore implements TermStore {
+	// The relationship with a routing index
+	private static final String ID = "ID";
+	// Same limit as the 'terms' column, longer values aren't mirrored as terms (see ResourceDBWrapper.upsertRelationship)
+	private static final int MAX_TERM_LENGTH = 255;
+	// Row ids of getOldestRelationships are shard row id * MAX_SHARDS + shard number, unique across shards
+	private static final int MAX_SHARDS = 1024;
+	// Terms and routes read per page while rebalancing
+	private static final int REBALANCE_PAGE_SIZE = 500;
+	// Oldest first, then by the combined row id
+	private static final Comparator<RelationshipRow> OLDEST_FIRST = new Comparator<RelationshipRow>() {
+		public int compare(RelationshipRow a, RelationshipRow b) {
+			int c = a.getLastUpdated().compareTo(b.getLastUpdated());
+			if (c != 0)
+				return c;
+			return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+		}
+	};
+
+	private static List<ConnectionPool> defaultShards;
+
+	private volatile List<ResourceDBWrapper> shards;
+	private volatile ShardRing ring;
+	// Ring before the running rebalance, null when none is running
+	private volatile ShardRing previous;
+	private final int virtualNodes;
+	private final ExecutorService executor;
+	private final Object rebalanceLock = new Object();
+
+	/**
+	 * Constructor, with the ring size and thread count from DBInfo.
+	 * @param pools ConnectionPools of the shards (the caller closes them); shards are named by their URL
+	 */
+	public ShardedTermStore(List<ConnectionPool> pools) {
+		this(pools, DBInfo.shardVirtualNodes, DBInfo.shardThreads);
+	}
+
+	/**
+	 * Constructor.
+	 * @param pools ConnectionPools of the shards (the caller closes them); shards are named by their URL
+	 * @param virtualNodes points per shard on the hash ring
+	 * @param threads threads fanning calls out to the shards, 0 for one per shard
+	 */
+	public ShardedTermStore(List<ConnectionPool> pools, int virtualNodes, int threads) {
+		if (pools.size() > MAX_SHARDS)
+			throw new IllegalArgumentException("At most " + MAX_SHARDS + " shards are supported");
+		ArrayList<ResourceDBWrapper> wrappers = new ArrayList<ResourceDBWrapper>();
+		ArrayList<String> names = new ArrayList<String>();
+		for (ConnectionPool pool : pools) {
+			wrappers.add(new ResourceDBWrapper(pool));
+			names.add(pool.getURL());
+		}
+		this.shards = Collections.unmodifiableList(wrappers);
+		this.virtualNodes = virtualNodes;
+		this.ring = new ShardRing(names, virtualNodes);
+		final AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newFixedThreadPool(threads > 0 ? threads : pools.size(), new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "ShardedTermStore-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Get the pools of the shards configured in DBInfo (shardURLs), shared by every DBCache constructed without an
+	 * explicit store.  Each shard gets a pool sized like the primary's.
+	 * @return the shared pools, empty if no shards are configured
+	 * @throws SQLException Thrown if the driver can't be loaded
+	 */
+	public static synchronized List<ConnectionPool> getDefaultShards() throws SQLException {
+		if (DBInfo.shardURLs == null || DBInfo.shardURLs.trim().length() == 0)
+			return Collections.emptyList();
+		boolean closed = defaultShards == null;
+		for (int i = 0; !closed && i < defaultShards.size(); i++)
+			closed = defaultShards.get(i).isClosed();
+		if (closed) {
+			ArrayList<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+			for (String url : DBInfo.shardURLs.split(",")) {
+				if (url.trim().length() > 0)
+					pools.add(new ConnectionPool(DBInfo.dbClass, url.trim() + "resources", DBInfo.userName, DBInfo.password,
+													DBInfo.poolMinSize, DBInfo.poolMaxSize, DBInfo.poolMaxWait,
+													DBInfo.poolIdleTimeout, DBInfo.poolValidationTimeout));
+			}
+			defaultShards = Collections.unmodifiableList(pools);
+		}
+		return defaultShards;
+	}
+
+	public boolean termExists(String term) throws SQLException {
+		for (int shard : this.owners(term)) {
+			if (this.shards.get(shard).termExists(term))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * ID's go through the routing index, other relationships are looked up on every shard.
+	 */
+	public String getTermByRelationshipAndValue(final String relationship, final String value) throws SQLException {
+		if (value == null)
+			return null;
+		if (ID.equals(relationship)) {
+			for (String term : this.routedTerms(value)) {
+				for (int shard : this.owners(term)) {
+					if (this.shards.get(shard).relationshipExists(term, ID, value))
+						return term;
+				}
+			}
+			return null;
+		}
+		ArrayList<Callable<String>> tasks = new ArrayList<Callable<String>>();
+		for (final ResourceDBWrapper shard : this.shards) {
+			tasks.add(new Callable<String>() {
+				public String call() throws SQLException {
+					return shard.getTermByRelationshipAndValue(relationship, value);
+				}
+			});
+		}
+		String first = null;
+		for (String term : this.fanOut(tasks)) {
+			if (term != null && (first == null || term.compareTo(first) < 0))
+				first = term;
+		}
+		return first;
+	}
+
+	/**
+	 * Asks every shard, the terms listing a value can be anywhere.
+	 */
+	public ArrayList<String> getTermsByValue(final String relationship, final String value) throws SQLException {
+		ArrayList<Callable<ArrayList<String>>> tasks = new ArrayList<Callable<ArrayList<String>>>();
+		for (final ResourceDBWrapper shard : this.shards) {
+			tasks.add(new Callable<ArrayList<String>>() {
+				public ArrayList<String> call() throws SQLException {
+					return shard.getTermsByValue(relationship, value);
+				}
+			});
+		}
+		TreeSet<String> terms = new TreeSet<String>();
+		for (ArrayList<String> part : this.fanOut(tasks))
+			terms.addAll(part);
+		return new ArrayList<String>(terms);
+	}
+
+	public boolean relationshipExists(String term, String relationship, String value) throws SQLException {
+		for (int shard : this.owners(term)) {
+			if (this.shards.get(shard).relationshipExists(term, relationship, value))
+				return true;
+		}
+		return false;
+	}
+
+	public Term getWholeTerm(String term, String source) throws SQLException {
+		for (int shard : this.owners(term)) {
+			Term whole = this.shards.get(shard).getWholeTerm(term, source);
+			if (whole != null)
+				return whole;
+		}
+		return null;
+	}
+
+	public Term getWholeTermByRelationshipAndValue(String relationship, String value, String source) throws SQLException {
+		if (value == null)
+			return null;
+		if (!ID.equals(relationship)) {
+			String term = this.getTermByRelationshipAndValue(relationship, value);
+			return term == null ? null : this.getWholeTerm(term, source);
+		}
+		// The term's shard checks the ID in the same query that reads the term
+		for (String term : this.routedTerms(value)) {
+			for (int shard : this.owners(term)) {
+				Term whole = this.shards.get(shard).getWholeTermByRelationshipAndValue(ID, value, source);
+				if (whole != null)
+					return whole;
+			}
+		}
+		return null;
+	}
+
+	public HashMap<String, Term> getWholeTerms(Collection<String> terms, final String source) throws SQLException {
+		HashMap<String, Term> found = this.getWholeTermsFrom(this.groupByOwner(terms, this.ring), source);
+		ShardRing prev = this.previous;
+		if (prev != null) {
+			// Terms not moved yet by the running rebalance
+			ArrayList<String> missing = new ArrayList<String>();
+			for (String term : terms) {
+				if (!found.containsKey(term) && prev.shardFor(term) != this.ring.shardFor(term))
+					missing.add(term);
+			}
+			if (!missing.isEmpty())
+				found.putAll(this.getWholeTermsFrom(this.groupByOwner(missing, prev), source));
+		}
+		return found;
+	}
+
+	/**
+	 * ID's go to the shards of their routed terms, other relationships to every shard.  If several terms have a value,
+	 * the first one by name is returned, as for a single lookup.
+	 */
+	public HashMap<String, Term> getWholeTermsByRelationshipAndValue(final String relationship, Collection<String> values,
+																		final String source) throws SQLException {
+		HashMap<Integer, ArrayList<String>> byShard = new HashMap<Integer, ArrayList<String>>();
+		if (ID.equals(relationship)) {
+			HashMap<String, TreeSet<String>> routes = this.routedTerms(values);
+			for (Map.Entry<String, TreeSet<String>> entry : routes.entrySet()) {
+				HashSet<Integer> shards = new HashSet<Integer>();
+				for (String term : entry.getValue()) {
+					for (int shard : this.owners(term))
+						shards.add(shard);
+				}
+				for (Integer shard : shards)
+					valuesOf(byShard, shard).add(entry.getKey());
+			}
+		}
+		else {
+			for (int shard = 0; shard < this.shards.size(); shard++)
+				byShard.put(shard, new ArrayList<String>(values));
+		}
+
+		ArrayList<Callable<HashMap<String, Term>>> tasks = new ArrayList<Callable<HashMap<String, Term>>>();
+		for (final Map.Entry<Integer, ArrayList<String>> entry : byShard.entrySet()) {
+			final ResourceDBWrapper shard = this.shards.get(entry.getKey());
+			tasks.add(new Callable<HashMap<String, Term>>() {
+				public HashMap<String, Term> call() throws SQLException {
+					return shard.getWholeTermsByRelationshipAndValue(relationship, entry.getValue(), source);
+				}
+			});
+		}
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		for (HashMap<String, Term> part : this.fanOut(tasks)) {
+			for (Map.Entry<String, Term> entry : part.entrySet()) {
+				Term first = found.get(entry.getKey());
+				if (first == null || entry.getValue().getTerm().compareTo(first.getTerm()) < 0)
+					found.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return found;
+	}
+
+	public ArrayList<TermRelationship> getRelationships(String term) throws SQLException {
+		return this.getRelationships(term, null);
+	}
+
+	public ArrayList<TermRelationship> getRelationships(String term, String source) throws SQLException {
+		ArrayList<TermRelationship> trList = new ArrayList<TermRelationship>();
+		for (int shard : this.owners(term)) {
+			ResourceDBWrapper wrapper = this.shards.get(shard);
+			trList = source == null ? wrapper.getRelationships(term) : wrapper.getRelationships(term, source);
+			if (!trList.isEmpty())
+				break;
+		}
+		return trList;
+	}
+
+	public void upsertTerm(String term) throws SQLException {
+		this.settle(term);
+		this.shards.get(this.ring.shardFor(term)).upsertTerm(term);
+	}
+
+	/**
+	 * The relationship goes to the term's shard, the mirrored value term (if it fits, 255 characters) to its own.
+	 */
+	public void upsertRelationship(TermRelationship tr) throws SQLException {
+		String value = tr.getToTerm();
+		if (value == null)
+			return;
+		String term = tr.getFromTerm();
+		this.settle(term);
+		if (ID.equals(tr.getRelationship()))
+			this.writeRoutes(Collections.singletonList(new String[] {value, term}), true);
+		this.shards.get(this.ring.shardFor(term)).upsertRelationship(tr, false);
+		if (value.length() <= MAX_TERM_LENGTH && !value.equals(term)) {
+			this.settle(value);
+			this.shards.get(this.ring.shardFor(value)).upsertTerm(value);
+		}
+	}
+
+	/**
+	 * Terms are grouped by the shard of their name, each group is inserted in one transaction on its shard.
+	 */
+	public ArrayList<boolean[]> insertWholeTerms(Collection<Term> terms) throws SQLException {
+		ArrayList<String[]> routes = new ArrayList<String[]>();
+		final HashMap<Integer, ArrayList<Term>> byShard = new HashMap<Integer, ArrayList<Term>>();
+		HashMap<Integer, ArrayList<Integer>> positions = new HashMap<Integer, ArrayList<Integer>>();
+		int position = 0;
+		for (Term term : terms) {
+			this.settle(term.getTerm());
+			for (TermRelationship tr : term.getAllTermRelationships()) {
+				if (ID.equals(tr.getRelationship()) && tr.getToTerm() != null)
+					routes.add(new String[] {tr.getToTerm(), tr.getFromTerm()});
+			}
+			Integer shard = this.ring.shardFor(term.getTerm());
+			if (!byShard.containsKey(shard)) {
+				byShard.put(shard, new ArrayList<Term>());
+				positions.put(shard, new ArrayList<Integer>());
+			}
+			byShard.get(shard).add(term);
+			positions.get(shard).add(position++);
+		}
+		this.writeRoutes(routes, true);
+
+		ArrayList<Integer> order = new ArrayList<Integer>(byShard.keySet());
+		ArrayList<Callable<ArrayList<boolean[]>>> tasks = new ArrayList<Callable<ArrayList<boolean[]>>>();
+		for (final Integer shard : order) {
+			final ResourceDBWrapper wrapper = this.shards.get(shard);
+			tasks.add(new Callable<ArrayList<boolean[]>>() {
+				public ArrayList<boolean[]> call() throws SQLException {
+					return wrapper.insertWholeTerms(byShard.get(shard));
+				}
+			});
+		}
+		boolean[][] results = new boolean[position][];
+		ArrayList<ArrayList<boolean[]>> parts = this.fanOut(tasks);
+		for (int i = 0; i < order.size(); i++) {
+			ArrayList<Integer> slots = positions.get(order.get(i));
+			for (int j = 0; j < slots.size(); j++)
+				results[slots.get(j)] = parts.get(i).get(j);
+		}
+		ArrayList<boolean[]> flags = new ArrayList<boolean[]>(position);
+		Collections.addAll(flags, results);
+		return flags;
+	}
+
+	public int[] refreshRelationships(String term, String source, Collection<TermRelationship> fresh) throws SQLException {
+		this.settle(term);
+		ResourceDBWrapper shard = this.shards.get(this.ring.shardFor(term));
+		HashSet<String> oldIds = new HashSet<String>();
+		for (TermRelationship tr : shard.getRelationships(term, source)) {
+			if (ID.equals(tr.getRelationship()))
+				oldIds.add(tr.getToTerm());
+		}
+		HashSet<String> newIds = new HashSet<String>();
+		for (TermRelationship tr : fresh) {
+			if (ID.equals(tr.getRelationship()) && tr.getToTerm() != null)
+				newIds.add(tr.getToTerm());
+		}
+		ArrayList<String[]> added = new ArrayList<String[]>();
+		for (String id : newIds) {
+			if (!oldIds.contains(id))
+				added.add(new String[] {id, term});
+		}
+		ArrayList<String[]> removed = new ArrayList<String[]>();
+		for (String id : oldIds) {
+			if (!newIds.contains(id))
+				removed.add(new String[] {id, term});
+		}
+		this.writeRoutes(added, true);
+		int[] counts = shard.refreshRelationships(term, source, fresh);
+		this.writeRoutes(removed, false);
+		return counts;
+	}
+
+	public void deleteTerm(String term) throws SQLException {
+		ArrayList<String[]> routes = new ArrayList<String[]>();
+		int[] owners = this.owners(term);
+		for (int shard : owners) {
+			for (TermRelationship tr : this.shards.get(shard).getRelationships(term)) {
+				if (ID.equals(tr.getRelationship()))
+					routes.add(new String[] {tr.getToTerm(), term});
+			}
+		}
+		for (int shard : owners)
+			this.shards.get(shard).deleteTerm(term);
+		this.writeRoutes(routes, false);
+	}
+
+	public void deleteRelationship(String term, String relationship, String value) throws SQLException {
+		for (int shard : this.owners(term))
+			this.shards.get(shard).deleteRelationship(term, relationship, value);
+		if (ID.equals(relationship) && value != null)
+			this.writeRoutes(Collections.singletonList(new String[] {value, term}), false);
+	}
+
+	/**
+	 * Walks the shards one after the other; a term being moved by a rebalance may be handed out twice.
+	 */
+	public long forEachTerm(int fetchSize, ValueCallback callback) throws SQLException {
+		StoppableValues values = new StoppableValues(callback);
+		long count = 0;
+		for (ResourceDBWrapper shard : this.shards) {
+			count += shard.forEachTerm(fetchSize, values);
+			if (values.stopped)
+				break;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a page from every shard and keeps the first limit terms.
+	 */
+	public ArrayList<String> getTermPage(final String after, final int limit) throws SQLException {
+		ArrayList<Callable<ArrayList<String>>> tasks = new ArrayList<Callable<ArrayList<String>>>();
+		for (final ResourceDBWrapper shard : this.shards) {
+			tasks.add(new Callable<ArrayList<String>>() {
+				public ArrayList<String> call() throws SQLException {
+					return shard.getTermPage(after, limit);
+				}
+			});
+		}
+		TreeSet<String> merged = new TreeSet<String>();
+		for (ArrayList<String> part : this.fanOut(tasks))
+			merged.addAll(part);
+		ArrayList<String> page = new ArrayList<String>(Math.min(limit, merged.size()));
+		for (String term : merged) {
+			if (page.size() == limit)
+				break;
+			page.add(term);
+		}
+		return page;
+	}
+
+	public long forEachRelationshipValue(String relationship, int fetchSize, ValueCallback callback) throws SQLException {
+		StoppableValues values = new StoppableValues(callback);
+		long count = 0;
+		for (ResourceDBWrapper shard : this.shards) {
+			count += shard.forEachRelationshipValue(relationship, fetchSize, values);
+			if (values.stopped)
+				break;
+		}
+		return count;
+	}
+
+	public long forEachRelationshipOlderThan(Date datetime, int fetchSize, final RelationshipCallback callback) throws SQLException {
+		final boolean[] stopped = new boolean[1];
+		RelationshipCallback relationships = new RelationshipCallback() {
+			public boolean process(TermRelationship tr) {
+				stopped[0] = !callback.process(tr);
+				return !stopped[0];
+			}
+		};
+		long count = 0;
+		for (ResourceDBWrapper shard : this.shards) {
+			count += shard.forEachRelationshipOlderThan(datetime, fetchSize, relationships);
+			if (stopped[0])
+				break;
+		}
+		return count;
+	}
+
+	/**
+	 * Reads a page from every shard and merges them.  The returned rows' ids combine the shard's row id and the shard
+	 * number, so the page position works across shards.
+	 */
+	public ArrayList<RelationshipRow> getOldestRelationships(final String relationship, final String source, final String valuePrefix,
+																final Date olderThan, RelationshipRow after, final int limit)
+																throws SQLException {
+		ArrayList<Callable<ArrayList<RelationshipRow>>> tasks = new ArrayList<Callable<ArrayList<RelationshipRow>>>();
+		for (int i = 0; i < this.shards.size(); i++) {
+			final ResourceDBWrapper shard = this.shards.get(i);
+			final int number = i;
+			final RelationshipRow position = after == null ? null : new RelationshipRow(shardRowIdAfter(after.getId(), i),
+																						after.getTerm(), after.getRelationship(),
+																						after.getValue(), after.getSource(),
+																						after.getLastUpdated());
+			tasks.add(new Callable<ArrayList<RelationshipRow>>() {
+				public ArrayList<RelationshipRow> call() throws SQLException {
+					ArrayList<RelationshipRow> rows = new ArrayList<RelationshipRow>();
+					for (RelationshipRow row : shard.getOldestRelationships(relationship, source, valuePrefix, olderThan, position, limit))
+						rows.add(new RelationshipRow(row.getId() * MAX_SHARDS + number, row.getTerm(), row.getRelationship(),
+														row.getValue(), row.getSource(), row.getLastUpdated()));
+					return rows;
+				}
+			});
+		}
+		ArrayList<RelationshipRow> merged = new ArrayList<RelationshipRow>();
+		for (ArrayList<RelationshipRow> part : this.fanOut(tasks))
+			merged.addAll(part);
+		Collections.sort(merged, OLDEST_FIRST);
+		return merged.size() > limit ? new ArrayList<RelationshipRow>(merged.subList(0, limit)) : merged;
+	}
+
+	public void recordAccesses(Map<String, Long> hits, final Date accessed) throws SQLException {
+		final HashMap<Integer, HashMap<String, Long>> byShard = new HashMap<Integer, HashMap<String, Long>>();
+		for (Map.Entry<String, Long> entry : hits.entrySet()) {
+			Integer shard = this.ring.shardFor(entry.getKey());
+			HashMap<String, Long> part = byShard.get(shard);
+			if (part == null) {
+				part = new HashMap<String, Long>();
+				byShard.put(shard, part);
+			}
+			part.put(entry.getKey(), entry.getValue());
+		}
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Map.Entry<Integer, HashMap<String, Long>> entry : byShard.entrySet()) {
+			final ResourceDBWrapper shard = this.shards.get(entry.getKey());
+			tasks.add(new Callable<Void>() {
+				public Void call() throws SQLException {
+					shard.recordAccesses(entry.getValue(), accessed);
+					return null;
+				}
+			});
+		}
+		this.fanOut(tasks);
+	}
+
+	/**
+	 * Reads the coldest terms of every shard and merges them in eviction order.
+	 */
+	public ArrayList<String> getColdestTerms(final Date idleSince, final int limit) throws SQLException {
+		ArrayList<Callable<ArrayList<Object[]>>> tasks = new ArrayList<Callable<ArrayList<Object[]>>>();
+		for (final ResourceDBWrapper shard : this.shards) {
+			tasks.add(new Callable<ArrayList<Object[]>>() {
+				public ArrayList<Object[]> call() throws SQLException {
+					ArrayList<long[]> ranks = new ArrayList<long[]>();
+					ArrayList<String> terms = shard.getColdestTerms(idleSince, limit, ranks);
+					ArrayList<Object[]> ranked = new ArrayList<Object[]>(terms.size());
+					for (int i = 0; i < terms.size(); i++)
+						ranked.add(new Object[] {terms.get(i), ranks.get(i)});
+					return ranked;
+				}
+			});
+		}
+		ArrayList<Object[]> merged = new ArrayList<Object[]>();
+		for (ArrayList<Object[]> part : this.fanOut(tasks))
+			merged.addAll(part);
+		Collections.sort(merged, new Comparator<Object[]>() {
+			public int compare(Object[] a, Object[] b) {
+				long[] x = (long[]) a[1];
+				long[] y = (long[]) b[1];
+				if (x[0] != y[0])
+					return x[0] < y[0] ? -1 : 1;
+				if (x[1] != y[1])
+					return x[1] < y[1] ? -1 : 1;
+				return ((String) a[0]).compareTo((String) b[0]);
+			}
+		});
+		ArrayList<String> terms = new ArrayList<String>(Math.min(limit, merged.size()));
+		for (int i = 0; i < merged.size() && i < limit; i++)
+			terms.add((String) merged.get(i)[0]);
+		return terms;
+	}
+
+	public long[] getStorageUsage() throws SQLException {
+		ArrayList<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+		for (final ResourceDBWrapper shard : this.shards) {
+			tasks.add(new Callable<long[]>() {
+				public long[] call() throws SQLException {
+					return shard.getStorageUsage();
+				}
+			});
+		}
+		long[] usage = new long[2];
+		for (long[] part : this.fanOut(tasks)) {
+			usage[0] += part[0];
+			usage[1] += part[1];
+		}
+		return usage;
+	}
+
+	public boolean lookupMissExists(String source, String query, String matchMode) throws SQLException {
+		return this.missShard(source, query, matchMode).lookupMissExists(source, query, matchMode);
+	}
+
+	public void insertLookupMiss(String source, String query, String matchMode, Date expires) throws SQLException {
+		this.missShard(source, query, matchMode).insertLookupMiss(source, query, matchMode, expires);
+	}
+
+	public void deleteLookupMiss(String source, String query, String matchMode) throws SQLException {
+		this.missShard(source, query, matchMode).deleteLookupMiss(source, query, matchMode);
+	}
+
+	public int deleteLookupMissesExpiredBefore(final Date datetime) throws SQLException {
+		ArrayList<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (final ResourceDBWrapper shard : this.shards) {
+			tasks.add(new Callable<Integer>() {
+				public Integer call() throws SQLException {
+					return shard.deleteLookupMissesExpiredBefore(datetime);
+				}
+			});
+		}
+		int deleted = 0;
+		for (Integer count : this.fanOut(tasks))
+			deleted += count;
+		return deleted;
+	}
+
+	/**
+	 * Stop the fan-out threads.  The shard pools are left open for whoever created them.
+	 */
+	public void close() {
+		this.executor.shutdown();
+	}
+
+	/**
+	 * Add a shard and move the terms and ID routes it now owns to it from the other shards.  The store stays usable
+	 * while this runs (see the class comment); only one rebalance runs at a time.
+	 * @param pool ConnectionPool of the new shard, named by its URL (the caller closes it)
+	 * @return long array {terms moved, routes moved}
+	 * @throws SQLException Thrown if a shard fails; what was moved stays moved, call again with the same pool to finish
+	 */
+	public long[] addShard(ConnectionPool pool) throws SQLException {
+		synchronized (this.rebalanceLock) {
+			if (!this.ring.getNames().contains(pool.getURL())) {
+				if (this.shards.size() == MAX_SHARDS)
+					throw new IllegalStateException("At most " + MAX_SHARDS + " shards are supported");
+				ArrayList<ResourceDBWrapper> wrappers = new ArrayList<ResourceDBWrapper>(this.shards);
+				wrappers.add(new ResourceDBWrapper(pool));
+				ArrayList<String> names = new ArrayList<String>(this.ring.getNames());
+				names.add(pool.getURL());
+				this.shards = Collections.unmodifiableList(wrappers);
+				// previous is set first, so a reader never sees the new ring without the fallback
+				this.previous = this.ring;
+				this.ring = new ShardRing(names, this.virtualNodes);
+			}
+			else if (this.previous == null)
+				this.previous = this.ring;
+
+			long[] moved = new long[2];
+			int target = this.ring.getNames().indexOf(pool.getURL());
+			for (int from = 0; from < this.shards.size(); from++) {
+				if (from == target)
+					continue;
+				ResourceDBWrapper shard = this.shards.get(from);
+				String after = null;
+				ArrayList<String> page;
+				while (!(page = shard.getTermPage(after, REBALANCE_PAGE_SIZE)).isEmpty()) {
+					for (String term : page) {
+						if (this.ring.shardFor(term) != from && this.move(term, from, this.ring.shardFor(term)))
+							moved[0]++;
+					}
+					after = page.get(page.size() - 1);
+				}
+
+				String[] position = null;
+				ArrayList<String[]> routes;
+				while (!(routes = shard.getIdRoutePage(position, REBALANCE_PAGE_SIZE)).isEmpty()) {
+					HashMap<Integer, ArrayList<String[]>> byShard = new HashMap<Integer, ArrayList<String[]>>();
+					ArrayList<String[]> leaving = new ArrayList<String[]>();
+					for (String[] route : routes) {
+						int owner = this.ring.shardFor(route[0]);
+						if (owner != from) {
+							ArrayList<String[]> part = byShard.get(owner);
+							if (part == null) {
+								part = new ArrayList<String[]>();
+								byShard.put(owner, part);
+							}
+							part.add(route);
+							leaving.add(route);
+						}
+					}
+					for (Map.Entry<Integer, ArrayList<String[]>> entry : byShard.entrySet())
+						this.shards.get(entry.getKey()).addIdRoutes(entry.getValue());
+					shard.deleteIdRoutes(leaving);
+					moved[1] += leaving.size();
+					position = routes.get(routes.size() - 1);
+				}
+			}
+			this.previous = null;
+			return moved;
+		}
+	}
+
+	/**
+	 * @return number of shards
+	 */
+	public int getShardCount() {
+		return this.shards.size();
+	}
+
+	/**
+	 * @return the wrappers of the shards, in shard order (a new list once a shard is added)
+	 */
+	public List<ResourceDBWrapper> getShards() {
+		return this.shards;
+	}
+
+	/**
+	 * @return number of the shard a term is stored on
+	 */
+	int getShardFor(String term) {
+		return this.ring.shardFor(term);
+	}
+
+	/**
+	 * @return the wrapper of one shard
+	 */
+	ResourceDBWrapper getShard(int shard) {
+		return this.shards.get(shard);
+	}
+
+	public String toString() {
+		return "ShardedTermStore" + this.ring.getNames() + (this.previous != null ? " (rebalancing)" : "");
+	}
+
+	/**
+	 * Shards a key may be on: its owner, and while a rebalance runs, its owner before, if that's another shard.
+	 */
+	private int[] owners(String key) {
+		ShardRing prev = this.previous;
+		int owner = this.ring.shardFor(key);
+		if (prev != null) {
+			int old = prev.shardFor(key);
+			if (old != owner)
+				return new int[] {owner, old};
+		}
+		return new int[] {owner};
+	}
+
+	/**
+	 * While a rebalance runs, move a term that is about to be written to its new shard first, so the write and the
+	 * move don't leave two copies that disagree.
+	 */
+	private void settle(String term) throws SQLException {
+		ShardRing prev = this.previous;
+		if (prev == null)
+			return;
+		int from = prev.shardFor(term);
+		int to = this.ring.shardFor(term);
+		if (from != to)
+			this.move(term, from, to);
+	}
+
+	/**
+	 * Copy a whole term to another shard, then delete it from the one it was on.  Repeating it is harmless.
+	 * @return true if the term was there to move
+	 */
+	private boolean move(String term, int from, int to) throws SQLException {
+		Term whole = this.shards.get(from).getWholeTerm(term, null);
+		if (whole == null)
+			return false;
+		this.shards.get(to).insertWholeTerms(Collections.singletonList(whole));
+		this.shards.get(from).deleteTerm(term);
+		return true;
+	}
+
+	/**
+	 * @return terms the routing index has for an ID, in name order
+	 */
+	private TreeSet<String> routedTerms(String value) throws SQLException {
+		TreeSet<String> terms = this.routedTerms(Collections.singletonList(value)).get(value);
+		return terms == null ? new TreeSet<String>() : terms;
+	}
+
+	/**
+	 * Look up ID's in the routing index, on the shards their digests belong to (in parallel).
+	 * @return HashMap from ID to the routed terms in name order; ID's without a route are absent
+	 */
+	private HashMap<String, TreeSet<String>> routedTerms(Collection<String> values) throws SQLException {
+		HashMap<String, String> byHash = new HashMap<String, String>();
+		HashMap<Integer, ArrayList<String>> byShard = new HashMap<Integer, ArrayList<String>>();
+		for (String value : values) {
+			if (value == null)
+				continue;
+			String hash = ResourceDBWrapper.valueHash(value);
+			byHash.put(hash, value);
+			for (int shard : this.owners(hash))
+				valuesOf(byShard, shard).add(hash);
+		}
+		ArrayList<Callable<HashMap<String, ArrayList<String>>>> tasks = new ArrayList<Callable<HashMap<String, ArrayList<String>>>>();
+		for (final Map.Entry<Integer, ArrayList<String>> entry : byShard.entrySet()) {
+			final ResourceDBWrapper shard = this.shards.get(entry.getKey());
+			tasks.add(new Callable<HashMap<String, ArrayList<String>>>() {
+				public HashMap<String, ArrayList<String>> call() throws SQLException {
+					return shard.getIdRoutes(entry.getValue());
+				}
+			});
+		}
+		HashMap<String, TreeSet<String>> routes = new HashMap<String, TreeSet<String>>();
+		for (HashMap<String, ArrayList<String>> part : this.fanOut(tasks)) {
+			for (Map.Entry<String, ArrayList<String>> entry : part.entrySet()) {
+				String value = byHash.get(entry.getKey());
+				TreeSet<String> terms = routes.get(value);
+				if (terms == null) {
+					terms = new TreeSet<String>();
+					routes.put(value, terms);
+				}
+				terms.addAll(entry.getValue());
+			}
+		}
+		return routes;
+	}
+
+	/**
+	 * Add or remove routing index rows, on the shards their digests belong to (in parallel).  Removals go to the
+	 * previous shard too while a rebalance runs.
+	 * @param routes String arrays {ID, term}
+	 */
+	private void writeRoutes(Collection<String[]> routes, final boolean add) throws SQLException {
+		if (routes.isEmpty())
+			return;
+		final HashMap<Integer, ArrayList<String[]>> byShard = new HashMap<Integer, ArrayList<String[]>>();
+		for (String[] route : routes) {
+			String hash = ResourceDBWrapper.valueHash(route[0]);
+			int[] shards = add ? new int[] {this.ring.shardFor(hash)} : this.owners(hash);
+			for (int shard : shards) {
+				ArrayList<String[]> part = byShard.get(shard);
+				if (part == null) {
+					part = new ArrayList<String[]>();
+					byShard.put(shard, part);
+				}
+				part.add(new String[] {hash, route[1]});
+			}
+		}
+		ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final Map.Entry<Integer, ArrayList<String[]>> entry : byShard.entrySet()) {
+			final ResourceDBWrapper shard = this.shards.get(entry.getKey());
+			tasks.add(new Callable<Void>() {
+				public Void call() throws SQLException {
+					if (add)
+						shard.addIdRoutes(entry.getValue());
+					else
+						shard.deleteIdRoutes(entry.getValue());
+					return null;
+				}
+			});
+		}
+		this.fanOut(tasks);
+	}
+
+	/**
+	 * Bulk-read terms from the shards they were grouped to, in parallel.
+	 */
+	private HashMap<String, Term> getWholeTermsFrom(HashMap<Integer, ArrayList<String>> byShard, final String source)
+			throws SQLException {
+		ArrayList<Callable<HashMap<String, Term>>> tasks = new ArrayList<Callable<HashMap<String, Term>>>();
+		for (final Map.Entry<Integer, ArrayList<String>> entry : byShard.entrySet()) {
+			final ResourceDBWrapper shard = this.shards.get(entry.getKey());
+			tasks.add(new Callable<HashMap<String, Term>>() {
+				public HashMap<String, Term> call() throws SQLException {
+					return shard.getWholeTerms(entry.getValue(), source);
+				}
+			});
+		}
+		HashMap<String, Term> found = new HashMap<String, Term>();
+		for (HashMap<String, Term> part : this.fanOut(tasks))
+			found.putAll(part);
+		return found;
+	}
+
+	private HashMap<Integer, ArrayList<String>> groupByOwner(Collection<String> keys, ShardRing by) {
+		HashMap<Integer, ArrayList<String>> byShard = new HashMap<Integer, ArrayList<String>>();
+		for (String key : keys)
+			valuesOf(byShard, by.shardFor(key)).add(key);
+		return byShard;
+	}
+
+	private static ArrayList<String> valuesOf(HashMap<Integer, ArrayList<String>> byShard, int shard) {
+		ArrayList<String> values = byShard.get(shard);
+		if (values == null) {
+			values = new ArrayList<String>();
+			byShard.put(shard, values);
+		}
+		return values;
+	}
+
+	/**
+	 * Shard that keeps a lookup miss, by its key.
+	 */
+	private ResourceDBWrapper missShard(String source, String query, String matchMode) {
+		return this.shards.get(this.ring.shardFor(source + '\u0000' + matchMode + '\u0000' + query));
+	}
+
+	/**
+	 * Translate a position from {@link #getOldestRelationships} into one shard's row ids: its rows after the combined
+	 * id g are those with row id * MAX_SHARDS + shard > g, i.e. row id > floor((g - shard) / MAX_SHARDS).
+	 */
+	private static long shardRowIdAfter(long g, int shard) {
+		long d = g - shard;
+		return d >= 0 ? d / MAX_SHARDS : -((-d + MAX_SHARDS - 1) / MAX_SHARDS);
+	}
+
+	/**
+	 * Run calls on the shards in parallel and wait for all of them.
+	 * @return their results, in the order of tasks
+	 * @throws SQLException the first failure, after every call has finished
+	 */
+	private <T> ArrayList<T> fanOut(List<? extends Callable<T>> tasks) throws SQLException {
+		ArrayList<T> results = new ArrayList<T>(tasks.size());
+		try {
+			if (tasks.size() == 1) {
+				// Not worth a thread hand-off
+				results.add(tasks.get(0).call());
+				return results;
+			}
+			List<Future<T>> futures = this.executor.invokeAll(tasks);
+			for (Future<T> future : futures)
+				results.add(future.get());
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for the shards", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof SQLException)
+				throw (SQLException) e.getCause();
+			throw new SQLException("Shard call failed", e.getCause());
+		} catch (SQLException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new SQLException("Shard call failed", e);
+		}
+	}
+
+	/**
+	 * Passes values on to a callback and remembers if it asked to stop, so a scan over several shards stops too.
+	 */
+	private static class StoppableValues implements ValueCallback {
+		private final ValueCallback callback;
+		boolean stopped = false;
+
+		StoppableValues(ValueCallback callback) {
+			this.callback = callback;
+		}
+
+		public boolean process(String value) {
+			this.stopped = !this.callback.process(value);
+			return !this.stopped;
+		}
+	}
+}
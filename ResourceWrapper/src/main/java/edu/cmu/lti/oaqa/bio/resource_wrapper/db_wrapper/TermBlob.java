@@ -0,0 +1,223 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Encoding of the relationships one source has for a term, as stored in a 'termblobs' row by {@link BlobTermStore}.
+ * <p>
+ * Format 1: a format byte, the number of relationships, then per relationship its name, value, confidence and parent
+ * term.  Counts and lengths are varints.  Relationship names and parent terms repeat within a term (a gene has dozens
+ * of "synonym" rows), so each distinct one is written once and then referred to by its position; 1.0 confidences
+ * take a single byte.  The term and source are the row's key and aren't repeated.
+ */
+final class TermBlob {
+	static final byte FORMAT = 1;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// String codes: null, new string (added to the table), then table entry i at i + 2
+	private static final int CODE_NULL = 0;
+	private static final int CODE_NEW = 1;
+	private static final int CODE_FIRST_ENTRY = 2;
+	private static final int CONFIDENCE_ONE = 0;
+	private static final int CONFIDENCE_DOUBLE = 1;
+
+	private TermBlob() {
+	}
+
+	/**
+	 * @param relationships TermRelationships of one term and source (their term and source aren't stored);
+	 *                      ones with a null value are skipped
+	 * @return encoded blob
+	 */
+	static byte[] encode(Collection<TermRelationship> relationships) {
+		Output out = new Output(16 + relationships.size() * 48);
+		out.write(FORMAT);
+		int count = 0;
+		for (TermRelationship tr : relationships) {
+			if (tr.getToTerm() != null)
+				count++;
+		}
+		out.writeVarInt(count);
+		HashMap<String, Integer> table = new HashMap<String, Integer>();
+		for (TermRelationship tr : relationships) {
+			if (tr.getToTerm() == null)
+				continue;
+			out.writeCode(tr.getRelationship(), table);
+			out.writeString(tr.getToTerm());
+			if (tr.getConfidence() == 1.0)
+				out.write(CONFIDENCE_ONE);
+			else {
+				out.write(CONFIDENCE_DOUBLE);
+				out.writeLong(Double.doubleToLongBits(tr.getConfidence()));
+			}
+			out.writeCode(tr.getParentTerm(), table);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode a blob, appending its relationships to into.
+	 * @param term String term the blob belongs to
+	 * @param source String source of the relationships, null for none
+	 * @throws IllegalArgumentException Thrown if the blob isn't in a format this code reads
+	 */
+	static void decode(String term, String source, byte[] blob, List<TermRelationship> into) {
+		Input in = new Input(blob);
+		int format = in.read();
+		if (format != FORMAT)
+			throw new IllegalArgumentException("Unknown term blob format " + format + " for " + term);
+		int count = in.readVarInt();
+		ArrayList<String> table = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String relationship = in.readCode(table);
+			String value = in.readString();
+			double confidence = in.read() == CONFIDENCE_ONE ? 1.0 : Double.longBitsToDouble(in.readLong());
+			String parentTerm = in.readCode(table);
+			into.add(new TermRelationship(term, relationship, value, confidence, source, parentTerm));
+		}
+	}
+
+	/**
+	 * Characters of a relationship's term, relationship, value, source and parent term, as counted by
+	 * {@link TermStore#getStorageUsage()}.
+	 */
+	static long chars(String term, String source, TermRelationship tr) {
+		return term.length() + tr.getRelationship().length() + tr.getToTerm().length() + (source == null ? 0 : source.length())
+				+ (tr.getParentTerm() == null ? 0 : tr.getParentTerm().length());
+	}
+
+	/**
+	 * Growable byte buffer with the primitive writes the format needs (no stream or IOException overhead).
+	 */
+	private static class Output {
+		private byte[] buf;
+		private int size;
+
+		Output(int capacity) {
+			this.buf = new byte[capacity];
+		}
+
+		void write(int b) {
+			this.ensure(1);
+			this.buf[this.size++] = (byte) b;
+		}
+
+		void writeLong(long n) {
+			this.ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				this.buf[this.size++] = (byte) (n >>> shift);
+		}
+
+		void writeVarInt(int n) {
+			this.ensure(5);
+			while ((n & ~0x7f) != 0) {
+				this.buf[this.size++] = (byte) ((n & 0x7f) | 0x80);
+				n >>>= 7;
+			}
+			this.buf[this.size++] = (byte) n;
+		}
+
+		void writeString(String s) {
+			byte[] bytes = s.getBytes(UTF8);
+			this.writeVarInt(bytes.length);
+			this.ensure(bytes.length);
+			System.arraycopy(bytes, 0, this.buf, this.size, bytes.length);
+			this.size += bytes.length;
+		}
+
+		void writeCode(String s, HashMap<String, Integer> table) {
+			if (s == null) {
+				this.writeVarInt(CODE_NULL);
+				return;
+			}
+			Integer entry = table.get(s);
+			if (entry != null)
+				this.writeVarInt(entry + CODE_FIRST_ENTRY);
+			else {
+				table.put(s, table.size());
+				this.writeVarInt(CODE_NEW);
+				this.writeString(s);
+			}
+		}
+
+		byte[] toByteArray() {
+			byte[] bytes = new byte[this.size];
+			System.arraycopy(this.buf, 0, bytes, 0, this.size);
+			return bytes;
+		}
+
+		private void ensure(int n) {
+			if (this.size + n > this.buf.length) {
+				byte[] grown = new byte[Math.max(this.buf.length * 2, this.size + n)];
+				System.arraycopy(this.buf, 0, grown, 0, this.size);
+				this.buf = grown;
+			}
+		}
+	}
+
+	private static class Input {
+		private final byte[] buf;
+		private int pos;
+
+		Input(byte[] buf) {
+			this.buf = buf;
+		}
+
+		int read() {
+			this.check(1);
+			return this.buf[this.pos++] & 0xff;
+		}
+
+		long readLong() {
+			this.check(8);
+			long n = 0;
+			for (int i = 0; i < 8; i++)
+				n = (n << 8) | (this.buf[this.pos++] & 0xff);
+			return n;
+		}
+
+		int readVarInt() {
+			int n = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = this.read();
+				n |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0)
+					return n;
+			}
+			throw new IllegalArgumentException("Corrupt term blob: varint too long");
+		}
+
+		String readString() {
+			int length = this.readVarInt();
+			this.check(length);
+			String s = new String(this.buf, this.pos, length, UTF8);
+			this.pos += length;
+			return s;
+		}
+
+		String readCode(ArrayList<String> table) {
+			int code = this.readVarInt();
+			if (code == CODE_NULL)
+				return null;
+			if (code == CODE_NEW) {
+				String s = this.readString();
+				table.add(s);
+				return s;
+			}
+			if (code - CODE_FIRST_ENTRY >= table.size())
+				throw new IllegalArgumentException("Corrupt term blob: unknown string " + (code - CODE_FIRST_ENTRY));
+			return table.get(code - CODE_FIRST_ENTRY);
+		}
+
+		private void check(int n) {
+			if (n < 0 || this.pos + n > this.buf.length)
+				throw new IllegalArgumentException("Corrupt term blob: truncated");
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Timestamp;
+
+/**
+ * A 'termchanges' row: a key whose cached entries a write made stale, as returned by
+ * {@link ResourceDBWrapper#getChangesAfter(long, int)}.
+ * The key is either a term name (written, deleted, or given or relieved of a relationship) or an ID that gained or
+ * lost its term.
+ */
+public class TermChange {
+	/** Kind of a change to the term with this name. */
+	public static final String TERM = "term";
+	/** Kind of a change to the term this ID (relationship="ID" value) belongs to. */
+	public static final String ID = "ID";
+
+	private final long id;
+	private final String kind;
+	private final String name;
+	private final Timestamp changed;
+	private final Timestamp readAt;
+
+	TermChange(long id, String kind, String name, Timestamp changed, Timestamp readAt) {
+		this.id = id;
+		this.kind = kind;
+		this.name = name;
+		this.changed = changed;
+		this.readAt = readAt;
+	}
+
+	/**
+	 * @return row id; changes are numbered in the order they were written
+	 */
+	public long getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return {@link #TERM} or {@link #ID}
+	 */
+	public String getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * @return the term name or the ID
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return time of the write, by the database clock
+	 */
+	public Timestamp getChanged() {
+		return this.changed;
+	}
+
+	/**
+	 * @return milliseconds between the write and the read of this row, both by the database clock
+	 */
+	public long getAgeMillis() {
+		return Math.max(0, this.readAt.getTime() - this.changed.getTime());
+	}
+
+	public String toString() {
+		return this.id + ": " + this.kind + " " + this.name + "; " + this.changed;
+	}
+}
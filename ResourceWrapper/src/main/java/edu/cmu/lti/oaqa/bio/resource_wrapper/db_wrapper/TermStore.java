@@ -0,0 +1,192 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Storage behind DBCache: the operations it performs on cached terms, relationships and lookup misses.
+ * {@link ResourceDBWrapper} keeps them in a relational database over JDBC, {@link KeyValueTermStore} in an embedded
+ * key-value file.  DBInfo.storage picks one for the DBCache constructor.
+ * <p>
+ * Every backend reports errors as SQLException, so callers handle one exception type whichever store is configured.
+ * Relationships are identified by (term, relationship, value).  DBCache's "all" source convention isn't used here:
+ * a null source means all sources.
+ */
+public interface TermStore {
+	/**
+	 * @return true if the term is stored
+	 */
+	boolean termExists(String term) throws SQLException;
+
+	/**
+	 * Find the term owning a relationship.  Should only be used for ID's, which are unique.
+	 * @return the term (the first by name if several have it), null if none
+	 */
+	String getTermByRelationshipAndValue(String relationship, String value) throws SQLException;
+
+	/**
+	 * Reverse lookup: the terms with a relationship whose value matches, ignoring case and white space differences
+	 * (see {@link ResourceDBWrapper#foldValue(String)}), e.g. the genes listing "brca-1" as a synonym.
+	 * @param relationship relationship to match, null for any
+	 * @return matching terms in name order, empty if none
+	 */
+	ArrayList<String> getTermsByValue(String relationship, String value) throws SQLException;
+
+	/**
+	 * @return true if the term has the relationship with that value
+	 */
+	boolean relationshipExists(String term, String relationship, String value) throws SQLException;
+
+	/**
+	 * @param source String source to restrict relationships to, null for all sources
+	 * @return Term with its (matching) relationships, null if the term isn't stored
+	 */
+	Term getWholeTerm(String term, String source) throws SQLException;
+
+	/**
+	 * @see #getTermByRelationshipAndValue(String, String)
+	 * @see #getWholeTerm(String, String)
+	 */
+	Term getWholeTermByRelationshipAndValue(String relationship, String value, String source) throws SQLException;
+
+	/**
+	 * Bulk {@link #getWholeTerm(String, String)}.
+	 * @return HashMap from term to Term; terms that aren't stored are absent
+	 */
+	HashMap<String, Term> getWholeTerms(Collection<String> terms, String source) throws SQLException;
+
+	/**
+	 * Bulk {@link #getWholeTermByRelationshipAndValue(String, String, String)}.
+	 * @return HashMap from value to Term; values no term has are absent
+	 */
+	HashMap<String, Term> getWholeTermsByRelationshipAndValue(String relationship, Collection<String> values, String source)
+			throws SQLException;
+
+	/**
+	 * @return every relationship of the term, empty if it has none (or isn't stored)
+	 */
+	ArrayList<TermRelationship> getRelationships(String term) throws SQLException;
+
+	/**
+	 * @return the relationships of the term from one source
+	 */
+	ArrayList<TermRelationship> getRelationships(String term, String source) throws SQLException;
+
+	/**
+	 * Store a term unless it's already there.  Safe to call concurrently.
+	 */
+	void upsertTerm(String term) throws SQLException;
+
+	/**
+	 * Store a relationship (and its terms) unless the term already has one with the same relationship and value, which
+	 * is left as it is.  Safe to call concurrently.
+	 */
+	void upsertRelationship(TermRelationship tr) throws SQLException;
+
+	/**
+	 * Store whole Terms and their relationships, all or nothing.  Relationships already stored are left as they are.
+	 * @return one boolean array per Term, index 0 for the term and i for its i-th relationship: true if stored after the call
+	 */
+	ArrayList<boolean[]> insertWholeTerms(Collection<Term> terms) throws SQLException;
+
+	/**
+	 * Make a term's relationships from one source match a fresh copy, all or nothing, and mark the rest of them as
+	 * updated now.  Values another source already has for the term are left alone.
+	 * @return int array {inserted, updated, deleted}
+	 */
+	int[] refreshRelationships(String term, String source, Collection<TermRelationship> fresh) throws SQLException;
+
+	/**
+	 * Remove a term and all of its relationships.
+	 */
+	void deleteTerm(String term) throws SQLException;
+
+	/**
+	 * Remove one relationship.
+	 */
+	void deleteRelationship(String term, String relationship, String value) throws SQLException;
+
+	/**
+	 * Stream every stored term.
+	 * @param fetchSize hint for how many to read at a time (0 for the default)
+	 * @return number of terms handed to the callback
+	 */
+	long forEachTerm(int fetchSize, ValueCallback callback) throws SQLException;
+
+	/**
+	 * One page of stored terms in name order, continuing after a previous page (for walks that read each term's data).
+	 * @param after last term of the previous page, null for the first page
+	 * @param limit most terms returned
+	 * @return terms, empty when the walk is complete
+	 */
+	ArrayList<String> getTermPage(String after, int limit) throws SQLException;
+
+	/**
+	 * Stream the value of every relationship of one kind (e.g. all ID's).
+	 * @return number of values handed to the callback
+	 */
+	long forEachRelationshipValue(String relationship, int fetchSize, ValueCallback callback) throws SQLException;
+
+	/**
+	 * Stream every relationship last updated before datetime.
+	 * @return number of relationships handed to the callback
+	 */
+	long forEachRelationshipOlderThan(Date datetime, int fetchSize, RelationshipCallback callback) throws SQLException;
+
+	/**
+	 * One page of the least recently updated relationships, oldest first, continuing after a previous page.
+	 * @param valuePrefix only values starting with this, null for all
+	 * @param after last row of the previous page, null for the first page
+	 * @param limit most rows returned
+	 */
+	ArrayList<RelationshipRow> getOldestRelationships(String relationship, String source, String valuePrefix, Date olderThan,
+														RelationshipRow after, int limit) throws SQLException;
+
+	/**
+	 * Add (sampled) read counts to terms and mark them as read at the given time.  Terms no longer stored are skipped.
+	 * @param hits term -> reads to add
+	 */
+	void recordAccesses(Map<String, Long> hits, Date accessed) throws SQLException;
+
+	/**
+	 * The least valuable terms to evict: those not read since idleSince, fewest reads first, then least recently read.
+	 * A term that was never read counts as read when it was stored.
+	 * @param limit most terms returned
+	 */
+	ArrayList<String> getColdestTerms(Date idleSince, int limit) throws SQLException;
+
+	/**
+	 * @return long array {relationships, bytes}, bytes being the characters of every relationship's term, relationship,
+	 * value, source and parent term (an estimate of the data size, not of the space the store takes)
+	 */
+	long[] getStorageUsage() throws SQLException;
+
+	/**
+	 * @return true if an unexpired lookup miss is recorded for the (normalized) query
+	 */
+	boolean lookupMissExists(String source, String query, String matchMode) throws SQLException;
+
+	/**
+	 * Record a lookup miss, or push back the expiry of the recorded one.
+	 */
+	void insertLookupMiss(String source, String query, String matchMode, Date expires) throws SQLException;
+
+	void deleteLookupMiss(String source, String query, String matchMode) throws SQLException;
+
+	/**
+	 * @return number of lookup misses removed
+	 */
+	int deleteLookupMissesExpiredBefore(Date datetime) throws SQLException;
+
+	/**
+	 * Release what the store holds open.  Stores sharing a resource they don't own (e.g. a ConnectionPool) leave it open.
+	 */
+	void close() throws SQLException;
+}
@@ -0,0 +1,14 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+/**
+ * Receives single column values one at a time from a streaming ResourceDBWrapper scan,
+ * e.g. {@link ResourceDBWrapper#forEachTerm(int, ValueCallback)}.
+ */
+public interface ValueCallback {
+	/**
+	 * Handle one value.
+	 * @param value String from the current row
+	 * @return true to continue with the next row, false to stop the scan
+	 */
+	boolean process(String value);
+}
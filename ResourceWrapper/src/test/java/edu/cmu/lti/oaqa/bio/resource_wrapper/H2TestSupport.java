@@ -0,0 +1,102 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.SchemaManager;
+
+/**
+ * Base of the tests run against in-memory H2 databases.  Each test method gets databases of its own, dropped when it
+ * finishes along with the pools opened on them, and the DBInfo settings it changes are put back afterwards.  The Bloom
+ * filters and access sampling start out off, so no background loader competes for the connections unless a test
+ * turns them on.
+ */
+public abstract class H2TestSupport extends TestCase {
+	private final HashMap<Field, Object> settings = new HashMap<Field, Object>();
+	private final ArrayList<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+	private final LinkedHashSet<String> databases = new LinkedHashSet<String>();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		for (Field field : DBInfo.class.getFields()) {
+			if (Modifier.isStatic(field.getModifiers()) && !Modifier.isFinal(field.getModifiers()))
+				this.settings.put(field, field.get(null));
+		}
+		DBInfo.accessSampleRate = 0;
+		DBInfo.bloomExpectedEntries = 0;
+	}
+
+	protected void tearDown() throws Exception {
+		for (ConnectionPool pool : this.pools)
+			pool.close();
+		this.pools.clear();
+		for (String name : this.databases) {
+			Connection conn = DriverManager.getConnection(this.url(name), "sa", "");
+			try {
+				conn.createStatement().execute("SHUTDOWN");
+			} finally {
+				conn.close();
+			}
+		}
+		this.databases.clear();
+		for (Map.Entry<Field, Object> setting : this.settings.entrySet())
+			setting.getKey().set(null, setting.getValue());
+		this.settings.clear();
+		super.tearDown();
+	}
+
+	/**
+	 * @param name database name, unique within the test method
+	 * @return JDBC URL of an in-memory database private to this test method, dropped when it finishes
+	 */
+	protected String url(String name) {
+		this.databases.add(name);
+		return "jdbc:h2:mem:" + this.getClass().getSimpleName() + "-" + this.getName() + "-" + name + ";DB_CLOSE_DELAY=-1";
+	}
+
+	/**
+	 * Close a pool when the test finishes, if the test hasn't already.
+	 * @return pool
+	 */
+	protected ConnectionPool closeAfter(ConnectionPool pool) {
+		this.pools.add(pool);
+		return pool;
+	}
+
+	/**
+	 * @param name database name (see {@link #url(String)})
+	 * @param maxSize upper bound on open connections
+	 * @return pool on the database, with the schema not created yet
+	 */
+	protected ConnectionPool createPool(String name, int maxSize) throws SQLException {
+		return this.closeAfter(new ConnectionPool("org.h2.Driver", this.url(name), "sa", "", 1, maxSize, 30000, 0, 5));
+	}
+
+	/**
+	 * @param name database name (see {@link #url(String)})
+	 * @param maxSize upper bound on open connections
+	 * @return pool on the database, with the schema created
+	 */
+	protected ConnectionPool createDatabase(String name, int maxSize) throws SQLException {
+		ConnectionPool pool = this.createPool(name, maxSize);
+		new SchemaManager(pool).migrate();
+		return pool;
+	}
+
+	/**
+	 * @return pool of two connections on the test's database, with the schema created
+	 */
+	protected ConnectionPool createDatabase() throws SQLException {
+		return this.createDatabase("db", 2);
+	}
+}
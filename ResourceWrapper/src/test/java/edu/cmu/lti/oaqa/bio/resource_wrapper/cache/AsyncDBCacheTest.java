@@ -0,0 +1,111 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.RelationshipCursor;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+
+/**
+ * Tests DBCache's asynchronous calls against an embedded H2 database whose connections the test holds on to:
+ * calls that need the database wait on the async pool without blocking the caller, a full queue fails fast, lookups
+ * the in-memory cache answers complete at once, and a closed cache refuses new calls.
+ */
+public class AsyncDBCacheTest extends H2TestSupport {
+	private ConnectionPool pool;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.pool = this.createDatabase();
+	}
+
+	public void testPoolSize() throws Exception {
+		DBCache sized = new DBCache(this.pool);
+		try {
+			assertEquals("pool sized to the connections", this.pool.getMaxSize(), sized.getAsyncExecutor().getMaximumPoolSize());
+		} finally {
+			sized.close();
+		}
+	}
+
+	public void testAsyncCalls() throws Exception {
+		DBInfo.asyncThreads = 1;
+		DBInfo.asyncQueueSize = 1;
+		DBCache cache = new DBCache(this.pool);
+		ArrayList<Term> terms = new ArrayList<Term>();
+		for (int i = 0; i < 3; i++) {
+			Term term = new Term("gene" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "Gene:" + i, 1.0, "Check"));
+			terms.add(term);
+		}
+		cache.addWholeTerms(terms);
+
+		// With every connection taken, calls wait on the async thread and in its queue; the next one is turned away
+		ArrayList<RelationshipCursor> held = this.holdConnections();
+		CompletableFuture<Term> byName = cache.getTermAsync("gene1", "all");
+		CompletableFuture<Term> byID = cache.getTermByIDAsync("Gene:2", "all");
+		Term added = new Term("gene3");
+		added.addTermRelationship(new TermRelationship(added.getTerm(), "ID", "Gene:3", 1.0, "Check"));
+		CompletableFuture<boolean[]> write = cache.addWholeTermAsync(added);
+		try {
+			assertTrue("callers not blocked", !byName.isDone() && !byID.isDone());
+			assertTrue("full queue rejected", rejected(write));
+		} finally {
+			releaseConnections(held);
+		}
+		assertEquals("lookup by name", "gene1", byName.get(10, TimeUnit.SECONDS).getTerm());
+		assertEquals("lookup by ID", "gene2", byID.get(10, TimeUnit.SECONDS).getTerm());
+
+		boolean[] stored = cache.addWholeTermAsync(added).get(10, TimeUnit.SECONDS);
+		assertTrue("write", stored[0] && stored[1] && cache.getStore().termExists("gene3"));
+
+		// Lookups the in-memory cache can answer don't wait for a connection
+		held = this.holdConnections();
+		try {
+			CompletableFuture<Term> cached = cache.getTermAsync("gene1", "all");
+			assertTrue("cached lookup answered at once", cached.isDone() && "gene1".equals(cached.get().getTerm()));
+		} finally {
+			releaseConnections(held);
+		}
+
+		cache.close();
+		assertTrue("closed cache rejects", rejected(cache.getTermAsync("gene0", "all")) && rejected(cache.addWholeTermAsync(added)));
+	}
+
+	private static boolean rejected(CompletableFuture<?> future) throws InterruptedException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			return false;
+		} catch (ExecutionException e) {
+			return e.getCause() instanceof RejectedExecutionException;
+		} catch (TimeoutException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Take every connection of the pool: an open cursor keeps its connection until it is closed.
+	 */
+	private ArrayList<RelationshipCursor> holdConnections() throws Exception {
+		ArrayList<RelationshipCursor> held = new ArrayList<RelationshipCursor>();
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.pool);
+		while (this.pool.getActiveCount() < this.pool.getMaxSize())
+			held.add(rdb.openRelationshipsOlderThan(new Date(), 0));
+		return held;
+	}
+
+	private static void releaseConnections(ArrayList<RelationshipCursor> held) {
+		for (RelationshipCursor cursor : held)
+			cursor.close();
+	}
+}
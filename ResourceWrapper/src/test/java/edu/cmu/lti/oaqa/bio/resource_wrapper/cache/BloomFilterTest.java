@@ -0,0 +1,113 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.OperationMetrics;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+
+/**
+ * Tests BloomFilter on its own (no false negatives, and a measured false-positive rate under the configured one, both
+ * at the expected size and after growing well past it, with the memory used reported) and inside a DBCache on an
+ * embedded H2 database (once loaded, names and ID's that were never stored are answered without a query, and a
+ * failed load is recorded and leaves the filters untrusted).
+ */
+public class BloomFilterTest extends H2TestSupport {
+	private static final int EXPECTED = 10000;
+	private static final double RATE = 0.01;
+	private static final int PROBES = 100000;
+
+	public void testFalsePositiveRate() {
+		BloomFilter filter = new BloomFilter(EXPECTED, RATE);
+		for (int i = 0; i < EXPECTED; i++)
+			filter.add("present" + i);
+		assertTrue("no false negatives", allFound(filter, EXPECTED));
+		double measured = falsePositiveRate(filter);
+		assertTrue("false-positive rate at the expected size: " + measured, measured <= RATE);
+		assertTrue("one slice", filter.getSliceCount() == 1 && filter.getExpectedFalsePositiveRate() <= RATE);
+		long bytes = filter.getMemoryBytes();
+		assertTrue("memory reported: " + bytes, bytes > EXPECTED / 8 && bytes < EXPECTED * 2);
+
+		// Four times the expected entries: the chain grows and the combined rate stays under the target
+		for (int i = EXPECTED; i < 4 * EXPECTED; i++)
+			filter.add("present" + i);
+		assertTrue("no false negatives after growing", allFound(filter, 4 * EXPECTED));
+		measured = falsePositiveRate(filter);
+		assertTrue("false-positive rate after growing: " + measured, measured <= RATE);
+		assertTrue("grown", filter.getSliceCount() > 1 && filter.getMemoryBytes() > bytes && filter.getExpectedFalsePositiveRate() <= RATE);
+	}
+
+	public void testDBCacheFilters() throws Exception {
+		DBInfo.cacheMaxEntries = 0;
+		DBInfo.bloomExpectedEntries = 1000;
+		DBInfo.bloomFalsePositiveRate = RATE;
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.createDatabase());
+		ArrayList<Term> batch = new ArrayList<Term>();
+		for (int i = 0; i < 100; i++) {
+			Term term = new Term("gene" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "EntrezGene:" + i, 1.0, "EntrezGene"));
+			batch.add(term);
+		}
+		rdb.insertWholeTerms(batch);
+		OperationMetrics metrics = new OperationMetrics();
+		rdb.setMetricsRegistry(metrics);
+		DBCache cache = new DBCache(rdb);
+		try {
+			for (int i = 0; i < 100 && !(cache.getTermFilter().isReady() && cache.getIDFilter().isReady()); i++)
+				Thread.sleep(20);
+			assertTrue("filters loaded", cache.getTermFilter().isReady() && cache.getIDFilter().isReady());
+			metrics.reset();
+			int answered = 0;
+			for (int i = 0; i < 100; i++) {
+				if (cache.getTerm("absent" + i, "all") == null && cache.getTermByID("EntrezGene:" + (1000 + i), "all") == null)
+					answered++;
+			}
+			assertEquals("absent keys missed", 100, answered);
+			// 100 keys in a filter sized for 1000 leave no room for a false positive among 200 probes
+			assertTrue("absent keys answered without a query", metrics.getAllStats().isEmpty());
+			assertTrue("stored keys still found", cache.getTerm("gene7", "all") != null && cache.getTermByID("EntrezGene:7", "all") != null);
+		} finally {
+			cache.close();
+		}
+	}
+
+	public void testLoadFailure() throws Exception {
+		DBInfo.bloomExpectedEntries = 1000;
+		ConnectionPool pool = this.createDatabase();
+		pool.close();
+		DBCache cache = new DBCache(new ResourceDBWrapper(pool));
+		try {
+			for (int i = 0; i < 100 && cache.getFilterLoadFailure() == null; i++)
+				Thread.sleep(20);
+			assertTrue("load failure recorded", cache.getFilterLoadFailure() instanceof SQLException);
+			assertFalse("failed filter not trusted", cache.getTermFilter().isReady() || cache.getIDFilter().isReady());
+		} finally {
+			cache.close();
+		}
+	}
+
+	private static boolean allFound(BloomFilter filter, int count) {
+		for (int i = 0; i < count; i++) {
+			if (!filter.mightContain("present" + i))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return fraction of keys never added that the filter can't rule out
+	 */
+	private static double falsePositiveRate(BloomFilter filter) {
+		int positives = 0;
+		for (int i = 0; i < PROBES; i++) {
+			if (filter.mightContain("absent" + i))
+				positives++;
+		}
+		return (double) positives / PROBES;
+	}
+}
@@ -0,0 +1,80 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.OperationMetrics;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+
+/**
+ * Tests DBCache's bulk lookups on an embedded H2 database: more keys than one IN-list holds are resolved in a single
+ * wrapper call, hits are keyed by term or ID and the rest reported as misses, and repeated lookups are answered from memory.
+ */
+public class BulkLookupTest extends H2TestSupport {
+	private static final int TERMS = 300;
+
+	private OperationMetrics metrics;
+	private DBCache cache;
+	private ArrayList<String> names = new ArrayList<String>();
+	private ArrayList<String> ids = new ArrayList<String>();
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.cacheMaxEntries = 10000;
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.createDatabase());
+		ArrayList<Term> batch = new ArrayList<Term>();
+		for (int i = 0; i < TERMS; i++) {
+			Term term = new Term("gene" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "EntrezGene:" + i, 1.0, "EntrezGene"));
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", "g" + i, 0.5, "MeSH"));
+			batch.add(term);
+		}
+		rdb.insertWholeTerms(batch);
+		this.metrics = new OperationMetrics();
+		rdb.setMetricsRegistry(this.metrics);
+		this.cache = new DBCache(rdb);
+		for (int i = 0; i < TERMS + 5; i++) {
+			this.names.add("gene" + i);
+			this.ids.add("EntrezGene:" + i);
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		super.tearDown();
+	}
+
+	public void testByName() throws Exception {
+		BulkLookup byName = this.cache.getTerms(this.names, "all");
+		assertTrue("terms found", byName.getFound().size() == TERMS && byName.get("gene7").getAllTermRelationships().size() == 2);
+		assertEquals("terms missed", new HashSet<String>(this.names.subList(TERMS, TERMS + 5)), byName.getMisses());
+		assertTrue("terms in one call", this.metrics.getStats("getWholeTerms").getCount() == 1 && this.metrics.getAllStats().size() == 1);
+	}
+
+	public void testByID() throws Exception {
+		BulkLookup byID = this.cache.getTermsByIDs(this.ids, "MeSH");
+		Term gene7 = byID.get("EntrezGene:7");
+		assertTrue("IDs found", byID.getFound().size() == TERMS && gene7 != null && "gene7".equals(gene7.getTerm()));
+		assertTrue("IDs source filtered", gene7.getAllTermRelationships().size() == 1
+											&& "MeSH".equals(gene7.getAllTermRelationships().get(0).getSource()));
+		assertTrue("IDs missed", byID.getMisses().size() == 5 && !byID.isHit("EntrezGene:" + TERMS));
+		assertEquals("IDs in one call", 1, this.metrics.getStats("getWholeTermsByRelationshipAndValue").getCount());
+	}
+
+	public void testRepeatAnsweredFromMemory() throws Exception {
+		this.cache.getTerms(this.names, "all");
+		this.cache.getTermsByIDs(this.ids, "MeSH");
+
+		// Hits and misses alike are remembered
+		this.metrics.reset();
+		assertTrue("repeat answered", this.cache.getTerms(this.names.subList(0, 10), "all").getFound().size() == 10
+										&& this.cache.getTermsByIDs(Arrays.asList("EntrezGene:1", "EntrezGene:" + TERMS), "MeSH")
+												.getMisses().size() == 1);
+		assertTrue("repeat answered from memory", this.metrics.getAllStats().isEmpty());
+	}
+}
@@ -0,0 +1,74 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.ArrayList;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests that CacheEvictor brings an over-budget DBCache back under budget by removing the least-read terms, keeps
+ * the terms read through the cache, and counts what it removed.  Runs against an embedded H2 database.
+ */
+public class CacheEvictorTest extends H2TestSupport {
+	private DBCache cache;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.accessSampleRate = 16;
+		this.cache = new DBCache(this.createDatabase());
+		ArrayList<Term> terms = new ArrayList<Term>();
+		for (int i = 0; i < 200; i++) {
+			Term term = new Term("gene" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "Gene:" + i, 1.0, "Check"));
+			for (int j = 0; j < 4; j++)
+				term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", "synonym " + j + " of gene " + i, 1.0, "Check"));
+			terms.add(term);
+		}
+		this.cache.addWholeTerms(terms);
+
+		// Read every gene once, so they're all in memory, and the first 20 often enough that sampling can't miss them
+		for (int i = 20; i < 200; i++)
+			this.cache.getTerm("gene" + i);
+		for (int r = 0; r < this.cache.getAccessTracker().getSampleRate() * 16; r++) {
+			for (int i = 0; i < 20; i++)
+				this.cache.getTerm("gene" + i);
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		super.tearDown();
+	}
+
+	public void testUnderBudget() throws Exception {
+		CacheEvictor under = new CacheEvictor(this.cache, 2000, 0, 0.5, 0, 100);
+		assertTrue("under budget, nothing evicted", under.runOnce() == 0 && under.getRowCount() == 1000 && under.getOverBudgetCount() == 0);
+	}
+
+	public void testEviction() throws Exception {
+		// 1000 relationships against a budget of 500, evicted down to 250
+		CacheEvictor evictor = new CacheEvictor(this.cache, 500, 0, 0.5, 0, 100);
+		int evicted = evictor.runOnce();
+		assertTrue("evicted down to the target", evictor.getRowCount() <= 250 && evictor.getRowCount() > 200);
+		assertTrue("eviction counted", evicted > 0 && evictor.getEvictedTermCount() == evicted && evictor.getOverBudgetCount() == 1
+										&& evictor.getEvictedRelationshipCount() == 1000 - evictor.getRowCount()
+										&& evictor.getEvictedByteCount() > 0);
+		for (int i = 0; i < 20; i++)
+			assertTrue("read term kept: gene" + i, this.cache.getStore().termExists("gene" + i));
+		int gone = -1;
+		for (int i = 20; i < 200 && gone < 0; i++) {
+			if (!this.cache.getStore().termExists("gene" + i))
+				gone = i;
+		}
+		assertTrue("evicted term gone from memory too", gone > 0 && this.cache.getTerm("gene" + gone) == null
+															&& this.cache.getTermByID("Gene:" + gone, "all") == null);
+	}
+
+	public void testIdleTime() throws Exception {
+		// Recently read terms are protected by the idle time
+		CacheEvictor idle = new CacheEvictor(this.cache, 10, 0, 0.5, 60000, 100);
+		assertTrue("recent terms not evicted", idle.runOnce() == 0 && idle.getOverBudgetCount() == 1);
+	}
+}
@@ -0,0 +1,127 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.OperationMetrics;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+
+/**
+ * Tests CacheRefresher on an embedded H2 database with a fake resource: each run fetches no more records than its
+ * budget, reads the stale rows a page at a time, picks up where the previous run stopped, writes only what changed,
+ * and retries the records that failed or came back empty once the scan starts over.
+ */
+public class CacheRefresherTest extends H2TestSupport {
+	private static final int TERMS = 10;
+
+	private ResourceDBWrapper rdb;
+	private OperationMetrics metrics;
+	private DBCache cache;
+	private FakeFetcher fetcher;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.cacheMaxEntries = 0;
+		this.rdb = new ResourceDBWrapper(this.createDatabase());
+		ArrayList<Term> batch = new ArrayList<Term>();
+		for (int i = 0; i < TERMS; i++)
+			batch.add(gene(i, "g" + i));
+		this.rdb.insertWholeTerms(batch);
+		Connection conn = DriverManager.getConnection(this.url("db"), "sa", "");
+		PreparedStatement ps = conn.prepareStatement("UPDATE termrelationships SET last_updated=?");
+		ps.setTimestamp(1, Timestamp.valueOf("2000-01-01 00:00:00"));
+		ps.executeUpdate();
+		conn.close();
+		this.metrics = new OperationMetrics();
+		this.rdb.setMetricsRegistry(this.metrics);
+		this.cache = new DBCache(this.rdb);
+		this.fetcher = new FakeFetcher();
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		super.tearDown();
+	}
+
+	public void testNoBudget() throws Exception {
+		CacheRefresher idle = new CacheRefresher(this.cache, 60000, 3, 0, 0);
+		idle.addFetcher(this.fetcher);
+		assertTrue("no budget, no requests", idle.runOnce() == 0 && this.fetcher.requested.isEmpty());
+	}
+
+	public void testBudgetAndPaging() throws Exception {
+		// Budget of 4 over pages of 3: two pages read, four records fetched
+		CacheRefresher refresher = new CacheRefresher(this.cache, 60000, 3, 4, 0);
+		refresher.addFetcher(this.fetcher);
+		int first = refresher.runOnce();
+		assertTrue("first run within budget", first == 4 && this.fetcher.requested.size() == 4);
+		assertEquals("stale rows read by the page", 2, this.metrics.getStats("getOldestRelationships").getCount());
+		int second = refresher.runOnce();
+		int third = refresher.runOnce();
+		assertTrue("later runs continue the scan", second == 4 && third == 2 && this.fetcher.requested.size() == TERMS
+													&& new HashSet<String>(this.fetcher.requested).size() == TERMS);
+		assertTrue("counted", refresher.getFetchedCount() == TERMS - 1 && refresher.getMissingCount() == 1
+								&& refresher.getFailedCount() == 1 && refresher.getLastFailure() instanceof IOException);
+
+		// Only gene3 changed at the resource
+		assertTrue("only changes written", refresher.getChangedCount() == 1 && refresher.getInsertedCount() == 1
+											&& refresher.getDeletedCount() == 1 && refresher.getUpdatedCount() == 0);
+		Term gene3 = this.rdb.getWholeTerm("gene3", null);
+		assertTrue("changed record refreshed", gene3.getAllTermRelationships().size() == 2 && hasValue(gene3, "g3 renamed")
+												&& !hasValue(gene3, "g3"));
+
+		// The refreshed records are fresh now; the empty and failed ones are retried once the scan starts over
+		this.fetcher.requested.clear();
+		assertTrue("failed and missing retried", refresher.runOnce() == 2 && this.fetcher.requested.contains("5")
+													&& this.fetcher.requested.contains("7"));
+	}
+
+	private static Term gene(int i, String synonym) {
+		Term term = new Term("gene" + i);
+		term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "EntrezGene:" + i, 1.0, "EntrezGene"));
+		term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", synonym, 0.5, "EntrezGene"));
+		return term;
+	}
+
+	private static boolean hasValue(Term term, String value) {
+		for (TermRelationship tr : term.getAllTermRelationships()) {
+			if (value.equals(tr.getToTerm()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Answers every gene as inserted, except gene3 (a new synonym), gene5 (nothing) and gene7 (unreachable).
+	 */
+	private static class FakeFetcher implements TermFetcher {
+		final ArrayList<String> requested = new ArrayList<String>();
+
+		public String getSource() {
+			return "EntrezGene";
+		}
+
+		public String getIDPrefix() {
+			return "EntrezGene:";
+		}
+
+		public Term fetch(String id) throws IOException {
+			this.requested.add(id);
+			int i = Integer.parseInt(id);
+			if (i == 5)
+				return null;
+			if (i == 7)
+				throw new IOException("resource unreachable");
+			return gene(i, i == 3 ? "g3 renamed" : "g" + i);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.KeyValueTermStore;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.SchemaManager;
+
+/**
+ * Compares warming an empty cache from a {@link CacheSnapshot} with adding the same Terms one addWholeTerm call at a
+ * time, on in-memory H2 databases, and compares the snapshot's size with a tab-separated dump of the same rows.
+ * Also checks the restored copy matches the original and that damaged snapshots are refused.
+ * Exits with status 1 if a check fails.
+ * Usage: CacheSnapshotBenchmark [terms]
+ */
+public class CacheSnapshotBenchmark {
+	private static final String[] SOURCES = {"EntrezGene", "MeSH", "UMLS"};
+	private static final String[] RELATIONSHIPS = {"synonym", "hypernym", "definition", "related"};
+
+	private static int failures = 0;
+
+	public static void main(String[] args) throws Exception {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+		ArrayList<Term> terms = new ArrayList<Term>(count);
+		for (int i = 0; i < count; i++)
+			terms.add(sampleTerm(i));
+
+		// Row-by-row: one addWholeTerm per Term
+		ConnectionPool original = pool("original");
+		DBCache cache = new DBCache(original);
+		long start = System.nanoTime();
+		for (Term term : terms)
+			cache.addWholeTerm(term);
+		long rowByRow = System.nanoTime() - start;
+
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		CacheSnapshot exported = cache.exportSnapshot(buffer);
+		byte[] snapshot = buffer.toByteArray();
+		System.out.println("Export:  " + exported);
+		check("exported every term", exported.getTermCount() >= count);
+
+		// Snapshot restore into an empty database
+		ConnectionPool restoredPool = pool("restored");
+		DBCache restored = new DBCache(restoredPool);
+		start = System.nanoTime();
+		CacheSnapshot imported = restored.importSnapshot(new ByteArrayInputStream(snapshot));
+		long restore = System.nanoTime() - start;
+		System.out.println("Restore: " + imported);
+		check("restored what was exported",
+				imported.getTermCount() == exported.getTermCount() && imported.getRelationshipCount() == exported.getRelationshipCount()
+						&& imported.getFailedCount() == 0);
+		for (int i = 0; i < count; i += Math.max(1, count / 50)) {
+			Term term = terms.get(i);
+			Term copy = restored.getTerm(term.getTerm());
+			check("restored " + term.getTerm(),
+					copy != null && copy.getAllTermRelationships().size() == term.getAllTermRelationships().size());
+		}
+		check("restored ID lookup", restored.getTermByID("Gene:" + (count - 1), null) != null);
+
+		// The same snapshot loads into the key-value store
+		DBCache kv = new DBCache(new KeyValueTermStore(null, false, 16));
+		kv.importSnapshot(new ByteArrayInputStream(snapshot));
+		check("restored into mvstore", kv.getTerm(terms.get(0).getTerm()) != null);
+		ByteArrayOutputStream again = new ByteArrayOutputStream();
+		check("mvstore re-export", kv.exportSnapshot(again).getRelationshipCount() == exported.getRelationshipCount());
+		kv.close();
+
+		// Damaged snapshots are refused
+		byte[] damaged = snapshot.clone();
+		damaged[damaged.length / 2] ^= 0x55;
+		check("corrupt block refused", refused(restored, damaged));
+		damaged = snapshot.clone();
+		damaged[0] = 'X';
+		check("wrong magic refused", refused(restored, damaged));
+		byte[] truncated = new byte[snapshot.length - 20];
+		System.arraycopy(snapshot, 0, truncated, 0, truncated.length);
+		check("truncated snapshot refused", refused(restored, truncated));
+
+		long tsv = tabSeparatedSize(terms);
+		System.out.println("addWholeTerm:     " + (rowByRow / 1000000) + " ms, " + rate(count, rowByRow) + " terms/s");
+		System.out.println("importSnapshot:   " + (restore / 1000000) + " ms, " + rate(count, restore) + " terms/s ("
+							+ String.format("%.1f", (double) rowByRow / restore) + "x)");
+		System.out.println("Tab-separated rows: " + tsv + " bytes");
+		System.out.println("Snapshot:           " + snapshot.length + " bytes (" + exported.getRawBytes() + " before compression, "
+							+ String.format("%.1f", (double) tsv / snapshot.length) + "x smaller than the rows)");
+
+		original.close();
+		restoredPool.close();
+		System.out.println(failures == 0 ? "All checks passed." : failures + " check(s) failed.");
+		if (failures > 0)
+			System.exit(1);
+	}
+
+	/**
+	 * A Term shaped like the wrappers' output: an ID, a few synonyms and some relationships with shared sources.
+	 */
+	private static Term sampleTerm(int i) {
+		String name = "gene" + i;
+		String source = SOURCES[i % SOURCES.length];
+		Term term = new Term(name);
+		term.addTermRelationship(new TermRelationship(name, "ID", "Gene:" + i, 1.0, source));
+		for (int j = 0; j < 6; j++) {
+			String relationship = RELATIONSHIPS[j % RELATIONSHIPS.length];
+			String parent = j % 3 == 0 ? "gene" + (i / 10) : null;
+			term.addTermRelationship(new TermRelationship(name, relationship, relationship + " " + j + " of gene " + i, 0.5 + j / 20.0,
+															source, parent));
+		}
+		return term;
+	}
+
+	private static long tabSeparatedSize(ArrayList<Term> terms) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (Term term : terms) {
+			for (TermRelationship tr : term.getAllTermRelationships())
+				out.write((tr.getFromTerm() + "\t" + tr.getRelationship() + "\t" + tr.getToTerm() + "\t" + tr.getConfidence() + "\t"
+							+ tr.getSource() + "\t" + tr.getParentTerm() + "\n").getBytes("UTF-8"));
+		}
+		return out.size();
+	}
+
+	private static boolean refused(DBCache cache, byte[] snapshot) {
+		try {
+			cache.importSnapshot(new ByteArrayInputStream(snapshot));
+			return false;
+		} catch (IOException e) {
+			return true;
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private static long rate(int terms, long nanos) {
+		return nanos == 0 ? 0 : terms * 1000000000L / nanos;
+	}
+
+	private static ConnectionPool pool(String name) throws Exception {
+		ConnectionPool pool = new ConnectionPool("org.h2.Driver", "jdbc:h2:mem:snapshot-" + name + ";DB_CLOSE_DELAY=-1", "sa", "",
+													1, 2, 30000, 0, 5);
+		new SchemaManager(pool).migrate();
+		return pool;
+	}
+
+	private static void check(String what, boolean ok) {
+		if (!ok) {
+			failures++;
+			System.out.println("FAILED: " + what);
+		}
+	}
+}
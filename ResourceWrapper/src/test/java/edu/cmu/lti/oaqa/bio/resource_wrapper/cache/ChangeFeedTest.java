@@ -0,0 +1,166 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.BlobTermStore;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ResourceDBWrapper;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ShardedTermStore;
+
+/**
+ * Tests the change feed with two DBCaches ("nodes", each with its own pool) on one embedded H2 database: writes
+ * through one node's ResourceDBWrapper leave the other's entries stale only until its next poll, Bloom filters learn
+ * the other node's terms, a change committed after a later one is still applied, and nothing is logged with the log off.
+ * Then the same over two shards, each with its own log, and a store without a log refused.
+ */
+public class ChangeFeedTest extends H2TestSupport {
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.changeLog = true;
+		// Polled by hand below
+		DBInfo.changeFeedInterval = 3600000;
+		DBInfo.bloomExpectedEntries = 1000;
+	}
+
+	public void testTwoNodes() throws Exception {
+		ConnectionPool poolA = this.createDatabase("db", 4);
+		ConnectionPool poolB = this.createPool("db", 4);
+		DBCache nodeA = new DBCache(poolA);
+		DBCache nodeB = new DBCache(poolB);
+		try {
+			ResourceDBWrapper storeA = (ResourceDBWrapper) nodeA.getStore();
+			ChangeFeed feed = nodeB.getChangeFeed();
+			assertTrue("feed started at the end of the log", feed != null && feed.getPositions().length == 1 && feed.getPositions()[0] == 0);
+
+			// The Bloom filter of the other node only hears of a new term through the feed
+			waitForFilter(nodeB);
+			nodeA.addWholeTerm(gene(1, 0.5));
+			assertFalse("filter rules out the unpolled term", nodeB.inCache("gene1"));
+			feed.poll();
+			assertTrue("filter told by the feed", nodeB.inCache("gene1") && confidence(nodeB, "gene1") == 0.5);
+			assertNull("ID miss cached", nodeB.getTermByID("Gene:2", "all"));
+
+			// updateRelationship and deleteTerm are the writes nodes used to miss
+			storeA.updateRelationship(new TermRelationship("gene1", "synonym", "g1", 0.5, "Check"),
+										new TermRelationship("gene1", "synonym", "g1", 0.9, "Check"));
+			assertEquals("stale until polled", 0.5, confidence(nodeB, "gene1"), 0);
+			assertTrue("poll applies the update", feed.poll() > 0 && confidence(nodeB, "gene1") == 0.9);
+			assertTrue("nothing new", feed.poll() == 0 && feed.getLagMillis() == 0);
+
+			nodeA.addWholeTerm(gene(2, 0.5));
+			feed.poll();
+			Term byID = nodeB.getTermByID("Gene:2", "all");
+			assertTrue("cached ID miss dropped", byID != null && "gene2".equals(byID.getTerm()));
+
+			storeA.deleteTerm("gene1");
+			feed.poll();
+			assertNull("delete applied", nodeB.getTerm("gene1", "all"));
+
+			// A change that commits after a later one is applied when it shows up
+			assertEquals("other node reads gene2", 0.5, confidence(nodeB, "gene2"), 0);
+			Connection late = DriverManager.getConnection(this.url("db"), "sa", "");
+			late.setAutoCommit(false);
+			Statement stmt = late.createStatement();
+			stmt.executeUpdate("UPDATE termrelationships SET confidence=0.7 WHERE term='gene2' AND relationship='synonym'");
+			stmt.executeUpdate("INSERT INTO termchanges (kind, name) VALUES ('term', 'gene2')");
+			nodeA.addWholeTerm(gene(3, 0.5));
+			feed.poll();
+			assertEquals("skipped id remembered", 1, feed.getGapCount());
+			late.commit();
+			late.close();
+			feed.poll();
+			assertTrue("late change applied", feed.getGapCount() == 0 && feed.getLateCount() == 1 && confidence(nodeB, "gene2") == 0.7);
+
+			storeA.setChangeLog(false);
+			long position = feed.getPositions()[0];
+			nodeA.addWholeTerm(gene(4, 0.5));
+			assertTrue("nothing logged with the log off", feed.poll() == 0 && storeA.getLastChangeId() == position);
+
+			assertTrue("old changes pruned", storeA.deleteChangesBefore(new Date(System.currentTimeMillis() + 60000)) > 0
+												&& storeA.getChangesAfter(0, 10).isEmpty());
+		} finally {
+			nodeA.close();
+			nodeB.close();
+		}
+	}
+
+	/**
+	 * Two nodes over the same two shards: each shard's log is read from its own position.
+	 */
+	public void testShards() throws Exception {
+		ArrayList<ConnectionPool> poolsA = new ArrayList<ConnectionPool>();
+		ArrayList<ConnectionPool> poolsB = new ArrayList<ConnectionPool>();
+		for (int i = 0; i < 2; i++) {
+			poolsA.add(this.createDatabase("shard" + i, 4));
+			poolsB.add(this.createPool("shard" + i, 4));
+		}
+		DBCache nodeA = new DBCache(new ShardedTermStore(poolsA, 64, 0));
+		DBCache nodeB = new DBCache(new ShardedTermStore(poolsB, 64, 0));
+		try {
+			ChangeFeed feed = nodeB.getChangeFeed();
+			assertTrue("one position per shard", feed != null && Arrays.equals(feed.getPositions(), new long[] {0, 0}));
+			waitForFilter(nodeB);
+
+			for (int n = 10; n < 20; n++)
+				nodeA.addWholeTerm(gene(n, 0.5));
+			feed.poll();
+			for (int n = 10; n < 20; n++)
+				assertEquals("sharded term told by the feed: gene" + n, 0.5, confidence(nodeB, "gene" + n), 0);
+			for (int n = 10; n < 20; n++)
+				nodeA.getStore().upsertRelationship(new TermRelationship("gene" + n, "definition", "gene number " + n, 1.0, "Check"));
+			assertEquals("sharded stale until polled", 2, nodeB.getTerm("gene10", "all").getAllTermRelationships().size());
+			feed.poll();
+			for (int n = 10; n < 20; n++)
+				assertEquals("update applied: gene" + n, 3, nodeB.getTerm("gene" + n, "all").getAllTermRelationships().size());
+			long[] positions = feed.getPositions();
+			assertTrue("updates applied from both shards", positions[0] > 0 && positions[1] > 0);
+		} finally {
+			nodeA.close();
+			nodeB.close();
+		}
+	}
+
+	public void testStoreWithoutLog() throws Exception {
+		try {
+			new DBCache(new BlobTermStore(this.createPool("blob", 2)));
+			fail("store without a log refused");
+		} catch (IllegalStateException e) {
+			;
+		}
+	}
+
+	private static void waitForFilter(DBCache node) throws InterruptedException {
+		long wait = System.currentTimeMillis() + 10000;
+		while (!node.getTermFilter().isReady() && System.currentTimeMillis() < wait)
+			Thread.sleep(10);
+	}
+
+	private static Term gene(int n, double confidence) {
+		Term term = new Term("gene" + n);
+		term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "Gene:" + n, 1.0, "Check"));
+		term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", "g" + n, confidence, "Check"));
+		return term;
+	}
+
+	/**
+	 * @return confidence of the term's synonym as the node serves it, -1 if it has none
+	 */
+	private static double confidence(DBCache node, String term) {
+		Term found = node.getTerm(term, "all");
+		if (found == null)
+			return -1;
+		for (TermRelationship tr : found.getTermRelationshipsByRelation("synonym"))
+			return tr.getConfidence();
+		return -1;
+	}
+}
@@ -0,0 +1,64 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper.ConnectionPool;
+
+/**
+ * Tests the lookup-miss records on an embedded H2 database: queries are matched after normalization and per source
+ * and match mode, records outlive the DBCache that wrote them, expire after lookupMissTTL (and are then purged), and
+ * lookupMissTTL = 0 records nothing.
+ */
+public class KnownMissTest extends H2TestSupport {
+	private static final long WEEK = 7L * 24 * 60 * 60 * 1000;
+
+	private ConnectionPool pool;
+	private DBCache cache;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.lookupMissTTL = WEEK;
+		this.pool = this.createDatabase();
+		this.cache = new DBCache(this.pool);
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		super.tearDown();
+	}
+
+	public void testMatching() throws Exception {
+		assertFalse("unknown query", this.cache.isKnownMiss("EntrezGene", "brca1 gene", DBCache.MATCH_SEARCH));
+		this.cache.recordMiss("EntrezGene", "  BRCA1 \t Gene ", DBCache.MATCH_SEARCH);
+		assertTrue("normalized query matches", this.cache.isKnownMiss("EntrezGene", "brca1 gene", DBCache.MATCH_SEARCH)
+												&& this.cache.isKnownMiss("EntrezGene", "Brca1  GENE", DBCache.MATCH_SEARCH));
+		assertFalse("other match mode not a miss", this.cache.isKnownMiss("EntrezGene", "brca1 gene", DBCache.MATCH_EXACT));
+		assertFalse("other source not a miss", this.cache.isKnownMiss("MeSH", "brca1 gene", DBCache.MATCH_SEARCH));
+		DBCache other = new DBCache(this.pool);
+		try {
+			assertTrue("miss read from the database", other.isKnownMiss("EntrezGene", "BRCA1 gene", DBCache.MATCH_SEARCH));
+			other.forgetMiss("EntrezGene", "brca1 gene", DBCache.MATCH_SEARCH);
+			assertFalse("forgotten miss", other.isKnownMiss("EntrezGene", "brca1 gene", DBCache.MATCH_SEARCH));
+		} finally {
+			other.close();
+		}
+	}
+
+	public void testExpiry() throws Exception {
+		// Shorter than cacheNegativeTTL, so the in-memory copy can't outlive the record
+		DBInfo.lookupMissTTL = 200;
+		this.cache.recordMiss("MeSH", "short lived", DBCache.MATCH_EXACT);
+		assertTrue("recent miss known", this.cache.isKnownMiss("MeSH", "short lived", DBCache.MATCH_EXACT));
+		Thread.sleep(400);
+		assertFalse("expired miss ignored", this.cache.isKnownMiss("MeSH", "short lived", DBCache.MATCH_EXACT));
+		assertTrue("expired miss purged", this.cache.purgeExpiredMisses() == 1 && this.cache.purgeExpiredMisses() == 0);
+	}
+
+	public void testDisabled() throws Exception {
+		DBInfo.lookupMissTTL = 0;
+		this.cache.recordMiss("MeSH", "not recorded", DBCache.MATCH_SEARCH);
+		assertFalse("off: nothing known", this.cache.isKnownMiss("MeSH", "not recorded", DBCache.MATCH_SEARCH));
+		DBInfo.lookupMissTTL = WEEK;
+		assertFalse("off: nothing recorded", this.cache.isKnownMiss("MeSH", "not recorded", DBCache.MATCH_SEARCH));
+	}
+}
@@ -0,0 +1,85 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.function.LongSupplier;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests MemoryCache on its own (a hot entry survives a burst of one-off keys, values and misses expire, tags
+ * invalidate every entry carrying them, hits and misses are counted) and inside a DBCache on an embedded H2 database
+ * (a cached miss or a cached Term is dropped when the term is written).
+ */
+public class MemoryCacheTest extends H2TestSupport {
+
+	public void testFrequencyAwareEviction() {
+		MemoryCache<String> cache = new MemoryCache<String>(16, 0, 0);
+		cache.put("hot", "value");
+		for (int i = 0; i < 20; i++)
+			cache.get("hot");
+		for (int i = 0; i < 100; i++)
+			cache.put("cold" + i, "value");
+		assertTrue("bounded", cache.size() == 16 && cache.getEvictionCount() == 85);
+		assertTrue("hot entry kept", cache.get("hot") != null && cache.get("cold0") == null);
+		cache.putMiss("absent");
+		assertNull("misses not cached without a negative TTL", cache.get("absent"));
+	}
+
+	public void testExpiry() {
+		MemoryCache<String> cache = new MemoryCache<String>(16, 300, 50);
+		final long[] now = {1000};
+		cache.clock = new LongSupplier() {
+			public long getAsLong() {
+				return now[0];
+			}
+		};
+		cache.put("found", "value");
+		cache.putMiss("absent");
+		MemoryCache.Entry<String> miss = cache.get("absent");
+		assertTrue("negative entry", miss != null && miss.isNegative() && "value".equals(cache.get("found").getValue()));
+		now[0] += 49;
+		assertTrue("miss kept until its TTL", cache.get("absent") != null);
+		now[0] += 51;
+		assertTrue("miss expired first", cache.get("absent") == null && cache.get("found") != null);
+		now[0] += 199;
+		assertNotNull("value kept until its TTL", cache.get("found"));
+		now[0] += 1;
+		assertTrue("value expired", cache.get("found") == null && cache.getExpirationCount() == 2);
+		assertTrue("counted", cache.getHitCount() == 3 && cache.getNegativeHitCount() == 2 && cache.getMissCount() == 2);
+	}
+
+	public void testTags() {
+		MemoryCache<String> cache = new MemoryCache<String>(16, 0, 0);
+		cache.put("a", "1", "t1");
+		cache.put("b", "2", "t1", "t2");
+		cache.put("c", "3", "t2");
+		cache.invalidateTag("t1");
+		assertTrue("tag invalidated", cache.get("a") == null && cache.get("b") == null && cache.get("c") != null
+										&& cache.getInvalidationCount() == 2);
+	}
+
+	public void testDBCacheWrites() throws Exception {
+		// Writes drop what was cached about the term
+		DBInfo.cacheMaxEntries = 1000;
+		DBInfo.cacheNegativeTTL = 60000;
+		DBCache dbc = new DBCache(this.createDatabase());
+		try {
+			MemoryCache<Term> memory = dbc.getMemoryCache();
+			assertTrue("cached miss", dbc.getTerm("gene1", "all") == null && dbc.getTerm("gene1", "all") == null
+										&& memory.getNegativeHitCount() == 1);
+			Term gene = new Term("gene1");
+			gene.addTermRelationship(new TermRelationship("gene1", "synonym", "g1", 0.5, "Check"));
+			dbc.addWholeTerm(gene);
+			Term read = dbc.getTerm("gene1", "all");
+			assertTrue("miss dropped by addWholeTerm", read != null && read.getAllTermRelationships().size() == 1);
+			long hits = memory.getHitCount();
+			assertTrue("hit served from memory", dbc.getTerm("gene1", "all") != null && memory.getHitCount() == hits + 1);
+			dbc.addRelationship("gene1", "synonym", "gene one", 0.5, "Check");
+			assertEquals("entry dropped by addRelationship", 2, dbc.getTerm("gene1", "all").getAllTermRelationships().size());
+		} finally {
+			dbc.close();
+		}
+	}
+}
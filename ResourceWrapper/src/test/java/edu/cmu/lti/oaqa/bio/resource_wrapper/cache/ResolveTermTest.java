@@ -0,0 +1,55 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.ArrayList;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests DBCache.resolveTerm on an embedded H2 database: a name is resolved to the term of that name or to a term
+ * listing it as a synonym, and only to one with relationships from the asking resource, since terms are shared by
+ * every resource.
+ */
+public class ResolveTermTest extends H2TestSupport {
+	private DBCache cache;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.cache = new DBCache(this.createDatabase());
+		// "BRCA1" is cached by MeSH, and is a synonym of an Entrez Gene term; "APC" is cached by MeSH only
+		ArrayList<Term> terms = new ArrayList<Term>();
+		Term heading = new Term("BRCA1");
+		heading.addTermRelationship(new TermRelationship("BRCA1", "ID", "MeSH:D019398", 1.0, "MeSH"));
+		terms.add(heading);
+		Term gene = new Term("gene672");
+		gene.addTermRelationship(new TermRelationship("gene672", "ID", "EntrezGene:672", 1.0, "EntrezGene"));
+		gene.addTermRelationship(new TermRelationship("gene672", DBCache.SYNONYM, "BRCA1", 1.0, "EntrezGene"));
+		terms.add(gene);
+		Term apc = new Term("APC");
+		apc.addTermRelationship(new TermRelationship("APC", "ID", "MeSH:D018819", 1.0, "MeSH"));
+		terms.add(apc);
+		this.cache.addWholeTerms(terms);
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		super.tearDown();
+	}
+
+	public void testSameSource() {
+		Term resolved = this.cache.resolveTerm("BRCA1", "MeSH");
+		assertTrue("exact name", resolved != null && "BRCA1".equals(resolved.getTerm()));
+		resolved = this.cache.resolveTerm("BRCA1", "all");
+		assertTrue("exact name, any source", resolved != null && "BRCA1".equals(resolved.getTerm()));
+	}
+
+	public void testOtherSource() {
+		// Cached under MeSH, resolved for Entrez Gene: the exact name isn't an answer, its synonym is
+		Term resolved = this.cache.resolveTerm("BRCA1", "EntrezGene");
+		assertTrue("synonym from the asking source", resolved != null && "gene672".equals(resolved.getTerm())
+														&& !resolved.getAllTermRelationships().isEmpty());
+		assertNull("name cached by another source only", this.cache.resolveTerm("APC", "EntrezGene"));
+		assertNull("unknown name", this.cache.resolveTerm("TP53", "EntrezGene"));
+	}
+}
@@ -0,0 +1,70 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests that failed writes are counted, not printed, on an embedded H2 database: a write-behind batch rolled back
+ * by a constraint violation (a term over the 255 characters of its column) counts every Term of the batch as failed
+ * and none as written, and so do DBCache's synchronous fallbacks.
+ */
+public class WriteBehindQueueTest extends H2TestSupport {
+	private DBCache cache;
+	private Term tooLong;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.cache = new DBCache(this.createDatabase());
+		char[] longName = new char[300];
+		Arrays.fill(longName, 'x');
+		this.tooLong = gene(new String(longName));
+	}
+
+	protected void tearDown() throws Exception {
+		this.cache.close();
+		super.tearDown();
+	}
+
+	public void testFailedBatch() throws Exception {
+		// Both Terms go in one batch, which the long one fails as a whole
+		WriteBehindQueue queue = this.cache.enableWriteBehind(100, 10, 1000);
+		try {
+			queue.offer(gene("good"));
+			queue.offer(this.tooLong);
+			queue.flush();
+			assertTrue("batch counted as failed", queue.getFailedCount() == 2 && queue.getWrittenCount() == 0
+													&& queue.getLastFailure() != null);
+			assertFalse("batch rolled back", this.cache.getStore().termExists("good"));
+			queue.offer(gene("good"));
+			queue.flush();
+			assertTrue("next batch written", queue.getWrittenCount() == 1 && this.cache.getStore().termExists("good"));
+		} finally {
+			queue.close();
+		}
+	}
+
+	public void testSynchronousFailure() throws Exception {
+		ArrayList<Term> batch = new ArrayList<Term>();
+		batch.add(gene("other"));
+		batch.add(this.tooLong);
+		boolean[] flags = this.cache.addWholeTerms(batch).get(0);
+		assertTrue("synchronous failure counted", this.cache.getFailedWriteCount() == 2 && this.cache.getLastWriteFailure() != null
+													&& !flags[0] && !flags[1]);
+		assertFalse("failed write not stored", this.cache.getStore().termExists("other"));
+	}
+
+	public void testClosedQueueFallsBack() throws Exception {
+		this.cache.enableWriteBehind(100, 10, 1000).close();
+		assertTrue("closed queue falls back", !this.cache.queueWholeTerm(this.tooLong) && this.cache.getFailedWriteCount() == 1);
+	}
+
+	private static Term gene(String name) {
+		Term term = new Term(name);
+		term.addTermRelationship(new TermRelationship(name, "synonym", "s-" + name.length(), 0.5, "Check"));
+		return term;
+	}
+}
@@ -0,0 +1,89 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.SQLException;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+
+/**
+ * Tests ConnectionPool on an in-memory H2 database: connections are reused, the pool never opens more than its
+ * maximum and makes borrowers wait (or time out), a connection that died while idle is replaced on borrow, and idle
+ * connections above the minimum are evicted.
+ */
+public class ConnectionPoolTest extends H2TestSupport {
+
+	public void testBorrowWaitAndValidate() throws Exception {
+		final ConnectionPool pool = this.closeAfter(new ConnectionPool("org.h2.Driver", this.url("db"), "sa", "", 0, 2, 300, 0, 5));
+
+		// Borrow: a released connection is handed out again
+		PooledConnection first = pool.borrow();
+		pool.release(first);
+		PooledConnection again = pool.borrow();
+		assertTrue("connection reused", again == first && pool.getCreatedCount() == 1);
+
+		// Bounded: the third borrower waits, then times out
+		PooledConnection second = pool.borrow();
+		assertTrue("two active", pool.getActiveCount() == 2 && pool.getTotalCount() == 2);
+		long start = System.currentTimeMillis();
+		boolean timedOut = false;
+		try {
+			pool.borrow();
+		} catch (SQLException e) {
+			timedOut = true;
+		}
+		assertTrue("borrow beyond maxSize times out", timedOut && System.currentTimeMillis() - start >= 250
+														&& pool.getTimeoutCount() == 1 && pool.getTotalCount() == 2);
+
+		// ... or gets the connection released in the meantime
+		final PooledConnection held = second;
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					;
+				}
+				pool.release(held);
+			}
+		}.start();
+		PooledConnection waitedFor = pool.borrow();
+		assertTrue("waiting borrower served", waitedFor == second && pool.getWaitCount() == 2 && pool.getMaxWaitMillis() >= 50);
+		pool.release(waitedFor);
+		pool.release(again);
+
+		// Validate: a connection that died while idle is thrown away on borrow
+		PooledConnection dead = pool.borrow();
+		pool.release(dead);
+		dead.getConnection().close();
+		PooledConnection fresh = pool.borrow();
+		assertTrue("dead connection replaced", fresh != dead && pool.getInvalidCount() == 1 && fresh.isValid(5));
+		pool.release(fresh);
+		// Rolled back and back in autocommit when released
+		PooledConnection tx = pool.borrow();
+		tx.getConnection().setAutoCommit(false);
+		pool.release(tx);
+		assertTrue("released in autocommit", pool.borrow().getConnection().getAutoCommit());
+		pool.close();
+		boolean refused = false;
+		try {
+			pool.borrow();
+		} catch (SQLException e) {
+			refused = true;
+		}
+		assertTrue("closed pool refuses borrowing", refused);
+	}
+
+	public void testIdleEviction() throws Exception {
+		// Idle connections above minSize are closed after the idle timeout
+		ConnectionPool evicting = this.closeAfter(new ConnectionPool("org.h2.Driver", this.url("db"), "sa", "", 1, 3, 1000, 500, 5));
+		PooledConnection[] borrowed = new PooledConnection[3];
+		for (int i = 0; i < borrowed.length; i++)
+			borrowed[i] = evicting.borrow();
+		for (PooledConnection pc : borrowed)
+			evicting.release(pc);
+		assertEquals("three idle", 3, evicting.getIdleCount());
+		long wait = System.currentTimeMillis() + 10000;
+		while (evicting.getTotalCount() > 1 && System.currentTimeMillis() < wait)
+			Thread.sleep(50);
+		assertTrue("idle connections evicted down to minSize", evicting.getTotalCount() == 1 && evicting.getEvictedCount() == 2);
+	}
+}
@@ -0,0 +1,78 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests relationship values longer than 255 characters on an embedded H2 database: they are stored and read back in
+ * full, two values differing only past the 255th character are kept apart by their digest in every keyed operation
+ * (exists, lookup by value, update, delete), and the same value can't be stored twice for a term.
+ */
+public class LongValueTest extends H2TestSupport {
+	private ResourceDBWrapper rdb;
+	private String prefix;
+	private String first;
+	private String second;
+	private String third;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.rdb = new ResourceDBWrapper(this.createDatabase());
+		this.prefix = repeat('x', 255);
+		this.first = this.prefix + repeat('a', 745);
+		this.second = this.prefix + repeat('b', 745);
+		this.third = this.prefix + repeat('c', 745);
+		this.rdb.insertTerm("gene1");
+		this.rdb.insertRelationship("gene1", "definition", this.first, 1.0, "Check");
+		this.rdb.insertRelationship("gene1", "definition", this.second, 1.0, "Check");
+	}
+
+	public void testStoredInFull() throws Exception {
+		assertEquals("both stored", 2, this.rdb.getRelationships("gene1").size());
+		assertTrue("stored in full", this.hasValue(this.first) && this.hasValue(this.second));
+		assertTrue("exists by full value", this.rdb.relationshipExists("gene1", "definition", this.first)
+											&& this.rdb.relationshipExists("gene1", "definition", this.second)
+											&& !this.rdb.relationshipExists("gene1", "definition", this.third)
+											&& !this.rdb.relationshipExists("gene1", "definition", this.prefix));
+		assertEquals("looked up by full value", "gene1", this.rdb.getTermByRelationshipAndValue("definition", this.second));
+		assertNull("other value not found", this.rdb.getTermByRelationshipAndValue("definition", this.third));
+	}
+
+	public void testKeyedByDigest() throws Exception {
+		ResultSet rows = this.rdb.debugExecQuery("SELECT value_hash FROM termrelationships WHERE term='gene1' ORDER BY value_hash");
+		String[] expected = {ResourceDBWrapper.valueHash(this.first), ResourceDBWrapper.valueHash(this.second)};
+		Arrays.sort(expected);
+		assertTrue("keyed by digest", rows.next() && expected[0].equals(rows.getString(1)) && rows.next()
+										&& expected[1].equals(rows.getString(1)) && !rows.next() && expected[0].length() == 40);
+
+		// insertRelationship reports the unique violation instead of throwing it
+		this.rdb.insertRelationship("gene1", "definition", this.first, 0.5, "Check");
+		assertEquals("same value not stored twice", 2, this.rdb.getRelationships("gene1").size());
+	}
+
+	public void testUpdateAndDelete() throws Exception {
+		this.rdb.updateRelationship(new TermRelationship("gene1", "definition", this.second, 1.0, "Check"),
+									new TermRelationship("gene1", "definition", this.third, 1.0, "Check"));
+		assertTrue("update keyed by full value", this.hasValue(this.first) && this.hasValue(this.third) && !this.hasValue(this.second));
+		this.rdb.deleteRelationship("gene1", "definition", this.first);
+		assertTrue("delete keyed by full value", this.rdb.getRelationships("gene1").size() == 1 && this.hasValue(this.third));
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	private boolean hasValue(String value) throws SQLException {
+		for (TermRelationship tr : this.rdb.getRelationships("gene1")) {
+			if (value.equals(tr.getToTerm()))
+				return true;
+		}
+		return false;
+	}
+}
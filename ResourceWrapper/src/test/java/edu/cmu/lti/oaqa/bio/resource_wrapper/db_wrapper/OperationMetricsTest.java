@@ -0,0 +1,169 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests ResourceDBWrapper's per-operation instrumentation on an embedded H2 database: calls, rows and errors land
+ * under the right operation, a misbehaving registry doesn't leak connections, and slow calls are logged.
+ */
+public class OperationMetricsTest extends H2TestSupport {
+	private ConnectionPool pool;
+	private ResourceDBWrapper rdb;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.pool = this.createDatabase("db", 4);
+		this.rdb = new ResourceDBWrapper(this.pool);
+		List<Term> terms = new ArrayList<Term>();
+		for (int i = 0; i < 10; i++) {
+			Term term = new Term("term" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "Check:" + i, 1.0, "Check", null));
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", "alias" + i, 1.0, "Check", null));
+			terms.add(term);
+		}
+		this.rdb.insertWholeTerms(terms);
+	}
+
+	public void testHistogram() {
+		OperationMetrics metrics = new OperationMetrics();
+		for (int i = 0; i < 99; i++)
+			metrics.record("fast", 100000, 0, 1, false);
+		metrics.record("fast", 50000000, 40000000, 1, true);
+		OperationMetrics.Stats fast = metrics.getStats("fast");
+		assertTrue("counts", fast.getCount() == 100 && fast.getErrorCount() == 1 && fast.getRowCount() == 100);
+		assertEquals("acquire time", 40, fast.getAcquireMillis());
+		assertEquals("median bucket", 128, fast.getPercentileMicros(50));
+		assertTrue("tail bucket", fast.getPercentileMicros(100) == 65536 && fast.getMaxMicros() == 50000);
+		assertNull("unknown operation", metrics.getStats("slow"));
+	}
+
+	public void testOperationsRecorded() throws Exception {
+		assertTrue("default registry", this.rdb.getMetricsRegistry() instanceof OperationMetrics);
+		OperationMetrics metrics = (OperationMetrics) this.rdb.getMetricsRegistry();
+		for (int i = 0; i < 5; i++)
+			this.rdb.termExists("term" + i);
+		this.rdb.getRelationships("term1");
+		this.rdb.getWholeTerm("term2", null);
+		this.rdb.forEachRelationshipValue("ID", 0, new ValueCallback() {
+			public boolean process(String value) {
+				return true;
+			}
+		});
+		assertEquals("insertWholeTerms rows", 30, rows(metrics, "insertWholeTerms"));
+		assertEquals("termExists calls", 5, metrics.getStats("termExists").getCount());
+		assertEquals("getRelationships rows", 2, rows(metrics, "getRelationships"));
+		assertEquals("getWholeTerm rows", 2, rows(metrics, "getWholeTerm"));
+		assertEquals("streamed rows", 10, rows(metrics, "forEachRelationshipValue"));
+		assertEquals("no errors", 0, metrics.getStats("termExists").getErrorCount());
+
+		// A failing statement counts as an error even where the wrapper only prints it
+		PooledConnection pc = this.pool.borrow();
+		Statement stmt = pc.getConnection().createStatement();
+		stmt.execute("DROP TABLE lookupmisses");
+		stmt.close();
+		this.pool.release(pc);
+		try {
+			this.rdb.lookupMissExists("Check", "query", "exact");
+			fail("lookup on missing table throws");
+		} catch (SQLException e) {
+			;
+		}
+		assertEquals("thrown error counted", 1, metrics.getStats("lookupMissExists").getErrorCount());
+	}
+
+	public void testFailingRegistry() throws Exception {
+		// A registry that throws doesn't keep connections from going back
+		this.rdb.setMetricsRegistry(new MetricsRegistry() {
+			public void record(String operation, long nanos, long acquireNanos, long rows, boolean failed) {
+				throw new IllegalStateException("registry failure (expected by the test)");
+			}
+
+			public void slowOperation(String operation, long nanos, long acquireNanos, long rows, boolean failed) {
+			}
+		});
+		PrintStream err = System.err;
+		System.setErr(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			assertTrue("calls work with a failing registry", this.rdb.termExists("term3"));
+		} finally {
+			System.setErr(err);
+		}
+		assertEquals("connection handed back", 0, this.pool.getActiveCount());
+	}
+
+	public void testSlowCalls() throws Exception {
+		// Slow calls are counted and logged to System.err, callbacks included; without a registry only logged
+		OperationMetrics metrics = new OperationMetrics();
+		this.rdb.setMetricsRegistry(metrics);
+		this.rdb.setSlowQueryMillis(20);
+		String logged = slowCalls(this.rdb);
+		assertTrue("slow call counted", metrics.getStats("forEachTerm").getSlowCount() == 1
+										&& metrics.getStats("termExists").getSlowCount() == 0);
+		assertTrue("slow call logged", logged.contains("forEachTerm took") && !logged.contains("termExists"));
+		this.rdb.setMetricsRegistry(null);
+		assertTrue("slow call logged without a registry", slowCalls(this.rdb).contains("forEachTerm took"));
+		this.rdb.setMetricsRegistry(metrics);
+		this.rdb.setSlowQueryMillis(0);
+		assertTrue("threshold 0 reports nothing", slowCalls(this.rdb).isEmpty() && metrics.getStats("forEachTerm").getSlowCount() == 1);
+	}
+
+	public void testAcquireFailure() throws Exception {
+		// Failing to get a connection is recorded too
+		OperationMetrics metrics = new OperationMetrics();
+		this.rdb.setMetricsRegistry(metrics);
+		this.pool.close();
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		System.setErr(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			this.rdb.termExists("term1");
+		} catch (SQLException e) {
+			;
+		} finally {
+			System.setOut(out);
+			System.setErr(err);
+		}
+		assertEquals("acquire failure counted", 1, metrics.getStats("termExists").getErrorCount());
+	}
+
+	private static long rows(OperationMetrics metrics, String operation) {
+		OperationMetrics.Stats stats = metrics.getStats(operation);
+		return stats == null ? -1 : stats.getRowCount();
+	}
+
+	/**
+	 * Make a quick call and a slow one.
+	 * @return what they logged to System.err
+	 */
+	private static String slowCalls(ResourceDBWrapper rdb) throws Exception {
+		PrintStream err = System.err;
+		ByteArrayOutputStream log = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(log));
+		try {
+			rdb.termExists("term4");
+			rdb.forEachTerm(0, new ValueCallback() {
+				public boolean process(String value) {
+					try {
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return true;
+				}
+			});
+		} finally {
+			System.setErr(err);
+		}
+		return log.toString();
+	}
+}
@@ -0,0 +1,84 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests the streaming reads of old relationships on an embedded H2 database: the cursor and the callback see
+ * exactly the rows last updated before the cutoff, across several fetch batches, and the connection is handed back
+ * when the cursor is exhausted, closed early, or stopped by the callback.
+ */
+public class RelationshipCursorTest extends H2TestSupport {
+	private static final int OLD = 50;
+	private static final Date CUTOFF = Timestamp.valueOf("2010-01-01 00:00:00");
+
+	private ConnectionPool pool;
+	private ResourceDBWrapper rdb;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.pool = this.createDatabase();
+		this.rdb = new ResourceDBWrapper(this.pool);
+		ArrayList<Term> batch = new ArrayList<Term>();
+		batch.add(term("old", OLD));
+		batch.add(term("new", 10));
+		this.rdb.insertWholeTerms(batch);
+		Connection conn = DriverManager.getConnection(this.url("db"), "sa", "");
+		PreparedStatement ps = conn.prepareStatement("UPDATE termrelationships SET last_updated=? WHERE term='old'");
+		ps.setTimestamp(1, Timestamp.valueOf("2000-01-01 00:00:00"));
+		ps.executeUpdate();
+		conn.close();
+	}
+
+	public void testCursorExhausted() throws Exception {
+		RelationshipCursor cursor = this.rdb.openRelationshipsOlderThan(CUTOFF, 7);
+		int rows = 0;
+		boolean onlyOld = true;
+		try {
+			assertEquals("connection held while reading", 1, this.pool.getActiveCount());
+			while (cursor.hasNext()) {
+				onlyOld &= "old".equals(cursor.next().getFromTerm());
+				rows++;
+			}
+			assertEquals("connection handed back when exhausted", 0, this.pool.getActiveCount());
+		} finally {
+			cursor.close();
+		}
+		assertTrue("cursor read the old rows", rows == OLD && onlyOld && cursor.getRowCount() == OLD);
+	}
+
+	public void testCursorClosedEarly() throws Exception {
+		RelationshipCursor cursor = this.rdb.openRelationshipsOlderThan(CUTOFF, 7);
+		cursor.next();
+		cursor.close();
+		cursor.close();
+		assertTrue("connection handed back when closed early", this.pool.getActiveCount() == 0 && !cursor.hasNext());
+	}
+
+	public void testCallback() throws Exception {
+		final int[] seen = new int[1];
+		long processed = this.rdb.forEachRelationshipOlderThan(CUTOFF, 7, new RelationshipCallback() {
+			public boolean process(TermRelationship tr) {
+				return ++seen[0] < 3;
+			}
+		});
+		assertTrue("callback stops the scan", processed == 3 && seen[0] == 3 && this.pool.getActiveCount() == 0);
+		assertTrue("list variant", this.rdb.getRelationshipsOlderThan(CUTOFF).size() == OLD
+									&& this.rdb.getRelationshipsOlderThan(new Date(System.currentTimeMillis() + 60000)).size() == OLD + 10);
+	}
+
+	private static Term term(String name, int synonyms) {
+		Term term = new Term(name);
+		for (int i = 0; i < synonyms; i++)
+			term.addTermRelationship(new TermRelationship(name, "synonym", name + "-s" + i, 0.5, "Check"));
+		return term;
+	}
+}
@@ -0,0 +1,91 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests ResourceDBWrapper's confidence-ordered reads on an embedded H2 database: top-N per relationship, keyset pages
+ * that cover a term exactly once (ties included), and Terms that load their remaining relationships on demand.
+ */
+public class RelationshipPageTest extends H2TestSupport {
+	private ResourceDBWrapper rdb;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.rdb = new ResourceDBWrapper(this.createDatabase());
+
+		// 50 synonyms in groups of five with equal confidence, 5 ID's, a third of the synonyms from another source
+		ArrayList<Term> terms = new ArrayList<Term>();
+		Term big = new Term("big");
+		for (int i = 0; i < 50; i++)
+			big.addTermRelationship(new TermRelationship("big", "synonym", "alias" + i, (i / 5) / 10.0, i % 3 == 0 ? "Other" : "Check"));
+		for (int i = 0; i < 5; i++)
+			big.addTermRelationship(new TermRelationship("big", "ID", "Check:" + i, 1.0, "Check"));
+		terms.add(big);
+		Term small = new Term("small");
+		small.addTermRelationship(new TermRelationship("small", "synonym", "tiny", 0.5, "Check"));
+		terms.add(small);
+		terms.add(new Term("bare"));
+		this.rdb.insertWholeTerms(terms);
+	}
+
+	public void testTopRelationships() throws Exception {
+		ArrayList<TermRelationship> top = this.rdb.getTopRelationships("big", "synonym", null, 3);
+		assertTrue("top 3 synonyms", top.size() == 3 && top.get(0).getConfidence() == 0.9 && top.get(2).getConfidence() == 0.9
+										&& "synonym".equals(top.get(0).getRelationship()));
+		assertEquals("top by source", 17, this.rdb.getTopRelationships("big", null, "Other", 100).size());
+	}
+
+	public void testPages() throws Exception {
+		assertTrue("pages of 7", this.pagesCoverTerm(null, null, 7, 55));
+		assertTrue("pages of 1", this.pagesCoverTerm("synonym", null, 1, 50));
+		assertTrue("pages by source", this.pagesCoverTerm("synonym", "Check", 4, 33));
+		assertNull("exact last page", this.rdb.getRelationshipPage("big", "ID", null, null, 5).getNextToken());
+		try {
+			this.rdb.getRelationshipPage("big", null, null, "not a token", 5);
+			fail("bad token rejected");
+		} catch (IllegalArgumentException e) {
+			;
+		}
+	}
+
+	public void testTopTerm() throws Exception {
+		Term partial = this.rdb.getTopTerm("big", null, 2);
+		assertTrue("top term holds 2 per type", partial.getLoadedTermRelationships().size() == 4 && !partial.isComplete());
+		assertTrue("remainder loaded on demand", partial.getTermRelationshipsByRelation("synonym").size() == 50
+													&& partial.getAllTermRelationships().size() == 55 && partial.isComplete());
+		Term bySource = this.rdb.getTopTerm("big", "Other", 2);
+		assertTrue("top term by source", bySource.getLoadedTermRelationships().size() == 2
+											&& bySource.getAllTermRelationships().size() == 17);
+		Term whole = this.rdb.getTopTerm("small", null, 2);
+		assertTrue("small term complete", whole.isComplete() && whole.getAllTermRelationships().size() == 1);
+		Term bare = this.rdb.getTopTerm("bare", null, 2);
+		assertTrue("term without relationships", bare != null && bare.isComplete() && bare.getAllTermRelationships().isEmpty());
+		assertNull("missing term", this.rdb.getTopTerm("missing", null, 2));
+	}
+
+	/**
+	 * Walk a term's pages: every row exactly once, confidence never increasing, and the last page has no token.
+	 */
+	private boolean pagesCoverTerm(String relationship, String source, int size, int expected) throws Exception {
+		HashSet<String> seen = new HashSet<String>();
+		double last = Double.MAX_VALUE;
+		String token = null;
+		do {
+			RelationshipPage page = this.rdb.getRelationshipPage("big", relationship, source, token, size);
+			if (page.getRelationships().size() > size)
+				return false;
+			for (TermRelationship tr : page.getRelationships()) {
+				if (!seen.add(tr.getRelationship() + "/" + tr.getToTerm()) || tr.getConfidence() > last)
+					return false;
+				last = tr.getConfidence();
+			}
+			token = page.getNextToken();
+		} while (token != null);
+		return seen.size() == expected;
+	}
+}
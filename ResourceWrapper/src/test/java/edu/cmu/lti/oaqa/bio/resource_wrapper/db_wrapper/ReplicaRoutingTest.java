@@ -0,0 +1,81 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+
+/**
+ * Tests ResourceDBWrapper's read/write routing with separate embedded H2 databases standing in for the primary
+ * and its replicas.  Nothing replicates between them, so where a read went shows in what it finds.
+ */
+public class ReplicaRoutingTest extends H2TestSupport {
+	private ConnectionPool primary;
+	private ConnectionPool replica1;
+	private ConnectionPool replica2;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.primary = this.createDatabase("primary", 2);
+		this.replica1 = this.createDatabase("replica1", 2);
+		this.replica2 = this.createDatabase("replica2", 2);
+		new ResourceDBWrapper(this.replica1).upsertTerm("replicated");
+	}
+
+	public void testReadsGoToReplicasWritesToPrimary() throws Exception {
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.primary, new ReplicaSet(Arrays.asList(this.replica1),
+																					ReplicaSet.Policy.ROUND_ROBIN), 0);
+		rdb.upsertTerm("written");
+		assertTrue("write went to the primary", new ResourceDBWrapper(this.primary).termExists("written"));
+		assertTrue("read went to the replica", !rdb.termExists("written") && rdb.termExists("replicated"));
+	}
+
+	public void testReadYourWritesWindow() throws Exception {
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.primary, new ReplicaSet(Arrays.asList(this.replica1),
+																					ReplicaSet.Policy.ROUND_ROBIN), 300);
+		assertTrue("no write yet, replica", rdb.termExists("replicated"));
+		rdb.upsertTerm("written");
+		assertTrue("inside the window, primary", rdb.termExists("written"));
+		Thread.sleep(400);
+		assertFalse("after the window, replica", rdb.termExists("written"));
+	}
+
+	public void testRoundRobin() throws Exception {
+		ReplicaSet set = new ReplicaSet(Arrays.asList(this.replica1, this.replica2), ReplicaSet.Policy.ROUND_ROBIN);
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.primary, set, 0);
+		for (int i = 0; i < 100; i++)
+			rdb.termExists("replicated");
+		assertTrue("reads spread evenly", set.getReadCount(0) == 50 && set.getReadCount(1) == 50);
+	}
+
+	public void testLeastLoaded() throws Exception {
+		// Avoids the replica whose connections are busy
+		ReplicaSet set = new ReplicaSet(Arrays.asList(this.replica1, this.replica2), ReplicaSet.Policy.LEAST_LOADED);
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.primary, set, 0);
+		ArrayList<PooledConnection> held = new ArrayList<PooledConnection>();
+		held.add(this.replica1.borrow());
+		for (int i = 0; i < 20; i++)
+			rdb.termExists("replicated");
+		assertTrue("busy replica avoided", set.getReadCount(0) == 0 && set.getReadCount(1) == 20);
+		for (PooledConnection pc : held)
+			this.replica1.release(pc);
+	}
+
+	public void testUnreachableReplicaSkipped() throws Exception {
+		new ResourceDBWrapper(this.primary).upsertTerm("written");
+		ConnectionPool broken = this.closeAfter(new ConnectionPool(null, "jdbc:h2:mem:replicatest-broken;IFEXISTS=TRUE", "sa", "",
+																	0, 1, 500, 0, 1));
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.primary, new ReplicaSet(Arrays.asList(broken),
+																					ReplicaSet.Policy.ROUND_ROBIN), 0);
+		assertTrue("read falls back to the primary", rdb.termExists("written") && rdb.getReplicaFailureCount() == 1);
+	}
+
+	public void testClosedReplicaSkipped() throws Exception {
+		ReplicaSet set = new ReplicaSet(Arrays.asList(this.replica1, this.replica2), ReplicaSet.Policy.ROUND_ROBIN);
+		ResourceDBWrapper rdb = new ResourceDBWrapper(this.primary, set, 0);
+		this.replica2.close();
+		for (int i = 0; i < 10; i++)
+			rdb.termExists("replicated");
+		assertTrue("closed replica not chosen", set.getReadCount(0) == 10 && set.getReadCount(1) == 0);
+	}
+}
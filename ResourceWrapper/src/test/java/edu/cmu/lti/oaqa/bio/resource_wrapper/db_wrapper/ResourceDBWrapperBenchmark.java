@@ -0,0 +1,81 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Micro-benchmark comparing the old string-concatenated Statement queries with the cached PreparedStatement
+ * queries used by ResourceDBWrapper.  Runs against an in-memory H2 database so no MySQL server is needed.
+ * Usage: ResourceDBWrapperBenchmark [terms] [lookups]
+ */
+public class ResourceDBWrapperBenchmark {
+	private static final String URL = "jdbc:h2:mem:benchmark;DB_CLOSE_DELAY=-1";
+
+	public static void main(String[] args) throws Exception {
+		int terms = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+		ConnectionPool pool = new ConnectionPool("org.h2.Driver", URL, "sa", "", 1, 1, 30000, 0, 5, 32);
+		ResourceDBWrapper rdb = new ResourceDBWrapper(pool);
+		new SchemaManager(pool).migrate();
+		for (int i = 0; i < terms; i++) {
+			rdb.insertTerm("term" + i);
+			for (int j = 0; j < 10; j++)
+				rdb.insertRelationship("term" + i, "synonym", "synonym" + j + " of term" + i, 1.0, "Benchmark");
+		}
+		System.out.println("Loaded " + terms + " terms, " + (terms * 10) + " relationships.");
+
+		// Warm up both paths before timing
+		runConcatenated(pool, terms, lookups / 5);
+		runPrepared(rdb, terms, lookups / 5);
+
+		long start = System.nanoTime();
+		runConcatenated(pool, terms, lookups);
+		long concatenated = System.nanoTime() - start;
+		start = System.nanoTime();
+		runPrepared(rdb, terms, lookups);
+		long prepared = System.nanoTime() - start;
+
+		System.out.println("Statement (concatenated): " + (concatenated / 1000 / lookups) + " us/lookup");
+		System.out.println("PreparedStatement (cached): " + (prepared / 1000 / lookups) + " us/lookup");
+		System.out.println(pool);
+		pool.close();
+	}
+
+	/**
+	 * One lookup = termExists + getRelationships, built the way ResourceDBWrapper used to build them.
+	 */
+	private static void runConcatenated(ConnectionPool pool, int terms, int lookups) throws SQLException {
+		for (int i = 0; i < lookups; i++) {
+			String term = "term" + (i % terms);
+			PooledConnection pc = pool.borrow();
+			try {
+				Statement stmt = pc.getConnection().createStatement();
+				ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM terms WHERE term='" + term + "'");
+				rs.next();
+				rs.getInt(1);
+				rs.close();
+				rs = stmt.executeQuery("SELECT term, relationship, value, source, confidence, parentTerm FROM "
+										+ "termrelationships WHERE term='" + term + "'");
+				while (rs.next())
+					rs.getString("value");
+				rs.close();
+				stmt.close();
+			} finally {
+				pool.release(pc);
+			}
+		}
+	}
+
+	/**
+	 * One lookup = termExists + getRelationships through ResourceDBWrapper.
+	 */
+	private static void runPrepared(ResourceDBWrapper rdb, int terms, int lookups) throws SQLException {
+		for (int i = 0; i < lookups; i++) {
+			String term = "term" + (i % terms);
+			rdb.termExists(term);
+			rdb.getRelationships(term);
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests ShardedTermStore's placement and rebalancing with separate embedded H2 databases as shards: terms spread
+ * evenly, each term and its ID route sit on exactly one shard, and adding a shard moves only the keys it takes over.
+ */
+public class ShardedTermStoreTest extends H2TestSupport {
+	private static final int TERMS = 4000;
+	private static final ValueCallback ALL = new ValueCallback() {
+		public boolean process(String value) {
+			return true;
+		}
+	};
+
+	private ShardedTermStore store;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+		for (int i = 0; i < 3; i++)
+			pools.add(this.createDatabase("shard" + i, 4));
+		this.store = new ShardedTermStore(pools, 64, 0);
+
+		List<Term> batch = new ArrayList<Term>();
+		for (int i = 0; i < TERMS; i++) {
+			Term term = new Term("term" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "Check:" + i, 1.0, "Check", null));
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", "synonym of term" + i, 1.0, "Check", null));
+			batch.add(term);
+			if (batch.size() == 200 || i == TERMS - 1) {
+				this.store.insertWholeTerms(batch);
+				batch.clear();
+			}
+		}
+	}
+
+	protected void tearDown() throws Exception {
+		this.store.close();
+		super.tearDown();
+	}
+
+	public void testPlacement() throws Exception {
+		// Each shard holds about a third, and only the shard the ring picks holds a term
+		long[] counts = this.termCounts();
+		boolean even = true;
+		for (long count : counts)
+			even &= Math.abs(count - TERMS / 3) < TERMS / 3 / 4;
+		assertTrue("terms spread evenly " + Arrays.toString(counts), even);
+		assertTrue("each term on its ring shard only", this.termsPlaced());
+		assertTrue("routes on the digest's shard", this.routesPlaced() && this.routeCount() == TERMS);
+		assertTrue("lookups by ID", this.lookupsWork());
+	}
+
+	public void testAddShard() throws Exception {
+		HashMap<String, Integer> before = new HashMap<String, Integer>();
+		for (int i = 0; i < TERMS; i++)
+			before.put("term" + i, this.store.getShardFor("term" + i));
+
+		// Adding a shard moves about a quarter of the terms, all to the new shard
+		long total = this.store.forEachTerm(0, ALL);
+		ConnectionPool added = this.createDatabase("shard3", 4);
+		long[] moved = this.store.addShard(added);
+		long[] counts = this.termCounts();
+		assertTrue("added shard owns about a quarter " + Arrays.toString(counts), Math.abs(counts[3] - TERMS / 4) < TERMS / 4 / 4);
+		assertTrue("moved terms all went to the new shard", moved[0] == this.store.getShard(3).forEachTerm(0, ALL)
+															&& this.store.forEachTerm(0, ALL) == total);
+		boolean stayed = true;
+		for (int i = 0; i < TERMS; i++) {
+			int owner = this.store.getShardFor("term" + i);
+			stayed &= owner == before.get("term" + i) || owner == 3;
+		}
+		assertTrue("only terms taken over by the new shard moved", stayed);
+		assertTrue("each term on its ring shard only after the rebalance", this.termsPlaced());
+		assertTrue("routes moved with their digests", this.routesPlaced() && this.routeCount() == TERMS && moved[1] > 0);
+		assertTrue("lookups by ID after the rebalance", this.lookupsWork());
+		assertEquals("whole terms after the rebalance", 2, this.store.getWholeTerm("term7", null).getAllTermRelationships().size());
+
+		// A second call with the same shard finds nothing left to move
+		moved = this.store.addShard(added);
+		assertTrue("rebalance repeated", moved[0] == 0 && moved[1] == 0);
+	}
+
+	public void testStaleRoutes() throws Exception {
+		this.store.deleteTerm("term1");
+		assertTrue("deleted term's ID gone", this.store.getTermByRelationshipAndValue("ID", "Check:1") == null
+												&& this.routeCount() == TERMS - 1);
+		String hash = ResourceDBWrapper.valueHash("Check:2");
+		this.store.getShard(this.store.getShardFor(hash)).addIdRoutes(Collections.singletonList(new String[] {hash, "term0"}));
+		assertEquals("stale route ignored", "term2", this.store.getTermByRelationshipAndValue("ID", "Check:2"));
+	}
+
+	private long[] termCounts() throws Exception {
+		long[] counts = new long[this.store.getShardCount()];
+		for (int shard = 0; shard < counts.length; shard++) {
+			// Only "term<n>" names; the mirrored synonyms and ID's are terms too
+			final long[] count = new long[1];
+			this.store.getShard(shard).forEachTerm(0, new ValueCallback() {
+				public boolean process(String value) {
+					if (value.matches("term\\d+"))
+						count[0]++;
+					return true;
+				}
+			});
+			counts[shard] = count[0];
+		}
+		return counts;
+	}
+
+	private boolean termsPlaced() throws Exception {
+		for (int i = 0; i < TERMS; i++) {
+			String term = "term" + i;
+			int owner = this.store.getShardFor(term);
+			for (int shard = 0; shard < this.store.getShardCount(); shard++) {
+				if (this.store.getShard(shard).termExists(term) != (shard == owner))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean routesPlaced() throws Exception {
+		for (int shard = 0; shard < this.store.getShardCount(); shard++) {
+			for (String[] route : this.store.getShard(shard).getIdRoutePage(null, Integer.MAX_VALUE)) {
+				if (this.store.getShardFor(route[0]) != shard)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	private long routeCount() throws Exception {
+		long count = 0;
+		for (int shard = 0; shard < this.store.getShardCount(); shard++)
+			count += this.store.getShard(shard).getIdRoutePage(null, Integer.MAX_VALUE).size();
+		return count;
+	}
+
+	private boolean lookupsWork() throws Exception {
+		ArrayList<String> ids = new ArrayList<String>();
+		for (int i = 0; i < TERMS; i++) {
+			if (!("term" + i).equals(this.store.getTermByRelationshipAndValue("ID", "Check:" + i)))
+				return false;
+			ids.add("Check:" + i);
+		}
+		HashMap<String, Term> found = this.store.getWholeTermsByRelationshipAndValue("ID", ids, null);
+		for (int i = 0; i < TERMS; i++) {
+			Term term = found.get("Check:" + i);
+			if (term == null || !term.getTerm().equals("term" + i))
+				return false;
+		}
+		return true;
+	}
+}
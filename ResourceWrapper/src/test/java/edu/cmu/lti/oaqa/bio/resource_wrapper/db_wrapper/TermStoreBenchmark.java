@@ -0,0 +1,87 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Times batched writes and whole-Term lookups by name and by ID against every TermStore: ResourceDBWrapper,
+ * BlobTermStore and ShardedTermStore (over three shards) on in-memory H2 databases and KeyValueTermStore on a
+ * temporary file.  {@link TermStoreTest} checks they behave the same.
+ * Usage: TermStoreBenchmark [terms] [lookups]
+ */
+public class TermStoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int terms = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+		ConnectionPool pool = pool("jdbc");
+		run("jdbc", new ResourceDBWrapper(pool), terms, lookups);
+		pool.close();
+
+		pool = pool("blob");
+		run("blob", new BlobTermStore(pool), terms, lookups);
+		pool.close();
+
+		List<ConnectionPool> shardPools = new ArrayList<ConnectionPool>();
+		for (int i = 0; i < 3; i++)
+			shardPools.add(pool("shard" + i));
+		ShardedTermStore sharded = new ShardedTermStore(shardPools, 64, 0);
+		run("sharded", sharded, terms, lookups);
+		sharded.close();
+		for (ConnectionPool shardPool : shardPools)
+			shardPool.close();
+
+		File file = File.createTempFile("termstorebenchmark", ".mv");
+		file.delete();
+		KeyValueTermStore kv = new KeyValueTermStore(file.getPath(), false, 16);
+		run("mvstore", kv, terms, lookups);
+		kv.close();
+		file.delete();
+	}
+
+	/**
+	 * Write terms in batches of 100, then time whole-Term lookups by name and by ID.
+	 */
+	private static void run(String name, TermStore store, int terms, int lookups) throws Exception {
+		System.out.println("== " + name);
+		long start = System.nanoTime();
+		List<Term> batch = new ArrayList<Term>();
+		for (int i = 0; i < terms; i++) {
+			Term term = new Term("term" + i);
+			term.addTermRelationship(new TermRelationship(term.getTerm(), "ID", "Check:" + i, 1.0, "Check", null));
+			for (int j = 0; j < 10; j++)
+				term.addTermRelationship(new TermRelationship(term.getTerm(), "synonym", "synonym" + j + " of term" + i, 1.0, "Check", null));
+			batch.add(term);
+			if (batch.size() == 100 || i == terms - 1) {
+				store.insertWholeTerms(batch);
+				batch.clear();
+			}
+		}
+		long written = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			store.getWholeTerm("term" + (i % terms), null);
+		long byName = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int i = 0; i < lookups; i++)
+			store.getWholeTermByRelationshipAndValue("ID", "Check:" + (i % terms), null);
+		long byID = System.nanoTime() - start;
+
+		System.out.println("insertWholeTerms: " + (written / 1000 / terms) + " us/term");
+		System.out.println("getWholeTerm: " + (byName / 1000 / lookups) + " us/lookup");
+		System.out.println("getWholeTermByRelationshipAndValue: " + (byID / 1000 / lookups) + " us/lookup");
+	}
+
+	private static ConnectionPool pool(String name) throws Exception {
+		ConnectionPool pool = new ConnectionPool("org.h2.Driver", "jdbc:h2:mem:termstorebenchmark-" + name + ";DB_CLOSE_DELAY=-1", "sa", "",
+													1, 2, 30000, 0, 5, 32);
+		new SchemaManager(pool).migrate();
+		return pool;
+	}
+}
@@ -0,0 +1,200 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.io.File;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Runs the same checks against every TermStore: ResourceDBWrapper, BlobTermStore and ShardedTermStore (over three
+ * shards) on in-memory H2 databases and KeyValueTermStore on a temporary file.  Fails if a store behaves differently
+ * from what DBCache expects.  {@link TermStoreBenchmark} times the same stores.
+ */
+public class TermStoreTest extends H2TestSupport {
+
+	public void testJdbc() throws Exception {
+		conformance("jdbc", new ResourceDBWrapper(this.createDatabase()));
+	}
+
+	public void testBlob() throws Exception {
+		BlobTermStore blobs = new BlobTermStore(this.createDatabase());
+		conformance("blob", blobs);
+		try {
+			blobs.getTermByRelationshipAndValue("synonym", "synonym0 of term0");
+			fail("blob only looks up ID's by value");
+		} catch (SQLFeatureNotSupportedException e) {
+			;
+		}
+	}
+
+	public void testSharded() throws Exception {
+		List<ConnectionPool> shardPools = new ArrayList<ConnectionPool>();
+		for (int i = 0; i < 3; i++)
+			shardPools.add(this.createDatabase("shard" + i, 2));
+		ShardedTermStore sharded = new ShardedTermStore(shardPools, 64, 0);
+		try {
+			conformance("sharded", sharded);
+		} finally {
+			sharded.close();
+		}
+	}
+
+	public void testMVStore() throws Exception {
+		File file = File.createTempFile("termstoretest", ".mv");
+		file.delete();
+		try {
+			KeyValueTermStore kv = new KeyValueTermStore(file.getPath(), false, 16);
+			try {
+				conformance("mvstore", kv);
+				Term term = new Term("term0");
+				term.addTermRelationship(new TermRelationship("term0", "ID", "Check:0", 1.0, "Check", null));
+				kv.insertWholeTerms(Arrays.asList(term));
+			} finally {
+				kv.close();
+			}
+			kv = new KeyValueTermStore(file.getPath(), true, 16);
+			try {
+				assertTrue("mvstore reopened (memory-mapped)", kv.termExists("term0")
+																&& kv.getTermByRelationshipAndValue("ID", "Check:0") != null);
+			} finally {
+				kv.close();
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void conformance(String name, TermStore store) throws Exception {
+		store.upsertTerm("alpha");
+		store.upsertTerm("alpha");
+		assertTrue(name + " upsertTerm", store.termExists("alpha") && !store.termExists("beta"));
+
+		store.upsertRelationship(new TermRelationship("alpha", "ID", "Check:1", 1.0, "Check", null));
+		store.upsertRelationship(new TermRelationship("alpha", "synonym", "alfa", 0.5, "Check", null));
+		store.upsertRelationship(new TermRelationship("alpha", "synonym", "alfa", 0.7, "Other", "greek"));
+		ArrayList<TermRelationship> rels = store.getRelationships("alpha");
+		assertEquals(name + " upsertRelationship keeps one row", 2, rels.size());
+		TermRelationship alfa = store.getRelationships("alpha", "Check").get(1);
+		assertTrue(name + " upsertRelationship leaves the existing row", alfa.getConfidence() == 0.5 && alfa.getParentTerm() == null);
+		assertTrue(name + " value mirrored as a term", store.termExists("alfa"));
+		assertTrue(name + " relationshipExists", store.relationshipExists("alpha", "synonym", "alfa")
+													&& !store.relationshipExists("alpha", "synonym", "alpha"));
+		assertTrue(name + " ID lookup", "alpha".equals(store.getTermByRelationshipAndValue("ID", "Check:1"))
+										&& store.getTermByRelationshipAndValue("ID", "Check:2") == null);
+		try {
+			assertTrue(name + " getTermsByValue", store.getTermsByValue("synonym", " ALFA ").equals(Arrays.asList("alpha"))
+													&& store.getTermsByValue(null, "check:1").equals(Arrays.asList("alpha"))
+													&& store.getTermsByValue("definition", "alfa").isEmpty());
+		} catch (SQLFeatureNotSupportedException e) {
+			assertEquals(name + " getTermsByValue supported", "blob", name);
+		}
+
+		char[] chars = new char[5000];
+		Arrays.fill(chars, 'x');
+		String longValue = new String(chars);
+		Term gamma = new Term("gamma");
+		gamma.addTermRelationship(new TermRelationship("gamma", "ID", "Check:3", 1.0, "Check", null));
+		gamma.addTermRelationship(new TermRelationship("gamma", "definition", longValue, 1.0, "Check", null));
+		gamma.addTermRelationship(new TermRelationship("gamma", "synonym", "gama", 1.0, "Other", null));
+		List<Term> batch = new ArrayList<Term>();
+		batch.add(gamma);
+		boolean[] flags = store.insertWholeTerms(batch).get(0);
+		assertTrue(name + " insertWholeTerms", flags.length == 4 && flags[0] && flags[1] && flags[2] && flags[3]);
+		store.insertWholeTerms(batch);
+		assertEquals(name + " insertWholeTerms twice", 3, store.getRelationships("gamma").size());
+		Term whole = store.getWholeTerm("gamma", "Check");
+		assertTrue(name + " getWholeTerm by source", whole != null && whole.getAllTermRelationships().size() == 2);
+		whole = store.getWholeTermByRelationshipAndValue("ID", "Check:3", null);
+		assertTrue(name + " getWholeTerm by ID", whole != null && whole.getTerm().equals("gamma")
+													&& whole.getAllTermRelationships().size() == 3);
+		assertTrue(name + " long value", store.relationshipExists("gamma", "definition", longValue)
+											&& store.getWholeTerm("gamma", null).getTermRelationshipsByRelation("definition").get(0)
+													.getToTerm().equals(longValue));
+		assertTrue(name + " bulk reads", store.getWholeTerms(Arrays.asList("alpha", "gamma", "delta"), null).size() == 2
+											&& store.getWholeTermsByRelationshipAndValue("ID", Arrays.asList("Check:1", "Check:9"), null)
+													.size() == 1);
+
+		Thread.sleep(20);
+		Date cutoff = new Date();
+		Thread.sleep(20);
+		ArrayList<TermRelationship> fresh = new ArrayList<TermRelationship>();
+		fresh.add(new TermRelationship("gamma", "ID", "Check:3", 0.9, "Check", null));
+		fresh.add(new TermRelationship("gamma", "synonym", "gamma ray", 1.0, "Check", null));
+		fresh.add(new TermRelationship("gamma", "synonym", "gama", 1.0, "Check", null));
+		int[] counts = store.refreshRelationships("gamma", "Check", fresh);
+		assertTrue(name + " refreshRelationships", counts[0] == 1 && counts[1] == 1 && counts[2] == 1
+													&& store.getRelationships("gamma", "Other").size() == 1);
+		ArrayList<RelationshipRow> stale = store.getOldestRelationships("ID", "Check", "Check:", cutoff, null, 10);
+		assertTrue(name + " getOldestRelationships", stale.size() == 1 && stale.get(0).getTerm().equals("alpha"));
+		assertTrue(name + " getOldestRelationships after", store.getOldestRelationships("ID", "Check", "Check:", cutoff, stale.get(0), 10)
+																	.isEmpty());
+		final int[] seen = new int[1];
+		long older = store.forEachRelationshipOlderThan(cutoff, 0, new RelationshipCallback() {
+			public boolean process(TermRelationship tr) {
+				seen[0]++;
+				return true;
+			}
+		});
+		assertTrue(name + " forEachRelationshipOlderThan", older == 3 && seen[0] == 3);
+		ValueCallback counter = new ValueCallback() {
+			public boolean process(String value) {
+				return true;
+			}
+		};
+		assertTrue(name + " forEachTerm", store.forEachTerm(0, counter) == store.forEachTerm(100, counter)
+											&& store.forEachTerm(0, counter) == 4);
+		assertEquals(name + " forEachRelationshipValue", 2, store.forEachRelationshipValue("ID", 0, counter));
+
+		store.deleteRelationship("alpha", "synonym", "alfa");
+		assertTrue(name + " deleteRelationship", !store.relationshipExists("alpha", "synonym", "alfa") && store.termExists("alfa"));
+		if (!name.equals("blob"))
+			assertTrue(name + " getTermsByValue after delete", store.getTermsByValue(null, "Alfa").isEmpty());
+		store.deleteTerm("gamma");
+		assertTrue(name + " deleteTerm", !store.termExists("gamma") && store.getTermByRelationshipAndValue("ID", "Check:3") == null
+											&& store.getRelationships("gamma").isEmpty());
+
+		store.insertLookupMiss("Check", "nothing", "exact", new Date(System.currentTimeMillis() + 60000));
+		store.insertLookupMiss("Check", "gone", "exact", new Date(System.currentTimeMillis() - 1000));
+		assertTrue(name + " lookup misses", store.lookupMissExists("Check", "nothing", "exact")
+												&& !store.lookupMissExists("Check", "nothing", "search")
+												&& !store.lookupMissExists("Check", "gone", "exact"));
+		assertEquals(name + " expired misses", 1, store.deleteLookupMissesExpiredBefore(new Date()));
+		store.deleteLookupMiss("Check", "nothing", "exact");
+		assertFalse(name + " deleteLookupMiss", store.lookupMissExists("Check", "nothing", "exact"));
+
+		store.deleteTerm("alpha");
+		store.deleteTerm("alfa");
+		store.deleteTerm("Check:1");
+
+		// Access counts and eviction order
+		Date beforeInsert = new Date();
+		Thread.sleep(20);
+		store.upsertTerm("cold");
+		store.upsertTerm("warm");
+		long[] usage = store.getStorageUsage();
+		store.upsertRelationship(new TermRelationship("hot", "synonym", "hottest", 1.0, "Check", null));
+		long[] grown = store.getStorageUsage();
+		assertTrue(name + " getStorageUsage", grown[0] == usage[0] + 1 && grown[1] == usage[1] + "hotsynonymhottestCheck".length());
+		HashMap<String, Long> hits = new HashMap<String, Long>();
+		hits.put("warm", 1L);
+		hits.put("hot", 5L);
+		hits.put("missing", 3L);
+		store.recordAccesses(hits, new Date());
+		assertFalse(name + " recordAccesses skips missing terms", store.termExists("missing"));
+		ArrayList<String> coldest = store.getColdestTerms(new Date(System.currentTimeMillis() + 60000), 100);
+		assertTrue(name + " getColdestTerms order", coldest.indexOf("cold") >= 0 && coldest.indexOf("cold") < coldest.indexOf("warm")
+													&& coldest.indexOf("warm") < coldest.indexOf("hot"));
+		assertEquals(name + " getColdestTerms limit", 1, store.getColdestTerms(new Date(System.currentTimeMillis() + 60000), 1).size());
+		coldest = store.getColdestTerms(beforeInsert, 100);
+		assertTrue(name + " getColdestTerms idle", !coldest.contains("cold") && !coldest.contains("hot"));
+		for (String term : Arrays.asList("cold", "warm", "hot", "hottest"))
+			store.deleteTerm(term);
+	}
+}
@@ -0,0 +1,108 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache;
+
+/**
+ * Tests the single-statement upserts on an embedded H2 database: repeating upsertTerm and upsertRelationship leaves
+ * one row (the first one, left as it is), several threads upserting the same keys at once write each row
+ * once without an error, a unique violation is recognized for the retry, and a DBCache write is one wrapper call.
+ */
+public class UpsertTest extends H2TestSupport {
+	private static final int THREADS = 8;
+	private static final int KEYS = 50;
+
+	private ConnectionPool pool;
+	private ResourceDBWrapper rdb;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.cacheMaxEntries = 0;
+		this.pool = this.createDatabase("db", THREADS);
+		this.rdb = new ResourceDBWrapper(this.pool);
+	}
+
+	public void testRepeatedUpserts() throws Exception {
+		this.rdb.upsertTerm("gene1");
+		this.rdb.upsertTerm("gene1");
+		assertEquals("term upserted once", 1, this.count("SELECT COUNT(*) FROM terms WHERE term='gene1'"));
+		this.rdb.upsertRelationship(new TermRelationship("gene1", "synonym", "g1", 0.5, "EntrezGene"));
+		this.rdb.upsertRelationship(new TermRelationship("gene1", "synonym", "g1", 0.9, "MeSH"));
+		ArrayList<TermRelationship> rows = this.rdb.getRelationships("gene1");
+		assertEquals("relationship upserted once", 1, rows.size());
+		assertTrue("existing row left as it is", rows.get(0).getConfidence() == 0.5 && "EntrezGene".equals(rows.get(0).getSource()));
+		assertTrue("value added as a term", this.rdb.termExists("g1"));
+	}
+
+	public void testConcurrentUpserts() throws Exception {
+		// Every thread upserts the same keys at the same time
+		final CountDownLatch start = new CountDownLatch(1);
+		final AtomicInteger errors = new AtomicInteger();
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			threads[t] = new Thread() {
+				public void run() {
+					try {
+						start.await();
+						for (int i = 0; i < KEYS; i++) {
+							rdb.upsertTerm("race" + i);
+							rdb.upsertRelationship(new TermRelationship("race" + i, "synonym", "r" + i, thread / 10.0, "Check"));
+						}
+					} catch (SQLException e) {
+						errors.incrementAndGet();
+						e.printStackTrace();
+					} catch (InterruptedException e) {
+						errors.incrementAndGet();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		assertEquals("concurrent upserts succeeded", 0, errors.get());
+		assertEquals("relationships written once", KEYS, this.count("SELECT COUNT(*) FROM termrelationships WHERE term LIKE 'race%'"));
+		assertEquals("terms written once", KEYS, this.count("SELECT COUNT(*) FROM terms WHERE term LIKE 'race%'"));
+		assertEquals("values written once", KEYS, this.count("SELECT COUNT(*) FROM terms WHERE term LIKE 'r%' AND term NOT LIKE 'race%'"));
+		assertEquals("connections handed back", 0, this.pool.getActiveCount());
+	}
+
+	public void testDuplicateKey() {
+		// Lost races (SQLSTATE class 23) are retried, anything else is thrown
+		assertTrue("unique violation retried", ResourceDBWrapper.isDuplicateKey(new SQLException("duplicate", "23505"))
+												&& ResourceDBWrapper.isDuplicateKey(new SQLException("duplicate", "23000")));
+		assertTrue("other errors thrown", !ResourceDBWrapper.isDuplicateKey(new SQLException("syntax", "42000"))
+											&& !ResourceDBWrapper.isDuplicateKey(new SQLException("no state")));
+	}
+
+	public void testCacheWrite() throws Exception {
+		// DBCache writes are one wrapper call, no existence checks first
+		OperationMetrics metrics = new OperationMetrics();
+		this.rdb.setMetricsRegistry(metrics);
+		DBCache cache = new DBCache(this.rdb);
+		try {
+			boolean added = cache.addRelationship("gene2", "synonym", "g2", 0.5, "Check");
+			assertTrue("cache write in one call", metrics.getAllStats().size() == 1
+													&& metrics.getStats("upsertRelationship").getCount() == 1);
+			assertTrue("cache write", added && this.rdb.relationshipExists("gene2", "synonym", "g2"));
+		} finally {
+			cache.close();
+		}
+	}
+
+	private int count(String query) throws SQLException {
+		ResultSet rs = this.rdb.debugExecQuery(query);
+		rs.next();
+		return rs.getInt(1);
+	}
+}
@@ -0,0 +1,66 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.util.Arrays;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.DBInfo;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.cache.DBCache;
+
+/**
+ * Tests the single-query Term reads on an embedded H2 database: the source filter keeps other sources' rows out,
+ * a missing term reads as null, and DBCache's getTerm and getTermByID hits cost one wrapper call each.
+ */
+public class WholeTermReadTest extends H2TestSupport {
+	private ResourceDBWrapper rdb;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		DBInfo.cacheMaxEntries = 0;
+		this.rdb = new ResourceDBWrapper(this.createDatabase());
+		Term gene = new Term("gene1");
+		gene.addTermRelationship(new TermRelationship("gene1", "ID", "EntrezGene:1", 1.0, "EntrezGene"));
+		gene.addTermRelationship(new TermRelationship("gene1", "synonym", "g1", 0.5, "EntrezGene"));
+		gene.addTermRelationship(new TermRelationship("gene1", "synonym", "gene one", 0.5, "MeSH"));
+		this.rdb.insertWholeTerms(Arrays.asList(gene));
+	}
+
+	public void testSourceFilter() throws Exception {
+		assertEquals("all sources", 3, this.rdb.getWholeTerm("gene1", null).getAllTermRelationships().size());
+		Term entrez = this.rdb.getWholeTerm("gene1", "EntrezGene");
+		assertTrue("source filtered", entrez.getAllTermRelationships().size() == 2 && onlyFrom(entrez, "EntrezGene"));
+		assertNull("missing term", this.rdb.getWholeTerm("gene2", null));
+		Term byID = this.rdb.getWholeTermByRelationshipAndValue("ID", "EntrezGene:1", "MeSH");
+		assertTrue("by ID, source filtered", byID != null && "gene1".equals(byID.getTerm())
+												&& byID.getAllTermRelationships().size() == 1 && onlyFrom(byID, "MeSH"));
+		assertNull("missing ID", this.rdb.getWholeTermByRelationshipAndValue("ID", "EntrezGene:2", null));
+	}
+
+	public void testCacheHits() throws Exception {
+		// A DBCache hit is one wrapper call, not termExists + getRelationships
+		OperationMetrics metrics = new OperationMetrics();
+		this.rdb.setMetricsRegistry(metrics);
+		DBCache cache = new DBCache(this.rdb);
+		try {
+			Term cached = cache.getTerm("gene1", "MeSH");
+			assertTrue("getTerm hit", cached != null && onlyFrom(cached, "MeSH"));
+			assertTrue("getTerm in one call", metrics.getAllStats().size() == 1 && metrics.getStats("getWholeTerm").getCount() == 1);
+			metrics.reset();
+			cached = cache.getTermByID("EntrezGene:1", "all");
+			assertTrue("getTermByID hit", cached != null && cached.getAllTermRelationships().size() == 3);
+			assertTrue("getTermByID in one call", metrics.getAllStats().size() == 1
+													&& metrics.getStats("getWholeTermByRelationshipAndValue").getCount() == 1);
+		} finally {
+			cache.close();
+		}
+	}
+
+	private static boolean onlyFrom(Term term, String source) {
+		for (TermRelationship tr : term.getAllTermRelationships()) {
+			if (!source.equals(tr.getSource()))
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,82 @@
+package edu.cmu.lti.oaqa.bio.resource_wrapper.db_wrapper;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import edu.cmu.lti.oaqa.bio.resource_wrapper.H2TestSupport;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.Term;
+import edu.cmu.lti.oaqa.bio.resource_wrapper.TermRelationship;
+
+/**
+ * Tests the batched, transactional write path (insertWholeTerms) on an embedded H2 database: one flag per term and
+ * relationship, rows already there reported as present and not duplicated, and a failed batch rolling back the whole
+ * transaction and being thrown, without leaking into the next call.
+ */
+public class WholeTermWriteTest extends H2TestSupport {
+	private ConnectionPool pool;
+	private ResourceDBWrapper rdb;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		this.pool = this.createDatabase();
+		this.rdb = new ResourceDBWrapper(this.pool);
+		Term gene = term("gene1", 2);
+		gene.addTermRelationship(new TermRelationship("gene1", "definition", null, 1.0, "Check"));
+		ArrayList<Term> batch = new ArrayList<Term>();
+		batch.add(gene);
+		batch.add(term("gene2", 3));
+		ArrayList<boolean[]> flags = this.rdb.insertWholeTerms(batch);
+		assertTrue("one flag per term and relationship", flags.size() == 2 && flags.get(0).length == 4 && flags.get(1).length == 4);
+		assertTrue("all written", allTrue(flags));
+	}
+
+	public void testWritten() throws Exception {
+		assertTrue("rows in the db", this.rdb.getRelationships("gene1").size() == 2 && this.rdb.getRelationships("gene2").size() == 3);
+
+		// Existing rows are reported as present and not written twice
+		ArrayList<boolean[]> flags = this.rdb.insertWholeTerms(Arrays.asList(term("gene1", 3)));
+		assertTrue("existing rows flagged", allTrue(flags) && flags.get(0).length == 4);
+		assertEquals("no duplicates", 3, this.rdb.getRelationships("gene1").size());
+	}
+
+	public void testFailedBatch() throws Exception {
+		// A batch failing on one Term (a name over the 255 characters of its column) writes nothing and is thrown
+		char[] longName = new char[300];
+		Arrays.fill(longName, 'x');
+		ArrayList<Term> batch = new ArrayList<Term>();
+		batch.add(term("gene3", 1));
+		batch.add(term(new String(longName), 1));
+		try {
+			this.rdb.insertWholeTerms(batch);
+			fail("failed batch thrown");
+		} catch (SQLException e) {
+			;
+		}
+		assertFalse("failed batch rolled back", this.rdb.termExists("gene3"));
+		assertEquals("connection handed back", 0, this.pool.getActiveCount());
+		ArrayList<boolean[]> flags = this.rdb.insertWholeTerms(Arrays.asList(term("gene4", 1)));
+		assertTrue("next batch unaffected", allTrue(flags) && this.rdb.termExists("gene4") && !this.rdb.termExists("gene3"));
+
+		ResultSet rows = this.rdb.debugExecQuery("SELECT COUNT(*) FROM terms");
+		assertTrue("debug query rows readable", rows.next() && rows.getInt(1) == 3);
+	}
+
+	private static Term term(String name, int synonyms) {
+		Term term = new Term(name);
+		for (int i = 0; i < synonyms; i++)
+			term.addTermRelationship(new TermRelationship(name, "synonym", name + "-s" + i, 0.5, "Check"));
+		return term;
+	}
+
+	private static boolean allTrue(ArrayList<boolean[]> flags) {
+		for (boolean[] row : flags) {
+			for (boolean flag : row) {
+				if (!flag)
+					return false;
+			}
+		}
+		return true;
+	}
+}